@@ -29,6 +29,9 @@ import net.winstone.core.listener.Ajp13Listener;
 import net.winstone.core.listener.HttpListener;
 import net.winstone.core.listener.HttpsListener;
 import net.winstone.core.listener.Listener;
+import net.winstone.core.listener.NioHttpListener;
+import net.winstone.core.listener.NioHttpsListener;
+import net.winstone.core.listener.UnixSocketListener;
 import net.winstone.jndi.JndiManager;
 import net.winstone.jndi.resources.DataSourceConfig;
 import net.winstone.util.LifeCycle;
@@ -193,10 +196,13 @@ public class Server implements LifeCycle {
 	private void initializeListener() throws IOException {
 		// Create connectors (http, https and ajp)
 		spawnListener(HttpListener.class.getName());
+		spawnListener(NioHttpListener.class.getName());
+		spawnListener(UnixSocketListener.class.getName());
 		spawnListener(Ajp13Listener.class.getName());
 		try {
 			Class.forName("javax.net.ServerSocketFactory");
 			spawnListener(HttpsListener.class.getName());
+			spawnListener(NioHttpsListener.class.getName());
 		} catch (final ClassNotFoundException err) {
 			Server.logger.debug("Listener class {} needs JDK1.4 support. Disabling", HttpsListener.class.getName());
 		}
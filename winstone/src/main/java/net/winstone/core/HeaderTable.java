@@ -0,0 +1,340 @@
+package net.winstone.core;
+
+/**
+ * Ordered table of response headers. Names are matched ignoring case through
+ * a small hash index, so lookups and updates do not scan or build strings.
+ * Several headers may share a name; they keep the order they were added in.
+ *
+ * <p>
+ * Header lines whose name and value are registered constants (the Server and
+ * X-Powered-By headers, say) are encoded once, see
+ * {@link #registerConstant(String, String)}.
+ */
+public class HeaderTable {
+
+	private static final int BUCKET_COUNT = 16;
+	private static final int INITIAL_CAPACITY = 16;
+
+	private static volatile Constant constants[] = new Constant[0];
+
+	/**
+	 * First entry of each bucket, as index + 1 (0 for none).
+	 */
+	private final int buckets[] = new int[HeaderTable.BUCKET_COUNT];
+	private String names[];
+	private String values[];
+	private int hashes[];
+	/**
+	 * Next entry in the same bucket, as index + 1 (0 for none).
+	 */
+	private int next[];
+	private byte lines[][];
+	private int size;
+
+	/**
+	 * Build a new instance of HeaderTable.
+	 */
+	public HeaderTable() {
+		super();
+		names = new String[HeaderTable.INITIAL_CAPACITY];
+		values = new String[HeaderTable.INITIAL_CAPACITY];
+		hashes = new int[HeaderTable.INITIAL_CAPACITY];
+		next = new int[HeaderTable.INITIAL_CAPACITY];
+		lines = new byte[HeaderTable.INITIAL_CAPACITY][];
+	}
+
+	/**
+	 * Declare a header whose line should be encoded only once. The value is
+	 * matched by identity, so pass the very string later given to
+	 * {@link #add(String, String)} or {@link #set(String, String)}.
+	 */
+	public static synchronized void registerConstant(final String name, final String value) {
+		final Constant registered[] = new Constant[HeaderTable.constants.length + 1];
+		System.arraycopy(HeaderTable.constants, 0, registered, 0, HeaderTable.constants.length);
+		registered[registered.length - 1] = new Constant(name, value);
+		HeaderTable.constants = registered;
+	}
+
+	/**
+	 * @return the number of headers.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return the name of the header at the given position.
+	 */
+	public String getName(final int index) {
+		return names[index];
+	}
+
+	/**
+	 * @return the value of the header at the given position.
+	 */
+	public String getValue(final int index) {
+		return values[index];
+	}
+
+	/**
+	 * @return the header at the given position as ISO-8859-1 bytes, "Name:
+	 *         value" followed by CR LF. Any CR or LF in the header is replaced
+	 *         by a space.
+	 */
+	public byte[] getLine(final int index) {
+		final byte line[] = lines[index];
+		return line != null ? line : HeaderTable.encodeLine(names[index], values[index]);
+	}
+
+	/**
+	 * @return the value of the first header with this name, or null.
+	 */
+	public String get(final String name) {
+		final int index = indexOf(name);
+		return index < 0 ? null : values[index];
+	}
+
+	/**
+	 * @return Boolean.TRUE if a header with this name exists.
+	 */
+	public boolean contains(final String name) {
+		return indexOf(name) >= 0;
+	}
+
+	/**
+	 * Adds a header, keeping any other header of the same name.
+	 */
+	public void add(final String name, final String value) {
+		if (size == names.length) {
+			grow();
+		}
+		final int hash = HeaderTable.hash(name);
+		names[size] = name;
+		values[size] = value;
+		hashes[size] = hash;
+		lines[size] = HeaderTable.constantLine(name, value);
+		link(size, hash);
+		size++;
+	}
+
+	/**
+	 * Replaces the value of the first header with this name and drops the
+	 * others, or adds the header if there is none. A null value removes every
+	 * header with this name.
+	 */
+	public void set(final String name, final String value) {
+		if (value == null) {
+			remove(name);
+			return;
+		}
+		final int index = indexOf(name);
+		if (index < 0) {
+			add(name, value);
+			return;
+		}
+		values[index] = value;
+		lines[index] = HeaderTable.constantLine(name, value);
+		for (int n = next[index] - 1; n >= 0; n = next[n] - 1) {
+			if (hashes[n] == hashes[index] && names[n].equalsIgnoreCase(name)) {
+				compact(name, index);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Like {@link #set(String, String)}, with the header line already
+	 * encoded, as {@link #getLine(int)} would return it.
+	 */
+	public void set(final String name, final String value, final byte[] line) {
+		set(name, value);
+		if (value != null) {
+			lines[indexOf(name)] = line;
+		}
+	}
+
+	/**
+	 * Removes every header with this name.
+	 */
+	public void remove(final String name) {
+		if (indexOf(name) >= 0) {
+			compact(name, -1);
+		}
+	}
+
+	/**
+	 * Removes every header.
+	 */
+	public void clear() {
+		for (int n = 0; n < size; n++) {
+			names[n] = null;
+			values[n] = null;
+			lines[n] = null;
+		}
+		for (int n = 0; n < HeaderTable.BUCKET_COUNT; n++) {
+			buckets[n] = 0;
+		}
+		size = 0;
+	}
+
+	@Override
+	public String toString() {
+		final StringBuilder out = new StringBuilder("[");
+		for (int n = 0; n < size; n++) {
+			if (n > 0) {
+				out.append(", ");
+			}
+			out.append(names[n]).append(": ").append(values[n]);
+		}
+		return out.append(']').toString();
+	}
+
+	private int indexOf(final String name) {
+		final int hash = HeaderTable.hash(name);
+		for (int n = buckets[hash & (HeaderTable.BUCKET_COUNT - 1)] - 1; n >= 0; n = next[n] - 1) {
+			if (hashes[n] == hash && names[n].equalsIgnoreCase(name)) {
+				return n;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Appends an entry at the end of its bucket, so that within a name the
+	 * first added is found first.
+	 */
+	private void link(final int index, final int hash) {
+		next[index] = 0;
+		final int bucket = hash & (HeaderTable.BUCKET_COUNT - 1);
+		int n = buckets[bucket] - 1;
+		if (n < 0) {
+			buckets[bucket] = index + 1;
+			return;
+		}
+		while (next[n] != 0) {
+			n = next[n] - 1;
+		}
+		next[n] = index + 1;
+	}
+
+	/**
+	 * Drops the headers with the given name except the one at keep, then
+	 * rebuilds the index.
+	 */
+	private void compact(final String name, final int keep) {
+		int kept = 0;
+		for (int n = 0; n < size; n++) {
+			if (n != keep && names[n].equalsIgnoreCase(name)) {
+				continue;
+			}
+			names[kept] = names[n];
+			values[kept] = values[n];
+			hashes[kept] = hashes[n];
+			lines[kept] = lines[n];
+			kept++;
+		}
+		for (int n = kept; n < size; n++) {
+			names[n] = null;
+			values[n] = null;
+			lines[n] = null;
+		}
+		size = kept;
+		for (int n = 0; n < HeaderTable.BUCKET_COUNT; n++) {
+			buckets[n] = 0;
+		}
+		for (int n = 0; n < size; n++) {
+			link(n, hashes[n]);
+		}
+	}
+
+	private void grow() {
+		final int capacity = names.length * 2;
+		final String newNames[] = new String[capacity];
+		final String newValues[] = new String[capacity];
+		final int newHashes[] = new int[capacity];
+		final int newNext[] = new int[capacity];
+		final byte newLines[][] = new byte[capacity][];
+		System.arraycopy(names, 0, newNames, 0, size);
+		System.arraycopy(values, 0, newValues, 0, size);
+		System.arraycopy(hashes, 0, newHashes, 0, size);
+		System.arraycopy(next, 0, newNext, 0, size);
+		System.arraycopy(lines, 0, newLines, 0, size);
+		names = newNames;
+		values = newValues;
+		hashes = newHashes;
+		next = newNext;
+		lines = newLines;
+	}
+
+	/**
+	 * Hash of the name with ASCII letters folded to lower case.
+	 */
+	private static int hash(final String name) {
+		int hash = 0;
+		for (int n = 0; n < name.length(); n++) {
+			char c = name.charAt(n);
+			if (c >= 'A' && c <= 'Z') {
+				c += 'a' - 'A';
+			}
+			hash = 31 * hash + c;
+		}
+		return hash ^ (hash >>> 16);
+	}
+
+	private static byte[] constantLine(final String name, final String value) {
+		final Constant registered[] = HeaderTable.constants;
+		for (int n = 0; n < registered.length; n++) {
+			if (registered[n].value == value && registered[n].name.equalsIgnoreCase(name)) {
+				return registered[n].line;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return "Name: value" followed by CR LF, in ISO-8859-1.
+	 */
+	public static byte[] encodeLine(final String name, final String value) {
+		final int nameLength = name.length();
+		final int valueLength = value.length();
+		final byte line[] = new byte[nameLength + valueLength + 4];
+		HeaderTable.encode(name, line, 0);
+		line[nameLength] = ':';
+		line[nameLength + 1] = ' ';
+		HeaderTable.encode(value, line, nameLength + 2);
+		line[line.length - 2] = '\r';
+		line[line.length - 1] = '\n';
+		return line;
+	}
+
+	/**
+	 * ISO-8859-1 encoding, CR and LF turned into spaces.
+	 */
+	private static void encode(final String text, final byte[] out, final int offset) {
+		for (int n = 0; n < text.length(); n++) {
+			final char c = text.charAt(n);
+			if (c == '\r' || c == '\n') {
+				out[offset + n] = ' ';
+			} else if (c > 0xFF) {
+				out[offset + n] = '?';
+			} else {
+				out[offset + n] = (byte) c;
+			}
+		}
+	}
+
+	/**
+	 * A registered constant header and its encoded line.
+	 */
+	private static final class Constant {
+		private final String name;
+		private final String value;
+		private final byte line[];
+
+		Constant(final String name, final String value) {
+			this.name = name;
+			this.value = value;
+			line = HeaderTable.encodeLine(name, value);
+		}
+	}
+}
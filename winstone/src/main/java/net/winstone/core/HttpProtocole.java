@@ -14,9 +14,28 @@ public enum HttpProtocole {
 			"Temporary Redirect"), HTTP_400("Bad Request"), HTTP_401("Authorization Required"), HTTP_402("Payment Required"), HTTP_403("Forbidden"), HTTP_404("Not Found"), HTTP_405("Method Not Allowed"), HTTP_406("Not Acceptable"), HTTP_407(
 			"Proxy Authentication Required"), HTTP_408("Request Time-out"), HTTP_409("Conflict"), HTTP_410("Gone"), HTTP_411("Length Required"), HTTP_412("Precondition Failed"), HTTP_413("Request Entity Too Large"), HTTP_414("Request-URI Too Large"), HTTP_415(
 			"Unsupported Media Type"), HTTP_416("Requested Range Not Satisfiable"), HTTP_417("Expectation Failed"), HTTP_418("unused"), HTTP_419("unused"), HTTP_420("unused"), HTTP_421("unused"), HTTP_422("Unprocessable Entity"), HTTP_423("Locked"), HTTP_424(
-			"Failed Dependency"), HTTP_425("No code"), HTTP_426("Upgrade Required"), HTTP_500("Internal Server Error"), HTTP_501("Method Not Implemented"), HTTP_502("Bad Gateway"), HTTP_503("Service Temporarily Unavailable"), HTTP_504(
+			"Failed Dependency"), HTTP_425("No code"), HTTP_426("Upgrade Required"), HTTP_431("Request Header Fields Too Large"), HTTP_500("Internal Server Error"), HTTP_501("Method Not Implemented"), HTTP_502("Bad Gateway"), HTTP_503("Service Temporarily Unavailable"), HTTP_504(
 			"Gateway Time-out"), HTTP_505("HTTP Version Not Supported"), HTTP_506("Variant Also Negotiates"), HTTP_507("Insufficient Storage"), HTTP_508("unused"), HTTP_509("unused"), HTTP_510("Not Extended");
 
+	/**
+	 * Protocols with precomputed status lines.
+	 */
+	private static final String PROTOCOLS[] = { "HTTP/1.1", "HTTP/1.0" };
+	private static final int MIN_STATUS = 100;
+	private static final int MAX_STATUS = 599;
+	/**
+	 * Encoded status lines, CR LF included, by protocol then status code.
+	 */
+	private static final byte STATUS_LINES[][][] = new byte[HttpProtocole.PROTOCOLS.length][HttpProtocole.MAX_STATUS + 1][];
+
+	static {
+		for (int p = 0; p < HttpProtocole.PROTOCOLS.length; p++) {
+			for (int status = HttpProtocole.MIN_STATUS; status <= HttpProtocole.MAX_STATUS; status++) {
+				HttpProtocole.STATUS_LINES[p][status] = HttpProtocole.encodeStatusLine(HttpProtocole.PROTOCOLS[p], status);
+			}
+		}
+	}
+
 	private final String message;
 
 	HttpProtocole(final String message) {
@@ -26,4 +45,42 @@ public enum HttpProtocole {
 	public final String getMessage() {
 		return message;
 	}
+
+	/**
+	 * @return the reason phrase of a status code, "No reason" if unknown.
+	 */
+	public static String getReason(final int statusCode) {
+		final String name = "HTTP_" + statusCode;
+		for (final HttpProtocole value : HttpProtocole.values()) {
+			if (value.name().equals(name)) {
+				return value.message;
+			}
+		}
+		return "No reason";
+	}
+
+	/**
+	 * @return the ISO-8859-1 status line, followed by CR LF, precomputed for
+	 *         HTTP/1.0 and HTTP/1.1. Do not modify the array.
+	 */
+	public static byte[] getStatusLine(final String protocol, final int statusCode) {
+		if (statusCode >= HttpProtocole.MIN_STATUS && statusCode <= HttpProtocole.MAX_STATUS) {
+			for (int p = 0; p < HttpProtocole.PROTOCOLS.length; p++) {
+				if (HttpProtocole.PROTOCOLS[p].equals(protocol)) {
+					return HttpProtocole.STATUS_LINES[p][statusCode];
+				}
+			}
+		}
+		return HttpProtocole.encodeStatusLine(protocol, statusCode);
+	}
+
+	private static byte[] encodeStatusLine(final String protocol, final int statusCode) {
+		final String statusLine = protocol + " " + statusCode + " " + HttpProtocole.getReason(statusCode) + "\r\n";
+		final byte line[] = new byte[statusLine.length()];
+		for (int n = 0; n < line.length; n++) {
+			final char c = statusLine.charAt(n);
+			line[n] = c > 0xFF ? (byte) '?' : (byte) c;
+		}
+		return line;
+	}
 }
@@ -7,21 +7,29 @@
 package net.winstone.core;
 
 import java.io.IOException;
+import java.lang.reflect.Method;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import net.winstone.WinstoneException;
 import net.winstone.core.listener.Listener;
 import net.winstone.core.listener.RequestHandlerThread;
 import net.winstone.util.BoundedExecutorService;
+import net.winstone.util.BufferPool;
+import net.winstone.util.ByteBufferPool;
+import net.winstone.util.ControlledDelay;
 import net.winstone.util.StringUtils;
+import net.winstone.util.StripedPool;
 
 import org.slf4j.LoggerFactory;
 
@@ -48,6 +56,39 @@ public class ObjectPool {
 	 * Maximum request handler in pool (200).
 	 */
 	private final static transient int MAX_REQUEST_HANDLERS_IN_POOL = 200;
+	/**
+	 * Maximum request handled at once in virtual mode (10000).
+	 */
+	private final static transient int MAX_VIRTUAL_REQUEST_HANDLERS = 10000;
+	/**
+	 * Maximum connections waiting for a request handler (100).
+	 */
+	private final static transient int MAX_QUEUED_REQUEST_HANDLERS = 100;
+	/**
+	 * Maximum time a connection waits for a request handler before being
+	 * turned away (10 seconds).
+	 */
+	private final static transient int MAX_QUEUE_WAIT = 10000;
+	/**
+	 * Default interval of the controlled delay admission (100 ms).
+	 */
+	private final static transient int ADMISSION_INTERVAL = 100;
+	/**
+	 * Default Retry-After of the overload response (5 seconds).
+	 */
+	private final static transient int OVERLOAD_RETRY_AFTER = 5;
+	/**
+	 * Time the listeners hold off accepting while the queue is full (10 ms).
+	 */
+	private final static transient int ACCEPT_PAUSE = 10;
+	/**
+	 * Request handlers run on pooled platform threads.
+	 */
+	public final static String HANDLER_MODE_PLATFORM = "platform";
+	/**
+	 * Request handlers run on one virtual thread each (Java 21 and later).
+	 */
+	public final static String HANDLER_MODE_VIRTUAL = "virtual";
 
 	/**
 	 * Start requests in pool (10).
@@ -65,12 +106,47 @@ public class ObjectPool {
 	 * Maximum responses in pool (1000).
 	 */
 	private final static transient int MAX_RESPONSES_IN_POOL = 1000;
+	/**
+	 * Size of connection read buffers (8 KB).
+	 */
+	private final static transient int READ_BUFFER_SIZE = 8192;
+	/**
+	 * Maximum idle connection read buffers in pool (1000).
+	 */
+	private final static transient int MAX_READ_BUFFERS_IN_POOL = 1000;
+	/**
+	 * Default response buffer size (8 KB).
+	 */
+	private final static transient int RESPONSE_BUFFER_SIZE = 8192;
+	/**
+	 * Maximum idle response buffers in pool (1000).
+	 */
+	private final static transient int MAX_RESPONSE_BUFFERS_IN_POOL = 1000;
 
-	private final ExecutorService requestHandler;
-	private List<WinstoneRequest> unusedRequestPool;
-	private List<WinstoneResponse> unusedResponsePool;
-	private final Object requestPoolSemaphore = new Object();
-	private final Object responsePoolSemaphore = new Object();
+	private final BoundedExecutorService requestHandler;
+	/**
+	 * Longest wait for a request handler, in nanoseconds, or 0 for no limit.
+	 */
+	private final long maxQueueWait;
+	private final boolean pauseAcceptWhenFull;
+	/**
+	 * Target wait and interval of the controlled delay admission, in
+	 * milliseconds; no such admission if the target is 0.
+	 */
+	private final int admissionTarget;
+	private final int admissionInterval;
+	private final ConcurrentMap<Listener, ControlledDelay> admissionControls = new ConcurrentHashMap<Listener, ControlledDelay>();
+	/**
+	 * The 503 response sent to the connections turned away, encoded once.
+	 */
+	private final byte[] overloadResponse;
+	private final int overloadRetryAfter;
+	private final AtomicLong shedConnections = new AtomicLong();
+	private final String handlerMode;
+	private final StripedPool<WinstoneRequest> requestPool;
+	private final StripedPool<WinstoneResponse> responsePool;
+	private final BufferPool readBufferPool = new BufferPool(ObjectPool.READ_BUFFER_SIZE, ObjectPool.MAX_READ_BUFFERS_IN_POOL);
+	private final ByteBufferPool responseBufferPool;
 
 	private final boolean simulateModUniqueId;
 	private final boolean saveSessions;
@@ -78,6 +154,7 @@ public class ObjectPool {
 	int startupRequest = ObjectPool.STARTUP_REQUEST_HANDLERS_IN_POOL;
 	int maxRequestHandlesInPool = ObjectPool.MAX_REQUEST_HANDLERS_IN_POOL;
 	int maxIdleRequestHandlesInPool = ObjectPool.MAX_IDLE_REQUEST_HANDLERS_IN_POOL;
+	int maxVirtualRequestHandles = ObjectPool.MAX_VIRTUAL_REQUEST_HANDLERS;
 
 	/**
 	 * max number of parameters allowed.
@@ -102,35 +179,104 @@ public class ObjectPool {
 		// load saveSessions
 		saveSessions = WebAppConfiguration.useSavedSessions(args);
 
-		// idle thread will only hang around for 60 secs
-		ExecutorService es = new ThreadPoolExecutor(MAX_IDLE_REQUEST_HANDLERS_IN_POOL, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
-			private int threadIndex;
-
-			public synchronized Thread newThread(Runnable r) {
-				String threadName = "RequestHandlerThread[" + (++threadIndex) + "]";
-				// allocate a thread to run on this object
-				Thread thread = new Thread(r, threadName);
-				thread.setDaemon(true);
-				return thread;
-			}
-		});
-
-		requestHandler = new BoundedExecutorService(es, MAX_REQUEST_HANDLERS_IN_POOL);
-		// Build the request/response pools
-		unusedRequestPool = new ArrayList<WinstoneRequest>();
-		unusedResponsePool = new ArrayList<WinstoneResponse>();
+		// response buffers also hold the head and the chunk framing
+		int responseBufferSize = StringUtils.intArg(args, "responseBufferSize", ObjectPool.RESPONSE_BUFFER_SIZE);
+		if (responseBufferSize < 1) {
+			logger.error("responseBufferSize should be greater than 0. Set to default value {}", ObjectPool.RESPONSE_BUFFER_SIZE);
+			responseBufferSize = ObjectPool.RESPONSE_BUFFER_SIZE;
+		}
+		final boolean useDirectBuffers = StringUtils.booleanArg(args, "useDirectBuffers", Boolean.FALSE);
+		responseBufferPool = new ByteBufferPool(WinstoneOutputStream.HEAD_ROOM + responseBufferSize + WinstoneOutputStream.TAIL_ROOM, ObjectPool.MAX_RESPONSE_BUFFERS_IN_POOL, useDirectBuffers);
 
 		// Get handler pool options
 		startupRequest = StringUtils.intArg(args, "handlerCountStartup", ObjectPool.STARTUP_REQUEST_HANDLERS_IN_POOL);
 		maxRequestHandlesInPool = StringUtils.intArg(args, "handlerCountMax", ObjectPool.MAX_REQUEST_HANDLERS_IN_POOL);
 		maxIdleRequestHandlesInPool = StringUtils.intArg(args, "handlerCountMaxIdle", ObjectPool.MAX_IDLE_REQUEST_HANDLERS_IN_POOL);
+		maxVirtualRequestHandles = StringUtils.intArg(args, "handlerCountMaxVirtual", ObjectPool.MAX_VIRTUAL_REQUEST_HANDLERS);
 
-		// Initialize the request/response pools
-		for (int n = 0; n < ObjectPool.START_REQUESTS_IN_POOL; n++) {
-			unusedRequestPool.add(new WinstoneRequest(ObjectPool.MAXPARAMALLOWED));
+		// Overload policy
+		final int maxQueued = Math.max(StringUtils.intArg(args, "handlerQueueMax", ObjectPool.MAX_QUEUED_REQUEST_HANDLERS), 0);
+		maxQueueWait = TimeUnit.MILLISECONDS.toNanos(Math.max(StringUtils.intArg(args, "handlerQueueMaxWait", ObjectPool.MAX_QUEUE_WAIT), 0));
+		pauseAcceptWhenFull = StringUtils.booleanArg(args, "overloadPauseAccept", Boolean.FALSE);
+		admissionTarget = Math.max(StringUtils.intArg(args, "admissionTargetDelay", 0), 0);
+		admissionInterval = Math.max(StringUtils.intArg(args, "admissionInterval", ObjectPool.ADMISSION_INTERVAL), 1);
+		overloadRetryAfter = StringUtils.intArg(args, "overloadRetryAfter", ObjectPool.OVERLOAD_RETRY_AFTER);
+		overloadResponse = ("HTTP/1.1 503 Service Unavailable\r\nRetry-After: " + overloadRetryAfter + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes("ISO-8859-1");
+
+		ExecutorService es = null;
+		final String mode = StringUtils.stringArg(args, "handlerMode", ObjectPool.HANDLER_MODE_PLATFORM);
+		if (ObjectPool.HANDLER_MODE_VIRTUAL.equalsIgnoreCase(mode)) {
+			es = ObjectPool.newVirtualThreadExecutor();
+			if (es == null) {
+				logger.warn("Virtual threads are not supported by this JVM - falling back to platform request handler threads");
+			}
+		} else if (!ObjectPool.HANDLER_MODE_PLATFORM.equalsIgnoreCase(mode)) {
+			logger.warn("Unknown handlerMode {} - using platform request handler threads", mode);
 		}
-		for (int n = 0; n < ObjectPool.START_RESPONSES_IN_POOL; n++) {
-			unusedResponsePool.add(new WinstoneResponse());
+		if (es != null) {
+			handlerMode = ObjectPool.HANDLER_MODE_VIRTUAL;
+			requestHandler = new BoundedExecutorService(es, maxVirtualRequestHandles, maxQueued);
+		} else {
+			handlerMode = ObjectPool.HANDLER_MODE_PLATFORM;
+			// idle thread will only hang around for 60 secs
+			es = new ThreadPoolExecutor(maxIdleRequestHandlesInPool, Integer.MAX_VALUE, 60L, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactory() {
+				private int threadIndex;
+
+				public synchronized Thread newThread(Runnable r) {
+					String threadName = "RequestHandlerThread[" + (++threadIndex) + "]";
+					// allocate a thread to run on this object
+					Thread thread = new Thread(r, threadName);
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			requestHandler = new BoundedExecutorService(es, maxRequestHandlesInPool, maxQueued);
+		}
+		logger.info("Request handlers: {} threads, at most {} at once", handlerMode, "" + requestHandler.getMaximumPoolSize());
+
+		// Build the request/response pools
+		requestPool = new StripedPool<WinstoneRequest>(ObjectPool.MAX_REQUESTS_IN_POOL) {
+
+			@Override
+			protected WinstoneRequest create() {
+				try {
+					return new WinstoneRequest(ObjectPool.MAXPARAMALLOWED);
+				} catch (final IOException e) {
+					throw new WinstoneException("Cannot create a request", e);
+				}
+			}
+		};
+		responsePool = new StripedPool<WinstoneResponse>(ObjectPool.MAX_RESPONSES_IN_POOL) {
+
+			@Override
+			protected WinstoneResponse create() {
+				return new WinstoneResponse();
+			}
+		};
+
+		// Initialize the request/response pools
+		requestPool.fill(ObjectPool.START_REQUESTS_IN_POOL);
+		responsePool.fill(ObjectPool.START_RESPONSES_IN_POOL);
+	}
+
+	/**
+	 * Build an executor starting one virtual thread per task. Looked up by
+	 * reflection as virtual threads only exist from Java 21 on.
+	 * 
+	 * @return the executor, or null if the running JVM has no virtual threads.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "VirtualRequestHandlerThread-", Long.valueOf(1));
+			final ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+			final Method method = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			return (ExecutorService) method.invoke(null, factory);
+		} catch (final Throwable e) {
+			// older JVM, or preview feature not enabled
+			logger.debug("Virtual threads unavailable", e);
+			return null;
 		}
 	}
 
@@ -144,37 +290,106 @@ public class ObjectPool {
 	/**
 	 * Once the socket request comes in, this method is called. It reserves a
 	 * request handler, then delegates the socket to that class. When it
-	 * finishes, the handler is released back into the pool.
+	 * finishes, the handler is released back into the pool. If all handlers
+	 * are busy and the queue is full, the connection is turned away at once.
 	 */
 	public void handleRequest(final Socket socket, final Listener listener) throws IOException, InterruptedException {
 		try {
-			requestHandler.submit(new RequestHandlerThread(this.simulateModUniqueId, this.saveSessions, socket, listener));
+			requestHandler.submit(new RequestHandlerThread(this, this.simulateModUniqueId, this.saveSessions, socket, listener));
 		} catch (RejectedExecutionException e) {
-			logger.warn("WARNING: Request handler pool limit exceeded - waiting for retry");
-			socket.close();
+			shedConnection(socket, listener);
+		}
+	}
+
+	/**
+	 * Turns a connection away with the pre-written 503 response, so the
+	 * client backs off rather than retrying at once.
+	 */
+	public void shedConnection(final Socket socket, final Listener listener) {
+		shedConnections.incrementAndGet();
+		ObjectPool.logger.debug("Request handlers saturated - turning away connection from {}", socket.getRemoteSocketAddress());
+		try {
+			listener.rejectConnection(socket, overloadResponse);
+		} catch (final IOException e) {
+			ObjectPool.logger.debug("Error turning away connection", e);
+			try {
+				socket.close();
+			} catch (final IOException err) {
+			}
 		}
 	}
 
+	/**
+	 * Decides whether a connection picked up by its request handler is still
+	 * worth serving: not if it waited longer than allowed, nor if the
+	 * controlled delay admission of its listener drops it.
+	 * 
+	 * @param queuedAt
+	 *            System.nanoTime() when the connection was queued
+	 * @return Boolean.FALSE if the connection should be turned away.
+	 */
+	public boolean admit(final Listener listener, final long queuedAt) {
+		final long now = System.nanoTime();
+		final long sojourn = now - queuedAt;
+		if (maxQueueWait > 0 && sojourn > maxQueueWait) {
+			return Boolean.FALSE;
+		}
+		final ControlledDelay admissionControl = getAdmissionControl(listener);
+		return admissionControl == null || !admissionControl.drop(sojourn, now, requestHandler.getQueueSize() > 0);
+	}
+
+	/**
+	 * @return the controlled delay admission of a listener, or null if there
+	 *         is none.
+	 */
+	public ControlledDelay getAdmissionControl(final Listener listener) {
+		if (admissionTarget == 0) {
+			return null;
+		}
+		ControlledDelay admissionControl = admissionControls.get(listener);
+		if (admissionControl == null) {
+			admissionControls.putIfAbsent(listener, new ControlledDelay(admissionTarget, admissionInterval, TimeUnit.MILLISECONDS));
+			admissionControl = admissionControls.get(listener);
+		}
+		return admissionControl;
+	}
+
+	/**
+	 * Holds a listener off for a short while when the queue is full and the
+	 * policy is to leave new connections in the backlog.
+	 * 
+	 * @return Boolean.TRUE if the listener should not accept now.
+	 */
+	public boolean pauseAccept() throws InterruptedException {
+		if (!isAcceptPaused()) {
+			return Boolean.FALSE;
+		}
+		Thread.sleep(ObjectPool.ACCEPT_PAUSE);
+		return Boolean.TRUE;
+	}
+
+	/**
+	 * @return Boolean.TRUE if listeners should stop accepting for now.
+	 */
+	public boolean isAcceptPaused() {
+		return pauseAcceptWhenFull && requestHandler.isQueueFull();
+	}
+
+	/**
+	 * @return how long listeners hold off accepting at a time, in
+	 *         milliseconds.
+	 */
+	public int getAcceptPause() {
+		return ObjectPool.ACCEPT_PAUSE;
+	}
+
 	/**
 	 * An attempt at pooling request objects for reuse.
 	 * 
 	 * @return a WinstoneRequest instance.
 	 */
 	public WinstoneRequest getRequestFromPool() throws IOException {
-		WinstoneRequest winstoneRequest = null;
-		synchronized (requestPoolSemaphore) {
-			// If we have any spare, get it from the pool
-			final int unused = unusedRequestPool.size();
-			if (unused > 0) {
-				winstoneRequest = this.unusedRequestPool.remove(unused - 1);
-				ObjectPool.logger.debug("ReqPool: Using pooled request - available: {}", "" + unusedRequestPool.size());
-			} else {
-				// If we are out, allocate a new one
-				winstoneRequest = new WinstoneRequest(MAXPARAMALLOWED);
-				ObjectPool.logger.debug("ReqPool: Spawning new request - available: {}", "" + unusedRequestPool.size());
-			}
-		}
-		return winstoneRequest;
+		return requestPool.acquire();
 	}
 
 	/**
@@ -186,12 +401,7 @@ public class ObjectPool {
 	 */
 	public void releaseRequestToPool(final WinstoneRequest winstoneRequest) {
 		winstoneRequest.cleanUp();
-		synchronized (requestPoolSemaphore) {
-			if (unusedRequestPool.size() < ObjectPool.MAX_REQUESTS_IN_POOL) {
-				unusedRequestPool.add(winstoneRequest);
-			}
-			ObjectPool.logger.debug("ReqPool: Request released - available: {}", "" + unusedRequestPool.size());
-		}
+		requestPool.release(winstoneRequest);
 	}
 
 	/**
@@ -200,36 +410,141 @@ public class ObjectPool {
 	 * @return a WinstoneResponse instance.
 	 */
 	public WinstoneResponse getResponseFromPool() throws IOException {
-		WinstoneResponse rsp = null;
-		synchronized (responsePoolSemaphore) {
-			// If we have any spare, get it from the pool
-			final int unused = unusedResponsePool.size();
-			if (unused > 0) {
-				rsp = this.unusedResponsePool.remove(unused - 1);
-				ObjectPool.logger.debug("RspPool: Using pooled response - available: {}", "" + unusedResponsePool.size());
-			} // If we are out, allocate a new one
-			else {
-				rsp = new WinstoneResponse();
-				ObjectPool.logger.debug("RspPool: Spawning new response - available: {}", "" + unusedResponsePool.size());
-			}
-		}
-		return rsp;
+		return responsePool.acquire();
 	}
 
 	/**
 	 * Release WinstoneResponse instance. Add it to unused if pool size is under
-	 * the limit of MAX_REQUESTS_IN_POOL objects.
+	 * the limit of MAX_RESPONSES_IN_POOL objects.
 	 * 
 	 * @param winstoneResponse
 	 */
 	public void releaseResponseToPool(final WinstoneResponse winstoneResponse) {
 		winstoneResponse.cleanUp();
-		synchronized (responsePoolSemaphore) {
-			if (unusedResponsePool.size() < ObjectPool.MAX_RESPONSES_IN_POOL) {
-				unusedResponsePool.add(winstoneResponse);
-			}
-			ObjectPool.logger.debug("RspPool: Response released - available: {}", "" + unusedResponsePool.size());
-		}
+		responsePool.release(winstoneResponse);
+	}
+
+	/**
+	 * @return the pool of requests, with its hit and miss counters.
+	 */
+	public StripedPool<WinstoneRequest> getRequestPool() {
+		return requestPool;
+	}
+
+	/**
+	 * @return the pool of responses, with its hit and miss counters.
+	 */
+	public StripedPool<WinstoneResponse> getResponsePool() {
+		return responsePool;
+	}
+
+	/**
+	 * @return the pool of connection read buffers.
+	 */
+	public BufferPool getReadBufferPool() {
+		return readBufferPool;
+	}
+
+	/**
+	 * @return the pool of response buffers.
+	 */
+	public ByteBufferPool getResponseBufferPool() {
+		return responseBufferPool;
+	}
+
+	/**
+	 * @return the request handler mode in use, {@link #HANDLER_MODE_PLATFORM}
+	 *         or {@link #HANDLER_MODE_VIRTUAL}.
+	 */
+	public String getHandlerMode() {
+		return handlerMode;
+	}
+
+	/**
+	 * @return the maximum number of connections handled at once.
+	 */
+	public int getMaxRequestHandlers() {
+		return requestHandler.getMaximumPoolSize();
+	}
+
+	/**
+	 * @return the number of connections being handled right now.
+	 */
+	public int getActiveRequestHandlers() {
+		return requestHandler.getActiveCount();
+	}
+
+	/**
+	 * @return the highest number of connections ever handled at once.
+	 */
+	public int getPeakRequestHandlers() {
+		return requestHandler.getPeakActiveCount();
+	}
+
+	/**
+	 * @return the number of connections waiting for a free request handler.
+	 */
+	public int getQueuedRequestHandlers() {
+		return requestHandler.getQueueSize();
+	}
+
+	/**
+	 * @return the Retry-After seconds of overload responses.
+	 */
+	public int getOverloadRetryAfter() {
+		return overloadRetryAfter;
+	}
+
+	/**
+	 * @return the most connections allowed to wait for a request handler.
+	 */
+	public int getMaxQueuedRequestHandlers() {
+		return requestHandler.getMaximumQueueSize();
+	}
+
+	/**
+	 * @return the highest number of connections ever waiting for a request
+	 *         handler.
+	 */
+	public int getPeakQueuedRequestHandlers() {
+		return requestHandler.getPeakQueueSize();
+	}
+
+	/**
+	 * @return the longest time a connection waited for a request handler, in
+	 *         milliseconds.
+	 */
+	public long getMaximumQueueWait() {
+		return requestHandler.getMaximumWaitTime(TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return the time connections spent waiting for a request handler, in
+	 *         milliseconds.
+	 */
+	public long getTotalQueueWait() {
+		return requestHandler.getTotalWaitTime(TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return the number of connections turned away with a 503 response.
+	 */
+	public long getShedConnections() {
+		return shedConnections.get();
+	}
+
+	/**
+	 * @return the number of connections accepted by the request handler pool.
+	 */
+	public long getSubmittedRequestHandlers() {
+		return requestHandler.getSubmittedTaskCount();
+	}
+
+	/**
+	 * @return the number of connections the request handlers are done with.
+	 */
+	public long getCompletedRequestHandlers() {
+		return requestHandler.getCompletedTaskCount();
 	}
 
 	/**
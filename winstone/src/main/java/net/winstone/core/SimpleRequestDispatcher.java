@@ -293,7 +293,7 @@ public class SimpleRequestDispatcher implements javax.servlet.RequestDispatcher,
 		// forwarding servlet)
 		if (outsideFilter) {
 			final WinstoneResponse rsp = getUnwrappedResponse(response);
-			rsp.flushBuffer();
+			rsp.finishBuffer();
 			rsp.getWinstoneOutputStream().setClosed(Boolean.TRUE);
 		}
 	}
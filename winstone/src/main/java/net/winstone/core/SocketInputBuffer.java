@@ -0,0 +1,141 @@
+package net.winstone.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import net.winstone.util.BufferPool;
+
+/**
+ * Read buffer between a connection and the {@link WinstoneInputStream} of
+ * each request read from it. It lives as long as the connection, so bytes read
+ * ahead of the current request (the start of a pipelined request, say) are
+ * simply the first bytes the next request sees.
+ *
+ * <p>
+ * The buffer itself is taken from a {@link BufferPool} on the first read and
+ * given back by {@link #release()} or {@link #close()}, so idle connections
+ * do not hold one.
+ */
+public class SocketInputBuffer extends InputStream {
+
+	private final InputStream in;
+	private final BufferPool pool;
+	private byte buffer[];
+	private int position;
+	private int limit;
+
+	/**
+	 * Build a new instance of SocketInputBuffer.
+	 *
+	 * @param in
+	 *            the connection input stream
+	 * @param pool
+	 *            where the read buffer is taken from
+	 */
+	public SocketInputBuffer(final InputStream in, final BufferPool pool) {
+		super();
+		this.in = in;
+		this.pool = pool;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (position == limit && fill() <= 0) {
+			return -1;
+		}
+		return buffer[position++] & 0xFF;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (position == limit) {
+			if (len >= pool.getBufferSize()) {
+				// large read: skip the copy
+				beforeRead();
+				return in.read(b, off, len);
+			}
+			if (fill() <= 0) {
+				return -1;
+			}
+		}
+		final int count = Math.min(len, limit - position);
+		System.arraycopy(buffer, position, b, off, count);
+		position += count;
+		return count;
+	}
+
+	@Override
+	public long skip(final long n) throws IOException {
+		if (n <= 0) {
+			return 0;
+		}
+		if (position < limit) {
+			final int count = (int) Math.min(n, limit - position);
+			position += count;
+			return count;
+		}
+		return in.skip(n);
+	}
+
+	@Override
+	public int available() throws IOException {
+		return (limit - position) + in.available();
+	}
+
+	/**
+	 * @return the number of bytes read from the connection but not consumed
+	 *         yet.
+	 */
+	public int buffered() {
+		return limit - position;
+	}
+
+	/**
+	 * Give the read buffer back to the pool if nothing is left in it. The
+	 * stream stays usable, a buffer is taken again on the next read.
+	 */
+	public void release() {
+		if (buffer != null && position == limit) {
+			pool.release(buffer);
+			buffer = null;
+			position = 0;
+			limit = 0;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		position = limit;
+		release();
+		in.close();
+	}
+
+	/**
+	 * Called before each read from the connection, which may block until the
+	 * client sends more.
+	 */
+	protected void beforeRead() throws IOException {
+	}
+
+	/**
+	 * One read from the connection into the empty buffer.
+	 *
+	 * @return the number of bytes read, -1 at the end of the stream.
+	 */
+	private int fill() throws IOException {
+		if (buffer == null) {
+			buffer = pool.acquire();
+		}
+		position = 0;
+		limit = 0;
+		beforeRead();
+		final int count = in.read(buffer, 0, buffer.length);
+		if (count > 0) {
+			limit = count;
+		}
+		return count;
+	}
+}
@@ -0,0 +1,238 @@
+package net.winstone.core;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.winstone.util.BufferPool;
+
+/**
+ * Write buffer between a connection and the {@link WinstoneOutputStream} of
+ * each response written to it, used to batch the responses to pipelined
+ * requests. While it holds, flushes are put off, so that consecutive small
+ * responses leave in a single write. Held bytes go out once the buffer is
+ * full, once the oldest has waited the maximum delay, or on
+ * {@link #flushHeld()}, which the listener calls before it blocks reading the
+ * connection and once no pipelined request is left. The maximum delay is
+ * enforced by a timer, so a slow request does not keep back the responses
+ * to those before it. The timer thread never writes: a late flush runs on a
+ * writer thread of its own, so a client that does not read only holds up
+ * its own connection.
+ *
+ * <p>
+ * When it does not hold, writes go straight through, so the response stream
+ * is free to write to the socket channel instead.
+ */
+public class SocketOutputBuffer extends OutputStream {
+
+	/**
+	 * Wakes up the late flushes of all connections.
+	 */
+	private static final ScheduledExecutorService FLUSH_TIMER = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(final Runnable r) {
+			final Thread thread = new Thread(r, "PipelineFlushTimer");
+			thread.setDaemon(Boolean.TRUE);
+			return thread;
+		}
+	});
+	/**
+	 * Writes the held bytes nothing else sent in time. At most one late flush
+	 * per connection is under way, so there are no more threads than
+	 * connections holding responses.
+	 */
+	private static final ExecutorService FLUSHER = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(final Runnable r) {
+			final Thread thread = new Thread(r, "PipelineFlusher");
+			thread.setDaemon(Boolean.TRUE);
+			return thread;
+		}
+	});
+	private final OutputStream out;
+	private final BufferPool pool;
+	private final long maximumDelay;
+	private byte buffer[];
+	private int count;
+	private boolean held;
+	private long heldSince;
+	private boolean flushScheduled;
+	private final Runnable lateFlush = new Runnable() {
+		public void run() {
+			flushLate();
+		}
+	};
+	private final Runnable wakeUp = new Runnable() {
+		public void run() {
+			SocketOutputBuffer.FLUSHER.execute(lateFlush);
+		}
+	};
+
+	/**
+	 * Build a new instance of SocketOutputBuffer.
+	 *
+	 * @param out
+	 *            the connection output stream
+	 * @param pool
+	 *            where the write buffer is taken from while holding
+	 * @param maximumDelay
+	 *            longest time, in nanoseconds, held bytes are kept back
+	 */
+	public SocketOutputBuffer(final OutputStream out, final BufferPool pool, final long maximumDelay) {
+		super();
+		this.out = out;
+		this.pool = pool;
+		this.maximumDelay = maximumDelay;
+	}
+
+	/**
+	 * Puts off flushes until {@link #flushHeld()}.
+	 */
+	public synchronized void hold() {
+		held = Boolean.TRUE;
+	}
+
+	/**
+	 * @return Boolean.TRUE while flushes are put off.
+	 */
+	public synchronized boolean isHeld() {
+		return held;
+	}
+
+	@Override
+	public synchronized void write(final int b) throws IOException {
+		if (!held) {
+			out.write(b);
+			return;
+		}
+		if (!reserve(1)) {
+			out.write(b);
+			return;
+		}
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public synchronized void write(final byte[] b, final int off, final int len) throws IOException {
+		if (!held || !reserve(len)) {
+			out.write(b, off, len);
+			return;
+		}
+		System.arraycopy(b, off, buffer, count, len);
+		count += len;
+	}
+
+	/**
+	 * Writes the remaining bytes of a buffer, heap or direct.
+	 */
+	public synchronized void write(final ByteBuffer bytes) throws IOException {
+		if (bytes.hasArray()) {
+			write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+			((Buffer) bytes).position(bytes.limit());
+			return;
+		}
+		// direct buffer: copied through the write buffer
+		while (bytes.hasRemaining()) {
+			reserve(1);
+			final int length = Math.min(bytes.remaining(), buffer.length - count);
+			bytes.get(buffer, count, length);
+			count += length;
+		}
+		if (!held) {
+			writeHeld();
+		}
+	}
+
+	/**
+	 * Makes room for bytes to hold, writing out what is held if needed.
+	 *
+	 * @return Boolean.FALSE if they do not fit in the buffer, and should be
+	 *         written straight away.
+	 */
+	private boolean reserve(final int len) throws IOException {
+		if (buffer == null) {
+			buffer = pool.acquire();
+		}
+		if (count + len > buffer.length) {
+			writeHeld();
+			if (len > buffer.length) {
+				return Boolean.FALSE;
+			}
+		}
+		if (count == 0) {
+			heldSince = System.nanoTime();
+			if (held && !flushScheduled) {
+				flushScheduled = Boolean.TRUE;
+				SocketOutputBuffer.FLUSH_TIMER.schedule(wakeUp, maximumDelay, TimeUnit.NANOSECONDS);
+			}
+		}
+		return Boolean.TRUE;
+	}
+
+	/**
+	 * Flushes the connection, unless holding and the held bytes are recent.
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		if (held && count > 0 && System.nanoTime() - heldSince < maximumDelay) {
+			return;
+		}
+		writeHeld();
+		out.flush();
+	}
+
+	/**
+	 * Writes out what is held, flushes the connection, and stops holding.
+	 */
+	public synchronized void flushHeld() throws IOException {
+		held = Boolean.FALSE;
+		writeHeld();
+		out.flush();
+		if (buffer != null) {
+			pool.release(buffer);
+			buffer = null;
+		}
+	}
+
+	/**
+	 * Sends the held bytes once the oldest has waited the maximum delay, or
+	 * waits again for the ones held since the last write. Runs on a writer
+	 * thread, which may block until the client reads.
+	 */
+	private synchronized void flushLate() {
+		flushScheduled = Boolean.FALSE;
+		if (count == 0) {
+			return;
+		}
+		final long waited = System.nanoTime() - heldSince;
+		if (waited < maximumDelay) {
+			flushScheduled = Boolean.TRUE;
+			SocketOutputBuffer.FLUSH_TIMER.schedule(wakeUp, maximumDelay - waited, TimeUnit.NANOSECONDS);
+			return;
+		}
+		try {
+			writeHeld();
+			out.flush();
+		} catch (final IOException e) {
+			// the request handler meets the broken connection on its next write
+		}
+	}
+
+	private void writeHeld() throws IOException {
+		if (count > 0) {
+			final int length = count;
+			count = 0;
+			out.write(buffer, 0, length);
+		}
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		flushHeld();
+		out.close();
+	}
+}
@@ -58,6 +58,7 @@ import net.winstone.loader.WebappClassLoader;
 import net.winstone.servlet.ErrorServlet;
 import net.winstone.servlet.InvokerServlet;
 import net.winstone.servlet.StaticResourceServlet;
+import net.winstone.util.Bulkhead;
 import net.winstone.util.StringUtils;
 
 import org.slf4j.LoggerFactory;
@@ -126,11 +127,21 @@ public class WebAppConfiguration implements ServletContext, Comparator<Object> {
     private static final String WEB_INF = "WEB-INF";
     private static final String CLASSES = "classes/";
     private static final String LIB = "lib";
+    /**
+     * Default requests waiting for a busy webapp (none: a waiting request
+     * holds a request handler), and how long (5 seconds).
+     */
+    private static final int WEBAPP_MAX_QUEUED = 0;
+    private static final int WEBAPP_MAX_QUEUE_WAIT = 5000;
     private final HostConfiguration ownerHostConfig;
     private final Cluster cluster;
     private final String webRoot;
     private final String prefix;
     private final String contextName;
+    /**
+     * Concurrency limit of this webapp, or null if it has none.
+     */
+    private final Bulkhead bulkhead;
     private ClassLoader loader;
     private String displayName;
     private WebAppJNDIManager webAppJNDIManager;
@@ -205,6 +216,16 @@ public class WebAppConfiguration implements ServletContext, Comparator<Object> {
         }
         this.contextName = contextName;
 
+        // concurrency limit, server wide or for this webapp only
+        final int maxConcurrent = WebAppConfiguration.webAppArg(startupArgs, "webappMaxConcurrent", contextName, 0);
+        if (maxConcurrent > 0) {
+            bulkhead = new Bulkhead(maxConcurrent, WebAppConfiguration.webAppArg(startupArgs, "webappMaxQueued", contextName, WebAppConfiguration.WEBAPP_MAX_QUEUED),
+                    WebAppConfiguration.webAppArg(startupArgs, "webappMaxQueueWait", contextName, WebAppConfiguration.WEBAPP_MAX_QUEUE_WAIT));
+            WebAppConfiguration.logger.info("Webapp {} handles at most {} requests at once", contextName, "" + maxConcurrent);
+        } else {
+            bulkhead = null;
+        }
+
         final List<File> localLoaderClassPathFiles = new ArrayList<File>();
 
         // not-share-server-classpath
@@ -978,6 +999,21 @@ public class WebAppConfiguration implements ServletContext, Comparator<Object> {
         return contextName;
     }
 
+    /**
+     * @return the concurrency limit of this webapp, or null if it has none.
+     */
+    public Bulkhead getBulkhead() {
+        return bulkhead;
+    }
+
+    /**
+     * @return the value of an int argument for a webapp: name.contextName if
+     *         set, else name.
+     */
+    private static int webAppArg(final Map<String, String> args, final String name, final String contextName, final int defaultValue) {
+        return StringUtils.intArg(args, name + "." + contextName, StringUtils.intArg(args, name, defaultValue));
+    }
+
     public Class<?>[] getErrorPageExceptions() {
         return errorPagesByExceptionKeysSorted;
     }
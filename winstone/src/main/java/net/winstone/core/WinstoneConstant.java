@@ -20,8 +20,15 @@ public class WinstoneConstant {
 	public static final transient String KEEP_ALIVE_CLOSE = "Close";
 	public static final transient String DATE_HEADER = "Date";
 	public static final transient String LOCATION_HEADER = "Location";
+	public static final transient String RETRY_AFTER_HEADER = "Retry-After";
 	public static final transient String OUT_COOKIE_HEADER1 = "Set-Cookie";
 	public static final transient String X_POWERED_BY_HEADER = "X-Powered-By";
+	public static final transient String SERVER_HEADER = "Server";
+	public static final transient String TRANSFER_ENCODING_HEADER = "Transfer-Encoding";
+	public static final transient String TRANSFER_ENCODING_CHUNKED = "chunked";
+	public static final transient String TRAILER_HEADER = "Trailer";
+	public static final transient String EXPECT_HEADER = "Expect";
+	public static final transient String EXPECT_CONTINUE = "100-continue";
 	public static final transient String AUTHORIZATION_HEADER = "Authorization";
 	public static final transient String LOCALE_HEADER = "Accept-Language";
 	public static final transient String HOST_HEADER = "Host";
@@ -8,6 +8,7 @@ package net.winstone.core;
 
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -15,7 +16,13 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * The request stream management class.
+ * The request stream management class. The body is either delimited by a
+ * content length or decoded from the chunked transfer coding.
+ * 
+ * <p>
+ * When the client asked for it with "Expect: 100-continue", the interim
+ * 100 Continue response is sent on the first read only, so a request
+ * answered without reading its body never makes the client upload it.
  * 
  * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
  * @version $Id: WinstoneInputStream.java,v 1.4 2006/02/28 07:32:47 rickknowles
@@ -25,9 +32,26 @@ public class WinstoneInputStream extends javax.servlet.ServletInputStream {
 
 	protected static Logger logger = LoggerFactory.getLogger(WinstoneInputStream.class);
 	final int BUFFER_SIZE = 4096;
+	/**
+	 * Longest chunk size line, extensions included, and longest trailer part.
+	 */
+	private static final int MAX_CHUNK_LINE = 4096;
+	private static final int MAX_TRAILER_SIZE = 8192;
 	private final InputStream inData;
 	private Integer contentLength;
 	private int readSoFar;
+	private boolean chunked;
+	/**
+	 * Bytes left in the current chunk; 0 once read, until its CR LF is
+	 * consumed; -1 before the first chunk.
+	 */
+	private long chunkRemaining;
+	private boolean lastChunk;
+	/**
+	 * Set once the chunked body turned out malformed or cut short.
+	 */
+	private boolean broken;
+	private WinstoneOutputStream continueStream;
 
 	/**
 	 * Constructor
@@ -48,11 +72,74 @@ public class WinstoneInputStream extends javax.servlet.ServletInputStream {
 	public void setContentLength(final int length) {
 		contentLength = new Integer(length);
 		readSoFar = 0;
+		chunked = Boolean.FALSE;
+		broken = Boolean.FALSE;
+	}
+
+	/**
+	 * Decode the body from the chunked transfer coding.
+	 */
+	public void setChunked() {
+		contentLength = null;
+		chunked = Boolean.TRUE;
+		chunkRemaining = -1;
+		lastChunk = Boolean.FALSE;
+		broken = Boolean.FALSE;
+	}
+
+	/**
+	 * Send a 100 Continue response on this stream before the first read of
+	 * the body, unless the final response is committed by then.
+	 */
+	public void setContinueStream(final WinstoneOutputStream continueStream) {
+		this.continueStream = continueStream;
+	}
+
+	/**
+	 * @return Boolean.TRUE if the client still waits for a 100 Continue
+	 *         before sending the body.
+	 */
+	public boolean isContinuePending() {
+		return continueStream != null;
+	}
+
+	/**
+	 * @return Boolean.TRUE if decoding the chunked body failed: where it ends,
+	 *         and so where the next request on the connection starts, is
+	 *         unknown.
+	 */
+	public boolean isBroken() {
+		return broken;
+	}
+
+	private void sendContinue() throws IOException {
+		if (continueStream != null) {
+			final WinstoneOutputStream out = continueStream;
+			continueStream = null;
+			out.writeContinue();
+		}
 	}
 
 	@Override
 	public int read() throws IOException {
-		if (contentLength == null) {
+		sendContinue();
+		if (chunked) {
+			checkBroken();
+			try {
+				if (!nextChunk()) {
+					return -1;
+				}
+				final int data = inData.read();
+				if (data < 0) {
+					throw new EOFException("Unexpected end of chunked request body");
+				}
+				chunkRemaining--;
+				return data;
+			} catch (final IOException e) {
+				broken = Boolean.TRUE;
+				throw e;
+			}
+		} else if (contentLength == null) {
 			final int data = inData.read();
 			return data;
 		} else if (contentLength.intValue() > readSoFar) {
@@ -66,7 +153,27 @@ public class WinstoneInputStream extends javax.servlet.ServletInputStream {
 
 	@Override
 	public int read(final byte[] b, final int off, int len) throws IOException {
-		if (contentLength == null) {
+		sendContinue();
+		if (chunked) {
+			checkBroken();
+			if (len == 0) {
+				return 0;
+			}
+			try {
+				if (!nextChunk()) {
+					return -1;
+				}
+				final int r = inData.read(b, off, (int) Math.min(len, chunkRemaining));
+				if (r < 0) {
+					throw new EOFException("Unexpected end of chunked request body");
+				}
+				chunkRemaining -= r;
+				return r;
+			} catch (final IOException e) {
+				broken = Boolean.TRUE;
+				throw e;
+			}
+		} else if (contentLength == null) {
 			return inData.read(b, off, len);
 		} else {
 			len = Math.min(len, contentLength.intValue() - readSoFar);
@@ -83,6 +190,91 @@ public class WinstoneInputStream extends javax.servlet.ServletInputStream {
 
 	}
 
+	private void checkBroken() throws IOException {
+		if (broken) {
+			throw new IOException("Malformed chunked request body");
+		}
+	}
+
+	/**
+	 * Moves to the next chunk once the current one is read.
+	 * 
+	 * @return Boolean.FALSE at the end of the body.
+	 */
+	private boolean nextChunk() throws IOException {
+		if (lastChunk) {
+			return Boolean.FALSE;
+		} else if (chunkRemaining > 0) {
+			return Boolean.TRUE;
+		}
+		if (chunkRemaining == 0 && skipLine(0) != 0) {
+			throw new IOException("Missing CRLF after chunk data");
+		}
+		chunkRemaining = readChunkSize();
+		if (chunkRemaining == 0) {
+			// trailer fields, up to an empty line: nothing uses them
+			int trailerSize = 0;
+			int lineLength;
+			while ((lineLength = skipLine(trailerSize)) > 0) {
+				trailerSize += lineLength;
+			}
+			lastChunk = Boolean.TRUE;
+			return Boolean.FALSE;
+		}
+		return Boolean.TRUE;
+	}
+
+	/**
+	 * Parses a chunk size line: hex digits, then optional extensions, which
+	 * are ignored.
+	 */
+	private long readChunkSize() throws IOException {
+		long size = 0;
+		int digits = 0;
+		boolean extension = Boolean.FALSE;
+		for (int n = 0; n < WinstoneInputStream.MAX_CHUNK_LINE; n++) {
+			final int c = inData.read();
+			if (c < 0) {
+				throw new EOFException("Unexpected end of chunked request body");
+			} else if (c == '\n') {
+				if (digits == 0) {
+					throw new IOException("Missing chunk size");
+				}
+				return size;
+			} else if (extension || c == '\r' || c == ' ' || c == '\t') {
+				continue;
+			} else if (c == ';') {
+				extension = Boolean.TRUE;
+				continue;
+			}
+			final int digit = Character.digit(c, 16);
+			if (digit < 0 || digits == 15) {
+				throw new IOException("Invalid chunk size");
+			}
+			size = (size << 4) + digit;
+			digits++;
+		}
+		throw new IOException("Chunk size line too long");
+	}
+
+	/**
+	 * Skips a line, ending with LF, of a trailer part that already holds
+	 * the given number of bytes.
+	 * 
+	 * @return the length of the line, CR LF excluded.
+	 */
+	private int skipLine(final int sizeSoFar) throws IOException {
+		int length = 0;
+		for (int c = inData.read(); c != '\n'; c = inData.read()) {
+			if (c < 0) {
+				throw new EOFException("Unexpected end of chunked request body");
+			} else if (c != '\r' && (sizeSoFar + ++length) > WinstoneInputStream.MAX_TRAILER_SIZE) {
+				throw new IOException("Chunked request trailer too long");
+			}
+		}
+		return length;
+	}
+
 	/**
 	 * Reads like {@link DataInputStream#readFully(byte[], int, int)}, except
 	 * EOF before fully reading it won't result in an exception.
@@ -101,6 +293,17 @@ public class WinstoneInputStream extends javax.servlet.ServletInputStream {
 		return total;
 	}
 
+	/**
+	 * Reads what is left of the body and throws it away, so that the next
+	 * request on the connection starts at the right place.
+	 */
+	public void discard() throws IOException {
+		final byte buffer[] = new byte[2048];
+		while (read(buffer) != -1) {
+			;
+		}
+	}
+
 	public void finishRequest() {
 		// this.inData = null;
 		// byte content[] = this.dump.toByteArray();
@@ -110,6 +313,12 @@ public class WinstoneInputStream extends javax.servlet.ServletInputStream {
 
 	@Override
 	public int available() throws IOException {
+		// never count bytes of the next pipelined request
+		if (chunked) {
+			return chunkRemaining > 0 ? (int) Math.min(inData.available(), chunkRemaining) : 0;
+		} else if (contentLength != null) {
+			return Math.min(inData.available(), contentLength.intValue() - readSoFar);
+		}
 		return inData.available();
 	}
 
@@ -6,15 +6,17 @@
  */
 package net.winstone.core;
 
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.util.Stack;
 
 import javax.servlet.http.Cookie;
 
-import net.winstone.util.StringUtils;
+import net.winstone.util.ByteBufferPool;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,15 +32,53 @@ public class WinstoneOutputStream extends javax.servlet.ServletOutputStream {
 
 	private static Logger logger = LoggerFactory.getLogger(WinstoneOutputStream.class);
 
+	/**
+	 * Space kept in front of the body in the buffer, where the status line,
+	 * headers and chunk size line are encoded, so that they leave with the
+	 * first body bytes.
+	 */
+	public static final int HEAD_ROOM = 2048;
+	/**
+	 * Space kept after the body, for the CR LF closing a chunk and the last
+	 * chunk.
+	 */
+	public static final int TAIL_ROOM = 16;
+	/**
+	 * Longest chunk size line: 8 hex digits and CR LF.
+	 */
+	private static final int CHUNK_PREFIX_ROOM = 10;
 	private static final int DEFAULT_BUFFER_SIZE = 8192;
+	/**
+	 * Room for the longest character the response writer encodes at once.
+	 */
+	private static final int MINIMUM_BUFFER_SIZE = 8;
 	private static final byte[] CR_LF = "\r\n".getBytes();
+	private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes();
+	private static final byte[] LAST_CHUNK = "0\r\n".getBytes();
+	private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes();
 	protected OutputStream outStream;
+	/**
+	 * Channel of the socket, written with gathering writes, or null.
+	 */
+	protected GatheringByteChannel channel;
+	/**
+	 * Write buffer of the connection, when it batches pipelined responses, or
+	 * null.
+	 */
+	protected SocketOutputBuffer batch;
+	protected final ByteBufferPool bufferPool;
 	protected long bufferSize;
 	protected long bufferPosition;
 	protected long bytesCommitted;
-	protected ByteArrayOutputStream buffer;
+	/**
+	 * Body bytes not committed yet, from {@link #HEAD_ROOM}; acquired on the
+	 * first write.
+	 */
+	protected ByteBuffer buffer;
 	protected boolean committed;
 	protected boolean bodyOnly;
+	protected boolean chunked;
+	protected boolean discardBody;
 	protected WinstoneResponse owner;
 	protected boolean disregardMode = Boolean.FALSE;
 	protected boolean closed = Boolean.FALSE;
@@ -48,12 +88,29 @@ public class WinstoneOutputStream extends javax.servlet.ServletOutputStream {
 	 * Constructor
 	 */
 	public WinstoneOutputStream(final OutputStream out, final boolean bodyOnlyForInclude) {
-		outStream = new ClientOutputStream(out);
+		this(out, null, null);
 		bodyOnly = bodyOnlyForInclude;
-		bufferSize = WinstoneOutputStream.DEFAULT_BUFFER_SIZE;
+	}
+
+	/**
+	 * Build a new instance of WinstoneOutputStream writing to a socket.
+	 * 
+	 * @param out
+	 *            output stream of the socket
+	 * @param channel
+	 *            channel of the socket, or null if it has none
+	 * @param bufferPool
+	 *            pool of buffers of {@link #HEAD_ROOM} plus the response
+	 *            buffer size plus {@link #TAIL_ROOM} bytes, or null
+	 */
+	public WinstoneOutputStream(final OutputStream out, final GatheringByteChannel channel, final ByteBufferPool bufferPool) {
+		outStream = new ClientOutputStream(out);
+		batch = out instanceof SocketOutputBuffer ? (SocketOutputBuffer) out : null;
+		this.channel = channel;
+		this.bufferPool = bufferPool;
+		bufferSize = bufferPool == null ? WinstoneOutputStream.DEFAULT_BUFFER_SIZE : bufferPool.getBufferSize() - WinstoneOutputStream.HEAD_ROOM - WinstoneOutputStream.TAIL_ROOM;
 		committed = Boolean.FALSE;
 		// this.headersWritten = Boolean.FALSE;
-		buffer = new ByteArrayOutputStream();
 	}
 
 	public void setResponse(final WinstoneResponse response) {
@@ -69,6 +126,17 @@ public class WinstoneOutputStream extends javax.servlet.ServletOutputStream {
 			throw new IllegalStateException("OutputStream already committed");
 		}
 		this.bufferSize = bufferSize;
+		if (buffer != null && buffer.capacity() < WinstoneOutputStream.capacityFor(bufferSize)) {
+			// keep what was written so far
+			final ByteBuffer larger = ByteBuffer.allocate(WinstoneOutputStream.capacityFor(bufferSize));
+			final ByteBuffer content = buffer.duplicate();
+			((Buffer) content).flip();
+			((Buffer) content).position(WinstoneOutputStream.HEAD_ROOM);
+			((Buffer) larger).position(WinstoneOutputStream.HEAD_ROOM);
+			larger.put(content);
+			releaseBuffer();
+			buffer = larger;
+		}
 	}
 
 	public boolean isCommitted() {
@@ -91,17 +159,25 @@ public class WinstoneOutputStream extends javax.servlet.ServletOutputStream {
 		this.closed = closed;
 	}
 
+	/**
+	 * @return Boolean.TRUE if a body of unknown length may be sent with the
+	 *         chunked transfer coding on this stream.
+	 */
+	public boolean isChunkedEncodingAllowed() {
+		return !bodyOnly;
+	}
+
 	@Override
 	public void write(final int oneChar) throws IOException {
 		if (disregardMode || closed) {
 			return;
 		}
-		final String contentLengthHeader = owner.getHeader(WinstoneConstant.CONTENT_LENGTH_HEADER);
-		if ((contentLengthHeader != null) && (bytesCommitted >= Long.parseLong(contentLengthHeader))) {
+		final long contentLength = owner.getContentLength();
+		if ((contentLength >= 0) && (bytesCommitted >= contentLength)) {
 			return;
 		}
-		buffer.write(oneChar);
-		commit(contentLengthHeader, 1);
+		getBuffer().put((byte) oneChar);
+		commit(contentLength, 1);
 	}
 
 	@Override
@@ -109,27 +185,88 @@ public class WinstoneOutputStream extends javax.servlet.ServletOutputStream {
 		if (disregardMode || closed) {
 			return;
 		}
-		final String contentLengthHeader = owner.getHeader(WinstoneConstant.CONTENT_LENGTH_HEADER);
-		if ((contentLengthHeader != null) && ((bytesCommitted + len) > Long.parseLong(contentLengthHeader))) {
+		final long contentLength = owner.getContentLength();
+		if ((contentLength >= 0) && ((bytesCommitted + len) > contentLength)) {
 			return;
 		}
 
-		buffer.write(b, off, len);
-		commit(contentLengthHeader, len);
+		int written = 0;
+		while (written < len) {
+			final ByteBuffer body = getBuffer();
+			final int count = Math.min(len - written, body.remaining() - WinstoneOutputStream.TAIL_ROOM);
+			body.put(b, off + written, count);
+			written += count;
+			commit(contentLength, count);
+		}
+	}
+
+	/**
+	 * Makes room in the buffer for the response writer, which encodes
+	 * characters straight into it and then reports the bytes it put with
+	 * {@link #written(int)}.
+	 * 
+	 * @param minimum
+	 *            bytes the writer needs; the buffer is committed first if it
+	 *            has less room left
+	 * @return the buffer, limited to the room left for the body, or null if
+	 *         output is ignored or the content length is reached.
+	 */
+	ByteBuffer reserve(final int minimum) throws IOException {
+		if (disregardMode || closed) {
+			return null;
+		}
+		ByteBuffer body = getBuffer();
+		if (bufferPosition > 0 && body.remaining() - WinstoneOutputStream.TAIL_ROOM < minimum) {
+			commit();
+			body = getBuffer();
+		}
+		long room = body.remaining() - WinstoneOutputStream.TAIL_ROOM;
+		final long contentLength = owner.getContentLength();
+		if (contentLength >= 0) {
+			room = Math.min(room, contentLength - bytesCommitted - bufferPosition);
+		}
+		if (room <= 0) {
+			return null;
+		}
+		((Buffer) body).limit(body.position() + (int) room);
+		return body;
+	}
+
+	/**
+	 * Accounts for bytes the response writer put in the buffer handed out by
+	 * {@link #reserve(int)}.
+	 */
+	void written(final int count) throws IOException {
+		((Buffer) buffer).limit(buffer.capacity());
+		if (count > 0) {
+			commit(owner.getContentLength(), count);
+		}
 	}
 
-	private void commit(final String contentLengthHeader, final int len) throws IOException {
+	private void commit(final long contentLength, final int len) throws IOException {
 		bufferPosition += len;
 		// if (this.headersWritten)
-		if (bufferPosition >= bufferSize) {
+		if (bufferPosition >= bufferSize || buffer.remaining() == WinstoneOutputStream.TAIL_ROOM) {
 			commit();
-		} else if ((contentLengthHeader != null) && ((bufferPosition + bytesCommitted) >= Long.parseLong(contentLengthHeader))) {
+		} else if ((contentLength >= 0) && ((bufferPosition + bytesCommitted) >= contentLength)) {
 			commit();
 		}
 	}
 
 	public void commit() throws IOException {
-		buffer.flush();
+		commit(Boolean.FALSE);
+	}
+
+	/**
+	 * Writes the buffered body, after the status line and headers if they
+	 * were not sent yet, with a single write.
+	 * 
+	 * @param lastChunk
+	 *            Boolean.TRUE to also end a chunked body
+	 */
+	private void commit(final boolean lastChunk) throws IOException {
+		final ByteBuffer body = getBuffer();
+		ByteBuffer head = null;
 
 		// If we haven't written the headers yet, write them out
 		if (!committed && !bodyOnly) {
@@ -138,69 +275,250 @@ public class WinstoneOutputStream extends javax.servlet.ServletOutputStream {
 
 			WinstoneOutputStream.logger.debug("Committing response body");
 
+			// encoded at the start of the buffer, in front of the body
+			head = body.duplicate();
+			((Buffer) head).clear();
+			((Buffer) head).limit(WinstoneOutputStream.HEAD_ROOM - WinstoneOutputStream.CHUNK_PREFIX_ROOM);
+
 			final int statusCode = owner.getStatus();
-			final HttpProtocole reason = HttpProtocole.valueOf("HTTP_" + Integer.toString(statusCode));
-			final String statusLine = owner.getProtocol() + " " + statusCode + " " + (reason == null ? "No reason" : reason.getMessage());
-			final OutputStream o = new BufferedOutputStream(outStream);
-			o.write(statusLine.getBytes("8859_1"));
-			o.write(WinstoneOutputStream.CR_LF);
-			WinstoneOutputStream.logger.debug("Response: " + statusLine);
+			head = WinstoneOutputStream.put(head, HttpProtocole.getStatusLine(owner.getProtocol(), statusCode));
+			WinstoneOutputStream.logger.debug("Response: {} {}", owner.getProtocol(), Integer.toString(statusCode));
 
 			// Write headers and cookies
-			for (final String header : owner.getHeaders()) {
-				o.write(StringUtils.noCRLF(header).getBytes("8859_1"));
-				o.write(WinstoneOutputStream.CR_LF);
-				WinstoneOutputStream.logger.debug("Header: " + header);
+			final HeaderTable headers = owner.getHeaders();
+			for (int n = 0; n < headers.size(); n++) {
+				head = WinstoneOutputStream.put(head, headers.getLine(n));
+				WinstoneOutputStream.logger.debug("Header: {}: {}", headers.getName(n), headers.getValue(n));
 			}
 
-			if (!owner.getHeaders().isEmpty()) {
+			if (headers.size() > 0) {
 				for (final Object o1 : owner.getCookies()) {
 					final Cookie cookie = (Cookie) o1;
 					final String cookieText = owner.writeCookie(cookie);
-					o.write(cookieText.getBytes("8859_1"));
-					o.write(WinstoneOutputStream.CR_LF);
+					head = WinstoneOutputStream.put(head, cookieText.getBytes("8859_1"));
+					head = WinstoneOutputStream.put(head, WinstoneOutputStream.CR_LF);
 					WinstoneOutputStream.logger.debug("Header: " + cookieText);
 				}
 			}
-			o.write(WinstoneOutputStream.CR_LF);
-			o.flush();
-			// Logger.log(Logger.FULL_DEBUG,
-			// Launcher.RESOURCES.getString("HttpProtocol.OutHeaders") +
-			// out.toString());
-		}
-		final byte content[] = buffer.toByteArray();
-		// winstone.ajp13.Ajp13Listener.packetDump(content, content.length);
-		// this.buffer.writeTo(this.outStream);
-		long commitLength = content.length;
-		final String contentLengthHeader = owner.getHeader(WinstoneConstant.CONTENT_LENGTH_HEADER);
-		if (contentLengthHeader != null) {
-			commitLength = Math.min(Long.parseLong(contentLengthHeader) - bytesCommitted, (long) content.length);
-		}
-		if (commitLength > 0) {
-			outStream.write(content, 0, (int) commitLength);
+			head = WinstoneOutputStream.put(head, WinstoneOutputStream.CR_LF);
+			((Buffer) head).flip();
+			chunked = owner.isChunked();
+			// a HEAD reply gets the headers only
+			discardBody = !owner.isBodyAllowed();
+		}
+		long commitLength = bufferPosition;
+		final long contentLength = owner.getContentLength();
+		if (contentLength >= 0) {
+			commitLength = Math.min(contentLength - bytesCommitted, bufferPosition);
+		}
+
+		// frame the body in place: the chunk size line goes in the head
+		// room, the closing CR LF and the last chunk in the tail room
+		final ByteBuffer content = body.duplicate();
+		int start = WinstoneOutputStream.HEAD_ROOM;
+		int end = start + (int) Math.max(commitLength, 0);
+		if (discardBody) {
+			WinstoneOutputStream.logger.debug("Discarding {} bytes of a response without body", Long.toString(commitLength));
+			end = start;
+		} else if (chunked && end > start) {
+			start = WinstoneOutputStream.putChunkSize(content, end - start);
+			((Buffer) content).limit(content.capacity()).position(end);
+			content.put(WinstoneOutputStream.CR_LF);
+			end += WinstoneOutputStream.CR_LF.length;
+		}
+		final HeaderTable trailers = lastChunk ? owner.getTrailers() : null;
+		if (lastChunk && trailers.size() == 0) {
+			((Buffer) content).limit(content.capacity()).position(end);
+			content.put(WinstoneOutputStream.LAST_CHUNK).put(WinstoneOutputStream.CR_LF);
+			end = content.position();
+		}
+		((Buffer) content).limit(end).position(start);
+		write(head, content);
+		if (lastChunk && trailers.size() > 0) {
+			writeLastChunk(trailers);
 		}
-		outStream.flush();
 		WinstoneOutputStream.logger.debug("Written {} bytes to response body", Long.toString(bytesCommitted + commitLength));
 
 		bytesCommitted += commitLength;
-		buffer.reset();
+		clearBuffer();
+	}
+
+	/**
+	 * @return the bytes written since the last commit.
+	 */
+	protected ByteBuffer getBufferedContent() {
+		final ByteBuffer content = getBuffer().duplicate();
+		((Buffer) content).flip();
+		((Buffer) content).position(WinstoneOutputStream.HEAD_ROOM);
+		return content;
+	}
+
+	/**
+	 * Drops the bytes written since the last commit.
+	 */
+	protected void clearBuffer() {
+		if (buffer != null) {
+			((Buffer) buffer).clear().position(WinstoneOutputStream.HEAD_ROOM);
+		}
 		bufferPosition = 0;
 	}
 
+	/**
+	 * Writes the head, if any, and the body in one go: a gathering write on
+	 * the channel, or a single stream write once the head is moved up against
+	 * the body. While pipelined responses are batched, they are held in the
+	 * connection write buffer instead.
+	 */
+	private void write(final ByteBuffer head, final ByteBuffer content) throws IOException {
+		if (batch != null && batch.isHeld()) {
+			try {
+				if (head != null) {
+					batch.write(head);
+				}
+				batch.write(content);
+				batch.flush();
+			} catch (final IOException e) {
+				throw new ClientSocketException(e);
+			}
+			return;
+		}
+		if (channel != null) {
+			final ByteBuffer buffers[] = head == null ? new ByteBuffer[] { content } : new ByteBuffer[] { head, content };
+			try {
+				long remaining = content.remaining() + (head == null ? 0 : head.remaining());
+				while (remaining > 0) {
+					remaining -= channel.write(buffers);
+				}
+			} catch (final IOException e) {
+				throw new ClientSocketException(e);
+			}
+			return;
+		}
+		if (head != null) {
+			if (head.hasArray() && head.array() == content.array()) {
+				final int headLength = head.remaining();
+				System.arraycopy(head.array(), head.arrayOffset(), content.array(), content.arrayOffset() + content.position() - headLength, headLength);
+				((Buffer) content).position(content.position() - headLength);
+			} else {
+				outStream.write(head.array(), head.arrayOffset() + head.position(), head.remaining());
+			}
+		}
+		if (content.hasRemaining()) {
+			outStream.write(content.array(), content.arrayOffset() + content.position(), content.remaining());
+		}
+		outStream.flush();
+	}
+
+	/**
+	 * Puts bytes in the head, moving it to a larger heap buffer when the head
+	 * room is too small.
+	 */
+	private static ByteBuffer put(final ByteBuffer head, final byte[] bytes) {
+		if (head.remaining() >= bytes.length) {
+			return head.put(bytes);
+		}
+		final ByteBuffer larger = ByteBuffer.allocate(Math.max(head.position() * 2, head.position() + bytes.length));
+		((Buffer) head).flip();
+		return larger.put(head).put(bytes);
+	}
+
+	/**
+	 * Writes the chunk size line just before the body.
+	 * 
+	 * @return the position of the chunk.
+	 */
+	private static int putChunkSize(final ByteBuffer content, final int length) {
+		int digits = 1;
+		while ((length >>> (4 * digits)) != 0) {
+			digits++;
+		}
+		final int start = WinstoneOutputStream.HEAD_ROOM - digits - WinstoneOutputStream.CR_LF.length;
+		for (int n = 0; n < digits; n++) {
+			content.put(start + n, WinstoneOutputStream.HEX_DIGITS[(length >>> (4 * (digits - 1 - n))) & 0x0F]);
+		}
+		content.put(start + digits, (byte) '\r');
+		content.put(start + digits + 1, (byte) '\n');
+		return start;
+	}
+
+	/**
+	 * @return the buffer, positioned after the bytes written so far.
+	 */
+	private ByteBuffer getBuffer() {
+		if (buffer == null) {
+			final int capacity = WinstoneOutputStream.capacityFor(bufferSize);
+			if (bufferPool != null && bufferPool.getBufferSize() >= capacity && (channel != null || !bufferPool.isDirect())) {
+				buffer = bufferPool.acquire();
+			} else {
+				buffer = ByteBuffer.allocate(capacity);
+			}
+			((Buffer) buffer).position(WinstoneOutputStream.HEAD_ROOM);
+		}
+		return buffer;
+	}
+
+	private void releaseBuffer() {
+		if (buffer != null && bufferPool != null) {
+			bufferPool.release(buffer);
+		}
+		buffer = null;
+	}
+
+	private static int capacityFor(final long bufferSize) {
+		return WinstoneOutputStream.HEAD_ROOM + (int) Math.max(Math.min(bufferSize, Integer.MAX_VALUE >> 1), WinstoneOutputStream.MINIMUM_BUFFER_SIZE) + WinstoneOutputStream.TAIL_ROOM;
+	}
+
+	/**
+	 * Sends the interim 100 Continue response, unless the final response was
+	 * already committed.
+	 */
+	public void writeContinue() throws IOException {
+		if (committed || bodyOnly) {
+			WinstoneOutputStream.logger.debug("Response committed, no 100 Continue sent");
+			return;
+		}
+		WinstoneOutputStream.logger.debug("Response: 100 Continue");
+		outStream.write(WinstoneOutputStream.CONTINUE);
+		outStream.flush();
+	}
+
 	public void reset() {
 		if (isCommitted()) {
 			throw new IllegalStateException("OutputStream already committed");
 		} else {
 			WinstoneOutputStream.logger.debug("WResetting buffer - discarding {} bytes", Long.toString(bufferPosition));
-			buffer.reset();
-			bufferPosition = 0;
+			clearBuffer();
 			bytesCommitted = 0;
 		}
 	}
 
+	/**
+	 * Ends a chunked body with the last chunk and the trailer fields, encoded
+	 * in the buffer once the body has left it.
+	 */
+	private void writeLastChunk(final HeaderTable trailers) throws IOException {
+		ByteBuffer last = getBuffer().duplicate();
+		((Buffer) last).clear();
+		last = WinstoneOutputStream.put(last, WinstoneOutputStream.LAST_CHUNK);
+		for (int n = 0; n < trailers.size(); n++) {
+			last = WinstoneOutputStream.put(last, trailers.getLine(n));
+			WinstoneOutputStream.logger.debug("Trailer: {}: {}", trailers.getName(n), trailers.getValue(n));
+		}
+		last = WinstoneOutputStream.put(last, WinstoneOutputStream.CR_LF);
+		((Buffer) last).flip();
+		write(null, last);
+	}
+
 	public void finishResponse() throws IOException {
+		if (chunked) {
+			commit(Boolean.TRUE);
+			chunked = Boolean.FALSE;
+		}
 		outStream.flush();
 		outStream = null;
+		channel = null;
+		batch = null;
+		releaseBuffer();
 	}
 
 	@Override
@@ -209,13 +527,12 @@ public class WinstoneOutputStream extends javax.servlet.ServletOutputStream {
 			return;
 		}
 		WinstoneOutputStream.logger.debug("ServletOutputStream flushed");
-		buffer.flush();
 		this.commit();
 	}
 
 	@Override
 	public void close() throws IOException {
-		if (!isCommitted() && !disregardMode && !closed && (owner.getHeader(WinstoneConstant.CONTENT_LENGTH_HEADER) == null)) {
+		if (!isCommitted() && !disregardMode && !closed && (owner.getContentLength() < 0)) {
 			if ((owner != null) && !bodyOnly) {
 				owner.setContentLength((int) getOutputStreamLength());
 			}
@@ -229,7 +546,7 @@ public class WinstoneOutputStream extends javax.servlet.ServletOutputStream {
 	}
 
 	public void startIncludeBuffer() {
-		synchronized (buffer) {
+		synchronized (this) {
 			if (includeByteStreams == null) {
 				includeByteStreams = new Stack<ByteArrayOutputStream>();
 			}
@@ -240,7 +557,9 @@ public class WinstoneOutputStream extends javax.servlet.ServletOutputStream {
 	public void finishIncludeBuffer() throws IOException {
 		if (isIncluding()) {
 			final ByteArrayOutputStream body = includeByteStreams.pop();
-			OutputStream topStream = outStream;
+			// through this stream, so the body still gets its length check
+			// and chunk framing
+			OutputStream topStream = this;
 			if (!includeByteStreams.isEmpty()) {
 				topStream = includeByteStreams.peek();
 			}
@@ -74,7 +74,9 @@ public class WinstoneRequest implements HttpServletRequest {
 	protected Stack<Map<String, Object>> attributesStack;
 	protected Stack<Map<String, String[]>> parametersStack;
 	// protected Map forwardedParameters;
-	protected String headers[];
+	protected String headerNames[];
+	protected String headerValues[];
+	protected int headerCount;
 	protected Cookie cookies[];
 	protected String method;
 	protected String scheme;
@@ -85,6 +87,9 @@ public class WinstoneRequest implements HttpServletRequest {
 	protected String queryString;
 	protected String protocol;
 	protected int contentLength;
+	protected boolean chunked;
+	protected boolean expectContinue;
+	protected boolean transferEncodingInvalid;
 	protected String contentType;
 	protected String encoding;
 	protected int serverPort;
@@ -167,7 +172,11 @@ public class WinstoneRequest implements HttpServletRequest {
 		parametersStack.clear();
 		// this.forwardedParameters.clear();
 		usedSessions.clear();
-		headers = null;
+		for (int n = 0; n < headerCount; n++) {
+			headerNames[n] = null;
+			headerValues[n] = null;
+		}
+		headerCount = 0;
 		cookies = null;
 		method = null;
 		scheme = null;
@@ -178,6 +187,9 @@ public class WinstoneRequest implements HttpServletRequest {
 		queryString = null;
 		protocol = null;
 		contentLength = -1;
+		chunked = Boolean.FALSE;
+		expectContinue = Boolean.FALSE;
+		transferEncodingInvalid = Boolean.FALSE;
 		contentType = null;
 		encoding = null;
 		inputData = null;
@@ -206,10 +218,9 @@ public class WinstoneRequest implements HttpServletRequest {
 	 * Steps through the header array, searching for the first header matching
 	 */
 	private String extractFirstHeader(final String name) {
-		for (int n = 0; n < headers.length; n++) {
-			if (headers[n].toUpperCase().startsWith(name.toUpperCase() + ':')) {
-				return headers[n].substring(name.length() + 1).trim(); // 1 for
-																		// colon
+		for (int n = 0; n < headerCount; n++) {
+			if (headerNames[n].equalsIgnoreCase(name)) {
+				return headerValues[n];
 			}
 		}
 		return null;
@@ -217,10 +228,8 @@ public class WinstoneRequest implements HttpServletRequest {
 
 	private Collection<String> extractHeaderNameList() {
 		final Collection<String> headerNames = new HashSet<String>();
-		for (int n = 0; n < headers.length; n++) {
-			final String name = headers[n];
-			final int colonPos = name.indexOf(':');
-			headerNames.add(name.substring(0, colonPos));
+		for (int n = 0; n < headerCount; n++) {
+			headerNames.add(this.headerNames[n]);
 		}
 		return headerNames;
 	}
@@ -528,20 +537,58 @@ public class WinstoneRequest implements HttpServletRequest {
 		return new String(baos.toByteArray(), encoding);
 	}
 
-	public void discardRequestBody() {
-		if (getContentLength() > 0) {
-			try {
-				WinstoneRequest.logger.debug("Forcing request body parse");
-
-				// if there's any input that we haven't consumed, throw them
-				// away, so that the next request parsing
-				// will start from the right position.
-				byte buffer[] = new byte[2048];
-				while ((this.inputData.read(buffer)) != -1)
-					;
-			} catch (IOException err) {
-				WinstoneRequest.logger.error("Forcing request body parse", err);
-			}
+	/**
+	 * @return Boolean.TRUE if the body comes with the chunked transfer coding,
+	 *         in which case the content length is unknown.
+	 */
+	public boolean isChunked() {
+		return chunked;
+	}
+
+	/**
+	 * @return Boolean.TRUE if the client sent "Expect: 100-continue".
+	 */
+	public boolean isContinueExpected() {
+		return expectContinue;
+	}
+
+	/**
+	 * @return Boolean.TRUE if the client still holds back a body, waiting for
+	 *         the 100 Continue that the first read of the body would send.
+	 */
+	public boolean isContinuePending() {
+		return (inputData != null) && inputData.isContinuePending();
+	}
+
+	/**
+	 * @return Boolean.TRUE if the request has a Transfer-Encoding whose last
+	 *         coding is not chunked, so its body cannot be delimited.
+	 */
+	public boolean isTransferEncodingInvalid() {
+		return transferEncodingInvalid;
+	}
+
+	/**
+	 * @return Boolean.TRUE if the chunked body could not be decoded, so the
+	 *         connection cannot carry another request.
+	 */
+	public boolean isBodyBroken() {
+		return (inputData != null) && inputData.isBroken();
+	}
+
+	/**
+	 * Reads what the servlet left of the body, up to the next request.
+	 * 
+	 * @throws IOException
+	 *             if the body is malformed: the connection must be closed.
+	 */
+	public void discardRequestBody() throws IOException {
+		if (isContinuePending()) {
+			// the body was never asked for, and will not be sent
+			WinstoneRequest.logger.debug("Request body not requested, nothing to discard");
+		} else if ((getContentLength() > 0) || chunked) {
+			WinstoneRequest.logger.debug("Forcing request body parse");
+			this.inputData.discard();
 		}
 	}
 
@@ -569,10 +616,21 @@ public class WinstoneRequest implements HttpServletRequest {
 					WinstoneRequest.logger.debug("Parsing request body for parameters");
 
 					// Parse params
-					final byte paramBuffer[] = new byte[contentLength];
-					int readCount = this.inputData.readAsMuchAsPossible(paramBuffer, 0, contentLength);
-					if (readCount != contentLength) {
-						WinstoneRequest.logger.warn("Content-length said {}, actual length was {}", Integer.toString(contentLength), Integer.toString(readCount));
+					byte paramBuffer[];
+					if (chunked) {
+						final ByteArrayOutputStream body = new ByteArrayOutputStream();
+						final byte buffer[] = new byte[2048];
+						int readCount;
+						while ((readCount = this.inputData.read(buffer)) != -1) {
+							body.write(buffer, 0, readCount);
+						}
+						paramBuffer = body.toByteArray();
+					} else {
+						paramBuffer = new byte[contentLength];
+						int readCount = this.inputData.readAsMuchAsPossible(paramBuffer, 0, contentLength);
+						if (readCount != contentLength) {
+							WinstoneRequest.logger.warn("Content-length said {}, actual length was {}", Integer.toString(contentLength), Integer.toString(readCount));
+						}
 					}
 					final String paramLine = (encoding == null ? new String(paramBuffer) : new String(paramBuffer, encoding));
 					WinstoneRequest.extractParameters(paramLine.trim(), encoding, workingParameters, Boolean.FALSE);
@@ -593,26 +651,61 @@ public class WinstoneRequest implements HttpServletRequest {
 	 * the request object.
 	 */
 	public void parseHeaders(final List<String> headerList) {
-		// Iterate through headers
-		final List<String> outHeaderList = new ArrayList<String>();
-		final List<Cookie> cookieList = new ArrayList<Cookie>();
+		final String names[] = new String[headerList.size()];
+		final String values[] = new String[headerList.size()];
+		int count = 0;
 		for (final Iterator<String> i = headerList.iterator(); i.hasNext();) {
 			final String header = i.next();
 			final int colonPos = header.indexOf(':');
-			final String name = header.substring(0, colonPos);
-			final String value = header.substring(colonPos + 1).trim();
+			names[count] = header.substring(0, colonPos);
+			values[count++] = header.substring(colonPos + 1).trim();
+		}
+		parseHeaders(names, values, count);
+	}
 
-			// Add it to out headers if it's not a cookie
-			outHeaderList.add(header);
-			// if (!name.equalsIgnoreCase(IN_COOKIE_HEADER1)
-			// && !name.equalsIgnoreCase(IN_COOKIE_HEADER2))
+	/**
+	 * Build the headers/cookies arrays for the request object from headers
+	 * already split into names and trimmed values.
+	 * 
+	 * @param names
+	 *            header names
+	 * @param values
+	 *            header values, in the same order
+	 * @param count
+	 *            number of headers to take from the arrays
+	 */
+	public void parseHeaders(final String names[], final String values[], final int count) {
+		if (headerNames == null || headerNames.length < count) {
+			headerNames = new String[count];
+			headerValues = new String[count];
+		}
+		System.arraycopy(names, 0, headerNames, 0, count);
+		System.arraycopy(values, 0, headerValues, 0, count);
+		headerCount = count;
+		List<Cookie> cookieList = null;
+		for (int n = 0; n < count; n++) {
+			final String name = names[n];
+			final String value = values[n];
 
 			if (name.equalsIgnoreCase(WinstoneConstant.AUTHORIZATION_HEADER)) {
 				authorization = value;
 			} else if (name.equalsIgnoreCase(WinstoneConstant.LOCALE_HEADER)) {
 				locales = parseLocales(value);
 			} else if (name.equalsIgnoreCase(WinstoneConstant.CONTENT_LENGTH_HEADER)) {
-				contentLength = Integer.parseInt(value);
+				if (!chunked) {
+					contentLength = Integer.parseInt(value);
+				}
+			} else if (name.equalsIgnoreCase(WinstoneConstant.TRANSFER_ENCODING_HEADER)) {
+				// chunked must be the last coding; it overrides any length
+				final int comma = value.lastIndexOf(',');
+				if (value.substring(comma + 1).trim().equalsIgnoreCase(WinstoneConstant.TRANSFER_ENCODING_CHUNKED)) {
+					chunked = Boolean.TRUE;
+					contentLength = -1;
+				} else {
+					transferEncodingInvalid = Boolean.TRUE;
+				}
+			} else if (name.equalsIgnoreCase(WinstoneConstant.EXPECT_HEADER)) {
+				expectContinue = value.equalsIgnoreCase(WinstoneConstant.EXPECT_CONTINUE);
 			} else if (name.equalsIgnoreCase(WinstoneConstant.HOST_HEADER)) {
 				if (value.indexOf('[') != -1 && value.indexOf(']') != -1) {
 					// IPv6 host as per rfc2732
@@ -656,11 +749,13 @@ public class WinstoneRequest implements HttpServletRequest {
 					}
 				}
 			} else if (name.equalsIgnoreCase(WinstoneConstant.IN_COOKIE_HEADER1) || name.equalsIgnoreCase(WinstoneConstant.IN_COOKIE_HEADER2)) {
+				if (cookieList == null) {
+					cookieList = new ArrayList<Cookie>();
+				}
 				parseCookieLine(value, cookieList);
 			}
 		}
-		headers = outHeaderList.toArray(new String[0]);
-		if (cookieList.isEmpty()) {
+		if (cookieList == null || cookieList.isEmpty()) {
 			cookies = null;
 		} else {
 			cookies = cookieList.toArray(new Cookie[0]);
@@ -1218,11 +1313,9 @@ public class WinstoneRequest implements HttpServletRequest {
 	@Override
 	public Enumeration<String> getHeaders(final String name) {
 		final List<String> result = new ArrayList<String>();
-		for (int n = 0; n < headers.length; n++) {
-			if (headers[n].toUpperCase().startsWith(name.toUpperCase() + ':')) {
-				result.add(headers[n].substring(name.length() + 1).trim()); // 1
-																			// for
-																			// colon
+		for (int n = 0; n < headerCount; n++) {
+			if (headerNames[n].equalsIgnoreCase(name)) {
+				result.add(headerValues[n]);
 			}
 		}
 		return Collections.enumeration(result);
@@ -28,6 +28,7 @@ import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletResponse;
 
 import net.winstone.WinstoneResourceBundle;
+import net.winstone.util.DateCache;
 import net.winstone.util.StringUtils;
 
 import org.slf4j.Logger;
@@ -50,13 +51,44 @@ public class WinstoneResponse implements HttpServletResponse {
 		WinstoneResponse.HTTP_DF.setTimeZone(TimeZone.getTimeZone("GMT"));
 		WinstoneResponse.VERSION0_DF.setTimeZone(TimeZone.getTimeZone("GMT"));
 	}
+
+	/**
+	 * Clock for the Date header of every response.
+	 */
+	private static final DateCache HTTP_CLOCK = new DateCache(WinstoneResponse.HTTP_DF);
+	/**
+	 * Format of the dates given to the date header methods, one per thread.
+	 */
+	private static final ThreadLocal<DateFormat> HTTP_DATES = new ThreadLocal<DateFormat>() {
+		@Override
+		protected DateFormat initialValue() {
+			return (DateFormat) WinstoneResponse.HTTP_DF.clone();
+		}
+	};
+	private static volatile DateHeader dateHeader = new DateHeader(WinstoneResponse.HTTP_CLOCK.now());
 	public static final transient String X_POWERED_BY_HEADER_VALUE = WinstoneResourceBundle.getInstance().getString("PoweredByHeader");
+	public static final transient String SERVER_HEADER_VALUE = WinstoneResourceBundle.getInstance().getString("ServerVersion");
+
+	static {
+		HeaderTable.registerConstant(WinstoneConstant.SERVER_HEADER, WinstoneResponse.SERVER_HEADER_VALUE);
+		HeaderTable.registerConstant(WinstoneConstant.X_POWERED_BY_HEADER, WinstoneResponse.X_POWERED_BY_HEADER_VALUE);
+	}
 	private int statusCode;
 	private WinstoneRequest req;
 	private WebAppConfiguration webAppConfig;
 	private WinstoneOutputStream outputStream;
 	private PrintWriter outputWriter;
-	private final List<String> headers;
+	private final HeaderTable headers;
+	private final HeaderTable trailers;
+	/**
+	 * Typed copies of the hot headers, kept in step with {@link #headers}:
+	 * content length (-1 if unset or not a number), content type and
+	 * connection.
+	 */
+	private long contentLength;
+	private String contentType;
+	private String connection;
+	private boolean chunked;
 	private String explicitEncoding;
 	private String implicitEncoding;
 	private final List<Cookie> cookies;
@@ -68,6 +100,11 @@ public class WinstoneResponse implements HttpServletResponse {
 	private Locale locale;
 	private String protocol;
 	private String reqKeepAliveHeader;
+	/**
+	 * Boolean.TRUE if the connection is closed after this response, whatever
+	 * the headers say.
+	 */
+	private boolean closeForced;
 	private Integer errorStatusCode;
 
 	/**
@@ -75,7 +112,9 @@ public class WinstoneResponse implements HttpServletResponse {
 	 */
 	public WinstoneResponse() {
 		super();
-		headers = new ArrayList<String>();
+		headers = new HeaderTable();
+		trailers = new HeaderTable();
+		contentLength = -1;
 		cookies = new ArrayList<Cookie>();
 		httpOnlyCookies = new HashSet<Cookie>();
 
@@ -94,11 +133,13 @@ public class WinstoneResponse implements HttpServletResponse {
 		webAppConfig = null;
 		outputStream = null;
 		outputWriter = null;
-		headers.clear();
+		clearHeaders();
+		trailers.clear();
 		cookies.clear();
 		httpOnlyCookies.clear();
 		protocol = null;
 		reqKeepAliveHeader = null;
+		closeForced = Boolean.FALSE;
 
 		statusCode = HttpServletResponse.SC_OK;
 		errorStatusCode = null;
@@ -162,10 +203,65 @@ public class WinstoneResponse implements HttpServletResponse {
 		reqKeepAliveHeader = req.getHeader(WinstoneConstant.KEEP_ALIVE_HEADER);
 	}
 
-	public List<String> getHeaders() {
+	/**
+	 * Closes the connection after this response, with a "Connection: close"
+	 * header - ie when the connection has served as many requests as allowed.
+	 */
+	public void forceCloseAfterRequest() {
+		closeForced = Boolean.TRUE;
+	}
+
+	public HeaderTable getHeaders() {
 		return headers;
 	}
 
+	/**
+	 * @return the trailer fields sent after a chunked body.
+	 */
+	public HeaderTable getTrailers() {
+		return trailers;
+	}
+
+	/**
+	 * Sets a trailer field, sent after the last chunk of the body. Trailers
+	 * can be set until the response is finished, but only a chunked response
+	 * carries them: they are dropped when the body length was known at commit
+	 * time. Names set before the commit are announced in a Trailer header.
+	 */
+	public void setTrailer(final String name, final String value) {
+		if (isIncluding()) {
+			WinstoneResponse.logger.debug("Trailer ignored inside include - {}: {} ", name, value);
+		} else {
+			trailers.set(name, value);
+		}
+	}
+
+	/**
+	 * @return Boolean.TRUE if the body is sent with the chunked transfer
+	 *         coding, which is decided when the response is committed.
+	 */
+	public boolean isChunked() {
+		return chunked;
+	}
+
+	/**
+	 * @return Boolean.FALSE if this response never carries a body: the reply
+	 *         to a HEAD request, or a 1xx, 204 or 304 status.
+	 */
+	public boolean isBodyAllowed() {
+		if ((req != null) && WinstoneConstant.METHOD_HEAD.equals(req.getMethod())) {
+			return Boolean.FALSE;
+		}
+		return (statusCode >= 200) && (statusCode != HttpServletResponse.SC_NO_CONTENT) && (statusCode != HttpServletResponse.SC_NOT_MODIFIED);
+	}
+
+	/**
+	 * @return the Content-Length header value, -1 if unset.
+	 */
+	public long getContentLength() {
+		return contentLength;
+	}
+
 	public List<Cookie> getCookies() {
 		return cookies;
 	}
@@ -184,9 +280,6 @@ public class WinstoneResponse implements HttpServletResponse {
 
 	public void finishIncludeBuffer() throws IOException {
 		if (isIncluding()) {
-			if (outputWriter != null) {
-				outputWriter.flush();
-			}
 			outputStream.finishIncludeBuffer();
 		}
 	}
@@ -226,18 +319,29 @@ public class WinstoneResponse implements HttpServletResponse {
 	public void validateHeaders() {
 		// Need this block for WebDAV support. "Connection:close" header is
 		// ignored
-		String lengthHeader = getHeader(WinstoneConstant.CONTENT_LENGTH_HEADER);
-		if (lengthHeader == null && statusCode >= 300) {
+		if (!headers.contains(WinstoneConstant.CONTENT_LENGTH_HEADER) && statusCode >= 300) {
 			final long bodyBytes = outputStream.getOutputStreamLength();
 			if (getBufferSize() > bodyBytes) {
 				WinstoneResponse.logger.debug("Keep-alive requested but no content length set. Setting to {} bytes", "" + bodyBytes);
-				forceHeader(WinstoneConstant.CONTENT_LENGTH_HEADER, "" + bodyBytes);
-				lengthHeader = getHeader(WinstoneConstant.CONTENT_LENGTH_HEADER);
+				forceHeader(WinstoneConstant.CONTENT_LENGTH_HEADER, Long.toString(bodyBytes));
+			}
+		}
+
+		// Body length still unknown: HTTP/1.1 clients can take it chunked
+		// and keep the connection open
+		chunked = (contentLength < 0) && "HTTP/1.1".equals(protocol) && isBodyAllowed() && outputStream.isChunkedEncodingAllowed() && !headers.contains(WinstoneConstant.TRANSFER_ENCODING_HEADER);
+		if (chunked) {
+			forceHeader(WinstoneConstant.TRANSFER_ENCODING_HEADER, WinstoneConstant.TRANSFER_ENCODING_CHUNKED);
+			if ((trailers.size() > 0) && !headers.contains(WinstoneConstant.TRAILER_HEADER)) {
+				final StringBuilder names = new StringBuilder();
+				for (int n = 0; n < trailers.size(); n++) {
+					names.append(n > 0 ? ", " : "").append(trailers.getName(n));
+				}
+				forceHeader(WinstoneConstant.TRAILER_HEADER, names.toString());
 			}
 		}
 
 		forceHeader(WinstoneConstant.KEEP_ALIVE_HEADER, !closeAfterRequest() ? WinstoneConstant.KEEP_ALIVE_OPEN : WinstoneConstant.KEEP_ALIVE_CLOSE);
-		final String contentType = getHeader(WinstoneConstant.CONTENT_TYPE_HEADER);
 		if (statusCode != HttpServletResponse.SC_MOVED_TEMPORARILY) {
 			if (contentType == null) {
 				// Bypass normal encoding
@@ -249,10 +353,17 @@ public class WinstoneResponse implements HttpServletResponse {
 				forceHeader(WinstoneConstant.CONTENT_TYPE_HEADER, remainder.toString() + ";charset=" + getCharacterEncoding());
 			}
 		}
-		if (getHeader(WinstoneConstant.DATE_HEADER) == null) {
-			forceHeader(WinstoneConstant.DATE_HEADER, WinstoneResponse.formatHeaderDate(new Date()));
+		if (!headers.contains(WinstoneConstant.DATE_HEADER)) {
+			// same String all second long: the line is encoded once a second
+			final String now = WinstoneResponse.HTTP_CLOCK.now();
+			DateHeader date = WinstoneResponse.dateHeader;
+			if (date.value != now) {
+				date = new DateHeader(now);
+				WinstoneResponse.dateHeader = date;
+			}
+			headers.set(WinstoneConstant.DATE_HEADER, date.value, date.line);
 		}
-		if (getHeader(WinstoneConstant.X_POWERED_BY_HEADER) == null) {
+		if (!headers.contains(WinstoneConstant.X_POWERED_BY_HEADER)) {
 			forceHeader(WinstoneConstant.X_POWERED_BY_HEADER, WinstoneResponse.X_POWERED_BY_HEADER_VALUE);
 		}
 		if (locale != null) {
@@ -307,7 +418,7 @@ public class WinstoneResponse implements HttpServletResponse {
 				httpOnlyCookies.add(cookie);
 			}
 		}
-		WinstoneResponse.logger.debug("Headers prepared for writing: {}", "" + headers + "");
+		WinstoneResponse.logger.debug("Headers prepared for writing: {}", headers);
 	}
 
 	/**
@@ -387,11 +498,20 @@ public class WinstoneResponse implements HttpServletResponse {
 	}
 
 	private static String formatHeaderDate(final Date dateIn) {
-		String date = null;
-		synchronized (WinstoneResponse.HTTP_DF) {
-			date = WinstoneResponse.HTTP_DF.format(dateIn);
+		return WinstoneResponse.HTTP_DATES.get().format(dateIn);
+	}
+
+	/**
+	 * A Date header value and its encoded line.
+	 */
+	private static final class DateHeader {
+		private final String value;
+		private final byte line[];
+
+		DateHeader(final String value) {
+			this.value = value;
+			line = HeaderTable.encodeLine(WinstoneConstant.DATE_HEADER, value);
 		}
-		return date;
 	}
 
 	/**
@@ -426,9 +546,16 @@ public class WinstoneResponse implements HttpServletResponse {
 	 */
 	public boolean closeAfterRequest() {
 		final String inKeepAliveHeader = reqKeepAliveHeader;
-		final String outKeepAliveHeader = getHeader(WinstoneConstant.KEEP_ALIVE_HEADER);
-		final boolean hasContentLength = getHeader(WinstoneConstant.CONTENT_LENGTH_HEADER) != null;
-		if (protocol.startsWith("HTTP/0")) {
+		final String outKeepAliveHeader = connection;
+		// a chunked or empty body ends on its own, as a known length does
+		final boolean hasContentLength = (contentLength >= 0) || chunked || !isBodyAllowed();
+		if (closeForced || protocol.startsWith("HTTP/0")) {
+			return Boolean.TRUE;
+		} else if ((req != null) && req.isBodyBroken()) {
+			// the next request would start somewhere in the body
+			return Boolean.TRUE;
+		} else if ((req != null) && req.isContinuePending()) {
+			// the client may still send the body it held back
 			return Boolean.TRUE;
 		} else if (inKeepAliveHeader == null && outKeepAliveHeader == null) {
 			return protocol.equals("HTTP/1.0") ? Boolean.TRUE : !hasContentLength;
@@ -454,6 +581,20 @@ public class WinstoneResponse implements HttpServletResponse {
 		}
 	}
 
+	/**
+	 * Flushes what the servlet left in the buffers once the request is done.
+	 * A response still entirely buffered gets its Content-Length first, so it
+	 * can be sent without chunking.
+	 */
+	public void finishBuffer() throws IOException {
+		// the writer encodes straight into the output stream, so it holds
+		// nothing back: flushing it would commit the response
+		if (!isCommitted() && (contentLength < 0) && isBodyAllowed() && !headers.contains(WinstoneConstant.TRANSFER_ENCODING_HEADER)) {
+			setContentLength(outputStream.getOutputStreamLength());
+		}
+		flushBuffer();
+	}
+
 	@Override
 	public void setBufferSize(final int size) {
 		outputStream.setBufferSize(size);
@@ -492,7 +633,7 @@ public class WinstoneResponse implements HttpServletResponse {
 
 	@Override
 	public String getContentType() {
-		return getHeader(WinstoneConstant.CONTENT_TYPE_HEADER);
+		return contentType;
 	}
 
 	@Override
@@ -554,7 +695,7 @@ public class WinstoneResponse implements HttpServletResponse {
 		if (!isIncluding()) {
 			resetBuffer();
 			statusCode = HttpServletResponse.SC_OK;
-			headers.clear();
+			clearHeaders();
 			cookies.clear();
 			httpOnlyCookies.clear();
 		}
@@ -598,12 +739,7 @@ public class WinstoneResponse implements HttpServletResponse {
 
 	@Override
 	public boolean containsHeader(final String name) {
-		for (String header : this.headers) {
-			if (header.startsWith(name)) {
-				return Boolean.TRUE;
-			}
-		}
-		return Boolean.FALSE;
+		return headers.contains(name);
 	}
 
 	@Override
@@ -623,16 +759,11 @@ public class WinstoneResponse implements HttpServletResponse {
 		} else if (isCommitted()) {
 			WinstoneResponse.logger.debug("Header ignored after response committed - {}: {} ", name, value);
 		} else if (value != null) {
-			if (name.equals(WinstoneConstant.CONTENT_TYPE_HEADER)) {
-				final StringBuilder remainderHeader = new StringBuilder();
-				final String headerEncoding = WinstoneResponse.getCharsetFromContentTypeHeader(value, remainderHeader);
-				if (outputWriter != null) {
-					value = remainderHeader + ";charset=" + getCharacterEncoding();
-				} else if (headerEncoding != null) {
-					explicitEncoding = headerEncoding;
-				}
+			if (name.equalsIgnoreCase(WinstoneConstant.CONTENT_TYPE_HEADER)) {
+				value = fixContentTypeEncoding(value);
 			}
-			headers.add(name + ": " + value);
+			headers.add(name, value);
+			headerChanged(name);
 		}
 	}
 
@@ -653,51 +784,61 @@ public class WinstoneResponse implements HttpServletResponse {
 		} else if (isCommitted()) {
 			WinstoneResponse.logger.debug("Header ignored after response committed - {}: {} ", name, value);
 		} else {
-			boolean found = Boolean.FALSE;
-			for (int n = 0; n < headers.size(); n++) {
-				final String header = headers.get(n);
-				if (header.startsWith(name + ": ")) {
-					if (found) {
-						headers.remove(n);
-						continue;
-					}
-					if (name.equals(WinstoneConstant.CONTENT_TYPE_HEADER)) {
-						if (value != null) {
-							final StringBuilder remainderHeader = new StringBuilder();
-							final String headerEncoding = WinstoneResponse.getCharsetFromContentTypeHeader(value, remainderHeader);
-							if (outputWriter != null) {
-								value = remainderHeader + ";charset=" + getCharacterEncoding();
-							} else if (headerEncoding != null) {
-								explicitEncoding = headerEncoding;
-							}
-						}
-					}
-
-					if (value != null) {
-						headers.set(n, name + ": " + value);
-					} else {
-						headers.remove(n);
-					}
-					found = Boolean.TRUE;
-				}
-			}
-			if (!found) {
-				addHeader(name, value);
+			if (value != null && name.equalsIgnoreCase(WinstoneConstant.CONTENT_TYPE_HEADER)) {
+				value = fixContentTypeEncoding(value);
 			}
+			headers.set(name, value);
+			headerChanged(name);
 		}
 	}
 
+	/**
+	 * Takes the charset of a content type header as the response encoding,
+	 * or, once the writer has been handed out, replaces it with the encoding
+	 * in use.
+	 */
+	private String fixContentTypeEncoding(final String value) {
+		final StringBuilder remainderHeader = new StringBuilder();
+		final String headerEncoding = WinstoneResponse.getCharsetFromContentTypeHeader(value, remainderHeader);
+		if (outputWriter != null) {
+			return remainderHeader + ";charset=" + getCharacterEncoding();
+		} else if (headerEncoding != null) {
+			explicitEncoding = headerEncoding;
+		}
+		return value;
+	}
+
 	private void forceHeader(final String name, final String value) {
-		boolean found = Boolean.FALSE;
-		for (int n = 0; n < headers.size(); n++) {
-			final String header = headers.get(n);
-			if (header.startsWith(name + ": ")) {
-				found = Boolean.TRUE;
-				headers.set(n, name + ": " + value);
+		headers.set(name, value);
+		headerChanged(name);
+	}
+
+	private void clearHeaders() {
+		headers.clear();
+		contentLength = -1;
+		contentType = null;
+		connection = null;
+		chunked = Boolean.FALSE;
+	}
+
+	/**
+	 * Refresh the typed copy of a hot header after it changed.
+	 */
+	private void headerChanged(final String name) {
+		if (name.equalsIgnoreCase(WinstoneConstant.CONTENT_LENGTH_HEADER)) {
+			final String value = headers.get(WinstoneConstant.CONTENT_LENGTH_HEADER);
+			contentLength = -1;
+			if (value != null) {
+				try {
+					contentLength = Long.parseLong(value.trim());
+				} catch (final NumberFormatException e) {
+					WinstoneResponse.logger.warn("Ignoring invalid Content-Length header: {}", value);
+				}
 			}
-		}
-		if (!found) {
-			headers.add(name + ": " + value);
+		} else if (name.equalsIgnoreCase(WinstoneConstant.CONTENT_TYPE_HEADER)) {
+			contentType = headers.get(WinstoneConstant.CONTENT_TYPE_HEADER);
+		} else if (name.equalsIgnoreCase(WinstoneConstant.KEEP_ALIVE_HEADER)) {
+			connection = headers.get(WinstoneConstant.KEEP_ALIVE_HEADER);
 		}
 	}
 
@@ -719,13 +860,7 @@ public class WinstoneResponse implements HttpServletResponse {
 	}
 
 	public String getHeader(final String name) {
-		for (int n = 0; n < headers.size(); n++) {
-			final String header = headers.get(n);
-			if (header.startsWith(name + ": ")) {
-				return header.substring(name.length() + 2);
-			}
-		}
-		return null;
+		return headers.get(name);
 	}
 
 	@Override
@@ -7,9 +7,16 @@
 package net.winstone.core;
 
 import java.io.IOException;
-import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,6 +29,9 @@ import org.slf4j.LoggerFactory;
  * print writer's flushing behaviour be half auto-flush and half not. Damned if
  * I know why - seems unnecessary and confusing to me.
  * 
+ * Characters are encoded once, straight into the buffer of the output stream,
+ * so its length is always up to date.
+ * 
  * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
  * @version $Id: WinstoneResponseWriter.java,v 1.3 2006/02/28 07:32:47
  *          rickknowles Exp $
@@ -31,63 +41,293 @@ public class WinstoneResponseWriter extends PrintWriter {
 	protected static Logger logger = LoggerFactory.getLogger(WinstoneResponseWriter.class);
 	private final WinstoneOutputStream outputStream;
 	private final WinstoneResponse response;
-	private int bytesBuffered;
 
 	public WinstoneResponseWriter(final WinstoneOutputStream out, final WinstoneResponse response) throws UnsupportedEncodingException {
-		super(new OutputStreamWriter(out, response.getCharacterEncoding()), Boolean.FALSE);
+		super(new EncodingWriter(out, WinstoneResponseWriter.forName(response.getCharacterEncoding())), Boolean.FALSE);
 		outputStream = out;
 		this.response = response;
-		bytesBuffered = 0;
 	}
 
-	@Override
-	public void write(final int c) {
-		super.write(c);
-		appendByteCount("" + ((char) c));
+	private static Charset forName(final String encoding) throws UnsupportedEncodingException {
+		try {
+			return Charset.forName(encoding);
+		} catch (final IllegalArgumentException e) {
+			throw new UnsupportedEncodingException(encoding);
+		}
 	}
 
 	@Override
-	public void write(final char[] buf, final int off, final int len) {
-		super.write(buf, off, len);
-		if (buf != null) {
-			appendByteCount(new String(buf, off, len));
-		}
+	public void println() {
+		super.println();
+		simulateAutoFlush();
 	}
 
-	@Override
-	public void write(final String s, final int off, final int len) {
-		super.write(s, off, len);
-		if (s != null) {
-			appendByteCount(s.substring(off, len));
+	protected void simulateAutoFlush() {
+		final long contentLength = response.getContentLength();
+		if ((contentLength >= 0) && (outputStream.getOutputStreamLength() >= contentLength)) {
+			WinstoneResponseWriter.logger.debug("Checking for auto-flush of print writer: contentLengthHeader={}, responseBytes={}", Long.toString(contentLength), Long.toString(outputStream.getOutputStreamLength()));
+			flush();
 		}
 	}
 
-	protected void appendByteCount(final String input) {
-		try {
-			bytesBuffered += input.getBytes(response.getCharacterEncoding()).length;
-		} catch (final IOException err) {/* impossible */
+	/**
+	 * Encodes characters into the buffer of the output stream: by hand for
+	 * US-ASCII, ISO-8859-1 and UTF-8, with a reused encoder for the other
+	 * charsets. Unmappable characters and lone surrogates become '?', as with
+	 * an OutputStreamWriter.
+	 */
+	private static final class EncodingWriter extends Writer {
+
+		/**
+		 * Bytes of the longest UTF-8 sequence.
+		 */
+		private static final int UTF8_MAX_BYTES = 4;
+		private final WinstoneOutputStream out;
+		/**
+		 * Highest character of a single byte charset encoded by hand, or 0.
+		 */
+		private final char singleByteLimit;
+		private final boolean utf8;
+		/**
+		 * Encoder of the other charsets, or null.
+		 */
+		private final CharsetEncoder encoder;
+		private final int maxBytesPerChar;
+		private final CharBuffer carry = CharBuffer.allocate(2);
+		/**
+		 * High surrogate waiting for its low half in the next write, or 0.
+		 */
+		private char pending;
 
+		EncodingWriter(final WinstoneOutputStream out, final Charset charset) {
+			super();
+			this.out = out;
+			final String name = charset.name();
+			utf8 = name.equals("UTF-8");
+			if (name.equals("US-ASCII")) {
+				singleByteLimit = 0x7F;
+			} else if (name.equals("ISO-8859-1")) {
+				singleByteLimit = 0xFF;
+			} else {
+				singleByteLimit = 0;
+			}
+			if (utf8 || singleByteLimit != 0) {
+				encoder = null;
+				maxBytesPerChar = EncodingWriter.UTF8_MAX_BYTES;
+			} else {
+				encoder = charset.newEncoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+				maxBytesPerChar = (int) Math.ceil(encoder.maxBytesPerChar());
+			}
 		}
 
-	}
+		@Override
+		public void write(final int c) throws IOException {
+			if (encoder == null && c < 0x80 && pending == 0) {
+				final ByteBuffer bytes = out.reserve(1);
+				if (bytes != null) {
+					bytes.put((byte) c);
+					out.written(1);
+				}
+			} else {
+				((Buffer) carry).clear();
+				carry.put((char) c);
+				((Buffer) carry).flip();
+				encode(carry, 0, 1);
+			}
+		}
 
-	@Override
-	public void println() {
-		super.println();
-		simulateAutoFlush();
-	}
+		@Override
+		public void write(final char[] buf, final int off, final int len) throws IOException {
+			encode(CharBuffer.wrap(buf), off, len);
+		}
 
-	@Override
-	public void flush() {
-		super.flush();
-		bytesBuffered = 0;
-	}
+		@Override
+		public void write(final String s, final int off, final int len) throws IOException {
+			encode(s, off, len);
+		}
 
-	protected void simulateAutoFlush() {
-		final String contentLengthHeader = response.getHeader(WinstoneConstant.CONTENT_LENGTH_HEADER);
-		if ((contentLengthHeader != null) && ((outputStream.getOutputStreamLength() + bytesBuffered) >= Integer.parseInt(contentLengthHeader))) {
-			WinstoneResponseWriter.logger.debug("Checking for auto-flush of print writer: contentLengthHeader={}, responseBytes={}", contentLengthHeader, (outputStream.getOutputStreamLength() + bytesBuffered) + "");
-			flush();
+		/**
+		 * @param chars
+		 *            characters, indexed from 0 even when a CharBuffer
+		 */
+		private void encode(final CharSequence chars, final int off, final int len) throws IOException {
+			if (len <= 0) {
+				return;
+			}
+			if (encoder != null) {
+				int start = off;
+				if (pending != 0) {
+					final char first = chars.charAt(off);
+					((Buffer) carry).clear();
+					carry.put(pending).put(first);
+					((Buffer) carry).flip();
+					pending = 0;
+					encode(carry);
+					start++;
+				}
+				final CharBuffer in;
+				if (chars instanceof CharBuffer) {
+					in = ((CharBuffer) chars).duplicate();
+					((Buffer) in).limit(off + len).position(start);
+				} else {
+					in = CharBuffer.wrap(chars, start, off + len);
+				}
+				encode(in);
+				return;
+			}
+			ByteBuffer bytes = out.reserve(1);
+			if (bytes == null) {
+				return;
+			}
+			int start = bytes.position();
+			final int end = off + len;
+			for (int n = off; n < end; n++) {
+				final char c = chars.charAt(n);
+				if (c < 0x80 && pending == 0 && bytes.hasRemaining()) {
+					bytes.put((byte) c);
+					continue;
+				}
+				final int size = size(c);
+				if (bytes.remaining() < size) {
+					out.written(bytes.position() - start);
+					bytes = out.reserve(size);
+					if (bytes == null) {
+						return;
+					} else if (bytes.remaining() < size) {
+						// the content length ends within this character
+						out.written(0);
+						return;
+					}
+					start = bytes.position();
+				}
+				put(bytes, c);
+			}
+			out.written(bytes.position() - start);
+		}
+
+		/**
+		 * @return the bytes put by {@link #put(ByteBuffer, char)} for the
+		 *         character.
+		 */
+		private int size(final char c) {
+			if (!utf8) {
+				return pending != 0 && Character.isLowSurrogate(c) ? 0 : 1;
+			}
+			if (pending != 0) {
+				return Character.isLowSurrogate(c) ? 4 : 1 + EncodingWriter.utf8Size(c);
+			}
+			return EncodingWriter.utf8Size(c);
+		}
+
+		private static int utf8Size(final char c) {
+			if (c < 0x80) {
+				return 1;
+			} else if (c < 0x800) {
+				return 2;
+			} else if (Character.isHighSurrogate(c)) {
+				return 0;
+			} else if (Character.isLowSurrogate(c)) {
+				return 1;
+			}
+			return 3;
+		}
+
+		private void put(final ByteBuffer bytes, final char c) {
+			if (pending != 0) {
+				final char high = pending;
+				pending = 0;
+				if (Character.isLowSurrogate(c)) {
+					if (utf8) {
+						final int codePoint = Character.toCodePoint(high, c);
+						bytes.put((byte) (0xF0 | (codePoint >> 18)));
+						bytes.put((byte) (0x80 | ((codePoint >> 12) & 0x3F)));
+						bytes.put((byte) (0x80 | ((codePoint >> 6) & 0x3F)));
+						bytes.put((byte) (0x80 | (codePoint & 0x3F)));
+					}
+					// a single byte charset already put '?' for the pair
+					return;
+				} else if (utf8) {
+					bytes.put((byte) '?');
+				}
+			}
+			if (!utf8) {
+				if (c <= singleByteLimit) {
+					bytes.put((byte) c);
+				} else {
+					if (Character.isHighSurrogate(c)) {
+						pending = c;
+					}
+					bytes.put((byte) '?');
+				}
+			} else if (c < 0x80) {
+				bytes.put((byte) c);
+			} else if (c < 0x800) {
+				bytes.put((byte) (0xC0 | (c >> 6)));
+				bytes.put((byte) (0x80 | (c & 0x3F)));
+			} else if (Character.isHighSurrogate(c)) {
+				pending = c;
+			} else if (Character.isLowSurrogate(c)) {
+				bytes.put((byte) '?');
+			} else {
+				bytes.put((byte) (0xE0 | (c >> 12)));
+				bytes.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				bytes.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+
+		/**
+		 * Encodes with the charset encoder, keeping a trailing high surrogate
+		 * for the next write.
+		 */
+		private void encode(final CharBuffer in) throws IOException {
+			for (;;) {
+				final ByteBuffer bytes = out.reserve(maxBytesPerChar);
+				if (bytes == null) {
+					return;
+				}
+				final int start = bytes.position();
+				final CoderResult result = encoder.encode(in, bytes, Boolean.FALSE);
+				final int count = bytes.position() - start;
+				out.written(count);
+				if (result.isUnderflow()) {
+					break;
+				} else if (count == 0) {
+					// the content length ends within this character
+					return;
+				}
+			}
+			if (in.hasRemaining()) {
+				pending = in.get();
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (pending != 0 || encoder != null) {
+				final ByteBuffer bytes = out.reserve(maxBytesPerChar);
+				if (bytes != null) {
+					final int start = bytes.position();
+					if (encoder != null) {
+						((Buffer) carry).clear();
+						if (pending != 0) {
+							carry.put(pending);
+						}
+						((Buffer) carry).flip();
+						encoder.encode(carry, bytes, Boolean.TRUE);
+						encoder.flush(bytes);
+					} else if (utf8) {
+						bytes.put((byte) '?');
+					}
+					out.written(bytes.position() - start);
+				}
+				pending = 0;
+			}
+			out.close();
 		}
 	}
 }
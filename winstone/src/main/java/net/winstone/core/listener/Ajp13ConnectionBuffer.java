@@ -0,0 +1,49 @@
+package net.winstone.core.listener;
+
+import java.io.InputStream;
+
+import net.winstone.core.SocketInputBuffer;
+import net.winstone.util.BufferPool;
+
+/**
+ * Read buffer of an AJP13 connection, which also holds what its packets are
+ * decoded into: the forward request and the body chunks of every request on
+ * the connection reuse the same arrays, and a request whose first body packet
+ * follows it closely is read in a single system call.
+ */
+final class Ajp13ConnectionBuffer extends SocketInputBuffer {
+
+	private final Ajp13IncomingPacket requestPacket = new Ajp13IncomingPacket();
+	private final byte bodyRequestPacket[] = new byte[] { 0x41, 0x42, 0x00, 0x03, 0x06, 0x00, 0x00 };
+	private byte body[];
+
+	Ajp13ConnectionBuffer(final InputStream in, final BufferPool pool) {
+		super(in, pool);
+	}
+
+	/**
+	 * @return the forward request packet of the connection.
+	 */
+	Ajp13IncomingPacket getRequestPacket() {
+		return requestPacket;
+	}
+
+	/**
+	 * @return the GET_BODY_CHUNK packet of the connection, to fill in with
+	 *         the length asked for.
+	 */
+	byte[] getBodyRequestPacket() {
+		return bodyRequestPacket;
+	}
+
+	/**
+	 * @return the array body packets are read into, of at least the given
+	 *         length.
+	 */
+	byte[] getBodyBuffer(final int length) {
+		if (body == null || body.length < length) {
+			body = new byte[Math.max(length, Ajp13InputStream.MAX_BODY_CHUNK)];
+		}
+		return body;
+	}
+}
@@ -6,13 +6,11 @@
  */
 package net.winstone.core.listener;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInput;
-import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.charset.Charset;
+import java.util.Arrays;
 
 import net.winstone.WinstoneException;
 
@@ -22,6 +20,10 @@ import org.slf4j.LoggerFactory;
 /**
  * Models a single incoming ajp13 packet. Fixes by Cory Osborn 2007/4/3 - IIS
  * related. Thanks
+ * <p>
+ * An instance is reused for every request of a connection: the packet is read
+ * into the same array each time and decoded in place, with the method, header
+ * and attribute codes looked up in tables.
  * 
  * @author mailto: <a href="rick_knowles@hotmail.com">Rick Knowles</a>
  * @version $Id: Ajp13IncomingPacket.java,v 1.7 2008/02/17 07:44:01 rickknowles
@@ -31,12 +33,32 @@ public class Ajp13IncomingPacket {
 	// Server originated packet types
 
 	private static Logger logger = LoggerFactory.getLogger(Ajp13IncomingPacket.class);
-	byte SERVER_FORWARD_REQUEST = 0x02;
+	static final byte SERVER_FORWARD_REQUEST = 0x02;
 	// public static byte SERVER_SHUTDOWN = 0x07; //not implemented
 	// public static byte SERVER_PING = 0x08; //not implemented
 	// public static byte SERVER_CPING = 0x10; //not implemented
-	private final int packetLength;
-	private final byte packetBytes[];
+	/**
+	 * Methods by code.
+	 */
+	private static final String METHODS[] = { "UNKNOWN", "OPTIONS", "GET", "HEAD", "POST", "PUT", "DELETE", "TRACE", "PROPFIND", "PROPPATCH", "MKCOL", "COPY", "MOVE", "LOCK", "UNLOCK", "ACL", "REPORT", "VERSION-CONTROL", "CHECKIN",
+			"CHECKOUT", "UNCHECKOUT", "SEARCH", "MKWORKSPACE", "UPDATE", "LABEL", "MERGE", "BASELINE_CONTROL", "MKACTIVITY" };
+	/**
+	 * Header names by the low byte of their 0xA0xx code.
+	 */
+	private static final String HEADER_NAMES[] = { null, "Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language", "Authorization", "Connection", "Content-Type", "Content-Length", "Cookie", "Cookie2", "Host", "Pragma", "Referer",
+			"User-Agent" };
+	/**
+	 * Attribute names by code; "req_attribute" carries its own name.
+	 */
+	private static final String ATTRIBUTE_NAMES[] = { null, "context", "servlet_path", "remote_user", "auth_type", "query_string", "jvm_route", "ssl_cert", "ssl_cipher", "ssl_session", "req_attribute", "ssl_key_size", "secret",
+			"stored_method" };
+	private static final byte HTTP_1_1[] = { 'H', 'T', 'T', 'P', '/', '1', '.', '1' };
+	private static final byte HTTP_1_0[] = { 'H', 'T', 'T', 'P', '/', '1', '.', '0' };
+	private int packetLength;
+	private byte packetBytes[] = new byte[1024];
+	private final byte headerBuffer[] = new byte[4];
+	private int position;
+	private Charset encoding;
 	private byte packetType;
 	private String method;
 	private String protocol;
@@ -46,29 +68,52 @@ public class Ajp13IncomingPacket {
 	private String serverName;
 	private int serverPort;
 	private boolean isSSL;
-	private String headers[];
-	private Map<String, String> attributes;
+	private String headerNames[] = new String[16];
+	private String headerValues[] = new String[16];
+	private int headerCount;
+	private String attributeNames[] = new String[8];
+	private String attributeValues[] = new String[8];
+	private int attributeCount;
 
 	/**
-	 * Constructor
+	 * Reads the next packet of the connection.
+	 * 
+	 * @throws EOFException
+	 *             if the connection is closed first.
 	 */
-	public Ajp13IncomingPacket(final InputStream in, final RequestHandlerThread handler) throws IOException {
-		DataInputStream din = new DataInputStream(in);
+	public void read(final InputStream in) throws IOException {
 		// Get the incoming packet flag
-		final byte headerBuffer[] = new byte[4];
-		din.readFully(headerBuffer);
-		handler.setRequestStartTime();
+		Ajp13IncomingPacket.readFully(in, headerBuffer, 0, 4);
 		if ((headerBuffer[0] != 0x12) || (headerBuffer[1] != 0x34)) {
 			throw new WinstoneException("Invalid AJP header");
 		}
 
 		// Read in the whole packet
 		packetLength = ((headerBuffer[2] & 0xFF) << 8) + (headerBuffer[3] & 0xFF);
-		packetBytes = new byte[packetLength];
-		din.readFully(packetBytes);
+		if (packetBytes.length < packetLength) {
+			packetBytes = new byte[packetLength];
+		}
+		Ajp13IncomingPacket.readFully(in, packetBytes, 0, packetLength);
 		// Ajp13Listener.packetDump(packetBytes, packetBytesRead);
 	}
 
+	/**
+	 * Reads exactly the given number of bytes.
+	 * 
+	 * @throws EOFException
+	 *             if the stream ends first.
+	 */
+	static void readFully(final InputStream in, final byte b[], final int off, final int len) throws IOException {
+		int total = 0;
+		while (total < len) {
+			final int count = in.read(b, off + total, len - total);
+			if (count < 0) {
+				throw new EOFException("AJP13 connection closed");
+			}
+			total += count;
+		}
+	}
+
 	/**
 	 * Pares packet with specified encoding.
 	 * 
@@ -76,11 +121,12 @@ public class Ajp13IncomingPacket {
 	 * @return packet type
 	 * @throws IOException
 	 */
-	public byte parsePacket(final String encoding) throws IOException {
-		final DataInputStream di = new DataInputStream(new ByteArrayInputStream(packetBytes));
-		packetType = di.readByte();
+	public byte parsePacket(final Charset encoding) throws IOException {
+		this.encoding = encoding;
+		position = 0;
+		packetType = readByte();
 
-		if (packetType != SERVER_FORWARD_REQUEST) {
+		if (packetType != Ajp13IncomingPacket.SERVER_FORWARD_REQUEST) {
 			throw new WinstoneException("Unknown AJP packet type - " + packetType);
 		}
 		// Check for terminator
@@ -88,67 +134,73 @@ public class Ajp13IncomingPacket {
 			throw new WinstoneException("Invalid AJP packet terminator");
 		}
 
-		method = decodeMethodType(di.readByte());
+		final int methodType = readByte() & 0xFF;
+		method = Ajp13IncomingPacket.METHODS[methodType < Ajp13IncomingPacket.METHODS.length ? methodType : 0];
 		Ajp13IncomingPacket.logger.debug("Method: {}", method);
 
 		// Protocol
-		protocol = readString(di, encoding);
+		protocol = readProtocol();
 		Ajp13IncomingPacket.logger.debug("Protocol: {}", protocol);
 
 		// URI
-		uri = readString(di, encoding);
+		uri = readString();
 		Ajp13IncomingPacket.logger.debug("URI: {}", uri);
 
 		// Remote addr
-		remoteAddr = readString(di, encoding);
+		remoteAddr = readString();
 		Ajp13IncomingPacket.logger.debug("Remote address: {}", remoteAddr);
 
 		// Remote host
-		remoteHost = readString(di, encoding);
+		remoteHost = readString();
 		Ajp13IncomingPacket.logger.debug("RemoteHost: {}", remoteHost);
 
 		// Server name
-		serverName = readString(di, encoding);
+		serverName = readString();
 		Ajp13IncomingPacket.logger.debug("Server name: {}", serverName);
 
-		serverPort = di.readShort();
+		serverPort = readShort();
 		Ajp13IncomingPacket.logger.debug("Server port: {}", "" + serverPort);
 
-		isSSL = di.readBoolean();
+		isSSL = readByte() != 0;
 		Ajp13IncomingPacket.logger.debug("SSL: {}", "" + isSSL);
 
 		// Read headers
-		final int headerCount = di.readShort();
+		headerCount = readShort();
 		Ajp13IncomingPacket.logger.debug("Header Count: {}", "" + headerCount);
-
-		headers = new String[headerCount];
+		if (headerNames.length < headerCount) {
+			headerNames = new String[headerCount];
+			headerValues = new String[headerCount];
+		}
 		for (int n = 0; n < headerCount; n++) {
 			// Header name
-			final int headerTypeOrLength = di.readShort();
-			String headerName;
+			final int headerTypeOrLength = readShort();
 			if ((headerTypeOrLength & 0xFF00) == 0xA000) {
-				headerName = decodeHeaderType(headerTypeOrLength & 0xFFFF);
+				final int headerType = headerTypeOrLength & 0xFF;
+				headerNames[n] = headerType < Ajp13IncomingPacket.HEADER_NAMES.length ? Ajp13IncomingPacket.HEADER_NAMES[headerType] : null;
 			} else {
-				headerName = readString(di, encoding, headerTypeOrLength);
+				headerNames[n] = readString(headerTypeOrLength);
 			}
 			// Header value
-			headers[n] = headerName + ": " + readString(di, encoding);
-			Ajp13IncomingPacket.logger.debug("Header: {}", headers[n]);
+			headerValues[n] = readString();
+			Ajp13IncomingPacket.logger.debug("Header: {}: {}", headerNames[n], headerValues[n]);
 		}
 
 		// Attribute parsing
-		attributes = new HashMap<String, String>();
+		attributeCount = 0;
 		while (Boolean.TRUE) {
-			final byte type = di.readByte();
+			final byte type = readByte();
 			if (type == -1) {
 				break; // end of attributes
 			}
-			String attName = decodeAttributeType(type);
-			if (type == 0x0A) {
-				attName = readString(di, encoding);
+			final String attName = type == 0x0A ? readString() : type > 0 && type < Ajp13IncomingPacket.ATTRIBUTE_NAMES.length ? Ajp13IncomingPacket.ATTRIBUTE_NAMES[type] : null;
+			final String attValue = readString();
+			if (attributeCount == attributeNames.length) {
+				attributeNames = Arrays.copyOf(attributeNames, attributeCount * 2);
+				attributeValues = Arrays.copyOf(attributeValues, attributeCount * 2);
 			}
-			final String attValue = readString(di, encoding);
-			attributes.put(attName, attValue);
+			attributeNames[attributeCount] = attName;
+			attributeValues[attributeCount] = attValue;
+			attributeCount++;
 			Ajp13IncomingPacket.logger.debug("Attribute: {}={}", attName, attValue);
 		}
 		Ajp13IncomingPacket.logger.debug("Successfully read AJP13 packet - length={}", "" + packetLength);
@@ -191,175 +243,93 @@ public class Ajp13IncomingPacket {
 		return isSSL;
 	}
 
-	public String[] getHeaders() {
-		return headers;
+	public String[] getHeaderNames() {
+		return headerNames;
 	}
 
-	public Map<String, String> getAttributes() {
-		return attributes;
+	public String[] getHeaderValues() {
+		return headerValues;
+	}
+
+	public int getHeaderCount() {
+		return headerCount;
+	}
+
+	public int getAttributeCount() {
+		return attributeCount;
 	}
 
 	/**
-	 * Read a single string from the stream
+	 * @return the name of an attribute, null if its code is unknown.
 	 */
-	private String readString(final DataInput di, final String encoding) throws IOException {
-		// System.out.println("Reading string length: " + length +
-		// " position=" + position + " packetLength=" + packet.length);
-		return readString(di, encoding, di.readShort());
+	public String getAttributeName(final int index) {
+		return attributeNames[index];
 	}
 
-	private String readString(final DataInput di, final String encoding, final int length) throws IOException {
-		// System.out.println("Reading string length: " + length +
-		// " position=" + position + " packetLength=" + packet.length);
-		if (length == -1) {
-			return null;
-		}
-		if (length == 0) {
-			di.readByte(); // skip over the null terminator
-			return "";
+	public String getAttributeValue(final int index) {
+		return attributeValues[index];
+	}
+
+	private void ensure(final int length) {
+		if (position + length > packetLength) {
+			throw new WinstoneException("Truncated AJP packet");
 		}
+	}
 
-		final byte[] buf = new byte[length];
-		di.readFully(buf);
-		di.readByte(); // skip over the null terminator
-		return new String(buf, encoding);
+	private byte readByte() {
+		ensure(1);
+		return packetBytes[position++];
 	}
 
-	/**
-	 * Decodes the method types into Winstone HTTP method strings
-	 */
-	private String decodeMethodType(final byte methodType) {
-		switch (methodType) {
-		case 1:
-			return "OPTIONS";
-		case 2:
-			return "GET";
-		case 3:
-			return "HEAD";
-		case 4:
-			return "POST";
-		case 5:
-			return "PUT";
-		case 6:
-			return "DELETE";
-		case 7:
-			return "TRACE";
-		case 8:
-			return "PROPFIND";
-		case 9:
-			return "PROPPATCH";
-		case 10:
-			return "MKCOL";
-		case 11:
-			return "COPY";
-		case 12:
-			return "MOVE";
-		case 13:
-			return "LOCK";
-		case 14:
-			return "UNLOCK";
-		case 15:
-			return "ACL";
-		case 16:
-			return "REPORT";
-		case 17:
-			return "VERSION-CONTROL";
-		case 18:
-			return "CHECKIN";
-		case 19:
-			return "CHECKOUT";
-		case 20:
-			return "UNCHECKOUT";
-		case 21:
-			return "SEARCH";
-		case 22:
-			return "MKWORKSPACE";
-		case 23:
-			return "UPDATE";
-		case 24:
-			return "LABEL";
-		case 25:
-			return "MERGE";
-		case 26:
-			return "BASELINE_CONTROL";
-		case 27:
-			return "MKACTIVITY";
-		default:
-			return "UNKNOWN";
-		}
+	private int readShort() {
+		ensure(2);
+		final int value = (short) (((packetBytes[position] & 0xFF) << 8) + (packetBytes[position + 1] & 0xFF));
+		position += 2;
+		return value;
 	}
 
 	/**
-	 * Decodes the header types into Winstone HTTP header strings
+	 * Read a single string from the packet
 	 */
-	private String decodeHeaderType(final int headerType) {
-		switch (headerType) {
-		case 0xA001:
-			return "Accept";
-		case 0xA002:
-			return "Accept-Charset";
-		case 0xA003:
-			return "Accept-Encoding";
-		case 0xA004:
-			return "Accept-Language";
-		case 0xA005:
-			return "Authorization";
-		case 0xA006:
-			return "Connection";
-		case 0xA007:
-			return "Content-Type";
-		case 0xA008:
-			return "Content-Length";
-		case 0xA009:
-			return "Cookie";
-		case 0xA00A:
-			return "Cookie2";
-		case 0xA00B:
-			return "Host";
-		case 0xA00C:
-			return "Pragma";
-		case 0xA00D:
-			return "Referer";
-		case 0xA00E:
-			return "User-Agent";
-		default:
+	private String readString() {
+		return readString(readShort());
+	}
+
+	private String readString(final int length) {
+		if (length == -1) {
 			return null;
 		}
+		ensure(length + 1);
+		final String value = length == 0 ? "" : new String(packetBytes, position, length, encoding);
+		// skip over the null terminator
+		position += length + 1;
+		return value;
 	}
 
 	/**
-	 * Decodes the header types into Winstone HTTP header strings
+	 * Reads the protocol, without a new string for the usual ones.
 	 */
-	private String decodeAttributeType(final byte attributeType) {
-		switch (attributeType) {
-		case 0x01:
-			return "context";
-		case 0x02:
-			return "servlet_path";
-		case 0x03:
-			return "remote_user";
-		case 0x04:
-			return "auth_type";
-		case 0x05:
-			return "query_string";
-		case 0x06:
-			return "jvm_route";
-		case 0x07:
-			return "ssl_cert";
-		case 0x08:
-			return "ssl_cipher";
-		case 0x09:
-			return "ssl_session";
-		case 0x0A:
-			return "req_attribute";
-		case 0x0B:
-			return "ssl_key_size";
-		case 0x0C:
-			return "secret";
-		case 0x0D:
-			return "stored_method";
-		default:
-			return null;
+	private String readProtocol() {
+		final int length = readShort();
+		if (length == Ajp13IncomingPacket.HTTP_1_1.length) {
+			ensure(length + 1);
+			if (matches(Ajp13IncomingPacket.HTTP_1_1)) {
+				position += length + 1;
+				return "HTTP/1.1";
+			} else if (matches(Ajp13IncomingPacket.HTTP_1_0)) {
+				position += length + 1;
+				return "HTTP/1.0";
+			}
+		}
+		return readString(length);
+	}
+
+	private boolean matches(final byte expected[]) {
+		for (int n = 0; n < expected.length; n++) {
+			if (packetBytes[position + n] != expected[n]) {
+				return Boolean.FALSE;
+			}
 		}
+		return Boolean.TRUE;
 	}
 }
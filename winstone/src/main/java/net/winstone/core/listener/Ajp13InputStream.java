@@ -0,0 +1,164 @@
+package net.winstone.core.listener;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import net.winstone.WinstoneException;
+import net.winstone.core.WinstoneInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The body of an AJP13 request, read as the servlet asks for it: each body
+ * packet is requested from the web server with a GET_BODY_CHUNK once the
+ * previous one is read, so the body never sits in memory as a whole, and a
+ * body the servlet does not read is never sent at all.
+ * <p>
+ * The web server sends the first packet of a body of known length right after
+ * the request, unasked. A chunked body, of unknown length, ends with an empty
+ * packet.
+ * <p>
+ * Packets are read into the body buffer of the connection, and the data read
+ * straight from there.
+ */
+final class Ajp13InputStream extends WinstoneInputStream {
+
+	private static Logger logger = LoggerFactory.getLogger(Ajp13InputStream.class);
+	/**
+	 * Most body bytes asked for at once, which fills an 8 KB packet.
+	 */
+	static final int MAX_BODY_CHUNK = 8186;
+	private final Ajp13ConnectionBuffer in;
+	private final OutputStream out;
+	private final byte header[] = new byte[6];
+	private byte chunk[];
+	private int position;
+	private int limit;
+	/**
+	 * Body bytes still to come, or -1 if unknown.
+	 */
+	private long remaining;
+	/**
+	 * Whether a body packet is on its way, requested or not.
+	 */
+	private boolean pending;
+	private boolean ended;
+
+	/**
+	 * @param contentLength
+	 *            -1 for a chunked body
+	 */
+	Ajp13InputStream(final Ajp13ConnectionBuffer inSocket, final OutputStream outSocket, final long contentLength) {
+		super(inSocket);
+		in = inSocket;
+		out = outSocket;
+		remaining = contentLength;
+		pending = contentLength > 0;
+		ended = contentLength == 0;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return chunk[position++] & 0xFF;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		} else if (!fill()) {
+			return -1;
+		}
+		final int count = Math.min(len, limit - position);
+		System.arraycopy(chunk, position, b, off, count);
+		position += count;
+		return count;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return limit - position;
+	}
+
+	/**
+	 * Skips the packet the web server sent unasked, if still unread: the rest
+	 * of the body will not be requested.
+	 */
+	@Override
+	public void discard() throws IOException {
+		if (pending) {
+			receive();
+		}
+		position = limit;
+		ended = Boolean.TRUE;
+	}
+
+	@Override
+	public void finishRequest() {
+		try {
+			discard();
+		} catch (final IOException e) {
+			Ajp13InputStream.logger.debug("Failed to skip the request body", e);
+		}
+	}
+
+	/**
+	 * Gets the next body packet once the current one is read.
+	 *
+	 * @return Boolean.FALSE at the end of the body.
+	 */
+	private boolean fill() throws IOException {
+		while (position == limit) {
+			if (ended) {
+				return Boolean.FALSE;
+			} else if (!pending) {
+				final int length = (int) (remaining < 0 ? Ajp13InputStream.MAX_BODY_CHUNK : Math.min(remaining, Ajp13InputStream.MAX_BODY_CHUNK));
+				final byte requestPacket[] = in.getBodyRequestPacket();
+				Ajp13OutputStream.setIntBlock(length, requestPacket, 5);
+				out.write(requestPacket);
+				out.flush();
+				pending = Boolean.TRUE;
+			}
+			receive();
+		}
+		return Boolean.TRUE;
+	}
+
+	/**
+	 * Reads a body packet from the web server.
+	 */
+	private void receive() throws IOException {
+		pending = Boolean.FALSE;
+		Ajp13IncomingPacket.readFully(in, header, 0, 4);
+		if ((header[0] != 0x12) || (header[1] != 0x34)) {
+			throw new WinstoneException("Invalid AJP header");
+		}
+		final int packetLength = ((header[2] & 0xFF) << 8) + (header[3] & 0xFF);
+		if (packetLength < 2) {
+			Ajp13IncomingPacket.readFully(in, header, 0, packetLength);
+			ended = Boolean.TRUE;
+			return;
+		}
+		Ajp13IncomingPacket.readFully(in, header, 4, 2);
+		final int bodyLength = ((header[4] & 0xFF) << 8) + (header[5] & 0xFF);
+		if (bodyLength > packetLength - 2) {
+			throw new WinstoneException("Invalid AJP body packet length");
+		}
+		// the web server may use packets over 8 KB
+		chunk = in.getBodyBuffer(packetLength - 2);
+		Ajp13IncomingPacket.readFully(in, chunk, 0, packetLength - 2);
+		position = 0;
+		limit = bodyLength;
+		if (bodyLength == 0) {
+			ended = Boolean.TRUE;
+		} else if (remaining > 0) {
+			remaining = Math.max(remaining - bodyLength, 0);
+			ended = remaining == 0;
+		}
+		Ajp13InputStream.logger.debug("Read {} bytes of request body", Integer.toString(bodyLength));
+	}
+}
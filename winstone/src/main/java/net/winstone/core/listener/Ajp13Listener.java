@@ -7,7 +7,7 @@
 package net.winstone.core.listener;
 
 import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
@@ -17,13 +17,12 @@ import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.charset.Charset;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
-import java.util.Arrays;
 import java.util.Map;
 
-import net.winstone.WinstoneException;
 import net.winstone.core.HostGroup;
 import net.winstone.core.ObjectPool;
 import net.winstone.core.WinstoneInputStream;
@@ -50,10 +49,11 @@ public class Ajp13Listener implements Listener, Runnable {
 	private final static int DEFAULT_PORT = 8009;
 	private final static int CONNECTION_TIMEOUT = 60000;
 	private final static int BACKLOG_COUNT = 1000;
-	private final static int KEEP_ALIVE_TIMEOUT = -1;
+	private final static int KEEP_ALIVE_TIMEOUT = 0; // wait on the web server
 	// private final static int KEEP_ALIVE_SLEEP = 50;
 	// private final static int KEEP_ALIVE_SLEEP_MAX = 500;
 	private final static String TEMPORARY_URL_STASH = "winstone.ajp13.TemporaryURLAttribute";
+	private final static Charset HEADER_ENCODING = Charset.forName("8859_1");
 	private final HostGroup hostGroup;
 	private final ObjectPool objectPool;
 	private final int listenPort;
@@ -104,6 +104,11 @@ public class Ajp13Listener implements Listener, Runnable {
 
 	}
 
+	@Override
+	public InputStream getSocketInputStream(final Socket socket) throws IOException {
+		return new Ajp13ConnectionBuffer(socket.getInputStream(), objectPool.getReadBufferPool());
+	}
+
 	/**
 	 * The main run method. This handles the normal thread processing.
 	 */
@@ -112,6 +117,10 @@ public class Ajp13Listener implements Listener, Runnable {
 		try {
 			// Enter the main loop
 			while (!interrupted) {
+				if (objectPool.pauseAccept()) {
+					// saturated: new connections wait in the backlog
+					continue;
+				}
 				// Get the listener
 				Socket s = null;
 				try {
@@ -152,8 +161,8 @@ public class Ajp13Listener implements Listener, Runnable {
 	 */
 	@Override
 	public void allocateRequestResponse(final Socket socket, final InputStream inSocket, final OutputStream outSocket, final RequestHandlerThread handler, final boolean iAmFirst) throws SocketException, IOException {
-		final WinstoneRequest request = objectPool.getRequestFromPool();
-		final WinstoneResponse response = objectPool.getResponseFromPool();
+		final WinstoneRequest request = handler.takeRequest();
+		final WinstoneResponse response = handler.takeResponse();
 		response.setRequest(request);
 		request.setHostGroup(hostGroup);
 		// rsp.updateContentTypeHeader("text/html");
@@ -162,9 +171,14 @@ public class Ajp13Listener implements Listener, Runnable {
 		} else {
 			socket.setSoTimeout(Ajp13Listener.KEEP_ALIVE_TIMEOUT);
 		}
-		Ajp13IncomingPacket headers = null;
+		final Ajp13ConnectionBuffer connection = (Ajp13ConnectionBuffer) inSocket;
+		final Ajp13IncomingPacket headers = connection.getRequestPacket();
 		try {
-			headers = new Ajp13IncomingPacket(inSocket, handler);
+			headers.read(connection);
+			handler.setRequestStartTime();
+		} catch (final EOFException err) {
+			// the web server closed a connection it kept
+			throw new SocketException("Connection closed by the web server");
 		} catch (final InterruptedIOException err) {
 			// keep alive timeout ? ignore if not first
 			if (iAmFirst) {
@@ -180,34 +194,18 @@ public class Ajp13Listener implements Listener, Runnable {
 			}
 		}
 		if (headers.getPacketLength() > 0) {
-			headers.parsePacket("8859_1");
+			headers.parsePacket(Ajp13Listener.HEADER_ENCODING);
 			parseSocketInfo(headers, request);
-			request.parseHeaders(Arrays.asList(headers.getHeaders()));
+			request.parseHeaders(headers.getHeaderNames(), headers.getHeaderValues(), headers.getHeaderCount());
 			final String servletURI = parseURILine(headers, request, response);
 			request.setAttribute(Ajp13Listener.TEMPORARY_URL_STASH, servletURI);
 
-			// If content-length present and non-zero, download the other
-			// packets
-			WinstoneInputStream inData;
-			final int contentLength = request.getContentLength();
-			if (contentLength > 0) {
-				final byte bodyContent[] = new byte[contentLength];
-				int position = 0;
-				while (position < contentLength) {
-					outSocket.write(getBodyRequestPacket(Math.min(contentLength - position, 8184)));
-					position = getBodyResponsePacket(inSocket, bodyContent, position);
-					Ajp13Listener.logger.debug("Read {}/{} bytes from request body", "" + position, "" + contentLength);
-
-				}
-				inData = new WinstoneInputStream(bodyContent);
-				inData.setContentLength(contentLength);
-			} else {
-				inData = new WinstoneInputStream(new byte[0]);
-			}
+			// the body is requested from the web server as it is read
+			final WinstoneInputStream inData = new Ajp13InputStream(connection, outSocket, request.isChunked() ? -1 : Math.max(request.getContentLength(), 0));
 			request.setInputStream(inData);
 
 			// Build input/output streams, plus request/response
-			final WinstoneOutputStream outData = new Ajp13OutputStream(socket.getOutputStream(), "8859_1");
+			final WinstoneOutputStream outData = new Ajp13OutputStream(outSocket, objectPool.getResponseBufferPool());
 			outData.setResponse(response);
 			response.setOutputStream(outData);
 
@@ -231,12 +229,8 @@ public class Ajp13Listener implements Listener, Runnable {
 		handler.setOutStream(null);
 		handler.setRequest(null);
 		handler.setResponse(null);
-		if (request != null) {
-			objectPool.releaseRequestToPool(request);
-		}
-		if (response != null) {
-			objectPool.releaseResponseToPool(response);
-		}
+		// kept for the next request on this connection
+		handler.keepRequestResponse(request, response);
 	}
 
 	/**
@@ -263,6 +257,15 @@ public class Ajp13Listener implements Listener, Runnable {
 		socket.close();
 	}
 
+	/**
+	 * Closes the connection: a plain HTTP response means nothing to the web
+	 * server at the other end, which answers its client itself.
+	 */
+	@Override
+	public void rejectConnection(final Socket socket, final byte[] overloadResponse) throws IOException {
+		socket.close();
+	}
+
 	/**
 	 * Extract the header details relating to socket stuff from the ajp13 header
 	 * packet
@@ -292,16 +295,17 @@ public class Ajp13Listener implements Listener, Runnable {
 		// req.setRequestURI(headers.getURI());
 
 		// Get query string if supplied
-		for (final Object o : headers.getAttributes().keySet()) {
-			final String attName = (String) o;
-			if (attName.equals("query_string")) {
-				final String qs = headers.getAttributes().get("query_string");
+		for (int n = 0; n < headers.getAttributeCount(); n++) {
+			final String attName = headers.getAttributeName(n);
+			final String attValue = headers.getAttributeValue(n);
+			if ("query_string".equals(attName)) {
+				final String qs = attValue;
 				request.setQueryString(qs);
 				// req.getParameters().putAll(WinstoneRequest.extractParameters(qs,
 				// req.getEncoding(), mainResources));
 				// req.setRequestURI(headers.getURI() + "?" + qs);
-			} else if (attName.equals("ssl_cert")) {
-				final String certValue = headers.getAttributes().get("ssl_cert");
+			} else if ("ssl_cert".equals(attName)) {
+				final String certValue = attValue;
 				final InputStream certStream = new ByteArrayInputStream(certValue.getBytes("8859_1"));
 				final X509Certificate certificateArray[] = new X509Certificate[1];
 				try {
@@ -311,16 +315,16 @@ public class Ajp13Listener implements Listener, Runnable {
 				}
 				request.setAttribute("javax.servlet.request.X509Certificate", certificateArray);
 				request.setIsSecure(Boolean.TRUE);
-			} else if (attName.equals("ssl_cipher")) {
-				final String cipher = headers.getAttributes().get("ssl_cipher");
+			} else if ("ssl_cipher".equals(attName)) {
+				final String cipher = attValue;
 				request.setAttribute("javax.servlet.request.cipher_suite", cipher);
 				request.setAttribute("javax.servlet.request.key_size", getKeySize(cipher));
 				request.setIsSecure(Boolean.TRUE);
-			} else if (attName.equals("ssl_session")) {
-				request.setAttribute("javax.servlet.request.ssl_session", headers.getAttributes().get("ssl_session"));
+			} else if ("ssl_session".equals(attName)) {
+				request.setAttribute("javax.servlet.request.ssl_session", attValue);
 				request.setIsSecure(Boolean.TRUE);
 			} else {
-				Ajp13Listener.logger.debug("Unknown request attribute ignored: {}={}", attName, "" + headers.getAttributes().get(attName));
+				Ajp13Listener.logger.debug("Unknown request attribute ignored: {}={}", attName, "" + attValue);
 			}
 		}
 		return headers.getURI();
@@ -359,44 +363,6 @@ public class Ajp13Listener implements Listener, Runnable {
 		return Boolean.TRUE;
 	}
 
-	/**
-	 * Build the packet needed for asking for a body chunk
-	 */
-	private byte[] getBodyRequestPacket(final int desiredPacketLength) {
-		final byte getBodyRequestPacket[] = new byte[] { 0x41, 0x42, 0x00, 0x03, 0x06, 0x00, 0x00 };
-		Ajp13OutputStream.setIntBlock(desiredPacketLength, getBodyRequestPacket, 5);
-		return getBodyRequestPacket;
-	}
-
-	/**
-	 * Process the server response to a get_body_chunk request. This loads the
-	 * packet from the stream, and unpacks it into the buffer at the right
-	 * place.
-	 */
-	private int getBodyResponsePacket(final InputStream in, final byte buffer[], final int offset) throws IOException {
-		final DataInputStream din = new DataInputStream(in);
-		// Get the incoming packet flag
-		final byte headerBuffer[] = new byte[4];
-		din.readFully(headerBuffer);
-		if ((headerBuffer[0] != 0x12) || (headerBuffer[1] != 0x34)) {
-			throw new WinstoneException("Invalid AJP header");
-		}
-
-		// Read in the whole packet
-		final int packetLength = ((headerBuffer[2] & 0xFF) << 8) + (headerBuffer[3] & 0xFF);
-		if (packetLength == 0) {
-			return offset;
-		}
-
-		// Look for packet length
-		final byte bodyLengthBuffer[] = new byte[2];
-		din.readFully(bodyLengthBuffer);
-		final int bodyLength = ((bodyLengthBuffer[0] & 0xFF) << 8) + (bodyLengthBuffer[1] & 0xFF);
-		din.readFully(buffer, offset, bodyLength);
-
-		return bodyLength + offset;
-	}
-
 	/**
 	 * Useful method for dumping out the contents of a packet in hex form
 	 */
@@ -6,17 +6,19 @@
  */
 package net.winstone.core.listener;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.UnsupportedEncodingException;
-import java.util.HashMap;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
 import java.util.Map;
+import java.util.TreeMap;
 
 import javax.servlet.http.Cookie;
 
 import net.winstone.WinstoneException;
+import net.winstone.core.HeaderTable;
 import net.winstone.core.WinstoneOutputStream;
+import net.winstone.util.ByteBufferPool;
 import net.winstone.util.StringUtils;
 
 import org.slf4j.Logger;
@@ -25,6 +27,11 @@ import org.slf4j.LoggerFactory;
 /**
  * Extends the winstone output stream, so that the ajp13 protocol requirements
  * can be fulfilled.
+ * <p>
+ * Packets are framed in the response buffer: the SEND_HEADERS packet is
+ * encoded in its head room, in front of the first body chunk, and each
+ * SEND_BODY_CHUNK prefix over the tail of the chunk before it, already sent.
+ * Header strings are written as ISO-8859-1.
  * 
  * @author mailto: <a href="rick_knowles@hotmail.com">Rick Knowles</a>
  * @version $Id: Ajp13OutputStream.java,v 1.7 2007/05/05 00:52:50 rickknowles
@@ -35,163 +42,209 @@ public class Ajp13OutputStream extends WinstoneOutputStream {
 
 	protected static Logger logger = LoggerFactory.getLogger(Ajp13OutputStream.class);
 
-	byte CONTAINER_SEND_BODY_CHUNK = 0x03;
-	byte CONTAINER_SEND_HEADERS = 0x04;
-	byte CONTAINER_END_RESPONSE = 0x05;
+	static final byte CONTAINER_SEND_BODY_CHUNK = 0x03;
+	static final byte CONTAINER_SEND_HEADERS = 0x04;
+	static final byte CONTAINER_END_RESPONSE = 0x05;
 	// byte CONTAINER_GET_BODY_CHUNK = 0x06;
 	// byte CONTAINER_CPONG_REPLY = 0x09;
-	final static Map<String, byte[]> headerCodes;
+	/**
+	 * Most body bytes in a SEND_BODY_CHUNK packet, which then fills 8 KB.
+	 */
+	static final int MAX_SEND_BODY_CHUNK = 8184;
+	/**
+	 * Packet prefix, packet type and length in front of the body chunk.
+	 */
+	private static final int CHUNK_PREFIX_LENGTH = 7;
+	private static final byte END_RESPONSE[] = new byte[] { 0x41, 0x42, 0x00, 0x02, Ajp13OutputStream.CONTAINER_END_RESPONSE, 1 };
+	final static Map<String, Integer> headerCodes;
 
 	static {
-		headerCodes = new HashMap<String, byte[]>();
-		Ajp13OutputStream.headerCodes.put("content-type", new byte[] { (byte) 0xA0, 0x01 });
-		Ajp13OutputStream.headerCodes.put("content-language", new byte[] { (byte) 0xA0, 0x02 });
-		Ajp13OutputStream.headerCodes.put("content-length", new byte[] { (byte) 0xA0, 0x03 });
-		Ajp13OutputStream.headerCodes.put("date", new byte[] { (byte) 0xA0, 0x04 });
-		Ajp13OutputStream.headerCodes.put("last-modified", new byte[] { (byte) 0xA0, 0x05 });
-		Ajp13OutputStream.headerCodes.put("location", new byte[] { (byte) 0xA0, 0x06 });
-		Ajp13OutputStream.headerCodes.put("set-cookie", new byte[] { (byte) 0xA0, 0x07 });
-		Ajp13OutputStream.headerCodes.put("set-cookie2", new byte[] { (byte) 0xA0, 0x08 });
-		Ajp13OutputStream.headerCodes.put("servlet-engine", new byte[] { (byte) 0xA0, 0x09 });
-		Ajp13OutputStream.headerCodes.put("server", new byte[] { (byte) 0xA0, 0x09 });
-		Ajp13OutputStream.headerCodes.put("status", new byte[] { (byte) 0xA0, 0x0A });
-		Ajp13OutputStream.headerCodes.put("www-authenticate", new byte[] { (byte) 0xA0, 0x0B });
+		headerCodes = new TreeMap<String, Integer>(String.CASE_INSENSITIVE_ORDER);
+		Ajp13OutputStream.headerCodes.put("content-type", 0xA001);
+		Ajp13OutputStream.headerCodes.put("content-language", 0xA002);
+		Ajp13OutputStream.headerCodes.put("content-length", 0xA003);
+		Ajp13OutputStream.headerCodes.put("date", 0xA004);
+		Ajp13OutputStream.headerCodes.put("last-modified", 0xA005);
+		Ajp13OutputStream.headerCodes.put("location", 0xA006);
+		Ajp13OutputStream.headerCodes.put("set-cookie", 0xA007);
+		Ajp13OutputStream.headerCodes.put("set-cookie2", 0xA008);
+		Ajp13OutputStream.headerCodes.put("servlet-engine", 0xA009);
+		Ajp13OutputStream.headerCodes.put("server", 0xA009);
+		Ajp13OutputStream.headerCodes.put("status", 0xA00A);
+		Ajp13OutputStream.headerCodes.put("www-authenticate", 0xA00B);
 	}
-	private final String headerEncoding;
 
 	/**
 	 * Build a new instance of Ajp13OutputStream.
 	 * 
 	 * @param outStream
-	 * @param headerEncoding
+	 *            output stream of the connection
+	 * @param bufferPool
+	 *            pool of response buffers, or null
 	 */
-	public Ajp13OutputStream(final OutputStream outStream, final String headerEncoding) {
-		super(outStream, Boolean.FALSE);
-		this.headerEncoding = headerEncoding;
+	public Ajp13OutputStream(final OutputStream outStream, final ByteBufferPool bufferPool) {
+		super(outStream, null, bufferPool);
 	}
 
 	@Override
 	public void commit() throws IOException {
-		Ajp13OutputStream.logger.trace("Written {} bytes to response body", "" + bytesCommitted);
-		buffer.flush();
+		final ByteBuffer content = getBufferedContent();
+		final byte array[] = content.array();
+		final int base = content.arrayOffset();
+		int start = content.position();
+		final int end = content.limit();
+		ByteBuffer head = null;
 		// If we haven't written the headers yet, write them out
 		if (!committed) {
 			owner.validateHeaders();
 			committed = Boolean.TRUE;
-			final ByteArrayOutputStream headerArrayStream = new ByteArrayOutputStream();
+			head = encodeHeaders(content);
+		}
 
-			for (final String header : owner.getHeaders()) {
-				final int colonPos = header.indexOf(':');
-				if (colonPos == -1) {
-					throw new WinstoneException("No colon header: " + header);
-				}
-				final String headerName = StringUtils.noCRLF(header.substring(0, colonPos).trim());
-				final String headerValue = StringUtils.noCRLF(header.substring(colonPos + 1).trim());
-				final byte headerCode[] = Ajp13OutputStream.headerCodes.get(headerName.toLowerCase());
-				if (headerCode == null) {
-					headerArrayStream.write(getStringBlock(headerName));
-				} else {
-					headerArrayStream.write(headerCode);
-				}
-				headerArrayStream.write(getStringBlock(headerValue));
+		// Write out the contents of the buffer in max 8k chunks
+		do {
+			final int length = Math.min(end - start, Ajp13OutputStream.MAX_SEND_BODY_CHUNK);
+			int packetStart = start;
+			if (length > 0) {
+				packetStart = start - Ajp13OutputStream.CHUNK_PREFIX_LENGTH;
+				array[base + packetStart] = 0x41;
+				array[base + packetStart + 1] = 0x42;
+				Ajp13OutputStream.setIntBlock(length + 4, array, base + packetStart + 2);
+				array[base + packetStart + 4] = Ajp13OutputStream.CONTAINER_SEND_BODY_CHUNK;
+				Ajp13OutputStream.setIntBlock(length, array, base + packetStart + 5);
 			}
-
-			for (final Cookie cookie : owner.getCookies()) {
-				final String cookieText = owner.writeCookie(cookie);
-				final int colonPos = cookieText.indexOf(':');
-				if (colonPos == -1) {
-					throw new WinstoneException("No colon header: " + cookieText);
-				}
-				final String headerName = cookieText.substring(0, colonPos).trim();
-				final String headerValue = cookieText.substring(colonPos + 1).trim();
-				final byte headerCode[] = Ajp13OutputStream.headerCodes.get(headerName.toLowerCase());
-				if (headerCode == null) {
-					headerArrayStream.write(getStringBlock(headerName));
+			if (head != null) {
+				// moved up against the first chunk, to leave with it
+				final int headLength = head.remaining();
+				if (head.array() == array && packetStart >= headLength) {
+					System.arraycopy(array, base + head.position(), array, base + packetStart - headLength, headLength);
+					packetStart -= headLength;
 				} else {
-					headerArrayStream.write(headerCode);
+					outStream.write(head.array(), head.arrayOffset() + head.position(), headLength);
 				}
-				headerArrayStream.write(getStringBlock(headerValue));
+				head = null;
+			}
+			int packetEnd = start + length;
+			// the terminator goes over the first byte of the next chunk, or
+			// in the tail room
+			final byte next = array[base + packetEnd];
+			if (length > 0) {
+				array[base + packetEnd++] = 0x00;
+			}
+			if (packetEnd > packetStart) {
+				outStream.write(array, base + packetStart, packetEnd - packetStart);
 			}
+			array[base + start + length] = next;
+			start += length;
+		} while (start < end);
+		bytesCommitted += end - content.position();
+		Ajp13OutputStream.logger.trace("Written {} bytes to response body", "" + bytesCommitted);
+
+		clearBuffer();
+	}
 
-			// Write packet header + prefix + status code + status msg + header
-			// count
-			final byte headerArray[] = headerArrayStream.toByteArray();
-			final byte headerPacket[] = new byte[12];
-			headerPacket[0] = (byte) 0x41;
-			headerPacket[1] = (byte) 0x42;
-			Ajp13OutputStream.setIntBlock(headerArray.length + 8, headerPacket, 2);
-			headerPacket[4] = CONTAINER_SEND_HEADERS;
-			Ajp13OutputStream.setIntBlock(owner.getStatus(), headerPacket, 5);
-			Ajp13OutputStream.setIntBlock(0, headerPacket, 7); // empty msg
-			headerPacket[9] = (byte) 0x00;
-			Ajp13OutputStream.setIntBlock(owner.getHeaders().size() + owner.getCookies().size(), headerPacket, 10);
-
-			// Ajp13Listener.packetDump(headerPacket, headerPacket.length);
-			// Ajp13Listener.packetDump(headerArray, headerArray.length);
-
-			outStream.write(headerPacket);
-			outStream.write(headerArray);
+	/**
+	 * Encodes the SEND_HEADERS packet at the start of the buffer, in front of
+	 * the room for the first chunk prefix, or in a larger heap buffer if the
+	 * head room is too small.
+	 * 
+	 * @return the packet.
+	 */
+	private ByteBuffer encodeHeaders(final ByteBuffer content) throws IOException {
+		ByteBuffer head = content.duplicate();
+		((Buffer) head).clear();
+		((Buffer) head).limit(content.position() - Ajp13OutputStream.CHUNK_PREFIX_LENGTH);
+
+		final HeaderTable headers = owner.getHeaders();
+		// Write packet header + prefix + status code + status msg + header
+		// count; the length is set last
+		head.put((byte) 0x41).put((byte) 0x42).put((byte) 0x00).put((byte) 0x00).put(Ajp13OutputStream.CONTAINER_SEND_HEADERS);
+		head = Ajp13OutputStream.putInt(head, owner.getStatus());
+		head = Ajp13OutputStream.putInt(head, 0); // empty msg
+		head = Ajp13OutputStream.reserve(head, 1).put((byte) 0x00);
+		head = Ajp13OutputStream.putInt(head, headers.size() + owner.getCookies().size());
+
+		for (int n = 0; n < headers.size(); n++) {
+			head = putHeader(head, StringUtils.noCRLF(headers.getName(n).trim()), StringUtils.noCRLF(headers.getValue(n).trim()));
 		}
 
-		// Write out the contents of the buffer in max 8k chunks
-		final byte bufferContents[] = buffer.toByteArray();
-		int position = 0;
-		while (position < bufferContents.length) {
-			final int packetLength = Math.min(bufferContents.length - position, 8184);
-			final byte responsePacket[] = new byte[packetLength + 8];
-			responsePacket[0] = 0x41;
-			responsePacket[1] = 0x42;
-			Ajp13OutputStream.setIntBlock(packetLength + 4, responsePacket, 2);
-			responsePacket[4] = CONTAINER_SEND_BODY_CHUNK;
-			Ajp13OutputStream.setIntBlock(packetLength, responsePacket, 5);
-			System.arraycopy(bufferContents, position, responsePacket, 7, packetLength);
-			responsePacket[packetLength + 7] = 0x00;
-			position += packetLength;
-
-			// Ajp13Listener.packetDump(responsePacket, responsePacket.length);
-			outStream.write(responsePacket);
+		for (final Cookie cookie : owner.getCookies()) {
+			final String cookieText = owner.writeCookie(cookie);
+			final int colonPos = cookieText.indexOf(':');
+			if (colonPos == -1) {
+				throw new WinstoneException("No colon header: " + cookieText);
+			}
+			head = putHeader(head, cookieText.substring(0, colonPos).trim(), cookieText.substring(colonPos + 1).trim());
 		}
+		((Buffer) head).flip();
+		head.put(2, (byte) (0xFF & ((head.limit() - 4) >> 8)));
+		head.put(3, (byte) (0xFF & (head.limit() - 4)));
+		// Ajp13Listener.packetDump(head.array(), head.limit());
+		return head;
+	}
 
-		buffer.reset();
-		bufferPosition = 0;
+	private static ByteBuffer putHeader(ByteBuffer head, final String name, final String value) {
+		final Integer headerCode = Ajp13OutputStream.headerCodes.get(name);
+		if (headerCode == null) {
+			head = Ajp13OutputStream.putString(head, name);
+		} else {
+			head = Ajp13OutputStream.putInt(head, headerCode.intValue());
+		}
+		return Ajp13OutputStream.putString(head, value);
 	}
 
-	@Override
-	public void finishResponse() throws IOException {
-		// Send end response packet
-		final byte endResponse[] = new byte[] { 0x41, 0x42, 0x00, 0x02, CONTAINER_END_RESPONSE, 1 };
-		// Ajp13Listener.packetDump(endResponse, endResponse.length);
-		outStream.write(endResponse);
+	private static ByteBuffer putInt(final ByteBuffer head, final int integer) {
+		return Ajp13OutputStream.reserve(head, 2).put((byte) (0xFF & (integer >> 8))).put((byte) (0xFF & integer));
 	}
 
 	/**
-	 * Useful generic method for getting ajp13 format integers in a packet.
+	 * Puts a string: its length, its ISO-8859-1 bytes and a null terminator.
 	 */
-	public byte[] getIntBlock(final int integer) {
-		final byte hi = (byte) (0xFF & (integer >> 8));
-		final byte lo = (byte) (0xFF & (integer - (hi << 8)));
-		return new byte[] { hi, lo };
+	private static ByteBuffer putString(ByteBuffer head, final String text) {
+		final int length = text.length();
+		head = Ajp13OutputStream.putInt(head, length);
+		head = Ajp13OutputStream.reserve(head, length + 1);
+		for (int n = 0; n < length; n++) {
+			final char c = text.charAt(n);
+			head.put(c > 0xFF ? (byte) '?' : (byte) c);
+		}
+		return head.put((byte) 0x00);
 	}
 
 	/**
-	 * Useful generic method for setting ajp13 format integers in a packet.
+	 * @return the head, moved to a larger heap buffer if it has less room
+	 *         left than needed.
 	 */
-	public static void setIntBlock(final int integer, final byte packet[], final int offset) {
-		final byte hi = (byte) (0xFF & (integer >> 8));
-		final byte lo = (byte) (0xFF & (integer - (hi << 8)));
-		packet[offset] = hi;
-		packet[offset + 1] = lo;
+	private static ByteBuffer reserve(final ByteBuffer head, final int length) {
+		if (head.remaining() >= length) {
+			return head;
+		}
+		final ByteBuffer larger = ByteBuffer.allocate(Math.max(head.position() * 2, head.position() + length));
+		((Buffer) head).flip();
+		return larger.put(head);
 	}
 
 	/**
-	 * Useful generic method for getting ajp13 format strings in a packet.
+	 * The web server in front frames the body for its own client.
 	 */
-	public byte[] getStringBlock(final String text) throws UnsupportedEncodingException {
-		final byte textBytes[] = text.getBytes(headerEncoding);
-		final byte outArray[] = new byte[textBytes.length + 3];
-		System.arraycopy(getIntBlock(textBytes.length), 0, outArray, 0, 2);
-		System.arraycopy(textBytes, 0, outArray, 2, textBytes.length);
-		outArray[textBytes.length + 2] = 0x00;
-		return outArray;
+	@Override
+	public boolean isChunkedEncodingAllowed() {
+		return Boolean.FALSE;
+	}
+
+	@Override
+	public void finishResponse() throws IOException {
+		// Send end response packet
+		// Ajp13Listener.packetDump(END_RESPONSE, END_RESPONSE.length);
+		outStream.write(Ajp13OutputStream.END_RESPONSE);
+		super.finishResponse();
+	}
+
+	/**
+	 * Useful generic method for setting ajp13 format integers in a packet.
+	 */
+	public static void setIntBlock(final int integer, final byte packet[], final int offset) {
+		packet[offset] = (byte) (0xFF & (integer >> 8));
+		packet[offset + 1] = (byte) (0xFF & integer);
 	}
 }
@@ -0,0 +1,142 @@
+package net.winstone.core.listener;
+
+import java.util.List;
+
+/**
+ * Decodes the header blocks of an HTTP/2 connection (RFC 7541). Strings are
+ * taken as ISO-8859-1, each octet a char, as the HTTP/1 request parser does.
+ */
+final class HpackDecoder {
+
+	private final HpackTable table;
+	/**
+	 * Largest dynamic table the peer may ask for: the size we advertised.
+	 */
+	private final int maxTableSize;
+	/**
+	 * Largest header list accepted, counted as in SETTINGS_MAX_HEADER_LIST_SIZE.
+	 */
+	private final int maxHeaderListSize;
+	private byte data[];
+	private int position;
+	private int limit;
+
+	HpackDecoder(final int maxTableSize, final int maxHeaderListSize) {
+		super();
+		table = new HpackTable(maxTableSize);
+		this.maxTableSize = maxTableSize;
+		this.maxHeaderListSize = maxHeaderListSize;
+	}
+
+	/**
+	 * Decodes a whole header block, adding its fields to the lists. The block
+	 * must be decoded even if its stream is gone, to keep the dynamic table in
+	 * step with the peer's.
+	 *
+	 * @throws Http2Exception
+	 *             a connection error, on a malformed block or a header list
+	 *             too large.
+	 */
+	void decode(final byte block[], final int length, final List<String> names, final List<String> values) throws Http2Exception {
+		data = block;
+		position = 0;
+		limit = length;
+		int listSize = 0;
+		boolean fieldSeen = Boolean.FALSE;
+		try {
+			while (position < limit) {
+				final int b = data[position] & 0xFF;
+				String name;
+				String value;
+				if ((b & 0x80) != 0) {
+					// indexed field
+					final int index = readInteger(7);
+					name = table.getName(index);
+					value = table.getValue(index);
+				} else if ((b & 0xC0) == 0x40) {
+					// literal field added to the table
+					final int index = readInteger(6);
+					name = index == 0 ? readString() : table.getName(index);
+					value = readString();
+					table.add(name, value);
+				} else if ((b & 0xE0) == 0x20) {
+					// table size update, only ahead of the fields
+					if (fieldSeen) {
+						throw new Http2Exception(Http2Connection.COMPRESSION_ERROR, "Table size update after a header field");
+					}
+					final int size = readInteger(5);
+					if (size > maxTableSize) {
+						throw new Http2Exception(Http2Connection.COMPRESSION_ERROR, "Table size update beyond " + maxTableSize);
+					}
+					table.setMaxSize(size);
+					continue;
+				} else {
+					// literal field not added, maybe never to be
+					final int index = readInteger(4);
+					name = index == 0 ? readString() : table.getName(index);
+					value = readString();
+				}
+				fieldSeen = Boolean.TRUE;
+				listSize += name.length() + value.length() + HpackTable.ENTRY_OVERHEAD;
+				if (listSize > maxHeaderListSize) {
+					throw new Http2Exception(Http2Connection.ENHANCE_YOUR_CALM, "Header list larger than " + maxHeaderListSize);
+				}
+				names.add(name);
+				values.add(value);
+			}
+		} finally {
+			data = null;
+		}
+	}
+
+	/**
+	 * Reads an integer with a prefix of the given number of bits.
+	 */
+	private int readInteger(final int prefixBits) throws Http2Exception {
+		final int mask = (1 << prefixBits) - 1;
+		int value = data[position++] & mask;
+		if (value < mask) {
+			return value;
+		}
+		int shift = 0;
+		int b;
+		do {
+			if (position >= limit) {
+				throw new Http2Exception(Http2Connection.COMPRESSION_ERROR, "Truncated integer");
+			}
+			b = data[position++] & 0xFF;
+			if (shift > 21) {
+				throw new Http2Exception(Http2Connection.COMPRESSION_ERROR, "Integer too large");
+			}
+			value += (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		if (value < 0) {
+			throw new Http2Exception(Http2Connection.COMPRESSION_ERROR, "Integer too large");
+		}
+		return value;
+	}
+
+	private String readString() throws Http2Exception {
+		if (position >= limit) {
+			throw new Http2Exception(Http2Connection.COMPRESSION_ERROR, "Truncated string");
+		}
+		final boolean huffman = (data[position] & 0x80) != 0;
+		final int length = readInteger(7);
+		if (length > limit - position) {
+			throw new Http2Exception(Http2Connection.COMPRESSION_ERROR, "Truncated string");
+		}
+		final String value;
+		if (huffman) {
+			value = HpackHuffman.decode(data, position, length);
+		} else {
+			final char chars[] = new char[length];
+			for (int n = 0; n < length; n++) {
+				chars[n] = (char) (data[position + n] & 0xFF);
+			}
+			value = new String(chars);
+		}
+		position += length;
+		return value;
+	}
+}
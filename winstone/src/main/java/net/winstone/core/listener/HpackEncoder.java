@@ -0,0 +1,125 @@
+package net.winstone.core.listener;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Encodes the header blocks of the responses on an HTTP/2 connection (RFC
+ * 7541). Fields found in the tables go out as a single index, which is what
+ * makes the headers repeated on every response (server, content type, date
+ * within a second) nearly free; strings are Huffman coded when shorter.
+ * <p>
+ * Values that change with every response are not added to the dynamic table,
+ * where they would only push out the useful fields, and cookies and
+ * credentials are marked never to be indexed by intermediaries either.
+ */
+final class HpackEncoder {
+
+	/**
+	 * Largest dynamic table used, whatever the peer allows.
+	 */
+	static final int MAX_TABLE_SIZE = 4096;
+	private final HpackTable table = new HpackTable(HpackEncoder.MAX_TABLE_SIZE);
+	/**
+	 * Smallest and last table size set by the peer since the last header
+	 * block, to signal at the start of the next one; -1 if unchanged.
+	 */
+	private int smallestTableSize = -1;
+	private int pendingTableSize = -1;
+
+	/**
+	 * Follows the SETTINGS_HEADER_TABLE_SIZE of the peer.
+	 */
+	void setMaxTableSize(final int size) {
+		final int tableSize = Math.min(size, HpackEncoder.MAX_TABLE_SIZE);
+		smallestTableSize = smallestTableSize < 0 ? tableSize : Math.min(smallestTableSize, tableSize);
+		pendingTableSize = tableSize;
+	}
+
+	/**
+	 * Starts a header block with the table size updates due.
+	 */
+	void beginBlock(final ByteArrayOutputStream out) {
+		if (pendingTableSize < 0) {
+			return;
+		}
+		if (smallestTableSize < pendingTableSize) {
+			HpackEncoder.writeInteger(out, 0x20, 5, smallestTableSize);
+			table.setMaxSize(smallestTableSize);
+		}
+		HpackEncoder.writeInteger(out, 0x20, 5, pendingTableSize);
+		table.setMaxSize(pendingTableSize);
+		smallestTableSize = -1;
+		pendingTableSize = -1;
+	}
+
+	void encodeStatus(final int status, final ByteArrayOutputStream out) {
+		encode(":status", Integer.toString(status), out);
+	}
+
+	/**
+	 * Encodes a field.
+	 *
+	 * @param name
+	 *            in lower case
+	 */
+	void encode(final String name, final String value, final ByteArrayOutputStream out) {
+		final int index = table.indexOf(name, value);
+		if (index > 0) {
+			HpackEncoder.writeInteger(out, 0x80, 7, index);
+			return;
+		}
+		final int nameIndex = table.indexOfName(name);
+		if (HpackEncoder.isSensitive(name)) {
+			HpackEncoder.writeInteger(out, 0x10, 4, nameIndex);
+		} else if (HpackEncoder.isVolatile(name) || name.length() + value.length() + HpackTable.ENTRY_OVERHEAD > table.getMaxSize() / 2) {
+			HpackEncoder.writeInteger(out, 0x00, 4, nameIndex);
+		} else {
+			HpackEncoder.writeInteger(out, 0x40, 6, nameIndex);
+			table.add(name, value);
+		}
+		if (nameIndex == 0) {
+			HpackEncoder.writeString(out, name);
+		}
+		HpackEncoder.writeString(out, value);
+	}
+
+	private static boolean isSensitive(final String name) {
+		return name.equals("set-cookie") || name.equals("authorization") || name.equals("proxy-authorization") || name.equals("www-authenticate");
+	}
+
+	/**
+	 * @return true for fields whose values are seldom repeated.
+	 */
+	private static boolean isVolatile(final String name) {
+		return name.equals("content-length") || name.equals("etag") || name.equals("last-modified") || name.equals("location") || name.equals("content-range") || name.equals("expires");
+	}
+
+	private static void writeInteger(final ByteArrayOutputStream out, final int flags, final int prefixBits, final int value) {
+		final int mask = (1 << prefixBits) - 1;
+		if (value < mask) {
+			out.write(flags | value);
+			return;
+		}
+		out.write(flags | mask);
+		int rest = value - mask;
+		while (rest >= 0x80) {
+			out.write((rest & 0x7F) | 0x80);
+			rest >>>= 7;
+		}
+		out.write(rest);
+	}
+
+	private static void writeString(final ByteArrayOutputStream out, final String value) {
+		final int huffmanLength = HpackHuffman.encodedLength(value);
+		if (huffmanLength < value.length()) {
+			HpackEncoder.writeInteger(out, 0x80, 7, huffmanLength);
+			HpackHuffman.encode(value, out);
+			return;
+		}
+		HpackEncoder.writeInteger(out, 0x00, 7, value.length());
+		for (int n = 0; n < value.length(); n++) {
+			final char c = value.charAt(n);
+			out.write(c > 0xFF ? '?' : c);
+		}
+	}
+}
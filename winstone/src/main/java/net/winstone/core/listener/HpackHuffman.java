@@ -0,0 +1,145 @@
+package net.winstone.core.listener;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * The static Huffman code of HPACK (RFC 7541, appendix B). The code is
+ * canonical: it is rebuilt from the code length of each symbol, codes of the
+ * same length following each other in symbol order.
+ */
+final class HpackHuffman {
+
+	/**
+	 * Code length, in bits, of each octet, and of the end of string symbol
+	 * last.
+	 */
+	private static final byte LENGTHS[] = {
+			// 0 - 31
+			13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+			// ' ' - '?'
+			6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+			// '@' - '_'
+			13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+			// '`' - 127
+			15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+			// 128 - 159
+			20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+			// 160 - 191
+			22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+			// 192 - 223
+			26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+			// 224 - 255
+			20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+			// end of string
+			30 };
+	private static final int EOS = 256;
+	private static final int MAX_LENGTH = 30;
+	private static final int CODES[] = new int[HpackHuffman.LENGTHS.length];
+	/**
+	 * For each code length: its first code, how many symbols have it, and
+	 * where they start in {@link #SYMBOLS}.
+	 */
+	private static final int FIRST_CODE[] = new int[HpackHuffman.MAX_LENGTH + 1];
+	private static final int COUNT[] = new int[HpackHuffman.MAX_LENGTH + 1];
+	private static final int FIRST_SYMBOL[] = new int[HpackHuffman.MAX_LENGTH + 1];
+	/**
+	 * The symbols, by code length then value.
+	 */
+	private static final int SYMBOLS[] = new int[HpackHuffman.LENGTHS.length];
+
+	static {
+		int code = 0;
+		int symbols = 0;
+		for (int length = 1; length <= HpackHuffman.MAX_LENGTH; length++) {
+			HpackHuffman.FIRST_CODE[length] = code;
+			HpackHuffman.FIRST_SYMBOL[length] = symbols;
+			for (int symbol = 0; symbol < HpackHuffman.LENGTHS.length; symbol++) {
+				if (HpackHuffman.LENGTHS[symbol] == length) {
+					HpackHuffman.CODES[symbol] = code++;
+					HpackHuffman.SYMBOLS[symbols++] = symbol;
+				}
+			}
+			HpackHuffman.COUNT[length] = symbols - HpackHuffman.FIRST_SYMBOL[length];
+			code <<= 1;
+		}
+	}
+
+	private HpackHuffman() {
+	}
+
+	/**
+	 * @return the length in bytes of a string once encoded.
+	 */
+	static int encodedLength(final String value) {
+		long bits = 0;
+		for (int n = 0; n < value.length(); n++) {
+			bits += HpackHuffman.LENGTHS[HpackHuffman.octet(value.charAt(n))];
+		}
+		return (int) ((bits + 7) >> 3);
+	}
+
+	/**
+	 * Encodes a string, padded to a whole byte with the start of the end of
+	 * string code.
+	 */
+	static void encode(final String value, final ByteArrayOutputStream out) {
+		long current = 0;
+		int bits = 0;
+		for (int n = 0; n < value.length(); n++) {
+			final int symbol = HpackHuffman.octet(value.charAt(n));
+			current = (current << HpackHuffman.LENGTHS[symbol]) | HpackHuffman.CODES[symbol];
+			bits += HpackHuffman.LENGTHS[symbol];
+			while (bits >= 8) {
+				bits -= 8;
+				out.write((int) (current >> bits));
+			}
+			current &= (1L << bits) - 1;
+		}
+		if (bits > 0) {
+			out.write((int) ((current << (8 - bits)) | (0xFF >> bits)));
+		}
+	}
+
+	/**
+	 * Decodes a string, each octet becoming a char.
+	 *
+	 * @throws Http2Exception
+	 *             if the padding is not the start of the end of string code,
+	 *             or the end of string code itself is found.
+	 */
+	static String decode(final byte data[], final int offset, final int length) throws Http2Exception {
+		final StringBuilder value = new StringBuilder(length + (length >> 1));
+		int code = 0;
+		int bits = 0;
+		for (int n = offset; n < offset + length; n++) {
+			final int b = data[n];
+			for (int bit = 7; bit >= 0; bit--) {
+				code = (code << 1) | ((b >> bit) & 1);
+				bits++;
+				final int index = code - HpackHuffman.FIRST_CODE[bits];
+				if (index < HpackHuffman.COUNT[bits]) {
+					final int symbol = HpackHuffman.SYMBOLS[HpackHuffman.FIRST_SYMBOL[bits] + index];
+					if (symbol == HpackHuffman.EOS) {
+						throw new Http2Exception(Http2Connection.COMPRESSION_ERROR, "End of string in Huffman code");
+					}
+					value.append((char) symbol);
+					code = 0;
+					bits = 0;
+				} else if (bits == HpackHuffman.MAX_LENGTH) {
+					throw new Http2Exception(Http2Connection.COMPRESSION_ERROR, "Invalid Huffman code");
+				}
+			}
+		}
+		if (bits > 7 || code != (1 << bits) - 1) {
+			throw new Http2Exception(Http2Connection.COMPRESSION_ERROR, "Invalid Huffman padding");
+		}
+		return value.toString();
+	}
+
+	/**
+	 * @return the octet a char is sent as, like the ISO-8859-1 encoder.
+	 */
+	private static int octet(final char c) {
+		return c > 0xFF ? '?' : c;
+	}
+}
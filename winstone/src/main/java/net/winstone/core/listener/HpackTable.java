@@ -0,0 +1,178 @@
+package net.winstone.core.listener;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The header field tables of HPACK (RFC 7541): the static table, followed by
+ * a dynamic table of the fields last added, the newest first, which holds at
+ * most a set size, each field counting its name and value lengths plus 32.
+ */
+final class HpackTable {
+
+	private static final String STATIC_TABLE[][] = { { ":authority", "" }, { ":method", "GET" }, { ":method", "POST" }, { ":path", "/" }, { ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" },
+			{ ":status", "200" }, { ":status", "204" }, { ":status", "206" }, { ":status", "304" }, { ":status", "400" }, { ":status", "404" }, { ":status", "500" }, { "accept-charset", "" },
+			{ "accept-encoding", "gzip, deflate" }, { "accept-language", "" }, { "accept-ranges", "" }, { "accept", "" }, { "access-control-allow-origin", "" }, { "age", "" }, { "allow", "" },
+			{ "authorization", "" }, { "cache-control", "" }, { "content-disposition", "" }, { "content-encoding", "" }, { "content-language", "" }, { "content-length", "" }, { "content-location", "" },
+			{ "content-range", "" }, { "content-type", "" }, { "cookie", "" }, { "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" }, { "from", "" }, { "host", "" }, { "if-match", "" },
+			{ "if-modified-since", "" }, { "if-none-match", "" }, { "if-range", "" }, { "if-unmodified-since", "" }, { "last-modified", "" }, { "link", "" }, { "location", "" }, { "max-forwards", "" },
+			{ "proxy-authenticate", "" }, { "proxy-authorization", "" }, { "range", "" }, { "referer", "" }, { "refresh", "" }, { "retry-after", "" }, { "server", "" }, { "set-cookie", "" },
+			{ "strict-transport-security", "" }, { "transfer-encoding", "" }, { "user-agent", "" }, { "vary", "" }, { "via", "" }, { "www-authenticate", "" } };
+	static final int STATIC_LENGTH = HpackTable.STATIC_TABLE.length;
+	/**
+	 * Space taken by a field besides its name and value.
+	 */
+	static final int ENTRY_OVERHEAD = 32;
+	/**
+	 * Index of the first static field with a name, and of each static field
+	 * with a value.
+	 */
+	private static final Map<String, Integer> STATIC_NAMES = new HashMap<String, Integer>();
+	private static final Map<String, Integer> STATIC_FIELDS = new HashMap<String, Integer>();
+
+	static {
+		for (int n = HpackTable.STATIC_LENGTH; n > 0; n--) {
+			final String field[] = HpackTable.STATIC_TABLE[n - 1];
+			HpackTable.STATIC_NAMES.put(field[0], n);
+			if (field[1].length() > 0) {
+				HpackTable.STATIC_FIELDS.put(field[0] + '\0' + field[1], n);
+			}
+		}
+	}
+
+	/**
+	 * Dynamic table, as a ring: the oldest field at {@link #oldest}.
+	 */
+	private String names[] = new String[16];
+	private String values[] = new String[16];
+	private int oldest;
+	private int count;
+	private int size;
+	private int maxSize;
+
+	HpackTable(final int maxSize) {
+		super();
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return the number of fields, static and dynamic.
+	 */
+	int length() {
+		return HpackTable.STATIC_LENGTH + count;
+	}
+
+	int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * @param index
+	 *            from 1, static fields first
+	 */
+	String getName(final int index) throws Http2Exception {
+		if (index <= HpackTable.STATIC_LENGTH) {
+			return HpackTable.STATIC_TABLE[checkIndex(index) - 1][0];
+		}
+		return names[slot(checkIndex(index))];
+	}
+
+	String getValue(final int index) throws Http2Exception {
+		if (index <= HpackTable.STATIC_LENGTH) {
+			return HpackTable.STATIC_TABLE[checkIndex(index) - 1][1];
+		}
+		return values[slot(checkIndex(index))];
+	}
+
+	private int checkIndex(final int index) throws Http2Exception {
+		if (index < 1 || index > length()) {
+			throw new Http2Exception(Http2Connection.COMPRESSION_ERROR, "Invalid header table index " + index);
+		}
+		return index;
+	}
+
+	private int slot(final int index) {
+		// the newest field comes right after the static ones
+		return (oldest + count - 1 - (index - HpackTable.STATIC_LENGTH - 1)) % names.length;
+	}
+
+	/**
+	 * @return the index of a field, or 0 if it is in neither table.
+	 */
+	int indexOf(final String name, final String value) {
+		final Integer index = HpackTable.STATIC_FIELDS.get(name + '\0' + value);
+		if (index != null) {
+			return index;
+		}
+		for (int n = 0; n < count; n++) {
+			final int slot = (oldest + count - 1 - n) % names.length;
+			if (values[slot].equals(value) && names[slot].equals(name)) {
+				return HpackTable.STATIC_LENGTH + 1 + n;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * @return the index of a field with this name, or 0 if there is none.
+	 */
+	int indexOfName(final String name) {
+		final Integer index = HpackTable.STATIC_NAMES.get(name);
+		if (index != null) {
+			return index;
+		}
+		for (int n = 0; n < count; n++) {
+			if (names[(oldest + count - 1 - n) % names.length].equals(name)) {
+				return HpackTable.STATIC_LENGTH + 1 + n;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Adds a field to the dynamic table, evicting the oldest ones to make
+	 * room. A field larger than the whole table empties it.
+	 */
+	void add(final String name, final String value) {
+		final int entrySize = name.length() + value.length() + HpackTable.ENTRY_OVERHEAD;
+		evict(maxSize - entrySize);
+		if (entrySize > maxSize) {
+			return;
+		}
+		if (count == names.length) {
+			final String largerNames[] = new String[count * 2];
+			final String largerValues[] = new String[count * 2];
+			for (int n = 0; n < count; n++) {
+				largerNames[n] = names[(oldest + n) % count];
+				largerValues[n] = values[(oldest + n) % count];
+			}
+			names = largerNames;
+			values = largerValues;
+			oldest = 0;
+		}
+		final int slot = (oldest + count) % names.length;
+		names[slot] = name;
+		values[slot] = value;
+		count++;
+		size += entrySize;
+	}
+
+	/**
+	 * Changes the size of the dynamic table, evicting the oldest fields that
+	 * no longer fit.
+	 */
+	void setMaxSize(final int maxSize) {
+		this.maxSize = maxSize;
+		evict(maxSize);
+	}
+
+	private void evict(final int targetSize) {
+		while (count > 0 && size > targetSize) {
+			size -= names[oldest].length() + values[oldest].length() + HpackTable.ENTRY_OVERHEAD;
+			names[oldest] = null;
+			values[oldest] = null;
+			oldest = (oldest + 1) % names.length;
+			count--;
+		}
+	}
+}
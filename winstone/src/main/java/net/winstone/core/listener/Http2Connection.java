@@ -0,0 +1,894 @@
+package net.winstone.core.listener;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import net.winstone.util.Base64;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Server side of an HTTP/2 connection (RFC 7540). The request handler thread
+ * that took the connection reads its frames for as long as it lasts, which is
+ * why the listener limits how many connections speak HTTP/2 at once. Each
+ * stream the client opens becomes an {@link Http2Stream}, handed to a request
+ * handler thread of its own through the {@link Http2StreamListener} of the
+ * listener, just as an accepted connection would be, and that thread writes
+ * the response as frames of the stream.
+ * <p>
+ * Frames are written whole, one at a time, under a lock. The flow control
+ * windows for sending, the connection's and each stream's, are guarded by the
+ * connection itself; a response waits there for the client to open them. The
+ * lock is never taken while waiting for a window.
+ * <p>
+ * Nothing is pushed, and priorities are ignored: streams are served as their
+ * request handlers get to them.
+ */
+final class Http2Connection {
+
+	private static Logger logger = LoggerFactory.getLogger(Http2Connection.class);
+	static final String PROTOCOL = "HTTP/2.0";
+	/**
+	 * Connection preface of the client, and what is left of it once read as
+	 * an HTTP/1 request line.
+	 */
+	static final byte PREFACE[] = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes();
+	static final byte PREFACE_TAIL[] = "\r\nSM\r\n\r\n".getBytes();
+	private static final byte SWITCHING_PROTOCOLS[] = "HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n".getBytes();
+	static final String SETTINGS_HEADER = "HTTP2-Settings";
+	// frame types
+	static final int DATA = 0x0;
+	static final int HEADERS = 0x1;
+	static final int PRIORITY = 0x2;
+	static final int RST_STREAM = 0x3;
+	static final int SETTINGS = 0x4;
+	static final int PUSH_PROMISE = 0x5;
+	static final int PING = 0x6;
+	static final int GOAWAY = 0x7;
+	static final int WINDOW_UPDATE = 0x8;
+	static final int CONTINUATION = 0x9;
+	// frame flags
+	static final int END_STREAM = 0x1;
+	static final int ACK = 0x1;
+	static final int END_HEADERS = 0x4;
+	static final int PADDED = 0x8;
+	static final int PRIORITY_FLAG = 0x20;
+	// settings
+	static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	static final int SETTINGS_ENABLE_PUSH = 0x2;
+	static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+	static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+	// error codes
+	static final int NO_ERROR = 0x0;
+	static final int PROTOCOL_ERROR = 0x1;
+	static final int INTERNAL_ERROR = 0x2;
+	static final int FLOW_CONTROL_ERROR = 0x3;
+	static final int SETTINGS_TIMEOUT = 0x4;
+	static final int STREAM_CLOSED = 0x5;
+	static final int FRAME_SIZE_ERROR = 0x6;
+	static final int REFUSED_STREAM = 0x7;
+	static final int CANCEL = 0x8;
+	static final int COMPRESSION_ERROR = 0x9;
+	static final int CONNECT_ERROR = 0xa;
+	static final int ENHANCE_YOUR_CALM = 0xb;
+	static final int INADEQUATE_SECURITY = 0xc;
+	static final int HTTP_1_1_REQUIRED = 0xd;
+	/**
+	 * Flow control window of a stream or a connection until SETTINGS or
+	 * WINDOW_UPDATE frames change it.
+	 */
+	static final int DEFAULT_WINDOW = 65535;
+	/**
+	 * Window given to the client on each stream, and on the whole connection.
+	 */
+	static final int STREAM_WINDOW = 262144;
+	private static final int CONNECTION_WINDOW = 1048576;
+	private static final int MAX_WINDOW = Integer.MAX_VALUE;
+	/**
+	 * Largest frame received; the client may send larger ones only if told.
+	 */
+	static final int MAX_FRAME_SIZE = 16384;
+	private static final int MAX_HEADER_LIST_SIZE = 65536;
+	private static final int HEADER_TABLE_SIZE = 4096;
+	private static final int FRAME_HEADER_LENGTH = 9;
+
+	private final HttpListener listener;
+	private final Listener streamListener;
+	private final Socket socket;
+	private final InputStream in;
+	private final OutputStream out;
+	private final int maxConcurrentStreams;
+	private final ConcurrentHashMap<Integer, Http2Stream> streams = new ConcurrentHashMap<Integer, Http2Stream>();
+	/**
+	 * Guards the output, the header encoder and its buffer.
+	 */
+	private final Object writeLock = new Object();
+	private final HpackEncoder encoder = new HpackEncoder();
+	private final ByteArrayOutputStream headerBuffer = new ByteArrayOutputStream();
+	private final HpackDecoder decoder = new HpackDecoder(Http2Connection.HEADER_TABLE_SIZE, Http2Connection.MAX_HEADER_LIST_SIZE);
+	// read side, used by the reading thread only
+	private final byte frameHeader[] = new byte[Http2Connection.FRAME_HEADER_LENGTH];
+	private final byte payload[] = new byte[Http2Connection.MAX_FRAME_SIZE];
+	private final List<String> names = new ArrayList<String>();
+	private final List<String> values = new ArrayList<String>();
+	/**
+	 * Header block being received, for the stream expecting CONTINUATION
+	 * frames, or 0.
+	 */
+	private byte headerBlock[] = new byte[Http2Connection.MAX_FRAME_SIZE];
+	private int headerBlockLength;
+	private int headerBlockStream;
+	private boolean headerBlockEndStream;
+	private int lastStreamId;
+	private int receiveWindow = Http2Connection.CONNECTION_WINDOW;
+	private boolean settingsReceived;
+	private boolean goingAway;
+	private boolean peerGoingAway;
+	/**
+	 * Stream opened by an HTTP/1.1 upgrade, dispatched once the client
+	 * preface is in.
+	 */
+	private Http2Stream upgraded;
+	// send side, guarded by this
+	private int sendWindow = Http2Connection.DEFAULT_WINDOW;
+	private int initialSendWindow = Http2Connection.DEFAULT_WINDOW;
+	private volatile int maxSendFrameSize = Http2Connection.MAX_FRAME_SIZE;
+	private volatile boolean closed;
+
+	/**
+	 * Build a new instance of Http2Connection.
+	 *
+	 * @param in
+	 *            the read buffer of the connection, holding whatever followed
+	 *            the request line already read
+	 * @param streamListener
+	 *            what the request handler threads of the streams go through
+	 */
+	Http2Connection(final HttpListener listener, final Listener streamListener, final Socket socket, final InputStream in, final int maxConcurrentStreams) throws IOException {
+		super();
+		this.listener = listener;
+		this.streamListener = streamListener;
+		this.socket = socket;
+		this.in = in;
+		out = new BufferedOutputStream(socket.getOutputStream(), Http2Connection.MAX_FRAME_SIZE + Http2Connection.FRAME_HEADER_LENGTH);
+		this.maxConcurrentStreams = maxConcurrentStreams;
+	}
+
+	/**
+	 * @return Boolean.TRUE if an HTTP/1.1 request asks to go on with HTTP/2
+	 *         over cleartext ("Upgrade: h2c"). The connection is only
+	 *         switched for requests without a body.
+	 */
+	static boolean isUpgradeRequest(final String protocol, final boolean secure, final int contentLength, final boolean chunked, final String upgrade, final String settings) {
+		if (!"HTTP/1.1".equals(protocol) || secure || contentLength > 0 || chunked || upgrade == null || settings == null) {
+			return Boolean.FALSE;
+		}
+		for (final String token : upgrade.split(",")) {
+			if (token.trim().equalsIgnoreCase("h2c")) {
+				return Boolean.TRUE;
+			}
+		}
+		return Boolean.FALSE;
+	}
+
+	/**
+	 * Switches the connection to HTTP/2 after an HTTP/1.1 request with
+	 * "Upgrade: h2c". The request becomes stream 1, which gets its response
+	 * over HTTP/2.
+	 *
+	 * @param settings
+	 *            the HTTP2-Settings header of the request
+	 * @return Boolean.FALSE, with nothing sent, if the settings are invalid
+	 *         and the request should be served over HTTP/1.1.
+	 */
+	boolean upgrade(final String settings, final String method, final String path, final String headerNames[], final String headerValues[], final int headerCount) throws IOException {
+		final byte decoded[] = Http2Connection.decodeSettings(settings);
+		if (decoded == null) {
+			Http2Connection.logger.debug("Invalid HTTP2-Settings header, upgrade ignored: {}", settings);
+			return Boolean.FALSE;
+		}
+		try {
+			applySettings(decoded, decoded.length);
+		} catch (final Http2Exception e) {
+			Http2Connection.logger.debug("Invalid HTTP2-Settings header, upgrade ignored", e);
+			return Boolean.FALSE;
+		}
+		upgraded = new Http2Stream(this, method, path, headerNames, headerValues, headerCount, initialSendWindow);
+		upgraded.endInput();
+		lastStreamId = 1;
+		out.write(Http2Connection.SWITCHING_PROTOCOLS);
+		out.flush();
+		return Boolean.TRUE;
+	}
+
+	/**
+	 * Decodes the base64url value of an HTTP2-Settings header.
+	 *
+	 * @return the payload of a SETTINGS frame, or null if malformed.
+	 */
+	static byte[] decodeSettings(final String value) {
+		final char chars[] = value.trim().toCharArray();
+		for (int n = 0; n < chars.length; n++) {
+			final char c = chars[n];
+			if (c == '-') {
+				chars[n] = '+';
+			} else if (c == '_') {
+				chars[n] = '/';
+			} else if (!((c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9'))) {
+				return null;
+			}
+		}
+		if (chars.length % 4 == 1) {
+			return null;
+		}
+		final byte decoded[] = new byte[chars.length * 3 / 4];
+		final int length = Base64.decode(chars, decoded, 0, chars.length, 0);
+		return length % 6 == 0 ? Arrays.copyOf(decoded, length) : null;
+	}
+
+	/**
+	 * Serves the connection until it closes, on the calling thread, which
+	 * reads the frames.
+	 *
+	 * @param preface
+	 *            the client connection preface expected, or what is left of it
+	 */
+	void serve(final byte preface[]) {
+		try {
+			writeSettings();
+			final byte received[] = new byte[preface.length];
+			socket.setSoTimeout(HttpListener.CONNECTION_TIMEOUT);
+			readFully(received, 0, received.length);
+			if (!Arrays.equals(received, preface)) {
+				throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "Invalid connection preface");
+			}
+			if (upgraded != null) {
+				streams.put(1, upgraded);
+				dispatch(upgraded);
+				upgraded = null;
+			}
+			while (readFrame()) {
+				// until the connection is done with
+			}
+		} catch (final Http2Exception e) {
+			Http2Connection.logger.debug("HTTP/2 connection error", e);
+			goAway(e.getError(), e.getMessage());
+		} catch (final IOException e) {
+			Http2Connection.logger.debug("HTTP/2 connection closed", e);
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Turns away a client that started with HTTP/2, when the listener has too
+	 * many HTTP/2 connections already: no stream is processed, so the client
+	 * may retry its requests on another connection.
+	 */
+	void refuse() {
+		try {
+			writeSettings();
+		} catch (final IOException e) {
+			Http2Connection.logger.debug("Error refusing HTTP/2 connection", e);
+		}
+		goAway(Http2Connection.REFUSED_STREAM, "Too many HTTP/2 connections");
+		close();
+	}
+
+	/**
+	 * Waits for the next frame: as long as the keep alive timeout once the
+	 * connection has no open stream, for ever while it has.
+	 *
+	 * @return Boolean.FALSE if the connection is done with.
+	 */
+	private boolean awaitFrame() throws IOException {
+		while (true) {
+			if (listener.interrupted && !goingAway) {
+				goAway(Http2Connection.NO_ERROR, "Shutting down");
+			}
+			if ((goingAway || peerGoingAway) && streams.isEmpty()) {
+				return Boolean.FALSE;
+			}
+			socket.setSoTimeout(listener.getKeepAliveTimeout());
+			try {
+				final int b = in.read();
+				if (b < 0) {
+					return Boolean.FALSE;
+				}
+				frameHeader[0] = (byte) b;
+				return Boolean.TRUE;
+			} catch (final InterruptedIOException e) {
+				if (streams.isEmpty()) {
+					goAway(Http2Connection.NO_ERROR, null);
+					return Boolean.FALSE;
+				}
+			} finally {
+				// an SSL socket closes itself on the close_notify of the peer
+				if (!socket.isClosed()) {
+					socket.setSoTimeout(HttpListener.CONNECTION_TIMEOUT);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads and handles a frame. A stream error resets the stream only; a
+	 * connection error is thrown.
+	 *
+	 * @return Boolean.FALSE if the connection is done with.
+	 */
+	private boolean readFrame() throws IOException {
+		if (!awaitFrame()) {
+			return Boolean.FALSE;
+		}
+		readFully(frameHeader, 1, Http2Connection.FRAME_HEADER_LENGTH - 1);
+		final int length = ((frameHeader[0] & 0xFF) << 16) | ((frameHeader[1] & 0xFF) << 8) | (frameHeader[2] & 0xFF);
+		final int type = frameHeader[3] & 0xFF;
+		final int flags = frameHeader[4] & 0xFF;
+		final int streamId = Http2Connection.getInt(frameHeader, 5) & 0x7FFFFFFF;
+		if (length > Http2Connection.MAX_FRAME_SIZE) {
+			throw new Http2Exception(Http2Connection.FRAME_SIZE_ERROR, "Frame of " + length + " bytes");
+		}
+		readFully(payload, 0, length);
+		if (!settingsReceived && type != Http2Connection.SETTINGS) {
+			throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "Connection preface without SETTINGS");
+		}
+		if (headerBlockStream != 0 && (type != Http2Connection.CONTINUATION || streamId != headerBlockStream)) {
+			throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "CONTINUATION expected on stream " + headerBlockStream);
+		}
+		try {
+			switch (type) {
+			case DATA:
+				readData(streamId, flags, length);
+				break;
+			case HEADERS:
+				readHeaders(streamId, flags, length);
+				break;
+			case PRIORITY:
+				if (streamId == 0) {
+					throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "PRIORITY on stream 0");
+				} else if (length != 5) {
+					throw new Http2Exception(Http2Connection.FRAME_SIZE_ERROR, streamId, "PRIORITY of " + length + " bytes");
+				}
+				break;
+			case RST_STREAM:
+				readReset(streamId, length);
+				break;
+			case SETTINGS:
+				readSettings(streamId, flags, length);
+				break;
+			case PUSH_PROMISE:
+				throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "PUSH_PROMISE from a client");
+			case PING:
+				if (streamId != 0) {
+					throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "PING on stream " + streamId);
+				} else if (length != 8) {
+					throw new Http2Exception(Http2Connection.FRAME_SIZE_ERROR, "PING of " + length + " bytes");
+				} else if ((flags & Http2Connection.ACK) == 0) {
+					writeFrame(Http2Connection.PING, Http2Connection.ACK, 0, payload, 0, length);
+				}
+				break;
+			case GOAWAY:
+				if (streamId != 0) {
+					throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "GOAWAY on stream " + streamId);
+				} else if (length < 8) {
+					throw new Http2Exception(Http2Connection.FRAME_SIZE_ERROR, "GOAWAY of " + length + " bytes");
+				}
+				Http2Connection.logger.debug("GOAWAY received, error {}", Integer.toString(Http2Connection.getInt(payload, 4)));
+				peerGoingAway = Boolean.TRUE;
+				break;
+			case WINDOW_UPDATE:
+				readWindowUpdate(streamId, length);
+				break;
+			case CONTINUATION:
+				if (headerBlockStream == 0) {
+					throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "Unexpected CONTINUATION");
+				}
+				appendHeaderBlock(0, length);
+				if ((flags & Http2Connection.END_HEADERS) != 0) {
+					endHeaderBlock();
+				}
+				break;
+			default:
+				// unknown frame types are ignored
+				break;
+			}
+		} catch (final Http2Exception e) {
+			if (e.getStreamId() == 0) {
+				throw e;
+			}
+			Http2Connection.logger.debug("HTTP/2 stream error", e);
+			resetStream(e.getStreamId(), e.getError());
+		}
+		return Boolean.TRUE;
+	}
+
+	private void readData(final int streamId, final int flags, final int length) throws IOException {
+		if (streamId == 0) {
+			throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "DATA on stream 0");
+		}
+		final int offset = (flags & Http2Connection.PADDED) != 0 ? 1 : 0;
+		final int padding = offset > 0 && length > 0 ? payload[0] & 0xFF : 0;
+		if (offset + padding > length) {
+			throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "DATA padding too long");
+		}
+		// the whole frame counts against the windows, and the connection
+		// window is given back at once: the stream windows bound what waits
+		// to be read
+		if (length > receiveWindow) {
+			throw new Http2Exception(Http2Connection.FLOW_CONTROL_ERROR, "Connection window exceeded");
+		}
+		receiveWindow -= length;
+		if (receiveWindow <= Http2Connection.CONNECTION_WINDOW / 2) {
+			writeWindowUpdate(0, Http2Connection.CONNECTION_WINDOW - receiveWindow);
+			receiveWindow = Http2Connection.CONNECTION_WINDOW;
+		}
+		final Http2Stream stream = streams.get(streamId);
+		if (stream == null) {
+			if (streamId > lastStreamId) {
+				throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "DATA on idle stream " + streamId);
+			}
+			// closed or reset here, the frame was on its way
+			return;
+		}
+		stream.receive(payload, offset, length - offset - padding, length, (flags & Http2Connection.END_STREAM) != 0);
+	}
+
+	private void readHeaders(final int streamId, final int flags, final int length) throws IOException {
+		if (streamId == 0) {
+			throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "HEADERS on stream 0");
+		}
+		int offset = 0;
+		int padding = 0;
+		if ((flags & Http2Connection.PADDED) != 0) {
+			padding = length > 0 ? payload[0] & 0xFF : 0;
+			offset = 1;
+		}
+		if ((flags & Http2Connection.PRIORITY_FLAG) != 0) {
+			offset += 5;
+		}
+		if (offset + padding > length) {
+			throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "HEADERS padding too long");
+		}
+		headerBlockStream = streamId;
+		headerBlockEndStream = (flags & Http2Connection.END_STREAM) != 0;
+		headerBlockLength = 0;
+		appendHeaderBlock(offset, length - offset - padding);
+		if ((flags & Http2Connection.END_HEADERS) != 0) {
+			endHeaderBlock();
+		}
+	}
+
+	private void appendHeaderBlock(final int offset, final int length) throws Http2Exception {
+		if (headerBlockLength + length > Http2Connection.MAX_HEADER_LIST_SIZE) {
+			throw new Http2Exception(Http2Connection.ENHANCE_YOUR_CALM, "Header block larger than " + Http2Connection.MAX_HEADER_LIST_SIZE);
+		}
+		if (headerBlockLength + length > headerBlock.length) {
+			headerBlock = Arrays.copyOf(headerBlock, Math.max(headerBlock.length * 2, headerBlockLength + length));
+		}
+		System.arraycopy(payload, offset, headerBlock, headerBlockLength, length);
+		headerBlockLength += length;
+	}
+
+	/**
+	 * Decodes a complete header block, which opens a stream, or ends it as
+	 * trailers.
+	 */
+	private void endHeaderBlock() throws IOException {
+		final int streamId = headerBlockStream;
+		headerBlockStream = 0;
+		names.clear();
+		values.clear();
+		// decoded whatever becomes of the stream, to keep the table in step
+		decoder.decode(headerBlock, headerBlockLength, names, values);
+		final Http2Stream stream = streams.get(streamId);
+		if (stream != null) {
+			// trailers: nothing uses them, as with a chunked request body
+			if (!headerBlockEndStream) {
+				throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, streamId, "Trailers without END_STREAM");
+			}
+			stream.receive(payload, 0, 0, 0, Boolean.TRUE);
+			return;
+		} else if (streamId <= lastStreamId) {
+			// closed or reset here, the frame was on its way
+			return;
+		} else if ((streamId & 1) == 0) {
+			throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "Stream " + streamId + " opened by the client");
+		}
+		lastStreamId = streamId;
+		if (goingAway) {
+			return;
+		} else if (streams.size() >= maxConcurrentStreams) {
+			throw new Http2Exception(Http2Connection.REFUSED_STREAM, streamId, "More than " + maxConcurrentStreams + " streams");
+		}
+		final Http2Stream created;
+		synchronized (this) {
+			created = new Http2Stream(this, streamId, names, values, initialSendWindow);
+		}
+		if (headerBlockEndStream) {
+			created.endInput();
+		}
+		streams.put(streamId, created);
+		dispatch(created);
+	}
+
+	/**
+	 * Hands a stream to a request handler thread.
+	 */
+	private void dispatch(final Http2Stream stream) throws IOException {
+		try {
+			listener.objectPool.handleRequest(stream, streamListener);
+		} catch (final InterruptedException e) {
+			throw new InterruptedIOException("Interrupted dispatching " + stream);
+		}
+	}
+
+	private void readReset(final int streamId, final int length) throws IOException {
+		if (streamId == 0 || streamId > lastStreamId) {
+			throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "RST_STREAM on idle stream " + streamId);
+		} else if (length != 4) {
+			throw new Http2Exception(Http2Connection.FRAME_SIZE_ERROR, "RST_STREAM of " + length + " bytes");
+		}
+		final Http2Stream stream = streams.remove(streamId);
+		if (stream != null) {
+			stream.reset(Http2Connection.getInt(payload, 0));
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+
+	private void readSettings(final int streamId, final int flags, final int length) throws IOException {
+		if (streamId != 0) {
+			throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "SETTINGS on stream " + streamId);
+		} else if ((flags & Http2Connection.ACK) != 0) {
+			if (length != 0) {
+				throw new Http2Exception(Http2Connection.FRAME_SIZE_ERROR, "SETTINGS ACK of " + length + " bytes");
+			}
+			return;
+		}
+		applySettings(payload, length);
+		settingsReceived = Boolean.TRUE;
+		writeFrame(Http2Connection.SETTINGS, Http2Connection.ACK, 0, null, 0, 0);
+	}
+
+	/**
+	 * Applies the settings of the client. Those limiting what is never sent
+	 * (pushed streams) or sent little of (header lists) are ignored.
+	 */
+	private void applySettings(final byte settings[], final int length) throws Http2Exception {
+		if (length % 6 != 0) {
+			throw new Http2Exception(Http2Connection.FRAME_SIZE_ERROR, "SETTINGS of " + length + " bytes");
+		}
+		for (int n = 0; n < length; n += 6) {
+			final int id = ((settings[n] & 0xFF) << 8) | (settings[n + 1] & 0xFF);
+			final int value = Http2Connection.getInt(settings, n + 2);
+			switch (id) {
+			case SETTINGS_HEADER_TABLE_SIZE:
+				synchronized (writeLock) {
+					encoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+				}
+				break;
+			case SETTINGS_ENABLE_PUSH:
+				if (value != 0 && value != 1) {
+					throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "SETTINGS_ENABLE_PUSH of " + value);
+				}
+				break;
+			case SETTINGS_INITIAL_WINDOW_SIZE:
+				if (value < 0) {
+					throw new Http2Exception(Http2Connection.FLOW_CONTROL_ERROR, "SETTINGS_INITIAL_WINDOW_SIZE too large");
+				}
+				setInitialSendWindow(value);
+				break;
+			case SETTINGS_MAX_FRAME_SIZE:
+				if (value < Http2Connection.MAX_FRAME_SIZE || value > 0xFFFFFF) {
+					throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "SETTINGS_MAX_FRAME_SIZE of " + value);
+				}
+				maxSendFrameSize = value;
+				break;
+			default:
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Moves the send window of every stream by the change of the initial
+	 * window size.
+	 */
+	private synchronized void setInitialSendWindow(final int size) throws Http2Exception {
+		final int delta = size - initialSendWindow;
+		initialSendWindow = size;
+		for (final Http2Stream stream : streams.values()) {
+			if ((long) stream.sendWindow + delta > Http2Connection.MAX_WINDOW) {
+				throw new Http2Exception(Http2Connection.FLOW_CONTROL_ERROR, "Window of stream " + stream.getId() + " too large");
+			}
+			stream.sendWindow += delta;
+		}
+		notifyAll();
+	}
+
+	private void readWindowUpdate(final int streamId, final int length) throws IOException {
+		if (length != 4) {
+			throw new Http2Exception(Http2Connection.FRAME_SIZE_ERROR, "WINDOW_UPDATE of " + length + " bytes");
+		}
+		final int increment = Http2Connection.getInt(payload, 0) & 0x7FFFFFFF;
+		if (increment == 0) {
+			throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, streamId, "WINDOW_UPDATE of 0");
+		}
+		synchronized (this) {
+			if (streamId == 0) {
+				if ((long) sendWindow + increment > Http2Connection.MAX_WINDOW) {
+					throw new Http2Exception(Http2Connection.FLOW_CONTROL_ERROR, "Connection window too large");
+				}
+				sendWindow += increment;
+			} else {
+				final Http2Stream stream = streams.get(streamId);
+				if (stream == null) {
+					if (streamId > lastStreamId) {
+						throw new Http2Exception(Http2Connection.PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream " + streamId);
+					}
+					return;
+				} else if ((long) stream.sendWindow + increment > Http2Connection.MAX_WINDOW) {
+					throw new Http2Exception(Http2Connection.FLOW_CONTROL_ERROR, streamId, "Stream window too large");
+				}
+				stream.sendWindow += increment;
+			}
+			notifyAll();
+		}
+	}
+
+	private void readFully(final byte buffer[], final int offset, final int length) throws IOException {
+		int read = 0;
+		while (read < length) {
+			final int count = in.read(buffer, offset + read, length - read);
+			if (count < 0) {
+				throw new EOFException("HTTP/2 connection closed within a frame");
+			}
+			read += count;
+		}
+	}
+
+	/**
+	 * Sends the settings of the server, and opens the connection window
+	 * beyond its default.
+	 */
+	private void writeSettings() throws IOException {
+		final byte settings[] = new byte[18];
+		Http2Connection.putSetting(settings, 0, Http2Connection.SETTINGS_MAX_CONCURRENT_STREAMS, maxConcurrentStreams);
+		Http2Connection.putSetting(settings, 6, Http2Connection.SETTINGS_INITIAL_WINDOW_SIZE, Http2Connection.STREAM_WINDOW);
+		Http2Connection.putSetting(settings, 12, Http2Connection.SETTINGS_MAX_HEADER_LIST_SIZE, Http2Connection.MAX_HEADER_LIST_SIZE);
+		writeFrame(Http2Connection.SETTINGS, 0, 0, settings, 0, settings.length);
+		writeWindowUpdate(0, Http2Connection.CONNECTION_WINDOW - Http2Connection.DEFAULT_WINDOW);
+	}
+
+	void writeWindowUpdate(final int streamId, final int increment) throws IOException {
+		final byte frame[] = new byte[4];
+		Http2Connection.putInt(frame, 0, increment);
+		writeFrame(Http2Connection.WINDOW_UPDATE, 0, streamId, frame, 0, frame.length);
+	}
+
+	void writeReset(final int streamId, final int error) throws IOException {
+		final byte frame[] = new byte[4];
+		Http2Connection.putInt(frame, 0, error);
+		writeFrame(Http2Connection.RST_STREAM, 0, streamId, frame, 0, frame.length);
+	}
+
+	/**
+	 * Resets a stream on a stream error, stopping its request handler.
+	 */
+	private void resetStream(final int streamId, final int error) throws IOException {
+		writeReset(streamId, error);
+		final Http2Stream stream = streams.remove(streamId);
+		if (stream != null) {
+			stream.reset(error);
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Tells the client no more streams are accepted, and why.
+	 */
+	private void goAway(final int error, final String message) {
+		goingAway = Boolean.TRUE;
+		final byte debugData[] = message == null ? new byte[0] : message.getBytes();
+		final byte frame[] = new byte[8 + debugData.length];
+		Http2Connection.putInt(frame, 0, lastStreamId);
+		Http2Connection.putInt(frame, 4, error);
+		System.arraycopy(debugData, 0, frame, 8, debugData.length);
+		try {
+			writeFrame(Http2Connection.GOAWAY, 0, 0, frame, 0, frame.length);
+		} catch (final IOException e) {
+			Http2Connection.logger.debug("Error sending GOAWAY", e);
+		}
+	}
+
+	private void writeFrame(final int type, final int flags, final int streamId, final byte frame[], final int offset, final int length) throws IOException {
+		synchronized (writeLock) {
+			checkOpen();
+			writeFrameHeader(length, type, flags, streamId);
+			if (length > 0) {
+				out.write(frame, offset, length);
+			}
+			out.flush();
+		}
+	}
+
+	/**
+	 * Writes the fields of a response, or its trailers, as a HEADERS frame
+	 * followed by as many CONTINUATION frames as needed.
+	 *
+	 * @param status
+	 *            the status, or -1 for trailers
+	 */
+	void writeHeaders(final Http2Stream stream, final int status, final String headerNames[], final String headerValues[], final int count, final boolean endStream) throws IOException {
+		synchronized (writeLock) {
+			checkOpen();
+			if (stream.isReset()) {
+				throw new SocketException("HTTP/2 stream reset");
+			}
+			headerBuffer.reset();
+			encoder.beginBlock(headerBuffer);
+			if (status >= 0) {
+				encoder.encodeStatus(status, headerBuffer);
+			}
+			for (int n = 0; n < count; n++) {
+				encoder.encode(headerNames[n], headerValues[n], headerBuffer);
+			}
+			final byte block[] = headerBuffer.toByteArray();
+			final int frameSize = maxSendFrameSize;
+			int type = Http2Connection.HEADERS;
+			int flags = endStream ? Http2Connection.END_STREAM : 0;
+			int offset = 0;
+			do {
+				final int length = Math.min(block.length - offset, frameSize);
+				writeFrameHeader(length, type, offset + length == block.length ? flags | Http2Connection.END_HEADERS : flags, stream.getId());
+				out.write(block, offset, length);
+				offset += length;
+				type = Http2Connection.CONTINUATION;
+				flags = 0;
+			} while (offset < block.length);
+			out.flush();
+			if (endStream) {
+				stream.endOutput();
+			}
+		}
+	}
+
+	/**
+	 * Writes body bytes of a stream as DATA frames, as the flow control
+	 * windows allow.
+	 *
+	 * @param endStream
+	 *            Boolean.TRUE to end the stream with the last frame, which
+	 *            may be empty
+	 */
+	void writeData(final Http2Stream stream, final byte data[], final int offset, final int length, final boolean endStream) throws IOException {
+		int written = 0;
+		while (written < length || endStream) {
+			final int count = written < length ? acquireWindow(stream, Math.min(length - written, maxSendFrameSize)) : 0;
+			final boolean last = endStream && written + count == length;
+			synchronized (writeLock) {
+				checkOpen();
+				if (stream.isReset()) {
+					throw new SocketException("HTTP/2 stream reset");
+				}
+				writeFrameHeader(count, Http2Connection.DATA, last ? Http2Connection.END_STREAM : 0, stream.getId());
+				if (count > 0) {
+					out.write(data, offset + written, count);
+				}
+				out.flush();
+				if (last) {
+					stream.endOutput();
+					return;
+				}
+			}
+			written += count;
+		}
+	}
+
+	/**
+	 * Takes as much of the send windows as possible, up to the given length,
+	 * waiting for the client to open them if either is closed.
+	 *
+	 * @return the number of bytes that may be sent.
+	 */
+	private synchronized int acquireWindow(final Http2Stream stream, final int length) throws IOException {
+		final long deadline = System.currentTimeMillis() + HttpListener.CONNECTION_TIMEOUT;
+		while (!closed && !stream.isReset() && (sendWindow <= 0 || stream.sendWindow <= 0)) {
+			final long wait = deadline - System.currentTimeMillis();
+			if (wait <= 0) {
+				throw new SocketTimeoutException("HTTP/2 flow control window still closed");
+			}
+			try {
+				wait(wait);
+			} catch (final InterruptedException e) {
+				throw new InterruptedIOException("Interrupted waiting for the HTTP/2 flow control window");
+			}
+		}
+		if (closed || stream.isReset()) {
+			throw new SocketException("HTTP/2 stream reset");
+		}
+		final int count = Math.min(length, Math.min(sendWindow, stream.sendWindow));
+		sendWindow -= count;
+		stream.sendWindow -= count;
+		return count;
+	}
+
+	private void writeFrameHeader(final int length, final int type, final int flags, final int streamId) throws IOException {
+		out.write(length >>> 16);
+		out.write(length >>> 8);
+		out.write(length);
+		out.write(type);
+		out.write(flags);
+		out.write(streamId >>> 24);
+		out.write(streamId >>> 16);
+		out.write(streamId >>> 8);
+		out.write(streamId);
+	}
+
+	private void checkOpen() throws IOException {
+		if (closed) {
+			throw new SocketException("HTTP/2 connection closed");
+		}
+	}
+
+	/**
+	 * Called once a stream is done with by its request handler.
+	 */
+	void streamClosed(final Http2Stream stream) {
+		streams.remove(stream.getId(), stream);
+	}
+
+	Socket getSocket() {
+		return socket;
+	}
+
+	/**
+	 * Stops the streams still open once the connection is done with.
+	 */
+	private void close() {
+		closed = Boolean.TRUE;
+		for (final Http2Stream stream : streams.values()) {
+			stream.reset(Http2Connection.CANCEL);
+		}
+		streams.clear();
+		synchronized (this) {
+			notifyAll();
+		}
+	}
+
+	private static int getInt(final byte data[], final int offset) {
+		return ((data[offset] & 0xFF) << 24) | ((data[offset + 1] & 0xFF) << 16) | ((data[offset + 2] & 0xFF) << 8) | (data[offset + 3] & 0xFF);
+	}
+
+	private static void putInt(final byte data[], final int offset, final int value) {
+		data[offset] = (byte) (value >>> 24);
+		data[offset + 1] = (byte) (value >>> 16);
+		data[offset + 2] = (byte) (value >>> 8);
+		data[offset + 3] = (byte) value;
+	}
+
+	private static void putSetting(final byte data[], final int offset, final int id, final int value) {
+		data[offset] = (byte) (id >>> 8);
+		data[offset + 1] = (byte) id;
+		Http2Connection.putInt(data, offset + 2, value);
+	}
+}
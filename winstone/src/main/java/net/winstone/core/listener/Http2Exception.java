@@ -0,0 +1,41 @@
+package net.winstone.core.listener;
+
+import java.io.IOException;
+
+/**
+ * An HTTP/2 protocol error, with the error code sent to the peer: a
+ * connection error, or a stream error if it names a stream.
+ */
+final class Http2Exception extends IOException {
+
+	private static final long serialVersionUID = 5104651427367207853L;
+	private final int error;
+	private final int streamId;
+
+	/**
+	 * Build a new connection error.
+	 */
+	Http2Exception(final int error, final String message) {
+		this(error, 0, message);
+	}
+
+	/**
+	 * Build a new stream error, or connection error for stream 0.
+	 */
+	Http2Exception(final int error, final int streamId, final String message) {
+		super(message);
+		this.error = error;
+		this.streamId = streamId;
+	}
+
+	int getError() {
+		return error;
+	}
+
+	/**
+	 * @return the stream in error, or 0 if the whole connection is.
+	 */
+	int getStreamId() {
+		return streamId;
+	}
+}
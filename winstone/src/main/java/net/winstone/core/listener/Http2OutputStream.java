@@ -0,0 +1,157 @@
+package net.winstone.core.listener;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Locale;
+
+import javax.servlet.http.Cookie;
+
+import net.winstone.WinstoneException;
+import net.winstone.core.ClientSocketException;
+import net.winstone.core.HeaderTable;
+import net.winstone.core.WinstoneOutputStream;
+import net.winstone.util.ByteBufferPool;
+import net.winstone.util.StringUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Extends the winstone output stream to write a response as the frames of its
+ * HTTP/2 stream: the fields in a HEADERS frame, the body in DATA frames as it
+ * is committed. The end of the stream marks the end of the body, so there is
+ * no chunked coding, and a body whose length is known ends the stream with its
+ * last bytes.
+ */
+final class Http2OutputStream extends WinstoneOutputStream {
+
+	private static Logger logger = LoggerFactory.getLogger(Http2OutputStream.class);
+	private final Http2Stream stream;
+	private boolean headersSent;
+	private boolean ended;
+
+	Http2OutputStream(final Http2Stream stream, final ByteBufferPool bufferPool) throws IOException {
+		super(stream.getOutputStream(), null, bufferPool);
+		this.stream = stream;
+	}
+
+	@Override
+	public boolean isChunkedEncodingAllowed() {
+		return Boolean.FALSE;
+	}
+
+	@Override
+	public void commit() throws IOException {
+		final ByteBuffer content = getBufferedContent();
+		try {
+			if (!committed) {
+				owner.validateHeaders();
+				committed = Boolean.TRUE;
+				// a HEAD reply gets the headers only
+				discardBody = !owner.isBodyAllowed();
+			}
+			final long contentLength = owner.getContentLength();
+			long length = discardBody || ended ? 0 : content.remaining();
+			if (contentLength >= 0) {
+				length = Math.max(Math.min(contentLength - bytesCommitted, length), 0);
+			}
+			final boolean last = !ended && (discardBody || ((contentLength >= 0) && (bytesCommitted + length >= contentLength) && (owner.getTrailers().size() == 0)));
+			if (!headersSent) {
+				writeResponseHeaders(last && length == 0);
+			}
+			if (length > 0) {
+				stream.writeData(content.array(), content.arrayOffset() + content.position(), (int) length, last);
+			}
+			ended |= last;
+			bytesCommitted += length;
+			Http2OutputStream.logger.debug("Written {} bytes to response body", Long.toString(bytesCommitted));
+		} catch (final IOException e) {
+			throw new ClientSocketException(e);
+		} finally {
+			clearBuffer();
+		}
+	}
+
+	/**
+	 * Sends the status and fields, without those of an HTTP/1 connection.
+	 */
+	private void writeResponseHeaders(final boolean endStream) throws IOException {
+		final HeaderTable headers = owner.getHeaders();
+		final List<Cookie> cookies = owner.getCookies();
+		final String names[] = new String[headers.size() + cookies.size()];
+		final String values[] = new String[names.length];
+		int count = 0;
+		for (int n = 0; n < headers.size(); n++) {
+			final String name = headers.getName(n).trim().toLowerCase(Locale.ENGLISH);
+			if (!Http2Stream.isConnectionHeader(name)) {
+				names[count] = name;
+				values[count] = StringUtils.noCRLF(headers.getValue(n).trim());
+				count++;
+			}
+		}
+		for (final Cookie cookie : cookies) {
+			final String cookieText = owner.writeCookie(cookie);
+			final int colonPos = cookieText.indexOf(':');
+			if (colonPos == -1) {
+				throw new WinstoneException("No colon header: " + cookieText);
+			}
+			names[count] = cookieText.substring(0, colonPos).trim().toLowerCase(Locale.ENGLISH);
+			values[count] = StringUtils.noCRLF(cookieText.substring(colonPos + 1).trim());
+			count++;
+		}
+		Http2OutputStream.logger.debug("Response: {} {}", Http2Connection.PROTOCOL, Integer.toString(owner.getStatus()));
+		headersSent = Boolean.TRUE;
+		stream.writeHeaders(owner.getStatus(), names, values, count, endStream);
+	}
+
+	/**
+	 * Sends the interim 100 Continue response as a HEADERS frame of its own.
+	 */
+	@Override
+	public void writeContinue() throws IOException {
+		if (committed) {
+			Http2OutputStream.logger.debug("Response committed, no 100 Continue sent");
+			return;
+		}
+		try {
+			stream.writeHeaders(100, null, null, 0, Boolean.FALSE);
+		} catch (final IOException e) {
+			throw new ClientSocketException(e);
+		}
+	}
+
+	/**
+	 * Ends the stream if the body did not: with the trailers, if any, or an
+	 * empty DATA frame.
+	 */
+	@Override
+	public void finishResponse() throws IOException {
+		try {
+			if (!ended) {
+				if (!committed) {
+					commit();
+				}
+				if (!ended) {
+					final HeaderTable trailers = owner.getTrailers();
+					if (trailers.size() > 0 && !discardBody) {
+						final String names[] = new String[trailers.size()];
+						final String values[] = new String[names.length];
+						for (int n = 0; n < names.length; n++) {
+							names[n] = trailers.getName(n).trim().toLowerCase(Locale.ENGLISH);
+							values[n] = StringUtils.noCRLF(trailers.getValue(n).trim());
+						}
+						stream.writeHeaders(-1, names, values, names.length, Boolean.TRUE);
+					} else {
+						stream.writeData(null, 0, 0, Boolean.TRUE);
+					}
+					ended = Boolean.TRUE;
+				}
+			}
+		} catch (final IOException e) {
+			throw new ClientSocketException(e);
+		} finally {
+			super.finishResponse();
+		}
+	}
+}
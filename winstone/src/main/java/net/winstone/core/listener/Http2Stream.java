@@ -0,0 +1,475 @@
+package net.winstone.core.listener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketImpl;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A stream of an HTTP/2 connection, presented as a {@link Socket}, which is
+ * what the request handler threads and listeners work on: one request, read
+ * from the stream, and its response. The request head comes decoded from the
+ * HEADERS frames; the body is read from the DATA frames the connection puts
+ * here, and each half of the stream window read is given back to the client.
+ * <p>
+ * Addresses are those of the connection.
+ */
+final class Http2Stream extends Socket {
+
+	private final Http2Connection connection;
+	private final int id;
+	private String method;
+	private String path;
+	private String headerNames[];
+	private String headerValues[];
+	private int headerCount;
+	/**
+	 * Send window, guarded by the connection.
+	 */
+	int sendWindow;
+	private final ArrayDeque<byte[]> received = new ArrayDeque<byte[]>();
+	private int receivedOffset;
+	private int buffered;
+	private int receiveWindow = Http2Connection.STREAM_WINDOW;
+	/**
+	 * Bytes read since the receive window was last opened.
+	 */
+	private int consumed;
+	private boolean inputEnded;
+	private volatile boolean outputEnded;
+	/**
+	 * Error code the stream was reset with, or -1.
+	 */
+	private volatile int resetError = -1;
+	private volatile boolean closed;
+	private volatile int timeout;
+	private final InputStream in;
+	private final OutputStream out;
+
+	private Http2Stream(final Http2Connection connection, final int id, final int sendWindow) throws SocketException {
+		super((SocketImpl) null);
+		this.connection = connection;
+		this.id = id;
+		this.sendWindow = sendWindow;
+		in = new StreamInputStream();
+		out = new StreamOutputStream();
+	}
+
+	/**
+	 * Build a new stream from the fields of its HEADERS frames, as decoded.
+	 *
+	 * @throws Http2Exception
+	 *             a stream error if the request is malformed.
+	 */
+	Http2Stream(final Http2Connection connection, final int id, final List<String> names, final List<String> values, final int sendWindow) throws SocketException, Http2Exception {
+		this(connection, id, sendWindow);
+		final int count = names.size();
+		// room for the joined cookies and the host
+		headerNames = new String[count + 2];
+		headerValues = new String[count + 2];
+		String scheme = null;
+		String authority = null;
+		StringBuilder cookies = null;
+		boolean host = Boolean.FALSE;
+		boolean regular = Boolean.FALSE;
+		for (int n = 0; n < count; n++) {
+			final String name = names.get(n);
+			final String value = values.get(n);
+			if (name.startsWith(":")) {
+				if (regular) {
+					throw malformed("Pseudo-header field " + name + " after regular fields");
+				} else if (name.equals(":method") && method == null) {
+					method = value;
+				} else if (name.equals(":scheme") && scheme == null) {
+					scheme = value;
+				} else if (name.equals(":path") && path == null) {
+					path = value;
+				} else if (name.equals(":authority") && authority == null) {
+					authority = value;
+				} else {
+					throw malformed("Invalid pseudo-header field " + name);
+				}
+				continue;
+			}
+			regular = Boolean.TRUE;
+			for (int c = 0; c < name.length(); c++) {
+				if (name.charAt(c) >= 'A' && name.charAt(c) <= 'Z') {
+					throw malformed("Upper case field name " + name);
+				}
+			}
+			if (Http2Stream.isConnectionHeader(name) || (name.equals("te") && !value.equalsIgnoreCase("trailers"))) {
+				throw malformed("Connection-specific field " + name);
+			} else if (name.equals("cookie")) {
+				// split into crumbs to compress better
+				cookies = cookies == null ? new StringBuilder(value) : cookies.append("; ").append(value);
+				continue;
+			} else if (name.equals("host")) {
+				host = Boolean.TRUE;
+			}
+			addHeader(name, value);
+		}
+		if (method == null || scheme == null || path == null || path.length() == 0) {
+			throw malformed("Missing pseudo-header field");
+		}
+		if (cookies != null) {
+			addHeader("cookie", cookies.toString());
+		}
+		if (!host && authority != null) {
+			addHeader("host", authority);
+		}
+	}
+
+	/**
+	 * Build a new stream 1 from the HTTP/1.1 request upgrading its connection,
+	 * without the fields of that connection.
+	 */
+	Http2Stream(final Http2Connection connection, final String method, final String path, final String names[], final String values[], final int count, final int sendWindow) throws SocketException {
+		this(connection, 1, sendWindow);
+		this.method = method;
+		this.path = path;
+		headerNames = new String[count];
+		headerValues = new String[count];
+		for (int n = 0; n < count; n++) {
+			final String name = names[n].toLowerCase(Locale.ENGLISH);
+			if (!Http2Stream.isConnectionHeader(name) && !name.equals("te") && !name.equals("http2-settings")) {
+				addHeader(name, values[n]);
+			}
+		}
+	}
+
+	private void addHeader(final String name, final String value) {
+		headerNames[headerCount] = name;
+		headerValues[headerCount] = value;
+		headerCount++;
+	}
+
+	private Http2Exception malformed(final String message) {
+		return new Http2Exception(Http2Connection.PROTOCOL_ERROR, id, message);
+	}
+
+	/**
+	 * @param name
+	 *            in lower case
+	 * @return Boolean.TRUE for the fields about an HTTP/1 connection, which
+	 *         HTTP/2 does without.
+	 */
+	static boolean isConnectionHeader(final String name) {
+		return name.equals("connection") || name.equals("keep-alive") || name.equals("proxy-connection") || name.equals("transfer-encoding") || name.equals("upgrade");
+	}
+
+	int getId() {
+		return id;
+	}
+
+	String getMethod() {
+		return method;
+	}
+
+	/**
+	 * @return the request target, query included.
+	 */
+	String getPath() {
+		return path;
+	}
+
+	String[] getHeaderNames() {
+		return headerNames;
+	}
+
+	String[] getHeaderValues() {
+		return headerValues;
+	}
+
+	int getHeaderCount() {
+		return headerCount;
+	}
+
+	Socket getConnectionSocket() {
+		return connection.getSocket();
+	}
+
+	/**
+	 * Takes the body bytes of a DATA frame.
+	 *
+	 * @param length
+	 *            bytes of data
+	 * @param frameLength
+	 *            bytes counted against the window, padding included
+	 */
+	synchronized void receive(final byte data[], final int offset, final int length, final int frameLength, final boolean end) throws Http2Exception {
+		if (inputEnded) {
+			throw new Http2Exception(Http2Connection.STREAM_CLOSED, id, "Frame after END_STREAM");
+		} else if (frameLength > receiveWindow) {
+			throw new Http2Exception(Http2Connection.FLOW_CONTROL_ERROR, id, "Stream window exceeded");
+		}
+		receiveWindow -= frameLength;
+		// the padding is as good as read
+		consumed += frameLength - length;
+		if (length > 0 && !closed) {
+			received.add(Arrays.copyOfRange(data, offset, offset + length));
+			buffered += length;
+		}
+		inputEnded = end;
+		notifyAll();
+	}
+
+	synchronized void endInput() {
+		inputEnded = Boolean.TRUE;
+		notifyAll();
+	}
+
+	synchronized boolean isInputEnded() {
+		return inputEnded;
+	}
+
+	/**
+	 * Marks the end of the response, sent with the last frame written.
+	 */
+	void endOutput() {
+		outputEnded = Boolean.TRUE;
+	}
+
+	/**
+	 * Stops the stream, reset by the client or on a stream error, or as its
+	 * connection closed.
+	 */
+	synchronized void reset(final int error) {
+		resetError = error;
+		notifyAll();
+	}
+
+	boolean isReset() {
+		return resetError >= 0;
+	}
+
+	/**
+	 * Turns the stream away when the request handlers are saturated: the
+	 * client may retry it.
+	 */
+	void refuse() {
+		try {
+			connection.writeReset(id, Http2Connection.REFUSED_STREAM);
+		} catch (final IOException e) {
+			// the connection is gone
+		}
+		reset(Http2Connection.REFUSED_STREAM);
+		closed = Boolean.TRUE;
+		connection.streamClosed(this);
+	}
+
+	void writeHeaders(final int status, final String names[], final String values[], final int count, final boolean endStream) throws IOException {
+		connection.writeHeaders(this, status, names, values, count, endStream);
+	}
+
+	void writeData(final byte data[], final int offset, final int length, final boolean endStream) throws IOException {
+		connection.writeData(this, data, offset, length, endStream);
+	}
+
+	private int read(final byte b[], final int off, final int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		int count = 0;
+		int increment = 0;
+		synchronized (this) {
+			final long deadline = System.currentTimeMillis() + timeout;
+			while (buffered == 0 && !inputEnded && resetError < 0) {
+				final long wait = timeout == 0 ? 0 : deadline - System.currentTimeMillis();
+				if (timeout > 0 && wait <= 0) {
+					throw new SocketTimeoutException("Read timed out");
+				}
+				try {
+					wait(wait);
+				} catch (final InterruptedException e) {
+					throw new InterruptedIOException("Interrupted reading " + this);
+				}
+			}
+			if (resetError >= 0) {
+				throw new SocketException("HTTP/2 stream reset");
+			} else if (buffered == 0) {
+				return -1;
+			}
+			while (count < len && buffered > 0) {
+				final byte chunk[] = received.peek();
+				final int length = Math.min(len - count, chunk.length - receivedOffset);
+				System.arraycopy(chunk, receivedOffset, b, off + count, length);
+				count += length;
+				receivedOffset += length;
+				buffered -= length;
+				if (receivedOffset == chunk.length) {
+					received.poll();
+					receivedOffset = 0;
+				}
+			}
+			consumed += count;
+			if (!inputEnded && consumed >= Http2Connection.STREAM_WINDOW / 2) {
+				increment = consumed;
+				receiveWindow += increment;
+				consumed = 0;
+			}
+		}
+		if (increment > 0) {
+			connection.writeWindowUpdate(id, increment);
+		}
+		return count;
+	}
+
+	private synchronized int available() {
+		return buffered;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return in;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return out;
+	}
+
+	@Override
+	public void setSoTimeout(final int timeout) throws SocketException {
+		this.timeout = timeout;
+	}
+
+	@Override
+	public int getSoTimeout() throws SocketException {
+		return timeout;
+	}
+
+	@Override
+	public void setTcpNoDelay(final boolean on) throws SocketException {
+		// up to the connection
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return connection.getSocket().getInetAddress();
+	}
+
+	@Override
+	public InetAddress getLocalAddress() {
+		return connection.getSocket().getLocalAddress();
+	}
+
+	@Override
+	public int getPort() {
+		return connection.getSocket().getPort();
+	}
+
+	@Override
+	public int getLocalPort() {
+		return connection.getSocket().getLocalPort();
+	}
+
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		return connection.getSocket().getRemoteSocketAddress();
+	}
+
+	@Override
+	public SocketAddress getLocalSocketAddress() {
+		return connection.getSocket().getLocalSocketAddress();
+	}
+
+	@Override
+	public boolean isConnected() {
+		return Boolean.TRUE;
+	}
+
+	@Override
+	public boolean isBound() {
+		return Boolean.TRUE;
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public void shutdownInput() throws IOException {
+		// the end of the request is the client's to send
+	}
+
+	@Override
+	public void shutdownOutput() throws IOException {
+		// the end of the response is sent with its last frame
+	}
+
+	/**
+	 * Done with by the request handler: a response left unfinished is reset,
+	 * and so is the request body if it was not read to its end, so the client
+	 * stops sending it.
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = Boolean.TRUE;
+		if (!isReset()) {
+			final int error = !outputEnded ? Http2Connection.INTERNAL_ERROR : !isInputEnded() ? Http2Connection.NO_ERROR : -1;
+			if (error >= 0) {
+				try {
+					connection.writeReset(id, error);
+				} catch (final IOException e) {
+					// the connection is gone
+				}
+			}
+		}
+		synchronized (this) {
+			received.clear();
+			buffered = 0;
+		}
+		connection.streamClosed(this);
+	}
+
+	@Override
+	public String toString() {
+		return "Http2Stream[" + id + " on " + connection.getSocket() + "]";
+	}
+
+	private final class StreamInputStream extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			final byte b[] = new byte[1];
+			return Http2Stream.this.read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			return Http2Stream.this.read(b, off, len);
+		}
+
+		@Override
+		public int available() throws IOException {
+			return Http2Stream.this.available();
+		}
+	}
+
+	private final class StreamOutputStream extends OutputStream {
+
+		@Override
+		public void write(final int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			writeData(b, off, len, Boolean.FALSE);
+		}
+	}
+}
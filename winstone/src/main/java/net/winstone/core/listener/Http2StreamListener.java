@@ -0,0 +1,118 @@
+package net.winstone.core.listener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketException;
+
+import net.winstone.core.WinstoneConstant;
+import net.winstone.core.WinstoneInputStream;
+import net.winstone.core.WinstoneOutputStream;
+import net.winstone.core.WinstoneRequest;
+import net.winstone.core.WinstoneResponse;
+
+/**
+ * What the request handler threads go through for the streams of the HTTP/2
+ * connections of a listener: each stream is handled as a connection carrying a
+ * single request, whose head is already decoded. There is one per listener
+ * with HTTP/2 on, and it is never started: streams come from the connections.
+ */
+final class Http2StreamListener implements Listener {
+
+	private final HttpListener listener;
+
+	Http2StreamListener(final HttpListener listener) {
+		super();
+		this.listener = listener;
+	}
+
+	@Override
+	public void destroy() {
+		// the connections go with their listener
+	}
+
+	@Override
+	public boolean start() throws IOException {
+		return Boolean.FALSE;
+	}
+
+	@Override
+	public InputStream getSocketInputStream(final Socket socket) throws IOException {
+		return socket.getInputStream();
+	}
+
+	@Override
+	public void allocateRequestResponse(final Socket socket, final InputStream inSocket, final OutputStream outSocket, final RequestHandlerThread handler, final boolean iAmFirst) throws SocketException, IOException {
+		final Http2Stream stream = (Http2Stream) socket;
+		stream.setSoTimeout(HttpListener.CONNECTION_TIMEOUT);
+
+		final WinstoneInputStream inData = new WinstoneInputStream(inSocket);
+		final WinstoneOutputStream outData = new Http2OutputStream(stream, listener.objectPool.getResponseBufferPool());
+		final WinstoneRequest request = handler.takeRequest();
+		final WinstoneResponse rsp = handler.takeResponse();
+		outData.setResponse(rsp);
+		request.setInputStream(inData);
+		rsp.setOutputStream(outData);
+		rsp.setRequest(request);
+		request.setHostGroup(listener.hostGroup);
+
+		handler.setRequest(request);
+		handler.setResponse(rsp);
+		handler.setInStream(inData);
+		handler.setOutStream(outData);
+
+		rsp.setHeader(WinstoneConstant.SERVER_HEADER, WinstoneResponse.SERVER_HEADER_VALUE);
+	}
+
+	@Override
+	public void deallocateRequestResponse(final RequestHandlerThread handler, final WinstoneRequest req, final WinstoneResponse rsp, final WinstoneInputStream inData, final WinstoneOutputStream outData) throws IOException {
+		listener.deallocateRequestResponse(handler, req, rsp, inData, outData);
+	}
+
+	/**
+	 * Fills the request from the decoded head of the stream. The body, if
+	 * any, runs to the end of the stream unless its length is given.
+	 */
+	@Override
+	public String parseURI(final RequestHandlerThread handler, final WinstoneRequest req, final WinstoneResponse rsp, final WinstoneInputStream inData, final Socket socket, final boolean iAmFirst) throws IOException {
+		final Http2Stream stream = (Http2Stream) socket;
+		listener.parseSocketInfo(stream.getConnectionSocket(), req);
+		handler.setRequestStartTime();
+
+		req.setProtocol(Http2Connection.PROTOCOL);
+		rsp.setProtocol(Http2Connection.PROTOCOL);
+		req.setMethod(stream.getMethod());
+		req.parseHeaders(stream.getHeaderNames(), stream.getHeaderValues(), stream.getHeaderCount());
+		listener.countRequest(null, rsp);
+		final int contentLength = req.getContentLength();
+		if (contentLength >= 0) {
+			inData.setContentLength(contentLength);
+		}
+		if (req.isContinueExpected() && !stream.isInputEnded()) {
+			inData.setContinueStream(rsp.getWinstoneOutputStream());
+		}
+		return stream.getPath();
+	}
+
+	@Override
+	public void releaseSocket(final Socket socket, final InputStream inSocket, final OutputStream outSocket) throws IOException {
+		socket.close();
+	}
+
+	/**
+	 * Refuses the stream, which the client may then retry.
+	 */
+	@Override
+	public void rejectConnection(final Socket socket, final byte[] overloadResponse) throws IOException {
+		((Http2Stream) socket).refuse();
+	}
+
+	/**
+	 * A stream carries a single request.
+	 */
+	@Override
+	public boolean processKeepAlive(final WinstoneRequest request, final WinstoneResponse response, final InputStream inSocket) throws IOException, InterruptedException {
+		return Boolean.FALSE;
+	}
+}
@@ -12,21 +12,30 @@ import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketOption;
+import java.nio.channels.ServerSocketChannel;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-import net.winstone.WinstoneException;
-import net.winstone.WinstoneResourceBundle;
 import net.winstone.core.HostGroup;
 import net.winstone.core.ObjectPool;
+import net.winstone.core.SocketInputBuffer;
+import net.winstone.core.SocketOutputBuffer;
+import net.winstone.core.WinstoneConstant;
 import net.winstone.core.WinstoneInputStream;
 import net.winstone.core.WinstoneOutputStream;
 import net.winstone.core.WinstoneRequest;
 import net.winstone.core.WinstoneResponse;
+import net.winstone.util.BufferPool;
 import net.winstone.util.StringUtils;
 
 import org.slf4j.Logger;
@@ -36,11 +45,39 @@ import org.slf4j.LoggerFactory;
  * Implements the main listener daemon thread. This is the class that gets
  * launched by the command line, and owns the server socket, etc. Note that this
  * class is also used as the base class for the HTTPS listener.
+ * <p>
+ * Connections are accepted by one or more acceptor threads. They share the
+ * server socket, or with SO_REUSEPORT each binds its own and the kernel
+ * spreads the incoming connections between them.
+ * <p>
+ * With --httpParkKeepAlive, a connection waiting for its next request is
+ * parked on a {@link KeepAliveSelector} rather than holding a request handler
+ * thread, and goes back to the request handler pool when the request arrives.
+ * <p>
+ * The keep alive timeout shrinks from --httpKeepAliveTimeout towards
+ * --httpKeepAliveTimeoutMin as the request handlers fill up, so that idle
+ * connections give way to new clients under load, and a connection can be
+ * limited to --httpKeepAliveMaxRequests requests.
+ * <p>
+ * When a client pipelines requests, the responses to those already read are
+ * held in a {@link SocketOutputBuffer} and leave together, at most
+ * --httpPipelineFlushDelay milliseconds late.
+ * <p>
+ * With --httpHttp2, a connection may also speak HTTP/2: from the start with
+ * prior knowledge, after an "Upgrade: h2c" request, or as negotiated with ALPN
+ * by the HTTPS listener. The request handler thread that took the connection
+ * then reads its frames, and each stream is handled by a thread of its own,
+ * through a {@link Http2StreamListener}. As each HTTP/2 connection holds a
+ * request handler for as long as it is open, idle or not, at most
+ * --httpHttp2MaxConnections connections speak HTTP/2 at once, by default half
+ * the request handlers, so that the others are left for the streams. Beyond
+ * that, an "Upgrade: h2c" is ignored and the request answered over HTTP/1.1,
+ * and a client starting with HTTP/2 is turned away with a GOAWAY.
  * 
  * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
  * @version $Id: HttpListener.java,v 1.15 2007/05/01 04:39:49 rickknowles Exp $
  */
-public class HttpListener implements Listener, Runnable {
+public class HttpListener implements Listener {
 
 	private static Logger logger = LoggerFactory.getLogger(HttpListener.class);
 	protected static int LISTENER_TIMEOUT = 5000; // every 5s reset the
@@ -49,29 +86,100 @@ public class HttpListener implements Listener, Runnable {
 	protected static int BACKLOG_COUNT = 5000;
 	protected static boolean DEFAULT_HNL = Boolean.FALSE;
 	protected static int KEEP_ALIVE_TIMEOUT = 10000;
+	protected static int KEEP_ALIVE_TIMEOUT_MIN = 1000;
+	protected static int PIPELINE_FLUSH_DELAY = 5;
 	protected static int KEEP_ALIVE_SLEEP = 20;
 	protected static int KEEP_ALIVE_SLEEP_MAX = 500;
+	protected static int HTTP2_MAX_CONCURRENT_STREAMS = 100;
+	/**
+	 * Status of a request with a header line too long, unknown to the servlet
+	 * API.
+	 */
+	private static final int SC_REQUEST_HEADER_FIELDS_TOO_LARGE = 431;
 	protected final HostGroup hostGroup;
 	protected final ObjectPool objectPool;
 	protected boolean doHostnameLookups;
 	protected int listenPort;
 	protected String listenAddress;
 	protected boolean interrupted = Boolean.FALSE;
+	/**
+	 * Number of threads accepting connections.
+	 */
+	protected int acceptors;
+	/**
+	 * Boolean.TRUE if each acceptor binds its own socket with SO_REUSEPORT.
+	 */
+	protected boolean reusePort;
+	/**
+	 * Boolean.TRUE if idle keep-alive connections are parked on a selector.
+	 */
+	protected boolean parkKeepAlive;
+	/**
+	 * Keep alive timeout when the request handlers are idle, in milliseconds.
+	 */
+	protected int keepAliveTimeout;
+	/**
+	 * Keep alive timeout when the request handlers are all busy.
+	 */
+	protected int keepAliveTimeoutMin;
+	/**
+	 * Most requests served on a connection, 0 for no limit.
+	 */
+	protected int keepAliveMaxRequests;
+	/**
+	 * Longest time pipelined responses are held back, in nanoseconds, 0 to
+	 * send each one as soon as it is done.
+	 */
+	protected long pipelineFlushDelay;
+	/**
+	 * Streams of the HTTP/2 connections, or null if HTTP/2 is off.
+	 */
+	private final Http2StreamListener http2Streams;
+	/**
+	 * Most streams open at once on an HTTP/2 connection.
+	 */
+	protected int http2MaxConcurrentStreams;
+	/**
+	 * Most connections speaking HTTP/2 at once, always fewer than the request
+	 * handlers, and how many do.
+	 */
+	protected int http2MaxConnections;
+	private final AtomicInteger http2Connections = new AtomicInteger();
+	private KeepAliveSelector keepAliveSelector;
+	/**
+	 * Parked connections on their way back to a request handler thread, which
+	 * picks up their read buffer in {@link #getSocketInputStream(Socket)}.
+	 */
+	private final Map<Socket, ConnectionInputBuffer> resumedConnections = new ConcurrentHashMap<Socket, ConnectionInputBuffer>();
+	private final AtomicLong requestCount = new AtomicLong();
+	private final AtomicLong reusedRequestCount = new AtomicLong();
 	private final String serverVersion;
-	private ServerSocket serverSocket;
+	private final List<ServerSocket> serverSockets = new ArrayList<ServerSocket>();
+	private final AtomicInteger runningAcceptors = new AtomicInteger();
 
 	/**
 	 * Constructor
 	 */
 	public HttpListener(final Map<String, String> args, final ObjectPool objectPool, final HostGroup hostGroup) throws IOException {
 		super();
-		serverVersion = WinstoneResourceBundle.getInstance().getString("ServerVersion");
+		serverVersion = WinstoneResponse.SERVER_HEADER_VALUE;
 		// Load resources
 		this.hostGroup = hostGroup;
 		this.objectPool = objectPool;
 		listenPort = Integer.parseInt(StringUtils.stringArg(args, getConnectorName() + "Port", "" + getDefaultPort()));
 		listenAddress = StringUtils.stringArg(args, getConnectorName() + "ListenAddress", null);
 		doHostnameLookups = StringUtils.booleanArg(args, getConnectorName() + "DoHostnameLookups", HttpListener.DEFAULT_HNL);
+		acceptors = Math.max(1, StringUtils.intArg(args, getConnectorName() + "Acceptors", 1));
+		reusePort = acceptors > 1 && StringUtils.booleanArg(args, getConnectorName() + "ReusePort", Boolean.FALSE);
+		parkKeepAlive = StringUtils.booleanArg(args, getConnectorName() + "ParkKeepAlive", Boolean.FALSE);
+		keepAliveTimeout = Math.max(StringUtils.intArg(args, getConnectorName() + "KeepAliveTimeout", HttpListener.KEEP_ALIVE_TIMEOUT), 1);
+		keepAliveTimeoutMin = Math.min(Math.max(StringUtils.intArg(args, getConnectorName() + "KeepAliveTimeoutMin", HttpListener.KEEP_ALIVE_TIMEOUT_MIN), 1), keepAliveTimeout);
+		keepAliveMaxRequests = Math.max(StringUtils.intArg(args, getConnectorName() + "KeepAliveMaxRequests", 0), 0);
+		pipelineFlushDelay = TimeUnit.MILLISECONDS.toNanos(Math.max(StringUtils.intArg(args, getConnectorName() + "PipelineFlushDelay", HttpListener.PIPELINE_FLUSH_DELAY), 0));
+		http2Streams = StringUtils.booleanArg(args, getConnectorName() + "Http2", Boolean.FALSE) ? new Http2StreamListener(this) : null;
+		http2MaxConcurrentStreams = Math.max(StringUtils.intArg(args, getConnectorName() + "Http2MaxConcurrentStreams", HttpListener.HTTP2_MAX_CONCURRENT_STREAMS), 1);
+		final int handlers = objectPool.getMaxRequestHandlers();
+		http2MaxConnections = Math.min(Math.max(StringUtils.intArg(args, getConnectorName() + "Http2MaxConnections", handlers / 2), 0), handlers - 1);
 	}
 
 	@Override
@@ -83,12 +191,33 @@ public class HttpListener implements Listener, Runnable {
 
 			final ServerSocket ss = getServerSocket();
 			ss.setSoTimeout(LISTENER_TIMEOUT);
+			serverSockets.clear();
+			serverSockets.add(ss);
 			HttpListener.logger.info("{} Listener started: port={}", getConnectorName().toUpperCase(), listenPort + "");
-			serverSocket = ss;
+			if (parkKeepAlive && ss.getChannel() != null) {
+				// parked connections hold no thread: no need to shorten their wait
+				keepAliveSelector = new KeepAliveSelector(this, keepAliveTimeout);
+				final Thread thread = new Thread(keepAliveSelector, "KeepAliveSelector:" + getConnectorName() + "-" + Integer.toString(listenPort));
+				thread.setDaemon(Boolean.TRUE);
+				thread.start();
+			}
+			if (acceptors > 1) {
+				HttpListener.logger.info("{} Listener accepting on {} threads{}", new Object[] { getConnectorName().toUpperCase(), acceptors + "", reusePort ? " with SO_REUSEPORT" : "" });
+			}
 
-			final Thread thread = new Thread(this, "ConnectorThread:" + getConnectorName() + "-" + Integer.toString(listenPort));
-			thread.setDaemon(Boolean.TRUE);
-			thread.start();
+			for (int n = 0; n < acceptors; n++) {
+				ServerSocket acceptorSocket = ss;
+				if (reusePort && n > 0) {
+					acceptorSocket = getServerSocket();
+					acceptorSocket.setSoTimeout(LISTENER_TIMEOUT);
+					serverSockets.add(acceptorSocket);
+				}
+				runningAcceptors.incrementAndGet();
+				final String name = "ConnectorThread:" + getConnectorName() + "-" + Integer.toString(listenPort) + (n > 0 ? "-" + n : "");
+				final Thread thread = new Thread(new Acceptor(acceptorSocket), name);
+				thread.setDaemon(Boolean.TRUE);
+				thread.start();
+			}
 			return Boolean.TRUE;
 		}
 	}
@@ -103,9 +232,9 @@ public class HttpListener implements Listener, Runnable {
 
 	/**
 	 * The name to use when getting properties - this is just so that we can
-	 * override for the SSL connector.
+	 * override for the SSL and NIO connectors.
 	 */
-	protected final String getConnectorName() {
+	protected String getConnectorName() {
 		return getConnectorScheme();
 	}
 
@@ -114,59 +243,195 @@ public class HttpListener implements Listener, Runnable {
 	}
 
 	/**
-	 * Gets a server socket - this is mostly for the purpose of allowing an
-	 * override in the SSL connector.
+	 * Gets a bound server socket, with SO_REUSEPORT set if each acceptor has
+	 * its own.
 	 */
 	protected ServerSocket getServerSocket() throws IOException {
+		final ServerSocket ss = createServerSocket();
 		try {
-			return this.listenAddress == null ? new ServerSocket(this.listenPort, BACKLOG_COUNT) : new ServerSocket(this.listenPort, BACKLOG_COUNT, InetAddress.getByName(this.listenAddress));
+			if (reusePort && !HttpListener.setReusePort(ss)) {
+				HttpListener.logger.warn("SO_REUSEPORT is not available, {} acceptors share one socket", getConnectorName().toUpperCase());
+				reusePort = Boolean.FALSE;
+			}
+			ss.bind(listenAddress == null ? new InetSocketAddress(listenPort) : new InetSocketAddress(InetAddress.getByName(listenAddress), listenPort), BACKLOG_COUNT);
+			return ss;
 		} catch (final IOException e) {
+			ss.close();
 			throw (IOException) new IOException("Failed to listen on port " + listenPort).initCause(e);
 		}
 	}
 
 	/**
-	 * The main run method. This continually listens for incoming connections,
-	 * and allocates any that it finds to a request handler thread, before going
-	 * back to listen again.
+	 * Creates an unbound server socket - this is mostly for the purpose of
+	 * allowing an override in the SSL connector.
 	 */
-	@Override
-	public void run() {
+	protected ServerSocket createServerSocket() throws IOException {
+		// accepted sockets have a channel only if the server socket has one
+		return parkKeepAlive ? ServerSocketChannel.open().socket() : new ServerSocket();
+	}
+
+	/**
+	 * Sets SO_REUSEPORT, which only Java 9 and later expose.
+	 * 
+	 * @return Boolean.FALSE if the option is not supported.
+	 */
+	private static boolean setReusePort(final ServerSocket ss) {
 		try {
-			// Enter the main loop
-			while (!interrupted) {
-				// Get the listener
-				Socket s = null;
-				try {
-					s = serverSocket.accept();
-				} catch (final java.io.InterruptedIOException err) {
-					s = null;
-				}
+			final Object option = Class.forName("java.net.StandardSocketOptions").getField("SO_REUSEPORT").get(null);
+			ServerSocket.class.getMethod("setOption", SocketOption.class, Object.class).invoke(ss, option, Boolean.TRUE);
+			return Boolean.TRUE;
+		} catch (final Exception e) {
+			// before Java 9, or not supported on this platform
+			return Boolean.FALSE;
+		}
+	}
+
+	/**
+	 * One of the acceptor threads. This continually listens for incoming
+	 * connections, and allocates any that it finds to a request handler
+	 * thread, before going back to listen again.
+	 */
+	private final class Acceptor implements Runnable {
+
+		private final ServerSocket serverSocket;
+
+		Acceptor(final ServerSocket serverSocket) {
+			super();
+			this.serverSocket = serverSocket;
+		}
 
-				// if we actually got a socket, process it. Otherwise go around
-				// again
-				if (s != null) {
-					objectPool.handleRequest(s, this);
+		@Override
+		public void run() {
+			try {
+				// Enter the main loop
+				while (!interrupted) {
+					if (objectPool.pauseAccept()) {
+						// saturated: new connections wait in the backlog
+						continue;
+					}
+					// Get the listener
+					Socket s = null;
+					try {
+						s = serverSocket.accept();
+					} catch (final java.io.InterruptedIOException err) {
+						s = null;
+					}
+
+					// if we actually got a socket, process it. Otherwise go
+					// around again
+					if (s != null) {
+						objectPool.handleRequest(s, HttpListener.this);
+					}
 				}
+			} catch (final Throwable err) {
+				HttpListener.logger.error("Error in " + getConnectorName().toUpperCase() + " listener", err);
+			} finally {
+				acceptorStopped(serverSocket);
 			}
+		}
+	}
 
-			// Close server socket
-			serverSocket.close();
-			serverSocket = null;
-
-			HttpListener.logger.info("{} Listener shutdown successfully", getConnectorName().toUpperCase());
-		} catch (final Throwable err) {
-			HttpListener.logger.error("Error during " + getConnectorName().toUpperCase() + " listener init or shutdown", err);
+	/**
+	 * Closes the socket of an acceptor once no other acceptor uses it.
+	 */
+	private void acceptorStopped(final ServerSocket serverSocket) {
+		try {
+			if (reusePort) {
+				serverSocket.close();
+			}
+			if (runningAcceptors.decrementAndGet() == 0) {
+				for (final ServerSocket ss : serverSockets) {
+					ss.close();
+				}
+				serverSockets.clear();
+				HttpListener.logger.info("{} Listener shutdown successfully", getConnectorName().toUpperCase());
+			}
+		} catch (final IOException err) {
+			HttpListener.logger.error("Error during " + getConnectorName().toUpperCase() + " listener shutdown", err);
 		}
 	}
 
 	/**
-	 * Interrupts the listener thread. This will trigger a listener shutdown
+	 * Interrupts the acceptor threads. This will trigger a listener shutdown
 	 * once the so timeout has passed.
 	 */
 	@Override
 	public void destroy() {
 		interrupted = Boolean.TRUE;
+		if (keepAliveSelector != null) {
+			keepAliveSelector.destroy();
+			keepAliveSelector = null;
+		}
+	}
+
+	/**
+	 * Wraps the socket stream in a pooled read buffer kept for the life of the
+	 * connection, so a request head usually arrives in a single read.
+	 */
+	@Override
+	public InputStream getSocketInputStream(final Socket socket) throws IOException {
+		final ConnectionInputBuffer resumed = resumedConnections.remove(socket);
+		if (resumed != null) {
+			return resumed;
+		}
+		final boolean parkable = keepAliveSelector != null && socket.getChannel() != null;
+		return new ConnectionInputBuffer(socket.getInputStream(), objectPool.getReadBufferPool(), parkable);
+	}
+
+	/**
+	 * Hands a parked connection, whose next request has arrived, back to the
+	 * request handler pool.
+	 */
+	void resumeConnection(final Socket socket, final ConnectionInputBuffer connection) throws IOException, InterruptedException {
+		resumedConnections.put(socket, connection);
+		objectPool.handleRequest(socket, this);
+	}
+
+	/**
+	 * @return the keep alive timeout for the current load: the longest with
+	 *         idle request handlers, down to the shortest when they are all
+	 *         busy.
+	 */
+	public int getKeepAliveTimeout() {
+		final int maximum = objectPool.getMaxRequestHandlers();
+		if (keepAliveTimeoutMin == keepAliveTimeout || maximum <= 0) {
+			return keepAliveTimeout;
+		}
+		final double occupancy = Math.min((double) objectPool.getActiveRequestHandlers() / maximum, 1.0);
+		return keepAliveTimeout - (int) ((keepAliveTimeout - keepAliveTimeoutMin) * occupancy);
+	}
+
+	/**
+	 * @return the number of requests received.
+	 */
+	public long getRequestCount() {
+		return requestCount.get();
+	}
+
+	/**
+	 * @return the number of requests received on a connection kept alive
+	 *         after a previous request.
+	 */
+	public long getReusedRequestCount() {
+		return reusedRequestCount.get();
+	}
+
+	/**
+	 * @return the share of the requests that reused a kept alive connection,
+	 *         between 0 and 1.
+	 */
+	public double getKeepAliveReuseRatio() {
+		final long requests = requestCount.get();
+		return requests == 0 ? 0 : (double) reusedRequestCount.get() / requests;
+	}
+
+	/**
+	 * @return the number of idle keep-alive connections parked, without a
+	 *         request handler thread.
+	 */
+	public int getParkedConnections() {
+		final KeepAliveSelector selector = keepAliveSelector;
+		return selector == null ? 0 : selector.getParkedCount();
 	}
 
 	/**
@@ -184,9 +449,17 @@ public class HttpListener implements Listener, Runnable {
 
 		// Build input/output streams, plus request/response
 		final WinstoneInputStream inData = new WinstoneInputStream(inSocket);
-		final WinstoneOutputStream outData = new WinstoneOutputStream(outSocket, Boolean.FALSE);
-		final WinstoneRequest request = objectPool.getRequestFromPool();
-		final WinstoneResponse rsp = objectPool.getResponseFromPool();
+		OutputStream out = outSocket;
+		if (pipelineFlushDelay > 0 && inSocket instanceof ConnectionInputBuffer) {
+			final ConnectionInputBuffer connection = (ConnectionInputBuffer) inSocket;
+			if (connection.output == null) {
+				connection.output = new SocketOutputBuffer(outSocket, objectPool.getReadBufferPool(), pipelineFlushDelay);
+			}
+			out = connection.output;
+		}
+		final WinstoneOutputStream outData = new WinstoneOutputStream(out, socket.getChannel(), objectPool.getResponseBufferPool());
+		final WinstoneRequest request = handler.takeRequest();
+		final WinstoneResponse rsp = handler.takeResponse();
 		outData.setResponse(rsp);
 		request.setInputStream(inData);
 		rsp.setOutputStream(outData);
@@ -204,7 +477,7 @@ public class HttpListener implements Listener, Runnable {
 		// must be the first header. Ajp13 listener can defer to the Apache
 		// Server
 		// header
-		rsp.setHeader("Server", serverVersion);
+		rsp.setHeader(WinstoneConstant.SERVER_HEADER, serverVersion);
 	}
 
 	/**
@@ -218,12 +491,8 @@ public class HttpListener implements Listener, Runnable {
 		handler.setOutStream(null);
 		handler.setRequest(null);
 		handler.setResponse(null);
-		if (req != null) {
-			objectPool.releaseRequestToPool(req);
-		}
-		if (rsp != null) {
-			objectPool.releaseResponseToPool(rsp);
-		}
+		// kept for the next request on this connection
+		handler.keepRequestResponse(req, rsp);
 	}
 
 	@Override
@@ -232,12 +501,13 @@ public class HttpListener implements Listener, Runnable {
 
 		// Read the header line (because this is the first line of the request,
 		// apply keep-alive timeouts to it if we are not the first request)
-		socket.setSoTimeout(KEEP_ALIVE_TIMEOUT);
+		socket.setSoTimeout(getKeepAliveTimeout());
 
-		byte uriBuffer[] = null;
+		final HttpRequestParser parser = handler.getRequestParser();
+		boolean started = Boolean.FALSE;
 		try {
 			HttpListener.logger.debug("Waiting for a URI line");
-			uriBuffer = inData.readLine();
+			started = parser.parseRequestLine(inData);
 		} catch (final InterruptedIOException err) {
 			// keep alive timeout ? ignore if not first
 			if (iAmFirst) {
@@ -245,29 +515,152 @@ public class HttpListener implements Listener, Runnable {
 			} else {
 				return null;
 			}
+		} catch (final HttpRequestParser.LineTooLongException err) {
+			// the protocol of the client was not read
+			rsp.setProtocol("HTTP/1.0");
+			HttpListener.logger.debug("Request line too long", err);
+			HttpListener.sendErrorAndClose(rsp, WinstoneResponse.SC_REQUEST_URI_TOO_LONG, err.getMessage());
+			return null;
 		} finally {
 			try {
 				socket.setSoTimeout(HttpListener.CONNECTION_TIMEOUT);
 			} catch (final Throwable err) {
 			}
 		}
+		if (!started) {
+			throw new SocketException("Empty URI Line");
+		}
+		if ((http2Streams != null) && "PRI".equals(parser.getMethod()) && "*".equals(parser.getURI()) && Http2Connection.PROTOCOL.equals(parser.getProtocol())) {
+			// HTTP/2 with prior knowledge, or negotiated with ALPN: the rest
+			// of the connection preface follows
+			final Http2Connection connection = newHttp2Connection(socket, inData);
+			if (!acquireHttp2Connection()) {
+				HttpListener.logger.debug("Too many HTTP/2 connections - turning one away");
+				connection.refuse();
+				return null;
+			}
+			try {
+				connection.serve(Http2Connection.PREFACE_TAIL);
+			} finally {
+				http2Connections.decrementAndGet();
+			}
+			return null;
+		}
 		handler.setRequestStartTime();
 
 		// Get header data (eg protocol, method, uri, headers, etc)
-		final String uriLine = new String(uriBuffer);
-		if (uriLine.trim().equals("")) {
-			throw new SocketException("Empty URI Line");
+		final String servletURI = parseURILine(parser, req, rsp);
+		try {
+			parseHeaders(req, parser, inData);
+		} catch (final HttpRequestParser.LineTooLongException err) {
+			HttpListener.logger.debug("Request header too long", err);
+			HttpListener.sendErrorAndClose(rsp, HttpListener.SC_REQUEST_HEADER_FIELDS_TOO_LARGE, err.getMessage());
+			return null;
+		}
+		if (req.isTransferEncodingInvalid()) {
+			// the body cannot be delimited, so nothing after it can be read
+			HttpListener.logger.debug("Unsupported Transfer-Encoding: {}", req.getHeader(WinstoneConstant.TRANSFER_ENCODING_HEADER));
+			HttpListener.sendErrorAndClose(rsp, WinstoneResponse.SC_BAD_REQUEST, "Unsupported Transfer-Encoding");
+			return null;
+		}
+		if ((http2Streams != null) && Http2Connection.isUpgradeRequest(req.getProtocol(), req.isSecure(), req.getContentLength(), req.isChunked(), req.getHeader("Upgrade"), req.getHeader(Http2Connection.SETTINGS_HEADER)) && acquireHttp2Connection()) {
+			try {
+				final Http2Connection connection = newHttp2Connection(socket, inData);
+				if (connection.upgrade(req.getHeader(Http2Connection.SETTINGS_HEADER), parser.getMethod(), servletURI, parser.getHeaderNames(), parser.getHeaderValues(), parser.getHeaderCount())) {
+					connection.serve(Http2Connection.PREFACE);
+					return null;
+				}
+			} finally {
+				http2Connections.decrementAndGet();
+			}
 		}
-		final String servletURI = parseURILine(uriLine, req, rsp);
-		parseHeaders(req, inData);
 		rsp.extractRequestKeepAliveHeader(req);
+		countRequest(inData.getRawInputStream(), rsp);
 		final int contentLength = req.getContentLength();
-		if (contentLength != -1) {
-			inData.setContentLength(contentLength);
+		if (req.isChunked()) {
+			inData.setChunked();
+		} else {
+			// no length and no chunks: no body, rather than reading on into
+			// the next request
+			inData.setContentLength(Math.max(contentLength, 0));
+		}
+		// a 100 Continue goes out only if the body gets read
+		if (req.isContinueExpected() && (contentLength > 0 || req.isChunked()) && req.getProtocol().equals("HTTP/1.1")) {
+			inData.setContinueStream(rsp.getWinstoneOutputStream());
+		}
+		if (inData.getRawInputStream() instanceof ConnectionInputBuffer) {
+			final ConnectionInputBuffer connection = (ConnectionInputBuffer) inData.getRawInputStream();
+			if (connection.output != null && !req.isChunked() && connection.buffered() > Math.max(contentLength, 0)) {
+				// the next request is already here: hold this response
+				// until that one is done too
+				connection.output.hold();
+			}
 		}
 		return servletURI;
 	}
 
+	/**
+	 * Answers a request that could not be read whole. Where the next request
+	 * starts is unknown, so the connection closes.
+	 */
+	private static void sendErrorAndClose(final WinstoneResponse rsp, final int status, final String message) throws IOException {
+		rsp.forceCloseAfterRequest();
+		rsp.sendError(status, message);
+		rsp.flushBuffer();
+		rsp.getWinstoneOutputStream().finishResponse();
+	}
+
+	/**
+	 * Counts a connection going on with HTTP/2, unless there are too many
+	 * already.
+	 * 
+	 * @return Boolean.FALSE if the connection must stay with HTTP/1.1.
+	 */
+	private boolean acquireHttp2Connection() {
+		int current;
+		while ((current = http2Connections.get()) < http2MaxConnections) {
+			if (http2Connections.compareAndSet(current, current + 1)) {
+				return Boolean.TRUE;
+			}
+		}
+		return Boolean.FALSE;
+	}
+
+	/**
+	 * Takes a connection over with HTTP/2, sending the responses held for it
+	 * first.
+	 */
+	private Http2Connection newHttp2Connection(final Socket socket, final WinstoneInputStream inData) throws IOException {
+		if (inData.getRawInputStream() instanceof ConnectionInputBuffer) {
+			((ConnectionInputBuffer) inData.getRawInputStream()).flushOutput();
+		}
+		return new Http2Connection(this, http2Streams, socket, inData.getRawInputStream(), http2MaxConcurrentStreams);
+	}
+
+	/**
+	 * @return Boolean.TRUE if connections may speak HTTP/2.
+	 */
+	protected boolean isHttp2() {
+		return http2Streams != null;
+	}
+
+	/**
+	 * Counts a request on its connection, and makes it the last one if the
+	 * connection has served as many as allowed.
+	 */
+	void countRequest(final InputStream inSocket, final WinstoneResponse rsp) {
+		requestCount.incrementAndGet();
+		if (inSocket instanceof ConnectionInputBuffer) {
+			final int requests = ++((ConnectionInputBuffer) inSocket).requests;
+			if (requests > 1) {
+				reusedRequestCount.incrementAndGet();
+			}
+			if (keepAliveMaxRequests > 0 && requests >= keepAliveMaxRequests) {
+				rsp.forceCloseAfterRequest();
+			}
+		}
+	}
+
 	/**
 	 * Called by the request handler thread, because it needs specific shutdown
 	 * code for this connection's protocol if the keep-alive period expires (ie
@@ -276,6 +669,22 @@ public class HttpListener implements Listener, Runnable {
 	 */
 	@Override
 	public void releaseSocket(final Socket socket, final InputStream inSocket, final OutputStream outSocket) throws IOException {
+		if (inSocket instanceof ConnectionInputBuffer) {
+			try {
+				((ConnectionInputBuffer) inSocket).flushOutput();
+			} catch (final IOException e) {
+				HttpListener.logger.debug("Error sending held responses", e);
+			}
+		}
+		final KeepAliveSelector selector = keepAliveSelector;
+		if ((selector != null) && (inSocket instanceof ConnectionInputBuffer) && ((ConnectionInputBuffer) inSocket).parkOnRelease) {
+			// the next request is handled by whichever thread picks it up
+			final ConnectionInputBuffer connection = (ConnectionInputBuffer) inSocket;
+			connection.parkOnRelease = Boolean.FALSE;
+			connection.release();
+			selector.park(socket.getChannel(), connection);
+			return;
+		}
 		// Logger.log(Logger.FULL_DEBUG, "Releasing socket: " +
 		// Thread.currentThread().getName());
 		IOException ioException = null;
@@ -300,6 +709,23 @@ public class HttpListener implements Listener, Runnable {
 		}
 	}
 
+	/**
+	 * Writes the overload response straight to the socket. It fits in the
+	 * socket send buffer, so the caller does not block on a slow client.
+	 */
+	@Override
+	public void rejectConnection(final Socket socket, final byte[] overloadResponse) throws IOException {
+		resumedConnections.remove(socket);
+		try {
+			final OutputStream out = socket.getOutputStream();
+			out.write(overloadResponse);
+			out.flush();
+			socket.shutdownOutput();
+		} finally {
+			socket.close();
+		}
+	}
+
 	protected void parseSocketInfo(final Socket socket, final WinstoneRequest request) throws IOException {
 		HttpListener.logger.debug("Parsing socket info");
 		request.setScheme(getConnectorScheme());
@@ -336,6 +762,18 @@ public class HttpListener implements Listener, Runnable {
 	public boolean processKeepAlive(final WinstoneRequest request, final WinstoneResponse response, final InputStream inSocket) throws IOException, InterruptedException {
 		// Try keep alive if allowed
 		final boolean continueFlag = !response.closeAfterRequest();
+		if (inSocket instanceof ConnectionInputBuffer && ((ConnectionInputBuffer) inSocket).buffered() == 0) {
+			// no pipelined request left: send the held responses
+			((ConnectionInputBuffer) inSocket).flushOutput();
+		}
+		if (continueFlag && (inSocket instanceof ConnectionInputBuffer) && ((ConnectionInputBuffer) inSocket).parkable && !interrupted) {
+			if (((ConnectionInputBuffer) inSocket).buffered() > 0) {
+				// pipelined request already read: keep going on this thread
+				return Boolean.TRUE;
+			}
+			((ConnectionInputBuffer) inSocket).parkOnRelease = Boolean.TRUE;
+			return Boolean.FALSE;
+		}
 		return continueFlag;
 	}
 
@@ -343,39 +781,12 @@ public class HttpListener implements Listener, Runnable {
 	 * Processes the uri line into it's component parts, determining protocol,
 	 * method and uri
 	 */
-	private static String parseURILine(final String uriLine, final WinstoneRequest req, final WinstoneResponse rsp) {
-		HttpListener.logger.trace("URI Line:", uriLine.trim());
-
-		// Method
-		int spacePos = uriLine.indexOf(' ');
-		if (spacePos == -1) {
-			throw new WinstoneException("Error URI Line: " + uriLine);
-		}
-		final String method = uriLine.substring(0, spacePos).toUpperCase();
-		String fullURI;
-
-		// URI
-		final String remainder = uriLine.substring(spacePos + 1);
-		spacePos = remainder.indexOf(' ');
-		if (spacePos == -1) {
-			fullURI = trimHostName(remainder.trim());
-			req.setProtocol("HTTP/0.9");
-			rsp.setProtocol("HTTP/0.9");
-		} else {
-			fullURI = trimHostName(remainder.substring(0, spacePos).trim());
-			String protocol = remainder.substring(spacePos + 1).trim().toUpperCase();
-			if (!protocol.startsWith("HTTP/")) {
-				protocol = "HTTP/1.0"; // didn't understand this protocol. this
-			}
-			// typically means the request line had
-			// extra space. assume 1.0
-			req.setProtocol(protocol);
-			rsp.setProtocol(protocol);
-		}
-
-		req.setMethod(method);
-		// req.setRequestURI(fullURI);
-		return fullURI;
+	private static String parseURILine(final HttpRequestParser parser, final WinstoneRequest req, final WinstoneResponse rsp) {
+		HttpListener.logger.trace("URI Line: {} {} {}", new Object[] { parser.getMethod(), parser.getURI(), parser.getProtocol() });
+		req.setProtocol(parser.getProtocol());
+		rsp.setProtocol(parser.getProtocol());
+		req.setMethod(parser.getMethod());
+		return trimHostName(parser.getURI());
 	}
 
 	private static String trimHostName(final String input) {
@@ -399,30 +810,21 @@ public class HttpListener implements Listener, Runnable {
 	}
 
 	/**
-	 * Parse the incoming stream into a list of headers (stopping at the first
-	 * blank line), then call the parseHeaders(req, list) method on that list.
+	 * Parse the incoming stream into headers (stopping at the first blank
+	 * line), then hand them to the request.
 	 */
-	public void parseHeaders(final WinstoneRequest req, final WinstoneInputStream inData) throws IOException {
-		final List<String> headerList = new ArrayList<String>();
-
+	public void parseHeaders(final WinstoneRequest req, final HttpRequestParser parser, final WinstoneInputStream inData) throws IOException {
 		if (!req.getProtocol().startsWith("HTTP/0")) {
-			// Loop to get headers
-			byte headerBuffer[] = inData.readLine();
-			String headerLine = new String(headerBuffer);
-
-			while (headerLine.trim().length() > 0) {
-				if (headerLine.indexOf(':') != -1) {
-					headerList.add(headerLine.trim());
-					HttpListener.logger.debug("Header: " + headerLine.trim());
-
+			parser.parseHeaders(inData);
+			if (HttpListener.logger.isDebugEnabled()) {
+				for (int n = 0; n < parser.getHeaderCount(); n++) {
+					HttpListener.logger.debug("Header: {}: {}", parser.getHeaderNames()[n], parser.getHeaderValues()[n]);
 				}
-				headerBuffer = inData.readLine();
-				headerLine = new String(headerBuffer);
 			}
 		}
 
 		// If no headers available, parse an empty list
-		req.parseHeaders(headerList);
+		req.parseHeaders(parser.getHeaderNames(), parser.getHeaderValues(), parser.getHeaderCount());
 	}
 
 	private String getHostAddress(final InetAddress adrs) {
@@ -444,4 +846,41 @@ public class HttpListener implements Listener, Runnable {
 			return adrs.getHostName();
 		}
 	}
+
+	/**
+	 * Read buffer of a connection, and the state kept with it between
+	 * requests, even while it is parked.
+	 */
+	protected static class ConnectionInputBuffer extends SocketInputBuffer {
+		/**
+		 * Number of requests received on the connection.
+		 */
+		protected int requests;
+		private final boolean parkable;
+		private boolean parkOnRelease;
+		/**
+		 * Write buffer batching pipelined responses, or null.
+		 */
+		private SocketOutputBuffer output;
+
+		protected ConnectionInputBuffer(final InputStream in, final BufferPool pool, final boolean parkable) {
+			super(in, pool);
+			this.parkable = parkable;
+		}
+
+		/**
+		 * Sends the held responses before waiting for the client, which may
+		 * well be waiting for them.
+		 */
+		@Override
+		protected void beforeRead() throws IOException {
+			flushOutput();
+		}
+
+		void flushOutput() throws IOException {
+			if (output != null && output.isHeld()) {
+				output.flushHeld();
+			}
+		}
+	}
 }
@@ -0,0 +1,470 @@
+package net.winstone.core.listener;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import net.winstone.WinstoneException;
+
+/**
+ * Byte level parser for the head of an HTTP request (the request line and the
+ * header block). One instance belongs to one request handler thread and is
+ * reused for every request it reads, whatever the connection, so the only
+ * objects created per request are the method, URI, protocol and header strings
+ * themselves - and the well-known ones of those are shared constants.
+ *
+ * <p>
+ * Bytes are read one by one from the stream, so nothing past the blank line
+ * ending the head is consumed: the request body is left in the stream for the
+ * servlet.
+ */
+public class HttpRequestParser {
+
+	/**
+	 * Initial size of the line buffer (4 KB).
+	 */
+	private static final int INITIAL_BUFFER_SIZE = 4096;
+	/**
+	 * Maximum length of a single request or header line (64 KB).
+	 */
+	private static final int MAXIMUM_BUFFER_SIZE = 65536;
+	private static final int INITIAL_HEADER_COUNT = 16;
+
+	private static final String HTTP_0_9 = "HTTP/0.9";
+	private static final String HTTP_1_0 = "HTTP/1.0";
+
+	private static final String[][] METHODS = HttpRequestParser.index(new String[] { "GET", "POST", "HEAD", "PUT", "DELETE", "OPTIONS", "TRACE", "CONNECT", "PATCH" });
+	private static final String[][] PROTOCOLS = HttpRequestParser.index(new String[] { "HTTP/1.1", HttpRequestParser.HTTP_1_0, HttpRequestParser.HTTP_0_9 });
+	private static final String[][] HEADERS = HttpRequestParser.index(new String[] { "Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language", "Authorization", "Cache-Control", "Connection", "Content-Encoding",
+			"Content-Language", "Content-Length", "Content-Type", "Cookie", "Cookie2", "DNT", "Expect", "Forwarded", "From", "Host", "If-Match", "If-Modified-Since", "If-None-Match", "If-Range", "If-Unmodified-Since",
+			"Keep-Alive", "Max-Forwards", "Origin", "Pragma", "Proxy-Authorization", "Range", "Referer", "TE", "Transfer-Encoding", "Upgrade", "Upgrade-Insecure-Requests", "User-Agent", "Via", "X-Forwarded-For",
+			"X-Forwarded-Host", "X-Forwarded-Proto", "X-Requested-With" });
+
+	// request line states
+	private static final int REQUEST_START = 0;
+	private static final int METHOD = 1;
+	private static final int URI_START = 2;
+	private static final int URI = 3;
+	private static final int PROTOCOL_START = 4;
+	private static final int PROTOCOL = 5;
+	// header states
+	private static final int LINE_START = 10;
+	private static final int NAME = 11;
+	private static final int VALUE_START = 12;
+	private static final int VALUE = 13;
+	private static final int CONTINUATION = 14;
+	private static final int DISCARD = 15;
+
+	private byte buffer[];
+	private int position;
+
+	private String method;
+	private String uri;
+	private String protocol;
+	private String headerNames[];
+	private String headerValues[];
+	private int headerCount;
+
+	/**
+	 * Build a new instance of HttpRequestParser.
+	 */
+	public HttpRequestParser() {
+		super();
+		buffer = new byte[HttpRequestParser.INITIAL_BUFFER_SIZE];
+		headerNames = new String[HttpRequestParser.INITIAL_HEADER_COUNT];
+		headerValues = new String[HttpRequestParser.INITIAL_HEADER_COUNT];
+	}
+
+	/**
+	 * Reads the request line, skipping any empty line sent ahead of it.
+	 *
+	 * @return Boolean.FALSE if the stream ended before the request line
+	 *         started.
+	 * @throws WinstoneException
+	 *             if the line has no method separator.
+	 * @throws LineTooLongException
+	 *             if the line is too long.
+	 */
+	public boolean parseRequestLine(final InputStream in) throws IOException {
+		clear();
+		int state = HttpRequestParser.REQUEST_START;
+		int start = 0;
+		int end = 0;
+		while (true) {
+			final int b = in.read();
+			if (b == -1 && state == HttpRequestParser.REQUEST_START) {
+				return Boolean.FALSE;
+			}
+			if (b == '\r') {
+				continue;
+			}
+			final boolean endOfLine = b == '\n' || b == -1;
+			// leading spaces skipped, the first other byte starts the field
+			if (state == HttpRequestParser.URI_START) {
+				if (b == ' ') {
+					continue;
+				}
+				start = position;
+				state = HttpRequestParser.URI;
+			} else if (state == HttpRequestParser.PROTOCOL_START) {
+				if (b == ' ') {
+					continue;
+				}
+				start = position;
+				end = position;
+				state = HttpRequestParser.PROTOCOL;
+			}
+			switch (state) {
+			case REQUEST_START:
+				if (!endOfLine) {
+					append(b);
+					state = HttpRequestParser.METHOD;
+				}
+				break;
+			case METHOD:
+				if (endOfLine) {
+					throw new WinstoneException("Error URI Line: " + newString(0, position));
+				} else if (b == ' ') {
+					method = toMethod(0, position);
+					state = HttpRequestParser.URI_START;
+				} else {
+					append(b);
+				}
+				break;
+			case URI:
+				if (endOfLine) {
+					uri = newString(start, position);
+					protocol = HttpRequestParser.HTTP_0_9;
+					return Boolean.TRUE;
+				} else if (b == ' ') {
+					uri = newString(start, position);
+					state = HttpRequestParser.PROTOCOL_START;
+				} else {
+					append(b);
+				}
+				break;
+			case PROTOCOL:
+				if (endOfLine) {
+					protocol = toProtocol(start, end);
+					return Boolean.TRUE;
+				}
+				append(b);
+				if (b != ' ') {
+					end = position;
+				}
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Reads header lines up to and including the blank line ending the request
+	 * head. Lines without a colon are ignored, folded lines are joined to the
+	 * previous header value with a single space.
+	 *
+	 * @throws LineTooLongException
+	 *             if a line is too long.
+	 */
+	public void parseHeaders(final InputStream in) throws IOException {
+		int state = HttpRequestParser.LINE_START;
+		int nameEnd = 0;
+		int valueStart = 0;
+		int valueEnd = 0;
+		while (true) {
+			final int b = in.read();
+			if (b == '\r') {
+				continue;
+			}
+			final boolean endOfLine = b == '\n' || b == -1;
+			// leading white space skipped, the first other byte starts the value
+			if (state == HttpRequestParser.VALUE_START) {
+				if (b == ' ' || b == '\t') {
+					continue;
+				}
+				valueStart = position;
+				valueEnd = position;
+				state = HttpRequestParser.VALUE;
+			}
+			switch (state) {
+			case LINE_START:
+				if (endOfLine) {
+					return;
+				}
+				position = 0;
+				if (b == ' ' || b == '\t') {
+					valueStart = 0;
+					valueEnd = 0;
+					state = headerCount > 0 ? HttpRequestParser.CONTINUATION : HttpRequestParser.DISCARD;
+				} else if (b == ':') {
+					state = HttpRequestParser.DISCARD;
+				} else {
+					append(b);
+					nameEnd = position;
+					state = HttpRequestParser.NAME;
+				}
+				break;
+			case NAME:
+				if (endOfLine) {
+					// no colon: not a header
+					state = HttpRequestParser.LINE_START;
+				} else if (b == ':') {
+					state = HttpRequestParser.VALUE_START;
+				} else {
+					append(b);
+					if (b != ' ' && b != '\t') {
+						nameEnd = position;
+					}
+				}
+				break;
+			case VALUE:
+				if (endOfLine) {
+					addHeader(toHeaderName(0, nameEnd), newString(valueStart, valueEnd));
+					state = HttpRequestParser.LINE_START;
+				} else {
+					append(b);
+					if (b != ' ' && b != '\t') {
+						valueEnd = position;
+					}
+				}
+				break;
+			case CONTINUATION:
+				if (endOfLine) {
+					final String folded = newString(valueStart, valueEnd);
+					if (folded.length() > 0) {
+						final String value = headerValues[headerCount - 1];
+						headerValues[headerCount - 1] = value.length() == 0 ? folded : value + ' ' + folded;
+					}
+					state = HttpRequestParser.LINE_START;
+				} else if (position == 0 && (b == ' ' || b == '\t')) {
+					// still leading white space
+				} else {
+					append(b);
+					if (b != ' ' && b != '\t') {
+						valueEnd = position;
+					}
+				}
+				break;
+			case DISCARD:
+				if (endOfLine) {
+					state = HttpRequestParser.LINE_START;
+				}
+				break;
+			}
+			if (b == -1) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @return the request method, upper case.
+	 */
+	public String getMethod() {
+		return method;
+	}
+
+	/**
+	 * @return the request URI as sent by the client.
+	 */
+	public String getURI() {
+		return uri;
+	}
+
+	/**
+	 * @return the request protocol, upper case. HTTP/0.9 if the request line
+	 *         had none, HTTP/1.0 if it was not understood.
+	 */
+	public String getProtocol() {
+		return protocol;
+	}
+
+	/**
+	 * @return the number of headers parsed.
+	 */
+	public int getHeaderCount() {
+		return headerCount;
+	}
+
+	/**
+	 * @return header names, valid up to {@link #getHeaderCount()}.
+	 */
+	public String[] getHeaderNames() {
+		return headerNames;
+	}
+
+	/**
+	 * @return header values, valid up to {@link #getHeaderCount()}.
+	 */
+	public String[] getHeaderValues() {
+		return headerValues;
+	}
+
+	/**
+	 * Forget the previous request.
+	 */
+	private void clear() {
+		position = 0;
+		method = null;
+		uri = null;
+		protocol = null;
+		for (int n = 0; n < headerCount; n++) {
+			headerNames[n] = null;
+			headerValues[n] = null;
+		}
+		headerCount = 0;
+	}
+
+	private void append(final int b) {
+		if (position == buffer.length) {
+			if (buffer.length >= HttpRequestParser.MAXIMUM_BUFFER_SIZE) {
+				throw new LineTooLongException("Request line or header longer than " + HttpRequestParser.MAXIMUM_BUFFER_SIZE + " bytes");
+			}
+			final byte grown[] = new byte[buffer.length * 2];
+			System.arraycopy(buffer, 0, grown, 0, position);
+			buffer = grown;
+		}
+		buffer[position++] = (byte) b;
+	}
+
+	private void addHeader(final String name, final String value) {
+		if (headerCount == headerNames.length) {
+			final String names[] = new String[headerCount * 2];
+			final String values[] = new String[headerCount * 2];
+			System.arraycopy(headerNames, 0, names, 0, headerCount);
+			System.arraycopy(headerValues, 0, values, 0, headerCount);
+			headerNames = names;
+			headerValues = values;
+		}
+		headerNames[headerCount] = name;
+		headerValues[headerCount] = value;
+		headerCount++;
+	}
+
+	private String toMethod(final int start, final int end) {
+		String result = HttpRequestParser.lookup(HttpRequestParser.METHODS, buffer, start, end);
+		if (result == null) {
+			// methods are case sensitive, but we always upper cased them
+			for (int n = start; n < end; n++) {
+				if (buffer[n] >= 'a' && buffer[n] <= 'z') {
+					buffer[n] -= 'a' - 'A';
+				}
+			}
+			result = HttpRequestParser.lookup(HttpRequestParser.METHODS, buffer, start, end);
+		}
+		return result != null ? result : newString(start, end);
+	}
+
+	private String toProtocol(final int start, final int end) {
+		final String result = HttpRequestParser.lookup(HttpRequestParser.PROTOCOLS, buffer, start, end);
+		if (result != null) {
+			return result;
+		}
+		final String protocol = newString(start, end).toUpperCase();
+		// didn't understand this protocol. this typically means the request
+		// line had extra space. assume 1.0
+		return protocol.startsWith("HTTP/") ? protocol : HttpRequestParser.HTTP_1_0;
+	}
+
+	private String toHeaderName(final int start, final int end) {
+		String result = HttpRequestParser.lookup(HttpRequestParser.HEADERS, buffer, start, end);
+		if (result == null) {
+			// header names are case insensitive
+			result = HttpRequestParser.lookupIgnoreCase(HttpRequestParser.HEADERS, buffer, start, end);
+		}
+		return result != null ? result : newString(start, end);
+	}
+
+	/**
+	 * Plain ASCII is copied straight into a string, anything else is decoded
+	 * with the platform encoding as before.
+	 */
+	@SuppressWarnings("deprecation")
+	private String newString(final int start, final int end) {
+		for (int n = start; n < end; n++) {
+			if (buffer[n] < 0) {
+				return new String(buffer, start, end - start);
+			}
+		}
+		return new String(buffer, 0, start, end - start);
+	}
+
+	/**
+	 * @return the constant equal to the given bytes, or null.
+	 */
+	private static String lookup(final String[][] table, final byte[] bytes, final int start, final int end) {
+		final int length = end - start;
+		if (length >= table.length || table[length] == null) {
+			return null;
+		}
+		final String candidates[] = table[length];
+		next: for (int n = 0; n < candidates.length; n++) {
+			final String candidate = candidates[n];
+			for (int i = 0; i < length; i++) {
+				if (candidate.charAt(i) != (bytes[start + i] & 0xFF)) {
+					continue next;
+				}
+			}
+			return candidate;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the constant equal to the given bytes ignoring the case of ASCII
+	 *         letters, or null.
+	 */
+	private static String lookupIgnoreCase(final String[][] table, final byte[] bytes, final int start, final int end) {
+		final int length = end - start;
+		if (length >= table.length || table[length] == null) {
+			return null;
+		}
+		final String candidates[] = table[length];
+		next: for (int n = 0; n < candidates.length; n++) {
+			final String candidate = candidates[n];
+			for (int i = 0; i < length; i++) {
+				if (HttpRequestParser.toLowerCase(candidate.charAt(i)) != HttpRequestParser.toLowerCase(bytes[start + i] & 0xFF)) {
+					continue next;
+				}
+			}
+			return candidate;
+		}
+		return null;
+	}
+
+	private static int toLowerCase(final int c) {
+		return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+	}
+
+	/**
+	 * @return the given constants grouped by length.
+	 */
+	private static String[][] index(final String[] constants) {
+		int maxLength = 0;
+		for (int n = 0; n < constants.length; n++) {
+			maxLength = Math.max(maxLength, constants[n].length());
+		}
+		final String table[][] = new String[maxLength + 1][];
+		for (int n = 0; n < constants.length; n++) {
+			final int length = constants[n].length();
+			final String candidates[] = table[length] == null ? new String[1] : new String[table[length].length + 1];
+			if (table[length] != null) {
+				System.arraycopy(table[length], 0, candidates, 0, table[length].length);
+			}
+			candidates[candidates.length - 1] = constants[n];
+			table[length] = candidates;
+		}
+		return table;
+	}
+
+	/**
+	 * A request line or header line longer than the parser accepts: the
+	 * client gets an error status rather than a dropped connection.
+	 */
+	public static final class LineTooLongException extends WinstoneException {
+
+		private static final long serialVersionUID = -3161548802618537940L;
+
+		LineTooLongException(final String message) {
+			super(message);
+		}
+	}
+}
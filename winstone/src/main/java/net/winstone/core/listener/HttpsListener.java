@@ -10,11 +10,12 @@ import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Reader;
-import java.math.BigInteger;
-import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.security.GeneralSecurityException;
@@ -24,15 +25,23 @@ import java.security.PrivateKey;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
-import java.security.spec.RSAPrivateKeySpec;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Map;
 
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLServerSocket;
 import javax.net.ssl.SSLServerSocketFactory;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.SSLSocket;
 
 import net.winstone.WinstoneException;
@@ -45,14 +54,27 @@ import net.winstone.util.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import sun.security.util.DerInputStream;
-import sun.security.util.DerValue;
 import sun.security.x509.CertAndKeyGen;
 import sun.security.x509.X500Name;
 
 /**
  * Implements the main listener daemon thread. This is the class that gets
  * launched by the command line, and owns the server socket, etc.
+ * <p>
+ * The server keeps TLS sessions for resumption, so that clients reconnecting
+ * skip the full handshake. --httpsSessionTimeout and --httpsSessionCacheSize
+ * override how long and how many of them are kept, and --httpsSessionTickets
+ * turns stateless session tickets on or off; each defaults to the JDK's own
+ * setting. Unless --httpsProtocols and --httpsCipherSuites say otherwise,
+ * only TLS 1.2 and 1.3 are enabled, and the server picks forward secret AEAD
+ * cipher suites first, the cheaper AES-128 before AES-256.
+ * <p>
+ * Keys come from a key store, or from PEM files (RSA or EC keys, in PKCS#1,
+ * SEC 1 or PKCS#8 form). Without either, a self-signed certificate is
+ * generated once and kept in --httpsDevKeyStore for the next starts.
+ * <p>
+ * With --httpsHttp2, "h2" is offered with ALPN ahead of "http/1.1", and the
+ * connections that pick it speak HTTP/2.
  * 
  * @author <a href="mailto:rick_knowles@hotmail.com">Rick Knowles</a>
  * @version $Id: HttpsListener.java,v 1.10 2007/06/13 15:27:35 rickknowles Exp $
@@ -61,6 +83,20 @@ import sun.security.x509.X500Name;
 public class HttpsListener extends HttpListener {
 
 	private static Logger logger = LoggerFactory.getLogger(HttpListener.class);
+	/**
+	 * System property turning stateless session tickets on, from Java 13. It
+	 * applies to the whole JVM, and is read once, when the first TLS context
+	 * is created.
+	 */
+	private static final String SESSION_TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+	/**
+	 * DER encoded object identifier of EC public keys.
+	 */
+	private static final byte[] EC_PUBLIC_KEY_OID = { 0x06, 0x07, 0x2A, (byte) 0x86, 0x48, (byte) 0xCE, 0x3D, 0x02, 0x01 };
+	/**
+	 * DER encoded rsaEncryption object identifier, and its NULL parameters.
+	 */
+	private static final byte[] RSA_ALGORITHM = { 0x06, 0x09, 0x2A, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xF7, 0x0D, 0x01, 0x01, 0x01, 0x05, 0x00 };
 
 	private final KeyStore keystore;
 	private final char[] password;
@@ -77,6 +113,21 @@ public class HttpsListener extends HttpListener {
 	 * .html for this failure mode in IE.
 	 */
 	private boolean performClientAuth;
+	/**
+	 * Most TLS sessions kept for resumption, 0 for no limit, or -1 for the JDK
+	 * default.
+	 */
+	private int sessionCacheSize;
+	/**
+	 * How long, in seconds, a TLS session may be resumed, or -1 for the JDK
+	 * default.
+	 */
+	private int sessionTimeout;
+	/**
+	 * Protocols and cipher suites enabled, or null for the preferred ones.
+	 */
+	private String[] protocols;
+	private String[] cipherSuites;
 
 	/**
 	 * 
@@ -96,9 +147,18 @@ public class HttpsListener extends HttpListener {
 			keyManagerType = null;
 		} else {
 			try {
-				String pwd = StringUtils.stringArg(args, getConnectorName() + "KeyStorePassword", null);
-				keyManagerType = StringUtils.stringArg(args, getConnectorName() + "KeyManagerType", "SunX509");
+				// key options are shared with the selector based connector
+				String pwd = StringUtils.stringArg(args, "httpsKeyStorePassword", null);
+				keyManagerType = StringUtils.stringArg(args, "httpsKeyManagerType", "SunX509");
 				performClientAuth = StringUtils.booleanArg(args, "httpsVerifyClient", Boolean.FALSE);
+				sessionCacheSize = Math.max(StringUtils.intArg(args, "httpsSessionCacheSize", -1), -1);
+				sessionTimeout = Math.max(StringUtils.intArg(args, "httpsSessionTimeout", -1), -1);
+				protocols = HttpsListener.listArg(args, "httpsProtocols");
+				cipherSuites = HttpsListener.listArg(args, "httpsCipherSuites");
+				if (args.containsKey("httpsSessionTickets") && (System.getProperty(HttpsListener.SESSION_TICKETS_PROPERTY) == null)) {
+					// JVM wide, and too late once a TLS context exists
+					System.setProperty(HttpsListener.SESSION_TICKETS_PROPERTY, Boolean.toString(StringUtils.booleanArg(args, "httpsSessionTickets", Boolean.TRUE)));
+				}
 
 				final File opensslCert = StringUtils.fileArg(args, "httpsCertificate");
 				final File opensslKey = StringUtils.fileArg(args, "httpsPrivateKey"); //
@@ -119,26 +179,25 @@ public class HttpsListener extends HttpListener {
 					keystore = KeyStore.getInstance("JKS");
 					keystore.load(new FileInputStream(keyStore), password);
 				} else if (opensslCert != null) {
-					// load from openssl style key files
+					// load from openssl style key files, with the whole chain
 					final CertificateFactory cf = CertificateFactory.getInstance("X509");
-					final Certificate cert = cf.generateCertificate(new FileInputStream(opensslCert));
-					final PrivateKey key = HttpsListener.readPEMRSAPrivateKey(new FileReader(opensslKey));
+					final InputStream certIn = new FileInputStream(opensslCert);
+					final Certificate chain[];
+					try {
+						chain = cf.generateCertificates(certIn).toArray(new Certificate[0]);
+					} finally {
+						certIn.close();
+					}
+					final PrivateKey key = HttpsListener.readPEMPrivateKey(new FileReader(opensslKey));
 					password = "changeit".toCharArray();
 					keystore = KeyStore.getInstance("JKS");
 					keystore.load(null);
-					keystore.setKeyEntry("hudson", key, password, new Certificate[] { cert });
+					keystore.setKeyEntry("hudson", key, password, chain);
 				} else {
-					// use self-signed certificate
+					// use self-signed certificate, generated once
 					password = "changeit".toCharArray();
-					System.out.println("Using one-time self-signed certificate");
-					final CertAndKeyGen ckg = new CertAndKeyGen("RSA", "SHA1WithRSA", null);
-					ckg.generate(1024);
-					final PrivateKey privKey = ckg.getPrivateKey();
-					final X500Name xn = new X500Name("Test site", "Unknown", "Unknown", "Unknown");
-					final X509Certificate cert = ckg.getSelfCertificate(xn, 3650L * 24 * 60 * 60);
-					keystore = KeyStore.getInstance("JKS");
-					keystore.load(null);
-					keystore.setKeyEntry("hudson", privKey, password, new Certificate[] { cert });
+					final String devKeyStore = StringUtils.stringArg(args, "httpsDevKeyStore", new File(System.getProperty("user.home"), ".winstone" + File.separator + "https-dev.jks").getPath());
+					keystore = HttpsListener.loadDevKeyStore(new File(devKeyStore), password);
 				}
 			} catch (final GeneralSecurityException e) {
 				throw (IOException) new IOException("Failed to handle keys").initCause(e);
@@ -147,20 +206,75 @@ public class HttpsListener extends HttpListener {
 		}
 	}
 
-	private static PrivateKey readPEMRSAPrivateKey(final Reader reader) throws IOException, GeneralSecurityException {
-		// TODO: should have more robust format error handling
+	/**
+	 * Loads the self-signed development certificate, generating it and saving
+	 * it first if needed, so that restarts skip the key generation. It is an
+	 * EC P-256 key, cheaper to handshake with than RSA.
+	 */
+	private static KeyStore loadDevKeyStore(final File file, final char[] password) throws IOException, GeneralSecurityException {
+		final KeyStore keystore = KeyStore.getInstance("JKS");
+		if (file.isFile()) {
+			HttpsListener.logger.info("Using the self-signed certificate kept in {}", file.getPath());
+			final InputStream in = new FileInputStream(file);
+			try {
+				keystore.load(in, password);
+			} finally {
+				in.close();
+			}
+			return keystore;
+		}
+		HttpsListener.logger.info("Generating a self-signed certificate");
+		final CertAndKeyGen ckg = new CertAndKeyGen("EC", "SHA256withECDSA", null);
+		ckg.generate(256);
+		final PrivateKey privKey = ckg.getPrivateKey();
+		final X500Name xn = new X500Name("Test site", "Unknown", "Unknown", "Unknown");
+		final X509Certificate cert = ckg.getSelfCertificate(xn, 3650L * 24 * 60 * 60);
+		keystore.load(null);
+		keystore.setKeyEntry("hudson", privKey, password, new Certificate[] { cert });
+		try {
+			file.getAbsoluteFile().getParentFile().mkdirs();
+			// a private key: readable by its owner only
+			file.createNewFile();
+			file.setReadable(Boolean.FALSE, Boolean.FALSE);
+			file.setReadable(Boolean.TRUE, Boolean.TRUE);
+			final OutputStream out = new FileOutputStream(file);
+			try {
+				keystore.store(out, password);
+			} finally {
+				out.close();
+			}
+			HttpsListener.logger.info("Self-signed certificate kept in {}", file.getPath());
+		} catch (final IOException e) {
+			HttpsListener.logger.warn("Could not keep the self-signed certificate in " + file.getPath(), e);
+		}
+		return keystore;
+	}
+
+	/**
+	 * Reads an RSA or EC private key from a PEM file, in PKCS#1 (BEGIN RSA
+	 * PRIVATE KEY), SEC 1 (BEGIN EC PRIVATE KEY) or unencrypted PKCS#8 (BEGIN
+	 * PRIVATE KEY) form. Other blocks, such as the EC parameters openssl
+	 * writes first, are skipped.
+	 */
+	static PrivateKey readPEMPrivateKey(final Reader reader) throws IOException, GeneralSecurityException {
 		final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		String type = null;
 		try {
 			final BufferedReader r = new BufferedReader(reader);
 			String line;
-			boolean in = Boolean.FALSE;
 			while ((line = r.readLine()) != null) {
-				if (line.startsWith("-----")) {
-					in = !in;
+				if (line.startsWith("-----BEGIN ") && line.endsWith("PRIVATE KEY-----")) {
+					type = line.substring(11, line.length() - 5);
 					continue;
 				}
-				if (in) {
-					final char[] inBytes = line.toCharArray();
+				if (line.startsWith("-----END ")) {
+					if (type != null) {
+						break;
+					}
+					continue;
+				}
+				if (type != null) {
+					final char[] inBytes = line.trim().toCharArray();
 					final byte[] outBytes = new byte[(inBytes.length * 3) / 4];
 					final int length = Base64.decode(inBytes, outBytes, 0, inBytes.length, 0);
 					baos.write(outBytes, 0, length);
@@ -169,18 +283,128 @@ public class HttpsListener extends HttpListener {
 		} finally {
 			reader.close();
 		}
+		if (type == null) {
+			throw new InvalidKeySpecException("No PEM private key found");
+		}
+		if (type.equals("RSA PRIVATE KEY")) {
+			// wrapped whole, so that the CRT factors speed up signing
+			return KeyFactory.getInstance("RSA").generatePrivate(new PKCS8EncodedKeySpec(HttpsListener.toPkcs8(HttpsListener.RSA_ALGORITHM, baos.toByteArray())));
+		}
+		if (type.equals("EC PRIVATE KEY")) {
+			return KeyFactory.getInstance("EC").generatePrivate(new PKCS8EncodedKeySpec(HttpsListener.sec1ToPkcs8(baos.toByteArray())));
+		}
+		if (!type.equals("PRIVATE KEY")) {
+			throw new InvalidKeySpecException("Unsupported PEM private key: " + type);
+		}
+		final PKCS8EncodedKeySpec spec = new PKCS8EncodedKeySpec(baos.toByteArray());
+		try {
+			return KeyFactory.getInstance("RSA").generatePrivate(spec);
+		} catch (final InvalidKeySpecException e) {
+			return KeyFactory.getInstance("EC").generatePrivate(spec);
+		}
+	}
+
+
+	/**
+	 * Wraps a PKCS#1 or SEC 1 private key into PKCS#8, the form the key
+	 * factories read.
+	 */
+	private static byte[] toPkcs8(final byte[] algorithm, final byte[] key) {
+		final ByteArrayOutputStream pkcs8 = new ByteArrayOutputStream();
+		// version 0
+		pkcs8.write(new byte[] { 0x02, 0x01, 0x00 }, 0, 3);
+		HttpsListener.writeDer(pkcs8, 0x30, algorithm);
+		HttpsListener.writeDer(pkcs8, 0x04, key);
+		final ByteArrayOutputStream sequence = new ByteArrayOutputStream();
+		HttpsListener.writeDer(sequence, 0x30, pkcs8.toByteArray());
+		return sequence.toByteArray();
+	}
 
-		final DerInputStream dis = new DerInputStream(baos.toByteArray());
-		final DerValue[] seq = dis.getSequence(0);
+	/**
+	 * Wraps a SEC 1 EC private key (RFC 5915) into PKCS#8, with the curve
+	 * named in its parameters.
+	 */
+	static byte[] sec1ToPkcs8(final byte[] sec1) throws InvalidKeySpecException {
+		if (sec1.length < 2 || sec1[0] != 0x30) {
+			throw new InvalidKeySpecException("Not a SEC 1 EC private key");
+		}
+		// SEQUENCE { version, privateKey, [0] parameters, [1] publicKey }
+		byte[] curve = null;
+		int offset = HttpsListener.derHeaderLength(sec1, 0);
+		while (offset < sec1.length) {
+			final int header = HttpsListener.derHeaderLength(sec1, offset);
+			final int length = HttpsListener.derLength(sec1, offset);
+			if ((sec1[offset] & 0xFF) == 0xA0) {
+				curve = Arrays.copyOfRange(sec1, offset + header, offset + header + length);
+			}
+			offset += header + length;
+		}
+		if (curve == null) {
+			throw new InvalidKeySpecException("EC private key without its curve");
+		}
+		final ByteArrayOutputStream algorithm = new ByteArrayOutputStream();
+		algorithm.write(HttpsListener.EC_PUBLIC_KEY_OID, 0, HttpsListener.EC_PUBLIC_KEY_OID.length);
+		algorithm.write(curve, 0, curve.length);
+		return HttpsListener.toPkcs8(algorithm.toByteArray(), sec1);
+	}
+
+	private static int derHeaderLength(final byte[] der, final int offset) throws InvalidKeySpecException {
+		if (offset + 1 >= der.length) {
+			throw new InvalidKeySpecException("Truncated DER");
+		}
+		final int first = der[offset + 1] & 0xFF;
+		return first < 0x80 ? 2 : 2 + (first & 0x7F);
+	}
+
+	private static int derLength(final byte[] der, final int offset) throws InvalidKeySpecException {
+		final int first = der[offset + 1] & 0xFF;
+		if (first < 0x80) {
+			return first;
+		}
+		final int header = HttpsListener.derHeaderLength(der, offset);
+		if (header > 6 || offset + header > der.length) {
+			throw new InvalidKeySpecException("Bad DER length");
+		}
+		int length = 0;
+		for (int n = offset + 2; n < offset + header; n++) {
+			length = (length << 8) | (der[n] & 0xFF);
+		}
+		return length;
+	}
 
-		// int v = seq[0].getInteger();
-		final BigInteger mod = seq[1].getBigInteger();
-		// pubExpo
-		final BigInteger privExpo = seq[3].getBigInteger();
-		// p1, p2, exp1, exp2, crtCoef
+	private static void writeDer(final ByteArrayOutputStream out, final int tag, final byte[] content) {
+		out.write(tag);
+		final int length = content.length;
+		if (length < 0x80) {
+			out.write(length);
+		} else if (length < 0x100) {
+			out.write(0x81);
+			out.write(length);
+		} else {
+			out.write(0x82);
+			out.write(length >> 8);
+			out.write(length);
+		}
+		out.write(content, 0, length);
+	}
 
-		final KeyFactory kf = KeyFactory.getInstance("RSA");
-		return kf.generatePrivate(new RSAPrivateKeySpec(mod, privExpo));
+	/**
+	 * Load a comma separated list argument.
+	 * 
+	 * @return the trimmed items, or null if the argument is not set.
+	 */
+	private static String[] listArg(final Map<String, String> args, final String name) {
+		final String value = StringUtils.stringArg(args, name, null);
+		if (value == null || value.trim().length() == 0) {
+			return null;
+		}
+		final List<String> items = new ArrayList<String>();
+		for (final String item : value.split(",")) {
+			if (item.trim().length() > 0) {
+				items.add(item.trim());
+			}
+		}
+		return items.toArray(new String[items.size()]);
 	}
 
 	/**
@@ -202,23 +426,29 @@ public class HttpsListener extends HttpListener {
 	}
 
 	/**
-	 * Gets a server socket - this gets as SSL socket instead of the standard
-	 * socket returned in the base class.
+	 * Creates an unbound server socket - this gets as SSL socket instead of
+	 * the standard socket returned in the base class.
 	 */
 	@Override
-	protected ServerSocket getServerSocket() throws IOException {
+	protected ServerSocket createServerSocket() throws IOException {
 		// Just to make sure it's set before we start
 		final SSLContext context = getSSLContext();
 		final SSLServerSocketFactory factory = context.getServerSocketFactory();
-		final SSLServerSocket ss = (SSLServerSocket) (listenAddress == null ? factory.createServerSocket(listenPort, HttpListener.BACKLOG_COUNT) : factory.createServerSocket(listenPort, HttpListener.BACKLOG_COUNT,
-				InetAddress.getByName(listenAddress)));
+		final SSLServerSocket ss = (SSLServerSocket) factory.createServerSocket();
 		ss.setEnableSessionCreation(Boolean.TRUE);
-		if (performClientAuth) {
-			ss.setNeedClientAuth(Boolean.TRUE);
-		}
+		ss.setSSLParameters(getSSLParameters(context));
 		return ss;
 	}
 
+	/**
+	 * Closes the connection without a response, which would first need the
+	 * TLS handshake.
+	 */
+	@Override
+	public void rejectConnection(final Socket socket, final byte[] overloadResponse) throws IOException {
+		socket.close();
+	}
+
 	/**
 	 * Extracts the relevant socket stuff and adds it to the request object.
 	 * This method relies on the base class for everything other than SSL
@@ -227,9 +457,8 @@ public class HttpsListener extends HttpListener {
 	@Override
 	protected void parseSocketInfo(final Socket socket, final WinstoneRequest req) throws IOException {
 		super.parseSocketInfo(socket, req);
-		if (socket instanceof SSLSocket) {
-			final SSLSocket s = (SSLSocket) socket;
-			final SSLSession ss = s.getSession();
+		if (isSecure(socket)) {
+			final SSLSession ss = getSSLSession(socket);
 			if (ss != null) {
 				Certificate certChain[] = null;
 				try {
@@ -248,6 +477,20 @@ public class HttpsListener extends HttpListener {
 		}
 	}
 
+	/**
+	 * @return Boolean.TRUE if the connection is over TLS.
+	 */
+	protected boolean isSecure(final Socket socket) {
+		return socket instanceof SSLSocket;
+	}
+
+	/**
+	 * @return the TLS session of a connection over TLS.
+	 */
+	protected SSLSession getSSLSession(final Socket socket) {
+		return ((SSLSocket) socket).getSession();
+	}
+
 	/**
 	 * Just a mapping of key sizes for cipher types. Taken indirectly from the
 	 * TLS specs.
@@ -289,12 +532,106 @@ public class HttpsListener extends HttpListener {
 				HttpsListener.logger.debug("Keys : {} - {}", alias, keystore.getCertificate(alias) + "");
 			}
 
-			final SSLContext context = SSLContext.getInstance("SSL");
+			final SSLContext context = SSLContext.getInstance("TLS");
 			context.init(kmf.getKeyManagers(), null, null);
+			final SSLSessionContext sessions = context.getServerSessionContext();
+			if (sessionCacheSize >= 0) {
+				sessions.setSessionCacheSize(sessionCacheSize);
+			}
+			if (sessionTimeout >= 0) {
+				sessions.setSessionTimeout(sessionTimeout);
+			}
 			return context;
 		} catch (final Throwable err) {
 			throw new WinstoneException("Error getting the SSL context object", err);
 		}
 	}
 
+	/**
+	 * Protocols, cipher suites and client authentication to use on the
+	 * connections of a context.
+	 */
+	public SSLParameters getSSLParameters(final SSLContext context) {
+		final SSLParameters parameters = context.getDefaultSSLParameters();
+		parameters.setProtocols(protocols != null ? protocols : HttpsListener.preferredProtocols(parameters.getProtocols()));
+		parameters.setCipherSuites(cipherSuites != null ? cipherSuites : HttpsListener.preferredCipherSuites(parameters.getCipherSuites()));
+		parameters.setNeedClientAuth(performClientAuth);
+		try {
+			// the server order is only honoured from Java 8
+			SSLParameters.class.getMethod("setUseCipherSuitesOrder", boolean.class).invoke(parameters, Boolean.TRUE);
+		} catch (final Exception e) {
+			HttpsListener.logger.debug("Client cipher suite order in use", e);
+		}
+		if (isHttp2()) {
+			try {
+				// ALPN, from Java 9 (and 8u252)
+				SSLParameters.class.getMethod("setApplicationProtocols", String[].class).invoke(parameters, (Object) new String[] { "h2", "http/1.1" });
+			} catch (final Exception e) {
+				HttpsListener.logger.warn("ALPN is not available: {} connections stay on HTTP/1.1", getConnectorName().toUpperCase());
+			}
+		}
+		return parameters;
+	}
+
+	/**
+	 * @return TLS 1.3 and 1.2 out of the enabled protocols, or all of them if
+	 *         neither is.
+	 */
+	static String[] preferredProtocols(final String[] enabled) {
+		final List<String> preferred = new ArrayList<String>();
+		for (final String protocol : enabled) {
+			if (protocol.equals("TLSv1.3") || protocol.equals("TLSv1.2")) {
+				preferred.add(protocol);
+			}
+		}
+		return preferred.isEmpty() ? enabled : preferred.toArray(new String[preferred.size()]);
+	}
+
+	/**
+	 * @return the enabled cipher suites, weak ones left out, in the order
+	 *         given by {@link #getCipherSuiteRank(String)}.
+	 */
+	static String[] preferredCipherSuites(final String[] enabled) {
+		final List<String> preferred = new ArrayList<String>();
+		for (final String suite : enabled) {
+			if (HttpsListener.getCipherSuiteRank(suite) >= 0) {
+				preferred.add(suite);
+			}
+		}
+		// stable: the order within a rank is kept
+		Collections.sort(preferred, new Comparator<String>() {
+
+			@Override
+			public int compare(final String a, final String b) {
+				return HttpsListener.getCipherSuiteRank(a) - HttpsListener.getCipherSuiteRank(b);
+			}
+		});
+		return preferred.toArray(new String[preferred.size()]);
+	}
+
+	/**
+	 * Ranks a cipher suite, lower first: TLS 1.3 suites, then ECDHE, DHE, and
+	 * last static RSA key exchange, AEAD (GCM, ChaCha20) before CBC within
+	 * each, and AES-128 before AES-256.
+	 * 
+	 * @return -1 for the weak suites, which are left out.
+	 */
+	static int getCipherSuiteRank(final String suite) {
+		if (suite.contains("_NULL_") || suite.contains("_anon_") || suite.contains("_RC4_") || suite.contains("_DES_") || suite.contains("_DES40_") || suite.contains("_3DES_") || suite.contains("_EXPORT") || suite.endsWith("_MD5")) {
+			return -1;
+		}
+		final boolean aead = suite.contains("_GCM_") || suite.contains("_CHACHA20_");
+		int rank = 0;
+		if (suite.startsWith("TLS_AES_") || suite.startsWith("TLS_CHACHA20_")) {
+			rank = 0;
+		} else if (suite.startsWith("TLS_ECDHE_")) {
+			rank = aead ? 2 : 6;
+		} else if (suite.startsWith("TLS_DHE_")) {
+			rank = aead ? 4 : 8;
+		} else {
+			rank = 10;
+		}
+		return suite.contains("_AES_256_") ? rank + 1 : rank;
+	}
+
 }
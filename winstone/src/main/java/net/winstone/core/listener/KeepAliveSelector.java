@@ -0,0 +1,192 @@
+package net.winstone.core.listener;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.winstone.core.listener.HttpListener.ConnectionInputBuffer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds the idle keep-alive connections of a blocking listener, so that they
+ * do not each keep a request handler thread waiting for the next request. A
+ * parked connection is watched by a single selector thread, and handed back
+ * to the request handler pool as soon as bytes arrive on it, or closed once
+ * it has been idle for the keep alive timeout.
+ */
+final class KeepAliveSelector implements Runnable {
+
+	private static Logger logger = LoggerFactory.getLogger(KeepAliveSelector.class);
+	/**
+	 * How often idle connections are checked for expiry.
+	 */
+	private final static int EXPIRY_CHECK_INTERVAL = 1000;
+
+	private final HttpListener listener;
+	private final int keepAliveTimeout;
+	private final Selector selector;
+	private final Queue<Parked> parkQueue = new ConcurrentLinkedQueue<Parked>();
+	private final AtomicInteger parked = new AtomicInteger();
+	private volatile boolean interrupted;
+	private long lastExpiryCheck;
+
+	/**
+	 * Build a new instance of KeepAliveSelector.
+	 *
+	 * @param listener
+	 *            listener the connections are handed back to
+	 * @param keepAliveTimeout
+	 *            longest idle time of a parked connection, in milliseconds
+	 */
+	KeepAliveSelector(final HttpListener listener, final int keepAliveTimeout) throws IOException {
+		super();
+		this.listener = listener;
+		this.keepAliveTimeout = keepAliveTimeout;
+		selector = Selector.open();
+	}
+
+	/**
+	 * Parks a connection until its next request arrives. Called by the
+	 * request handler thread as it lets the connection go.
+	 */
+	void park(final SocketChannel channel, final ConnectionInputBuffer connection) {
+		parked.incrementAndGet();
+		parkQueue.add(new Parked(channel, connection));
+		selector.wakeup();
+	}
+
+	/**
+	 * Stops the selector thread, closing the parked connections.
+	 */
+	void destroy() {
+		interrupted = Boolean.TRUE;
+		selector.wakeup();
+	}
+
+	/**
+	 * @return the number of connections parked.
+	 */
+	int getParkedCount() {
+		return parked.get();
+	}
+
+	@Override
+	public void run() {
+		try {
+			final List<SelectionKey> ready = new ArrayList<SelectionKey>();
+			while (!interrupted) {
+				selector.select(EXPIRY_CHECK_INTERVAL);
+				registerParkedConnections();
+
+				final Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+				while (i.hasNext()) {
+					final SelectionKey key = i.next();
+					i.remove();
+					if (key.isValid() && key.isReadable()) {
+						key.cancel();
+						ready.add(key);
+					}
+				}
+				if (!ready.isEmpty()) {
+					// flush the cancelled keys, so the channels can go back to
+					// blocking mode for the handler threads
+					selector.selectNow();
+					for (final SelectionKey key : ready) {
+						dispatch((SocketChannel) key.channel(), (Parked) key.attachment());
+					}
+					ready.clear();
+				}
+				expireIdleConnections();
+			}
+		} catch (final Throwable err) {
+			KeepAliveSelector.logger.error("Error in keep-alive selector", err);
+		} finally {
+			for (final SelectionKey key : selector.keys()) {
+				close((SocketChannel) key.channel());
+			}
+			Parked connection = null;
+			while ((connection = parkQueue.poll()) != null) {
+				close(connection.channel);
+			}
+			parked.set(0);
+			try {
+				selector.close();
+			} catch (final IOException err) {
+			}
+		}
+	}
+
+	private void registerParkedConnections() {
+		Parked connection = null;
+		while ((connection = parkQueue.poll()) != null) {
+			try {
+				connection.channel.configureBlocking(Boolean.FALSE);
+				connection.channel.register(selector, SelectionKey.OP_READ, connection);
+			} catch (final IOException err) {
+				KeepAliveSelector.logger.debug("Error parking keep-alive connection", err);
+				parked.decrementAndGet();
+				close(connection.channel);
+			}
+		}
+	}
+
+	private void dispatch(final SocketChannel channel, final Parked connection) {
+		parked.decrementAndGet();
+		try {
+			channel.configureBlocking(Boolean.TRUE);
+			listener.resumeConnection(channel.socket(), connection.buffer);
+		} catch (final Throwable err) {
+			KeepAliveSelector.logger.warn("Error dispatching connection to request handler", err);
+			close(channel);
+		}
+	}
+
+	/**
+	 * Closes the connections parked for longer than the keep alive timeout.
+	 */
+	private void expireIdleConnections() {
+		final long now = System.currentTimeMillis();
+		if (now - lastExpiryCheck < EXPIRY_CHECK_INTERVAL) {
+			return;
+		}
+		lastExpiryCheck = now;
+		for (final SelectionKey key : selector.keys()) {
+			if (now - ((Parked) key.attachment()).since > keepAliveTimeout) {
+				key.cancel();
+				parked.decrementAndGet();
+				close((SocketChannel) key.channel());
+			}
+		}
+	}
+
+	/**
+	 * A connection waiting for its next request.
+	 */
+	private static final class Parked {
+		private final SocketChannel channel;
+		private final ConnectionInputBuffer buffer;
+		private final long since;
+
+		Parked(final SocketChannel channel, final ConnectionInputBuffer buffer) {
+			this.channel = channel;
+			this.buffer = buffer;
+			since = System.currentTimeMillis();
+		}
+	}
+
+	private static void close(final SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (final IOException err) {
+		}
+	}
+}
@@ -35,6 +35,15 @@ public interface Listener {
 	 */
 	public boolean start() throws IOException;
 
+	/**
+	 * Called by the request handler thread when it takes over a connection, to
+	 * obtain the stream the requests on this socket are read from. This lets
+	 * listeners that have already read part of the connection (ie a selector
+	 * based listener waiting for a complete request head) hand those bytes
+	 * over.
+	 */
+	public InputStream getSocketInputStream(Socket socket) throws IOException;
+
 	/**
 	 * Called by the request handler thread, because it needs specific setup
 	 * code for this connection's protocol (ie construction of request/response
@@ -67,6 +76,15 @@ public interface Listener {
 	 */
 	public void releaseSocket(Socket socket, InputStream inSocket, OutputStream outSocket) throws IOException;
 
+	/**
+	 * Turns a connection away when the request handlers are saturated, and
+	 * closes it.
+	 * 
+	 * @param overloadResponse
+	 *            pre-written 503 response, for listeners speaking plain HTTP
+	 */
+	public void rejectConnection(Socket socket, byte[] overloadResponse) throws IOException;
+
 	/**
 	 * Tries to wait for extra requests on the same socket. If any are found
 	 * before the timeout expires, it exits with a Boolean.TRUE, indicating a new
@@ -0,0 +1,254 @@
+package net.winstone.core.listener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+
+import net.winstone.core.HostGroup;
+import net.winstone.core.ObjectPool;
+import net.winstone.core.WinstoneRequest;
+import net.winstone.core.WinstoneResponse;
+import net.winstone.util.BufferPool;
+
+/**
+ * Selector based variant of the HTTP listener. A single connector thread
+ * accepts connections and waits for read readiness on all of them, and a
+ * connection is only handed to a request handler thread once a complete
+ * request head (request line and headers) has arrived. When a response allows
+ * the connection to be kept alive, the connection is parked back on the
+ * selector instead of holding the handler thread while it sits idle.
+ * <p>
+ * Request parsing, servlet dispatch and response writing are unchanged: the
+ * handler thread works on the socket in blocking mode, exactly as it does for
+ * the {@link HttpListener}. The selector loop is the
+ * {@link SelectorConnector} it shares with the {@link NioHttpsListener}.
+ * <p>
+ * Disabled by default, enable it with --httpNioPort.
+ */
+public class NioHttpListener extends HttpListener {
+
+	/**
+	 * Initial size of the per connection request head buffer.
+	 */
+	private final static int HEAD_BUFFER_SIZE = 8192;
+	/**
+	 * Largest request head gathered on the selector: past it, the connection
+	 * goes to a handler thread anyway.
+	 */
+	private final static int MAX_HEAD_SIZE = 65536;
+
+	private final SelectorConnector connector;
+
+	/**
+	 * Build a new instance of NioHttpListener.
+	 */
+	public NioHttpListener(final Map<String, String> args, final ObjectPool objectPool, final HostGroup hostGroup) throws IOException {
+		super(args, objectPool, hostGroup);
+		connector = new SelectorConnector(this, objectPool) {
+
+			@Override
+			protected Connection newConnection(final SocketChannel channel) {
+				return new NioConnection(channel);
+			}
+		};
+	}
+
+	@Override
+	protected int getDefaultPort() {
+		return -1; // nio connector disabled by default
+	}
+
+	@Override
+	protected String getConnectorName() {
+		return "httpNio";
+	}
+
+	@Override
+	public boolean start() throws IOException {
+		if (listenPort < 0) {
+			return Boolean.FALSE;
+		}
+		interrupted = Boolean.FALSE;
+		connector.start(listenAddress, listenPort);
+		return Boolean.TRUE;
+	}
+
+	@Override
+	public void destroy() {
+		super.destroy();
+		connector.destroy();
+	}
+
+	@Override
+	public InputStream getSocketInputStream(final Socket socket) throws IOException {
+		final NioConnection connection = (NioConnection) connector.getConnection(socket);
+		if (connection == null) {
+			return super.getSocketInputStream(socket);
+		}
+		return new NioInputStream(connection, new HeadInputStream(connection, socket.getInputStream()), objectPool.getReadBufferPool());
+	}
+
+	/**
+	 * Rather than waiting on the socket for the next request, let the handler
+	 * thread go and hand the connection back to the selector once it is
+	 * released.
+	 */
+	@Override
+	public boolean processKeepAlive(final WinstoneRequest request, final WinstoneResponse response, final InputStream inSocket) throws IOException, InterruptedException {
+		return connector.processKeepAlive(super.processKeepAlive(request, response, inSocket), inSocket);
+	}
+
+	@Override
+	public void releaseSocket(final Socket socket, final InputStream inSocket, final OutputStream outSocket) throws IOException {
+		if (!connector.release(socket, inSocket)) {
+			super.releaseSocket(socket, inSocket, outSocket);
+		}
+	}
+
+	@Override
+	public void rejectConnection(final Socket socket, final byte[] overloadResponse) throws IOException {
+		connector.reject(socket);
+		super.rejectConnection(socket, overloadResponse);
+	}
+
+	/**
+	 * A plain connection, gathering its request head as it comes in.
+	 */
+	private final class NioConnection extends SelectorConnector.Connection {
+		private final SocketChannel channel;
+		private ByteBuffer head;
+		private int scanned;
+
+		NioConnection(final SocketChannel channel) {
+			this.channel = channel;
+			head = ByteBuffer.allocate(HEAD_BUFFER_SIZE);
+		}
+
+		@Override
+		Socket getSocket() {
+			return channel.socket();
+		}
+
+		@Override
+		SocketChannel getChannel() {
+			return channel;
+		}
+
+		/**
+		 * Reads what is available on the channel, and flips the buffer for
+		 * reading once a complete request head is there.
+		 */
+		@Override
+		boolean step() throws IOException {
+			if (!head.hasRemaining()) {
+				final ByteBuffer larger = ByteBuffer.allocate(head.capacity() * 2);
+				head.flip();
+				larger.put(head);
+				head = larger;
+			}
+			final int read = channel.read(head);
+			if (read < 0) {
+				connector.close(this);
+				return Boolean.FALSE;
+			}
+			// a head too large goes to the handler all the same, for the
+			// request parser to answer it with an error status
+			if (isHeadComplete() || head.position() >= MAX_HEAD_SIZE) {
+				head.flip();
+				return Boolean.TRUE;
+			}
+			return Boolean.FALSE;
+		}
+
+		/**
+		 * Looks for the blank line ending the request head, skipping the
+		 * part already scanned on previous reads.
+		 */
+		private boolean isHeadComplete() {
+			final int limit = head.position();
+			if (SelectorConnector.isHeadComplete(head.array(), scanned, limit)) {
+				return Boolean.TRUE;
+			}
+			scanned = limit;
+			return Boolean.FALSE;
+		}
+
+		/**
+		 * Nothing is left in the head buffer: the handler thread only lets
+		 * the connection go once it has no pipelined request.
+		 */
+		@Override
+		boolean park() {
+			head.clear();
+			scanned = 0;
+			return Boolean.FALSE;
+		}
+	}
+
+	/**
+	 * Read buffer of a connection handed to a request handler thread.
+	 */
+	private static final class NioInputStream extends SelectorConnector.ConnectionInput {
+		private final NioConnection connection;
+
+		NioInputStream(final NioConnection connection, final InputStream in, final BufferPool pool) {
+			super(connection, in, pool);
+			this.connection = connection;
+		}
+
+		/**
+		 * Counts the bytes of the head buffer not read yet, which may hold a
+		 * pipelined request.
+		 */
+		@Override
+		public int buffered() {
+			return super.buffered() + connection.head.remaining();
+		}
+	}
+
+	/**
+	 * Handler side view of a connection: the request head bytes gathered by
+	 * the selector first, then the socket itself.
+	 */
+	private static final class HeadInputStream extends InputStream {
+		private final ByteBuffer head;
+		private final InputStream socketIn;
+
+		HeadInputStream(final NioConnection connection, final InputStream socketIn) {
+			head = connection.head;
+			this.socketIn = socketIn;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (head.hasRemaining()) {
+				return head.get() & 0xFF;
+			}
+			return socketIn.read();
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (head.hasRemaining()) {
+				final int count = Math.min(len, head.remaining());
+				head.get(b, off, count);
+				return count;
+			}
+			return socketIn.read(b, off, len);
+		}
+
+		@Override
+		public int available() throws IOException {
+			return head.remaining() + socketIn.available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			socketIn.close();
+		}
+	}
+}
@@ -0,0 +1,283 @@
+package net.winstone.core.listener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+
+import net.winstone.core.HostGroup;
+import net.winstone.core.ObjectPool;
+import net.winstone.core.WinstoneRequest;
+import net.winstone.core.WinstoneResponse;
+import net.winstone.util.BufferPool;
+import net.winstone.util.ByteBufferPool;
+import net.winstone.util.StringUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Selector based variant of the HTTPS listener, driving an {@link SSLEngine}
+ * per connection. A single connector thread accepts connections, runs their
+ * TLS handshakes and decrypts until a complete request head has arrived, so
+ * that slow handshakes hold no request handler thread. The costly steps of a
+ * handshake, the delegated tasks of the engine, run on a small pool of
+ * handshake threads. Idle keep-alive connections go back to the selector, as
+ * with the {@link NioHttpListener}, whose {@link SelectorConnector} it shares.
+ * <p>
+ * The handler thread then decrypts the rest of the request and encrypts the
+ * response through the streams of a {@link SslEngineSocket}. Keys and
+ * certificates come from the same --https options as the {@link HttpsListener}.
+ * <p>
+ * Disabled by default, enable it with --httpsNioPort.
+ */
+public class NioHttpsListener extends HttpsListener {
+
+	private static Logger logger = LoggerFactory.getLogger(NioHttpsListener.class);
+	/**
+	 * Largest request head gathered on the selector: past it, the connection
+	 * goes to a handler thread anyway.
+	 */
+	private final static int MAX_HEAD_SIZE = 65536;
+	private final static int MAX_BUFFERS_IN_POOL = 256;
+
+	private final int handshakeThreads;
+	private final SelectorConnector connector;
+	private SSLContext sslContext;
+	private SSLParameters sslParameters;
+	private ByteBufferPool packetPool;
+	private ByteBufferPool applicationPool;
+	private ExecutorService handshakeExecutor;
+
+	/**
+	 * Build a new instance of NioHttpsListener.
+	 */
+	public NioHttpsListener(final Map<String, String> args, final ObjectPool objectPool, final HostGroup hostGroup) throws IOException {
+		super(args, objectPool, hostGroup);
+		handshakeThreads = Math.max(StringUtils.intArg(args, getConnectorName() + "HandshakeThreads", Runtime.getRuntime().availableProcessors()), 1);
+		connector = new SelectorConnector(this, objectPool) {
+
+			@Override
+			protected Connection newConnection(final SocketChannel channel) throws IOException {
+				final SSLEngine engine = sslContext.createSSLEngine();
+				engine.setUseClientMode(Boolean.FALSE);
+				engine.setSSLParameters(sslParameters);
+				return new TlsConnection(new SslEngineSocket(channel, engine, packetPool, applicationPool, NioHttpsListener.MAX_HEAD_SIZE));
+			}
+
+			@Override
+			protected void stopped() {
+				handshakeExecutor.shutdownNow();
+			}
+		};
+	}
+
+	@Override
+	protected String getConnectorName() {
+		return "httpsNio";
+	}
+
+	@Override
+	public boolean start() throws IOException {
+		if (listenPort < 0) {
+			return Boolean.FALSE;
+		}
+		interrupted = Boolean.FALSE;
+		sslContext = getSSLContext();
+		sslParameters = getSSLParameters(sslContext);
+		final SSLSession session = sslContext.createSSLEngine().getSession();
+		packetPool = new ByteBufferPool(session.getPacketBufferSize(), NioHttpsListener.MAX_BUFFERS_IN_POOL, Boolean.FALSE);
+		applicationPool = new ByteBufferPool(session.getApplicationBufferSize(), NioHttpsListener.MAX_BUFFERS_IN_POOL, Boolean.FALSE);
+		handshakeExecutor = Executors.newFixedThreadPool(handshakeThreads, new ThreadFactory() {
+
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "TlsHandshake:" + getConnectorName() + "-" + count.incrementAndGet());
+				thread.setDaemon(Boolean.TRUE);
+				return thread;
+			}
+		});
+		try {
+			connector.start(listenAddress, listenPort);
+		} catch (final IOException e) {
+			handshakeExecutor.shutdown();
+			throw e;
+		}
+		return Boolean.TRUE;
+	}
+
+	@Override
+	public void destroy() {
+		super.destroy();
+		connector.destroy();
+	}
+
+	/**
+	 * Runs the handshake tasks of a connection on a handshake thread, and
+	 * gives it back to the connector thread after.
+	 */
+	private void runDelegatedTasks(final TlsConnection connection) {
+		try {
+			handshakeExecutor.execute(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						connection.socket.runDelegatedTasks();
+						connector.resume(connection);
+					} catch (final Throwable err) {
+						NioHttpsListener.logger.debug("Error during TLS handshake", err);
+						connector.close(connection);
+					}
+				}
+			});
+		} catch (final RejectedExecutionException err) {
+			connector.close(connection);
+		}
+	}
+
+	@Override
+	protected boolean isSecure(final Socket socket) {
+		return socket instanceof SslEngineSocket || super.isSecure(socket);
+	}
+
+	@Override
+	protected SSLSession getSSLSession(final Socket socket) {
+		if (socket instanceof SslEngineSocket) {
+			return ((SslEngineSocket) socket).getSession();
+		}
+		return super.getSSLSession(socket);
+	}
+
+	@Override
+	public InputStream getSocketInputStream(final Socket socket) throws IOException {
+		final TlsConnection connection = (TlsConnection) connector.getConnection(socket);
+		if (connection == null) {
+			return super.getSocketInputStream(socket);
+		}
+		return new NioTlsInputStream(connection, objectPool.getReadBufferPool());
+	}
+
+	/**
+	 * Rather than waiting on the socket for the next request, let the handler
+	 * thread go and hand the connection back to the selector once it is
+	 * released.
+	 */
+	@Override
+	public boolean processKeepAlive(final WinstoneRequest request, final WinstoneResponse response, final InputStream inSocket) throws IOException, InterruptedException {
+		return connector.processKeepAlive(super.processKeepAlive(request, response, inSocket), inSocket);
+	}
+
+	@Override
+	public void releaseSocket(final Socket socket, final InputStream inSocket, final OutputStream outSocket) throws IOException {
+		if (!connector.release(socket, inSocket)) {
+			super.releaseSocket(socket, inSocket, outSocket);
+		}
+	}
+
+	/**
+	 * Once the handshake is done, the overload response can go out, unlike
+	 * on the {@link HttpsListener}.
+	 */
+	@Override
+	public void rejectConnection(final Socket socket, final byte[] overloadResponse) throws IOException {
+		connector.reject(socket);
+		if ((socket instanceof SslEngineSocket) && ((SslEngineSocket) socket).isHandshakeComplete()) {
+			try {
+				final OutputStream out = socket.getOutputStream();
+				out.write(overloadResponse);
+				out.flush();
+			} finally {
+				socket.close();
+			}
+			return;
+		}
+		super.rejectConnection(socket, overloadResponse);
+	}
+
+	/**
+	 * A TLS connection, running its handshake then decrypting its request
+	 * head as the bytes come in.
+	 */
+	private final class TlsConnection extends SelectorConnector.Connection {
+		private final SslEngineSocket socket;
+
+		TlsConnection(final SslEngineSocket socket) {
+			this.socket = socket;
+		}
+
+		@Override
+		Socket getSocket() {
+			return socket;
+		}
+
+		@Override
+		SocketChannel getChannel() {
+			return socket.getSocketChannel();
+		}
+
+		@Override
+		boolean step() throws IOException {
+			switch (socket.advance()) {
+			case SslEngineSocket.WAIT_READ:
+				getKey().interestOps(SelectionKey.OP_READ);
+				return Boolean.FALSE;
+			case SslEngineSocket.WAIT_WRITE:
+				getKey().interestOps(SelectionKey.OP_WRITE);
+				return Boolean.FALSE;
+			case SslEngineSocket.RUN_TASKS:
+				getKey().interestOps(0);
+				runDelegatedTasks(this);
+				return Boolean.FALSE;
+			case SslEngineSocket.HEAD_READY:
+				return Boolean.TRUE;
+			default:
+				connector.close(this);
+				return Boolean.FALSE;
+			}
+		}
+
+		/**
+		 * Bytes decrypted or read ahead of the next request go on at once.
+		 */
+		@Override
+		boolean park() {
+			return socket.park();
+		}
+	}
+
+	/**
+	 * Read buffer of a connection handed to a request handler thread.
+	 */
+	private static final class NioTlsInputStream extends SelectorConnector.ConnectionInput {
+		private final TlsConnection connection;
+
+		NioTlsInputStream(final TlsConnection connection, final BufferPool pool) throws IOException {
+			super(connection, connection.socket.getInputStream(), pool);
+			this.connection = connection;
+		}
+
+		/**
+		 * The next request may also be decrypted in the engine already.
+		 */
+		@Override
+		boolean hasNextRequest() {
+			return super.hasNextRequest() || connection.socket.hasDecrypted();
+		}
+	}
+}
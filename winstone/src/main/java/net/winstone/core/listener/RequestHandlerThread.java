@@ -20,12 +20,15 @@ import javax.servlet.ServletRequestListener;
 import net.winstone.accesslog.AccessLogger;
 import net.winstone.core.ClientSocketException;
 import net.winstone.core.HostConfiguration;
+import net.winstone.core.ObjectPool;
 import net.winstone.core.SimpleRequestDispatcher;
 import net.winstone.core.WebAppConfiguration;
+import net.winstone.core.WinstoneConstant;
 import net.winstone.core.WinstoneInputStream;
 import net.winstone.core.WinstoneOutputStream;
 import net.winstone.core.WinstoneRequest;
 import net.winstone.core.WinstoneResponse;
+import net.winstone.util.Bulkhead;
 
 import org.slf4j.LoggerFactory;
 
@@ -46,7 +49,19 @@ public class RequestHandlerThread implements Runnable {
 	private WinstoneResponse rsp;
 	private Listener listener;
 	private Socket socket;
+	private final ObjectPool objectPool;
+	/**
+	 * System.nanoTime() when the connection was handed to the pool.
+	 */
+	private final long queuedAt = System.nanoTime();
+	/**
+	 * Request and response of the previous request on this connection, kept
+	 * for the next one rather than going back to the pool each time.
+	 */
+	private WinstoneRequest keptRequest;
+	private WinstoneResponse keptResponse;
 	private long requestStartTime;
+	private HttpRequestParser requestParser;
 	private final boolean simulateModUniqueId;
 	private final boolean saveSessions;
 
@@ -54,7 +69,8 @@ public class RequestHandlerThread implements Runnable {
 	 * Constructor - this is called by the handler pool, and just sets up for
 	 * when a real request comes along.
 	 */
-	public RequestHandlerThread(boolean simulateModUniqueId, boolean saveSessions, Socket socket, Listener listener) {
+	public RequestHandlerThread(ObjectPool objectPool, boolean simulateModUniqueId, boolean saveSessions, Socket socket, Listener listener) {
+		this.objectPool = objectPool;
 		this.simulateModUniqueId = simulateModUniqueId;
 		this.saveSessions = saveSessions;
 		this.socket = socket;
@@ -66,13 +82,18 @@ public class RequestHandlerThread implements Runnable {
 	 */
 	@Override
 	public void run() {
+		if (!objectPool.admit(listener, queuedAt)) {
+			// the client has most likely given up already
+			objectPool.shedConnection(socket, listener);
+			return;
+		}
 		// Start request processing
 		InputStream inSocket = null;
 		OutputStream outSocket = null;
 		boolean iAmFirst = true;
 		try {
 			// Get input/output streams
-			inSocket = socket.getInputStream();
+			inSocket = listener.getSocketInputStream(socket);
 			outSocket = socket.getOutputStream();
 
 			// The keep alive loop - exiting from here means the connection has
@@ -119,6 +140,8 @@ public class RequestHandlerThread implements Runnable {
 						rsp.flushBuffer();
 						req.discardRequestBody();
 						writeToAccessLog(servletURI, req, rsp, null);
+						this.outData.finishResponse();
+						this.inData.finishRequest();
 
 						// Process keep-alive
 						continueFlag = this.listener.processKeepAlive(req, rsp, inSocket);
@@ -127,6 +150,22 @@ public class RequestHandlerThread implements Runnable {
 						RequestHandlerThread.logger.debug("Processed complete request: headerParseTime={}ms totalTime={}ms path={}", new Object[] { "" + headerParseTime, "" + getRequestProcessTime(), servletURI });
 						continue;
 					}
+					final Bulkhead bulkhead = webAppConfig.getBulkhead();
+					if ((bulkhead != null) && !bulkhead.enter()) {
+						// only the requests of this webapp are turned away
+						RequestHandlerThread.logger.debug("Webapp {} saturated - turning away request {}", webAppConfig.getContextName(), servletURI);
+						rsp.setHeader(WinstoneConstant.RETRY_AFTER_HEADER, Integer.toString(objectPool.getOverloadRetryAfter()));
+						rsp.sendError(WinstoneResponse.SC_SERVICE_UNAVAILABLE, "Request URL " + servletURI + " is temporarily unavailable.<br><br>");
+						rsp.flushBuffer();
+						req.discardRequestBody();
+						writeToAccessLog(servletURI, req, rsp, webAppConfig);
+						this.outData.finishResponse();
+						this.inData.finishRequest();
+
+						continueFlag = this.listener.processKeepAlive(req, rsp, inSocket);
+						this.listener.deallocateRequestResponse(this, req, rsp, inData, outData);
+						continue;
+					}
 					req.setWebAppConfig(webAppConfig);
 
 					// Now we've verified it's in the right webapp, send
@@ -140,7 +179,13 @@ public class RequestHandlerThread implements Runnable {
 					}
 
 					// Lookup a dispatcher, then process with it
-					processRequest(webAppConfig, req, rsp, webAppConfig.getServletURIFromRequestURI(servletURI));
+					try {
+						processRequest(webAppConfig, req, rsp, webAppConfig.getServletURIFromRequestURI(servletURI));
+					} finally {
+						if (bulkhead != null) {
+							bulkhead.leave();
+						}
+					}
 					writeToAccessLog(servletURI, req, rsp, webAppConfig);
 
 					this.outData.finishResponse();
@@ -173,6 +218,13 @@ public class RequestHandlerThread implements Runnable {
 					RequestHandlerThread.logger.error("Socket read timed out - exiting request handler thread", errIO);
 				} catch (SocketException errIO) {
 					continueFlag = false;
+				} catch (IOException errIO) {
+					if ((this.req == null) || !this.req.isBodyBroken()) {
+						throw errIO;
+					}
+					// where the next request starts is unknown
+					RequestHandlerThread.logger.debug("Malformed request body - closing the connection", errIO);
+					continueFlag = false;
 				}
 			}
 			this.listener.deallocateRequestResponse(this, req, rsp, inData, outData);
@@ -191,6 +243,8 @@ public class RequestHandlerThread implements Runnable {
 			if (!(err instanceof ClientSocketException)) {
 				RequestHandlerThread.logger.error("Error within request handler thread", err);
 			}
+		} finally {
+			releaseKeptRequestResponse();
 		}
 	}
 
@@ -244,11 +298,75 @@ public class RequestHandlerThread implements Runnable {
 			// rsp.sendUntrappedError(err, req, rd != null ? rd.getName() :
 			// null);
 		}
-		rsp.flushBuffer();
+		rsp.finishBuffer();
 		rsp.getWinstoneOutputStream().setClosed(Boolean.TRUE);
 		req.discardRequestBody();
 	}
 
+	/**
+	 * @return the request kept from the previous request on this connection,
+	 *         or one from the pool.
+	 */
+	public WinstoneRequest takeRequest() throws IOException {
+		final WinstoneRequest request = keptRequest;
+		if (request == null) {
+			return objectPool.getRequestFromPool();
+		}
+		keptRequest = null;
+		return request;
+	}
+
+	/**
+	 * @return the response kept from the previous request on this connection,
+	 *         or one from the pool.
+	 */
+	public WinstoneResponse takeResponse() throws IOException {
+		final WinstoneResponse response = keptResponse;
+		if (response == null) {
+			return objectPool.getResponseFromPool();
+		}
+		keptResponse = null;
+		return response;
+	}
+
+	/**
+	 * Cleans up a finished request and response, and keeps them for the next
+	 * request on this connection.
+	 */
+	public void keepRequestResponse(final WinstoneRequest request, final WinstoneResponse response) {
+		if (request != null) {
+			request.cleanUp();
+			if (keptRequest == null) {
+				keptRequest = request;
+			} else {
+				objectPool.releaseRequestToPool(request);
+			}
+		}
+		if (response != null) {
+			response.cleanUp();
+			if (keptResponse == null) {
+				keptResponse = response;
+			} else {
+				objectPool.releaseResponseToPool(response);
+			}
+		}
+	}
+
+	/**
+	 * Gives the kept request and response back to the pool once the
+	 * connection is closed.
+	 */
+	private void releaseKeptRequestResponse() {
+		if (keptRequest != null) {
+			objectPool.releaseRequestToPool(keptRequest);
+			keptRequest = null;
+		}
+		if (keptResponse != null) {
+			objectPool.releaseResponseToPool(keptResponse);
+			keptResponse = null;
+		}
+	}
+
 	public void setRequest(final WinstoneRequest request) {
 		req = request;
 	}
@@ -265,6 +383,18 @@ public class RequestHandlerThread implements Runnable {
 		outData = outStream;
 	}
 
+	/**
+	 * @return the request head parser of this thread, created on first use
+	 *         and kept for every connection it handles, parked and resumed
+	 *         ones included.
+	 */
+	public HttpRequestParser getRequestParser() {
+		if (requestParser == null) {
+			requestParser = new HttpRequestParser();
+		}
+		return requestParser;
+	}
+
 	public void setRequestStartTime() {
 		requestStartTime = System.currentTimeMillis();
 	}
@@ -0,0 +1,433 @@
+package net.winstone.core.listener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import net.winstone.core.ObjectPool;
+import net.winstone.core.listener.HttpListener.ConnectionInputBuffer;
+import net.winstone.util.BufferPool;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The connector thread of the selector based listeners. It accepts
+ * connections and waits for read readiness on all of them, holding off
+ * accepting while the request handlers are saturated, and hands a connection
+ * to a request handler thread once a complete request head has arrived. A
+ * connection kept alive is parked back on the selector when its handler
+ * thread lets it go, and closed once idle for too long.
+ * <p>
+ * What a connection does with the bytes that come in - read them as they are,
+ * or run a TLS handshake and decrypt them first - is up to the
+ * {@link Connection} the listener makes of each accepted channel.
+ */
+abstract class SelectorConnector implements Runnable {
+
+	private static Logger logger = LoggerFactory.getLogger(SelectorConnector.class);
+	/**
+	 * How often idle connections are checked for expiry.
+	 */
+	private final static int EXPIRY_CHECK_INTERVAL = 1000;
+
+	private final HttpListener listener;
+	private final ObjectPool objectPool;
+	private final Map<Socket, Connection> connections = new ConcurrentHashMap<Socket, Connection>();
+	/**
+	 * Connections handed back by handler threads, or ready to go on.
+	 */
+	private final Queue<Connection> resumeQueue = new ConcurrentLinkedQueue<Connection>();
+	private ServerSocketChannel serverChannel;
+	private Selector selector;
+	private SelectionKey acceptKey;
+	/**
+	 * Boolean.TRUE while accepting is held off for lack of request handlers.
+	 */
+	private boolean acceptPaused;
+	private long lastExpiryCheck;
+
+	/**
+	 * Build a new instance of SelectorConnector.
+	 *
+	 * @param listener
+	 *            listener the connections are handed to
+	 * @param objectPool
+	 *            the request handler pool
+	 */
+	SelectorConnector(final HttpListener listener, final ObjectPool objectPool) {
+		super();
+		this.listener = listener;
+		this.objectPool = objectPool;
+	}
+
+	/**
+	 * @return the connection for a channel just accepted, in non-blocking
+	 *         mode.
+	 */
+	protected abstract Connection newConnection(SocketChannel channel) throws IOException;
+
+	/**
+	 * Called on the connector thread once the selector is closed.
+	 */
+	protected void stopped() {
+	}
+
+	/**
+	 * Binds the server socket and starts the connector thread.
+	 */
+	void start(final String listenAddress, final int listenPort) throws IOException {
+		final ServerSocketChannel ssc = ServerSocketChannel.open();
+		try {
+			ssc.configureBlocking(Boolean.FALSE);
+			ssc.socket().bind(listenAddress == null ? new InetSocketAddress(listenPort) : new InetSocketAddress(InetAddress.getByName(listenAddress), listenPort), HttpListener.BACKLOG_COUNT);
+			selector = Selector.open();
+			acceptKey = ssc.register(selector, SelectionKey.OP_ACCEPT);
+		} catch (final IOException e) {
+			ssc.close();
+			throw (IOException) new IOException("Failed to listen on port " + listenPort).initCause(e);
+		}
+		serverChannel = ssc;
+		SelectorConnector.logger.info("{} Listener started: port={}", listener.getConnectorName().toUpperCase(), listenPort + "");
+
+		final Thread thread = new Thread(this, "ConnectorThread:" + listener.getConnectorName() + "-" + Integer.toString(listenPort));
+		thread.setDaemon(Boolean.TRUE);
+		thread.start();
+	}
+
+	/**
+	 * Wakes up the connector thread, to stop once the listener is
+	 * interrupted.
+	 */
+	void destroy() {
+		if (selector != null) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * The selector loop: accepts connections, moves them on as bytes come in
+	 * and dispatches those with a complete request head to the request
+	 * handler pool.
+	 */
+	@Override
+	public void run() {
+		try {
+			final List<Connection> ready = new ArrayList<Connection>();
+			while (!listener.interrupted) {
+				final boolean paused = objectPool.isAcceptPaused();
+				if (paused != acceptPaused) {
+					// saturated: new connections wait in the backlog
+					acceptKey.interestOps(paused ? 0 : SelectionKey.OP_ACCEPT);
+					acceptPaused = paused;
+				}
+				selector.select(paused ? objectPool.getAcceptPause() : SelectorConnector.EXPIRY_CHECK_INTERVAL);
+				resumeConnections(ready);
+
+				final Iterator<SelectionKey> i = selector.selectedKeys().iterator();
+				while (i.hasNext()) {
+					final SelectionKey key = i.next();
+					i.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else if (key.isReadable() || key.isWritable()) {
+						step((Connection) key.attachment(), ready);
+					}
+				}
+				if (!ready.isEmpty()) {
+					// flush the cancelled keys, so the channels can go back to
+					// blocking mode for the handler threads
+					selector.selectNow();
+					for (final Connection connection : ready) {
+						dispatch(connection);
+					}
+					ready.clear();
+				}
+				expireIdleConnections();
+			}
+
+			for (final Connection connection : connections.values()) {
+				close(connection);
+			}
+			connections.clear();
+			selector.close();
+			serverChannel.close();
+			serverChannel = null;
+			stopped();
+			SelectorConnector.logger.info("{} Listener shutdown successfully", listener.getConnectorName().toUpperCase());
+		} catch (final Throwable err) {
+			SelectorConnector.logger.error("Error during " + listener.getConnectorName().toUpperCase() + " listener init or shutdown", err);
+		}
+	}
+
+	private void accept() throws IOException {
+		final SocketChannel channel = serverChannel.accept();
+		if (channel == null) {
+			return;
+		}
+		channel.configureBlocking(Boolean.FALSE);
+		final Connection connection = newConnection(channel);
+		connections.put(connection.getSocket(), connection);
+		register(connection);
+	}
+
+	private void register(final Connection connection) throws IOException {
+		connection.key = connection.getChannel().register(selector, SelectionKey.OP_READ, connection);
+	}
+
+	/**
+	 * Moves a connection on with the bytes that came in or could go out.
+	 */
+	private void step(final Connection connection, final List<Connection> ready) {
+		try {
+			connection.lastActivity = System.currentTimeMillis();
+			if (connection.step()) {
+				connection.key.cancel();
+				ready.add(connection);
+			}
+		} catch (final IOException err) {
+			SelectorConnector.logger.debug("Error reading request head", err);
+			close(connection);
+		}
+	}
+
+	private void dispatch(final Connection connection) {
+		try {
+			connection.getChannel().configureBlocking(Boolean.TRUE);
+			objectPool.handleRequest(connection.getSocket(), listener);
+			if (!connection.getChannel().isOpen()) {
+				// rejected by the handler pool
+				connections.remove(connection.getSocket());
+			}
+		} catch (final Throwable err) {
+			SelectorConnector.logger.warn("Error dispatching connection to request handler", err);
+			close(connection);
+		}
+	}
+
+	/**
+	 * Puts connections released by handler threads back under the selector,
+	 * and moves on those queued by {@link #resume(Connection)}.
+	 */
+	private void resumeConnections(final List<Connection> ready) {
+		Connection connection = null;
+		while ((connection = resumeQueue.poll()) != null) {
+			if (connection.key == null || !connection.key.isValid()) {
+				// parked by a handler thread
+				final boolean pending = connection.park();
+				try {
+					connection.getChannel().configureBlocking(Boolean.FALSE);
+					register(connection);
+				} catch (final IOException err) {
+					SelectorConnector.logger.debug("Error parking keep-alive connection", err);
+					close(connection);
+					continue;
+				}
+				if (!pending) {
+					continue;
+				}
+			}
+			// bytes already read may hold the next step
+			step(connection, ready);
+		}
+	}
+
+	/**
+	 * Closes the connections that have been waiting for a request head longer
+	 * than allowed: the keep alive timeout for connections that already
+	 * served a request, the connection timeout for new ones.
+	 */
+	private void expireIdleConnections() {
+		final long now = System.currentTimeMillis();
+		if (now - lastExpiryCheck < SelectorConnector.EXPIRY_CHECK_INTERVAL) {
+			return;
+		}
+		lastExpiryCheck = now;
+		for (final SelectionKey key : selector.keys()) {
+			if (key.attachment() instanceof Connection) {
+				final Connection connection = (Connection) key.attachment();
+				final int timeout = connection.requests > 0 ? listener.keepAliveTimeout : HttpListener.CONNECTION_TIMEOUT;
+				if (now - connection.lastActivity > timeout) {
+					SelectorConnector.logger.debug("Closing idle connection from {}", connection.getSocket().getRemoteSocketAddress());
+					key.cancel();
+					close(connection);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gives a connection back to the connector thread, to go on with the bytes
+	 * it already has.
+	 */
+	void resume(final Connection connection) {
+		resumeQueue.add(connection);
+		selector.wakeup();
+	}
+
+	/**
+	 * @return the connection of a socket dispatched by this connector, or
+	 *         null.
+	 */
+	Connection getConnection(final Socket socket) {
+		return connections.get(socket);
+	}
+
+	/**
+	 * Rather than waiting on the socket for the next request, lets the
+	 * handler thread go, for the connection to be parked once it is released.
+	 *
+	 * @return the keep-alive decision of the handler thread.
+	 */
+	boolean processKeepAlive(final boolean continueFlag, final InputStream inSocket) {
+		if (continueFlag && (inSocket instanceof ConnectionInput)) {
+			final ConnectionInput in = (ConnectionInput) inSocket;
+			if (in.hasNextRequest()) {
+				// pipelined request already read: keep going on this thread
+				return Boolean.TRUE;
+			}
+			in.connection.parkOnRelease = Boolean.TRUE;
+			return Boolean.FALSE;
+		}
+		return continueFlag;
+	}
+
+	/**
+	 * Parks a connection released by its handler thread, if it is to be
+	 * kept alive, or forgets it.
+	 *
+	 * @return Boolean.FALSE if the socket is to be closed.
+	 */
+	boolean release(final Socket socket, final InputStream inSocket) {
+		final Connection connection = connections.get(socket);
+		if ((connection != null) && connection.parkOnRelease && !listener.interrupted) {
+			final ConnectionInput in = (ConnectionInput) inSocket;
+			connection.parkOnRelease = Boolean.FALSE;
+			connection.requests = in.requests;
+			connection.lastActivity = System.currentTimeMillis();
+			in.release();
+			resume(connection);
+			return Boolean.TRUE;
+		}
+		connections.remove(socket);
+		return Boolean.FALSE;
+	}
+
+	/**
+	 * Forgets a socket turned away by the request handler pool.
+	 */
+	void reject(final Socket socket) {
+		connections.remove(socket);
+	}
+
+	void close(final Connection connection) {
+		connections.remove(connection.getSocket());
+		try {
+			connection.getSocket().close();
+		} catch (final IOException err) {
+		}
+	}
+
+	/**
+	 * Looks for the blank line ending a request head.
+	 *
+	 * @param from
+	 *            where to start, past the bytes scanned before
+	 * @param limit
+	 *            end of the bytes received
+	 */
+	static boolean isHeadComplete(final byte data[], final int from, final int limit) {
+		for (int n = Math.max(from, 1); n < limit; n++) {
+			if (data[n] == '\n') {
+				if (data[n - 1] == '\n') {
+					return Boolean.TRUE;
+				}
+				if ((n >= 3) && (data[n - 1] == '\r') && (data[n - 2] == '\n')) {
+					return Boolean.TRUE;
+				}
+			}
+		}
+		return Boolean.FALSE;
+	}
+
+	/**
+	 * State of a single connection while it is owned by the selector.
+	 */
+	abstract static class Connection {
+		private SelectionKey key;
+		private long lastActivity = System.currentTimeMillis();
+		/**
+		 * Number of requests received on the connection.
+		 */
+		private int requests;
+		private volatile boolean parkOnRelease;
+
+		/**
+		 * @return the socket handed to the request handler thread.
+		 */
+		abstract Socket getSocket();
+
+		abstract SocketChannel getChannel();
+
+		/**
+		 * @return the key of the connection while it is registered.
+		 */
+		SelectionKey getKey() {
+			return key;
+		}
+
+		/**
+		 * Moves on with the bytes that came in or could go out. May close the
+		 * connection.
+		 *
+		 * @return Boolean.TRUE once a complete request head is buffered.
+		 */
+		abstract boolean step() throws IOException;
+
+		/**
+		 * Readies the connection for the selector after its handler thread
+		 * let it go.
+		 *
+		 * @return Boolean.TRUE if the bytes already read may hold the next
+		 *         request head.
+		 */
+		abstract boolean park();
+	}
+
+	/**
+	 * Read buffer of a connection handed to a request handler thread.
+	 */
+	static class ConnectionInput extends ConnectionInputBuffer {
+		private final Connection connection;
+
+		ConnectionInput(final Connection connection, final InputStream in, final BufferPool pool) {
+			// parked by the connector, not by the keep-alive selector
+			super(in, pool, Boolean.FALSE);
+			this.connection = connection;
+			requests = connection.requests;
+		}
+
+		/**
+		 * @return Boolean.TRUE if the next request is already read.
+		 */
+		boolean hasNextRequest() {
+			return buffered() > 0;
+		}
+	}
+}
@@ -0,0 +1,498 @@
+package net.winstone.core.listener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketImpl;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLSession;
+
+import net.winstone.util.ByteBufferPool;
+
+/**
+ * A TLS connection driven by an {@link SSLEngine} over a socket channel, for
+ * the {@link NioHttpsListener}.
+ * <p>
+ * While the channel is non-blocking, the selector thread calls
+ * {@link #advance()} as bytes come and go: it runs the handshake and decrypts
+ * until a whole request head is there. The connection is then handed to a
+ * request handler thread as a {@link Socket}, whose streams decrypt the rest
+ * of the request and encrypt the response, on the channel in blocking mode.
+ * <p>
+ * Network and application buffers come from pools, and go back whenever they
+ * are empty, so that an idle connection holds none.
+ */
+final class SslEngineSocket extends Socket {
+
+	/**
+	 * Outcomes of {@link #advance()}.
+	 */
+	static final int WAIT_READ = 0;
+	static final int WAIT_WRITE = 1;
+	static final int RUN_TASKS = 2;
+	static final int HEAD_READY = 3;
+	static final int CLOSED = 4;
+
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+	private final SocketChannel channel;
+	private final SSLEngine engine;
+	private final ByteBufferPool packetPool;
+	private final ByteBufferPool applicationPool;
+	private final int maxHeadSize;
+	/**
+	 * Bytes read from the network, not yet decrypted. Kept ready for reading
+	 * into.
+	 */
+	private ByteBuffer netIn;
+	/**
+	 * Encrypted bytes still to send. Kept ready for writing out.
+	 */
+	private ByteBuffer netOut;
+	/**
+	 * Decrypted bytes: being filled while the selector gathers a request head,
+	 * ready for reading while a handler thread has the connection.
+	 */
+	private ByteBuffer appIn;
+	private int scanned;
+	private final Object writeLock = new Object();
+	/**
+	 * Stream of the channel socket adaptor, which unlike the channel has a
+	 * read timeout.
+	 */
+	private InputStream socketIn;
+	private final InputStream in = new TlsInputStream();
+	private final OutputStream out = new TlsOutputStream();
+	private volatile boolean closed;
+
+	SslEngineSocket(final SocketChannel channel, final SSLEngine engine, final ByteBufferPool packetPool, final ByteBufferPool applicationPool, final int maxHeadSize) throws SocketException {
+		super((SocketImpl) null);
+		this.channel = channel;
+		this.engine = engine;
+		this.packetPool = packetPool;
+		this.applicationPool = applicationPool;
+		this.maxHeadSize = maxHeadSize;
+	}
+
+	SocketChannel getSocketChannel() {
+		return channel;
+	}
+
+	SSLSession getSession() {
+		return engine.getSession();
+	}
+
+	/**
+	 * @return Boolean.TRUE once the handshake is done.
+	 */
+	boolean isHandshakeComplete() {
+		return engine.getSession().isValid() && engine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING;
+	}
+
+	/**
+	 * Runs the handshake and gathers a request head on the non-blocking
+	 * channel, as far as the bytes available allow.
+	 *
+	 * @return what to wait for next: {@link #WAIT_READ}, {@link #WAIT_WRITE},
+	 *         {@link #RUN_TASKS} for the delegated handshake tasks to be run,
+	 *         {@link #HEAD_READY} once a request head has been decrypted, or
+	 *         {@link #CLOSED} if the client went away.
+	 */
+	int advance() throws IOException {
+		while (true) {
+			if (!flushNetOut()) {
+				return WAIT_WRITE;
+			}
+			final HandshakeStatus status = engine.getHandshakeStatus();
+			if (status == HandshakeStatus.NEED_TASK) {
+				return RUN_TASKS;
+			}
+			if (status == HandshakeStatus.NEED_WRAP) {
+				wrap(SslEngineSocket.EMPTY);
+				continue;
+			}
+			if (appIn != null) {
+				final int limit = appIn.position();
+				// a head too large goes to the handler all the same, for the
+				// request parser to answer it with an error status
+				if (SelectorConnector.isHeadComplete(appIn.array(), scanned, limit) || limit > maxHeadSize) {
+					((Buffer) appIn).flip();
+					return HEAD_READY;
+				}
+				scanned = limit;
+			}
+			final Status result = unwrap();
+			if (result == Status.CLOSED) {
+				return CLOSED;
+			}
+			if (result == Status.BUFFER_UNDERFLOW) {
+				final int read = channel.read(netIn);
+				if (read < 0) {
+					return CLOSED;
+				}
+				if (read == 0) {
+					return WAIT_READ;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs the delegated handshake tasks, the costly part of a handshake.
+	 */
+	void runDelegatedTasks() {
+		Runnable task = null;
+		while ((task = engine.getDelegatedTask()) != null) {
+			task.run();
+		}
+	}
+
+	/**
+	 * @return Boolean.TRUE if decrypted bytes are waiting to be read.
+	 */
+	boolean hasDecrypted() {
+		return appIn != null && appIn.hasRemaining();
+	}
+
+	/**
+	 * Gets the connection back from a handler thread, to gather the next
+	 * request head. Empty buffers go back to their pool.
+	 *
+	 * @return Boolean.TRUE if encrypted bytes have been read already, so
+	 *         {@link #advance()} should be called without waiting.
+	 */
+	boolean park() {
+		scanned = 0;
+		if (appIn != null) {
+			if (appIn.hasRemaining()) {
+				appIn.compact();
+			} else {
+				applicationPool.release(appIn);
+				appIn = null;
+			}
+		}
+		if (netIn != null && netIn.position() == 0) {
+			packetPool.release(netIn);
+			netIn = null;
+		}
+		return netIn != null;
+	}
+
+	/**
+	 * Decrypts what it can of the bytes read into {@link #appIn}, which is
+	 * left ready to be filled further.
+	 */
+	private Status unwrap() throws IOException {
+		if (netIn == null) {
+			netIn = packetPool.acquire();
+		}
+		if (appIn == null) {
+			appIn = applicationPool.acquire();
+		}
+		while (true) {
+			((Buffer) netIn).flip();
+			final SSLEngineResult result;
+			try {
+				result = engine.unwrap(netIn, appIn);
+			} finally {
+				netIn.compact();
+			}
+			switch (result.getStatus()) {
+			case BUFFER_OVERFLOW:
+				appIn = SslEngineSocket.enlarge(appIn, engine.getSession().getApplicationBufferSize());
+				break;
+			case BUFFER_UNDERFLOW:
+				if (!netIn.hasRemaining()) {
+					// a record larger than the buffer
+					netIn = SslEngineSocket.enlarge(netIn, engine.getSession().getPacketBufferSize());
+				}
+				return result.getStatus();
+			default:
+				return result.getStatus();
+			}
+		}
+	}
+
+	/**
+	 * Encrypts bytes into {@link #netOut}, which must have been flushed.
+	 */
+	private void wrap(final ByteBuffer src) throws IOException {
+		if (netOut == null) {
+			netOut = packetPool.acquire();
+		}
+		((Buffer) netOut).clear();
+		SSLEngineResult result = engine.wrap(src, netOut);
+		while (result.getStatus() == Status.BUFFER_OVERFLOW) {
+			netOut = SslEngineSocket.enlarge(netOut, engine.getSession().getPacketBufferSize());
+			result = engine.wrap(src, netOut);
+		}
+		((Buffer) netOut).flip();
+		if (result.getStatus() == Status.CLOSED && result.bytesProduced() == 0 && src.hasRemaining()) {
+			throw new SocketException("Connection closed");
+		}
+	}
+
+	/**
+	 * Writes out the encrypted bytes, all of them if the channel is blocking.
+	 *
+	 * @return Boolean.FALSE if some are left.
+	 */
+	private boolean flushNetOut() throws IOException {
+		if (netOut == null) {
+			return Boolean.TRUE;
+		}
+		while (netOut.hasRemaining()) {
+			if (channel.write(netOut) == 0 && !channel.isBlocking()) {
+				return Boolean.FALSE;
+			}
+		}
+		packetPool.release(netOut);
+		netOut = null;
+		return Boolean.TRUE;
+	}
+
+	/**
+	 * @return a buffer with the same content and room for at least size
+	 *         more bytes.
+	 */
+	private static ByteBuffer enlarge(final ByteBuffer buffer, final int size) {
+		final ByteBuffer larger = ByteBuffer.allocate(buffer.position() + Math.max(size, buffer.capacity()));
+		((Buffer) buffer).flip();
+		larger.put(buffer);
+		return larger;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return in;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return out;
+	}
+
+	@Override
+	public void setSoTimeout(final int timeout) throws SocketException {
+		channel.socket().setSoTimeout(timeout);
+	}
+
+	@Override
+	public int getSoTimeout() throws SocketException {
+		return channel.socket().getSoTimeout();
+	}
+
+	@Override
+	public void setTcpNoDelay(final boolean on) throws SocketException {
+		channel.socket().setTcpNoDelay(on);
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return channel.socket().getInetAddress();
+	}
+
+	@Override
+	public InetAddress getLocalAddress() {
+		return channel.socket().getLocalAddress();
+	}
+
+	@Override
+	public int getPort() {
+		return channel.socket().getPort();
+	}
+
+	@Override
+	public int getLocalPort() {
+		return channel.socket().getLocalPort();
+	}
+
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		return channel.socket().getRemoteSocketAddress();
+	}
+
+	@Override
+	public SocketAddress getLocalSocketAddress() {
+		return channel.socket().getLocalSocketAddress();
+	}
+
+	@Override
+	public boolean isConnected() {
+		return channel.isConnected();
+	}
+
+	@Override
+	public boolean isBound() {
+		return Boolean.TRUE;
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * Sends a close_notify: TLS has no half close.
+	 */
+	@Override
+	public void shutdownOutput() throws IOException {
+		synchronized (writeLock) {
+			engine.closeOutbound();
+			wrap(SslEngineSocket.EMPTY);
+			flushNetOut();
+		}
+	}
+
+	/**
+	 * Sends a close_notify if it fits in the socket buffer, closes the channel
+	 * and gives the buffers back.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = Boolean.TRUE;
+		try {
+			synchronized (writeLock) {
+				if (!engine.isOutboundDone() && (netOut == null || !netOut.hasRemaining())) {
+					// no waiting on a client that does not read
+					if (channel.isBlocking()) {
+						channel.configureBlocking(Boolean.FALSE);
+					}
+					engine.closeOutbound();
+					wrap(SslEngineSocket.EMPTY);
+					channel.write(netOut);
+				}
+			}
+		} catch (final IOException err) {
+			// closing anyway
+		} finally {
+			channel.close();
+			packetPool.release(netIn);
+			packetPool.release(netOut);
+			applicationPool.release(appIn);
+			netIn = null;
+			netOut = null;
+			appIn = null;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "SslEngineSocket[" + channel + "]";
+	}
+
+	/**
+	 * Decrypted input, read by a handler thread on the blocking channel, with
+	 * the socket timeout.
+	 */
+	private final class TlsInputStream extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			final byte b[] = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			while (!hasDecrypted()) {
+				if (closed) {
+					throw new SocketException("Socket is closed");
+				}
+				final HandshakeStatus status = engine.getHandshakeStatus();
+				if (status == HandshakeStatus.NEED_TASK) {
+					runDelegatedTasks();
+					continue;
+				}
+				if (status == HandshakeStatus.NEED_WRAP) {
+					synchronized (writeLock) {
+						wrap(SslEngineSocket.EMPTY);
+						flushNetOut();
+					}
+					continue;
+				}
+				if (appIn != null) {
+					((Buffer) appIn).clear();
+				}
+				final Status result = unwrap();
+				((Buffer) appIn).flip();
+				if (appIn.hasRemaining()) {
+					break;
+				}
+				if (result == Status.CLOSED) {
+					return -1;
+				}
+				if (result == Status.BUFFER_UNDERFLOW) {
+					if (socketIn == null) {
+						socketIn = channel.socket().getInputStream();
+					}
+					final int read = socketIn.read(netIn.array(), netIn.arrayOffset() + netIn.position(), netIn.remaining());
+					if (read < 0) {
+						return -1;
+					}
+					((Buffer) netIn).position(netIn.position() + read);
+				}
+			}
+			final int count = Math.min(len, appIn.remaining());
+			appIn.get(b, off, count);
+			return count;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return appIn == null ? 0 : appIn.remaining();
+		}
+
+		@Override
+		public void close() throws IOException {
+			SslEngineSocket.this.close();
+		}
+	}
+
+	/**
+	 * Encrypting output, written by a handler thread on the blocking channel.
+	 */
+	private final class TlsOutputStream extends OutputStream {
+
+		@Override
+		public void write(final int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			final ByteBuffer src = ByteBuffer.wrap(b, off, len);
+			synchronized (writeLock) {
+				while (src.hasRemaining()) {
+					if (closed) {
+						throw new SocketException("Socket is closed");
+					}
+					wrap(src);
+					flushNetOut();
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			SslEngineSocket.this.close();
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package net.winstone.core.listener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketImpl;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Presents a connection accepted on a Unix domain socket as a {@link Socket},
+ * which is what the request handler threads and listeners work on. The channel
+ * of such a connection has no socket adaptor, and no SO_TIMEOUT either: it is
+ * kept in non-blocking mode, and reads wait on a selector of its own, so that
+ * the keep alive and connection timeouts still apply.
+ * <p>
+ * The peer of a Unix domain socket has no address: it is reported as the
+ * loopback address, port 0.
+ */
+final class UnixDomainSocket extends Socket {
+
+	private final SocketChannel channel;
+	private final SocketAddress address;
+	private final InputStream in;
+	private final OutputStream out;
+	private Selector selector;
+	private SelectionKey key;
+	private volatile int timeout;
+	private volatile boolean closed;
+
+	UnixDomainSocket(final SocketChannel channel) throws IOException {
+		super((SocketImpl) null);
+		this.channel = channel;
+		channel.configureBlocking(Boolean.FALSE);
+		address = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+		in = new ChannelInputStream();
+		out = new ChannelOutputStream();
+	}
+
+	/**
+	 * Waits until the channel is ready for an operation.
+	 *
+	 * @param timeout
+	 *            longest wait in milliseconds, 0 to wait for ever
+	 * @return Boolean.FALSE if the timeout expired first.
+	 */
+	private synchronized boolean await(final int operation, final int timeout) throws IOException {
+		if (closed) {
+			throw new SocketException("Socket is closed");
+		}
+		if (selector == null) {
+			selector = Selector.open();
+			key = channel.register(selector, operation);
+		} else {
+			key.interestOps(operation);
+		}
+		final int ready = selector.select(timeout);
+		selector.selectedKeys().clear();
+		return ready > 0;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+		return in;
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		return out;
+	}
+
+	@Override
+	public void setSoTimeout(final int timeout) throws SocketException {
+		this.timeout = timeout;
+	}
+
+	@Override
+	public int getSoTimeout() throws SocketException {
+		return timeout;
+	}
+
+	@Override
+	public void setTcpNoDelay(final boolean on) throws SocketException {
+		// no Nagle on Unix domain sockets
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return InetAddress.getLoopbackAddress();
+	}
+
+	@Override
+	public InetAddress getLocalAddress() {
+		return InetAddress.getLoopbackAddress();
+	}
+
+	@Override
+	public int getPort() {
+		return 0;
+	}
+
+	@Override
+	public int getLocalPort() {
+		return 0;
+	}
+
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		return address;
+	}
+
+	@Override
+	public SocketAddress getLocalSocketAddress() {
+		return address;
+	}
+
+	@Override
+	public boolean isConnected() {
+		return channel.isConnected();
+	}
+
+	@Override
+	public boolean isBound() {
+		return Boolean.TRUE;
+	}
+
+	@Override
+	public boolean isClosed() {
+		return closed;
+	}
+
+	@Override
+	public void shutdownInput() throws IOException {
+		channel.shutdownInput();
+	}
+
+	@Override
+	public void shutdownOutput() throws IOException {
+		channel.shutdownOutput();
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = Boolean.TRUE;
+		try {
+			channel.close();
+		} finally {
+			synchronized (this) {
+				if (selector != null) {
+					selector.close();
+				}
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "UnixDomainSocket[" + channel + "]";
+	}
+
+	private final class ChannelInputStream extends InputStream {
+
+		@Override
+		public int read() throws IOException {
+			final byte b[] = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xFF;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+			int read = channel.read(buffer);
+			while (read == 0) {
+				if (!await(SelectionKey.OP_READ, timeout)) {
+					throw new SocketTimeoutException("Read timed out");
+				}
+				read = channel.read(buffer);
+			}
+			return read;
+		}
+
+		@Override
+		public void close() throws IOException {
+			UnixDomainSocket.this.close();
+		}
+	}
+
+	private final class ChannelOutputStream extends OutputStream {
+
+		@Override
+		public void write(final int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+			final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+			while (buffer.hasRemaining()) {
+				if (channel.write(buffer) == 0) {
+					// like a blocking socket, wait for the peer however long
+					await(SelectionKey.OP_WRITE, 0);
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			UnixDomainSocket.this.close();
+		}
+	}
+}
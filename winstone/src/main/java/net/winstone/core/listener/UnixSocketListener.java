@@ -0,0 +1,242 @@
+package net.winstone.core.listener;
+
+import java.io.IOException;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.winstone.core.HostGroup;
+import net.winstone.core.ObjectPool;
+import net.winstone.util.StringUtils;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Variant of the HTTP listener bound to a Unix domain socket, for a reverse
+ * proxy on the same host: the connections skip the TCP stack, and do not use
+ * up ephemeral ports however fast the proxy opens them. Requests are parsed
+ * and answered exactly as on the {@link HttpListener}, each connection being
+ * presented to it as a {@link UnixDomainSocket}.
+ * <p>
+ * Unix domain socket channels came with Java 16, and are reached by
+ * reflection. Disabled by default, enable it with --httpUnixSocket, and set
+ * the permissions of the socket file with --httpUnixSocketPermissions. A
+ * socket file left over by a previous run is replaced, but not one a live
+ * server still listens on.
+ * Connections are not parked: --httpUnixParkKeepAlive is ignored.
+ */
+public class UnixSocketListener extends HttpListener {
+
+	private static Logger logger = LoggerFactory.getLogger(UnixSocketListener.class);
+
+	private final String socketPath;
+	private final String socketPermissions;
+	private ServerSocketChannel serverChannel;
+	private final AtomicInteger runningAcceptors = new AtomicInteger();
+
+	/**
+	 * Build a new instance of UnixSocketListener.
+	 */
+	public UnixSocketListener(final Map<String, String> args, final ObjectPool objectPool, final HostGroup hostGroup) throws IOException {
+		super(args, objectPool, hostGroup);
+		socketPath = StringUtils.stringArg(args, getConnectorName() + "Socket", null);
+		socketPermissions = StringUtils.stringArg(args, getConnectorName() + "SocketPermissions", null);
+	}
+
+	@Override
+	protected int getDefaultPort() {
+		return -1; // no port: the socket path enables it
+	}
+
+	@Override
+	protected String getConnectorName() {
+		return "httpUnix";
+	}
+
+	@Override
+	public boolean start() throws IOException {
+		if (socketPath == null) {
+			return Boolean.FALSE;
+		}
+		interrupted = Boolean.FALSE;
+		final Path path = Paths.get(socketPath);
+		if (Files.exists(path) && !Files.isRegularFile(path) && !Files.isDirectory(path)) {
+			if (UnixSocketListener.isListening(socketPath)) {
+				throw new IOException("Socket " + socketPath + " is in use by another process");
+			}
+			// left over by a previous run
+			Files.delete(path);
+		}
+		final ServerSocketChannel ssc = UnixSocketListener.openServerChannel();
+		try {
+			if (socketPermissions == null) {
+				ssc.bind(UnixSocketListener.socketAddress(socketPath), BACKLOG_COUNT);
+			} else {
+				bindPrivately(ssc, path);
+			}
+		} catch (final IOException e) {
+			ssc.close();
+			throw (IOException) new IOException("Failed to listen on socket " + socketPath).initCause(e);
+		} catch (final RuntimeException e) {
+			// bad or unsupported permissions
+			ssc.close();
+			throw (IOException) new IOException("Failed to set the permissions of socket " + socketPath).initCause(e);
+		}
+		serverChannel = ssc;
+		UnixSocketListener.logger.info("{} Listener started: socket={}", getConnectorName().toUpperCase(), socketPath);
+
+		for (int n = 0; n < acceptors; n++) {
+			runningAcceptors.incrementAndGet();
+			final Thread thread = new Thread(new Acceptor(ssc), "ConnectorThread:" + getConnectorName() + (n > 0 ? "-" + n : ""));
+			thread.setDaemon(Boolean.TRUE);
+			thread.start();
+		}
+		return Boolean.TRUE;
+	}
+
+	/**
+	 * Binds the socket in a directory only this user can enter, sets its
+	 * permissions, then moves it in place: it is never more open than asked,
+	 * whatever the umask.
+	 */
+	private void bindPrivately(final ServerSocketChannel ssc, final Path path) throws IOException {
+		final Set<PosixFilePermission> permissions = PosixFilePermissions.fromString(socketPermissions);
+		final Path directory = Files.createTempDirectory(path.toAbsolutePath().getParent(), "ws", PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+		final Path bound = directory.resolve("s");
+		try {
+			ssc.bind(UnixSocketListener.socketAddress(bound.toString()), BACKLOG_COUNT);
+			Files.setPosixFilePermissions(bound, permissions);
+			Files.move(bound, path, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			Files.deleteIfExists(bound);
+			Files.delete(directory);
+		}
+	}
+
+	/**
+	 * @return Boolean.TRUE if a server accepts connections on the socket.
+	 */
+	private static boolean isListening(final String path) throws IOException {
+		final SocketAddress address = UnixSocketListener.socketAddress(path);
+		try {
+			SocketChannel.open(address).close();
+			return Boolean.TRUE;
+		} catch (final IOException e) {
+			return Boolean.FALSE;
+		}
+	}
+
+	/**
+	 * Opens a server socket channel for Unix domain sockets, which only Java 16
+	 * and later support.
+	 */
+	private static ServerSocketChannel openServerChannel() throws IOException {
+		final ProtocolFamily unix;
+		try {
+			unix = StandardProtocolFamily.valueOf("UNIX");
+		} catch (final IllegalArgumentException e) {
+			throw new IOException("Unix domain sockets need Java 16 or later");
+		}
+		try {
+			return (ServerSocketChannel) ServerSocketChannel.class.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+		} catch (final Exception e) {
+			throw (IOException) new IOException("Unix domain sockets are not supported").initCause(e);
+		}
+	}
+
+	private static SocketAddress socketAddress(final String path) throws IOException {
+		try {
+			return (SocketAddress) Class.forName("java.net.UnixDomainSocketAddress").getMethod("of", String.class).invoke(null, path);
+		} catch (final Exception e) {
+			throw (IOException) new IOException("Invalid socket path " + path).initCause(e);
+		}
+	}
+
+	/**
+	 * Closes the server channel, which stops the acceptor threads blocked on
+	 * it.
+	 */
+	@Override
+	public void destroy() {
+		super.destroy();
+		final ServerSocketChannel ssc = serverChannel;
+		if (ssc != null) {
+			try {
+				ssc.close();
+			} catch (final IOException err) {
+			}
+		}
+	}
+
+	/**
+	 * One of the acceptor threads, handing each connection to a request
+	 * handler thread.
+	 */
+	private final class Acceptor implements Runnable {
+
+		private final ServerSocketChannel serverChannel;
+
+		Acceptor(final ServerSocketChannel serverChannel) {
+			super();
+			this.serverChannel = serverChannel;
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!interrupted) {
+					if (objectPool.pauseAccept()) {
+						// saturated: new connections wait in the backlog
+						continue;
+					}
+					final SocketChannel channel = serverChannel.accept();
+					final UnixDomainSocket socket;
+					try {
+						socket = new UnixDomainSocket(channel);
+					} catch (final IOException err) {
+						UnixSocketListener.logger.debug("Error setting up connection", err);
+						channel.close();
+						continue;
+					}
+					objectPool.handleRequest(socket, UnixSocketListener.this);
+				}
+			} catch (final ClosedChannelException err) {
+				// destroyed
+			} catch (final Throwable err) {
+				UnixSocketListener.logger.error("Error in " + getConnectorName().toUpperCase() + " listener", err);
+			} finally {
+				acceptorStopped();
+			}
+		}
+	}
+
+	/**
+	 * Closes the channel and removes the socket file once the last acceptor
+	 * is done.
+	 */
+	private void acceptorStopped() {
+		if (runningAcceptors.decrementAndGet() > 0) {
+			return;
+		}
+		try {
+			serverChannel.close();
+			Files.deleteIfExists(Paths.get(socketPath));
+			UnixSocketListener.logger.info("{} Listener shutdown successfully", getConnectorName().toUpperCase());
+		} catch (final IOException err) {
+			UnixSocketListener.logger.error("Error during " + getConnectorName().toUpperCase() + " listener shutdown", err);
+		}
+	}
+}
@@ -1,14 +1,17 @@
 package net.winstone.util;
 
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Wraps {@link Executor} so that we only ask the wrapped Executor to execute N
@@ -28,84 +31,341 @@ import java.util.concurrent.TimeUnit;
  * discussion of this.
  * 
  * <p>
- * Because there's no call back to tell us when the wrapped
- * {@link ExecutorService} has finished executing something, this class needs to
- * hand out the next task slightly before the wrapped {@link ExecutorService} is
- * done with the previous task. The net result is that the wrapped
- * {@link ExecutorService} will end up running N+1 threads (of which 1 is almost
- * always idle.) I'm not sure how to fix this.
+ * Tasks are queued on a lock free queue and started under atomic permit
+ * counting, so submitting and finishing tasks never take a lock. A thread of
+ * the wrapped {@link ExecutorService} keeps taking queued tasks once its own
+ * task is done, until the queue is empty, so no more than N of its threads are
+ * ever busy.
  * 
  * @author Kohsuke Kawaguchi
  */
 public class BoundedExecutorService extends AbstractExecutorService {
 	/**
-	 * The FIFO queue of tasks waiting to be handed to the wrapped
-	 * {@link ExecutorService}.
+	 * The FIFO queue of tasks waiting for a free slot.
 	 */
-	private final List<Runnable> tasks = new LinkedList<Runnable>();
+	private final Queue<Task> tasks = new ConcurrentLinkedQueue<Task>();
 
 	private final ExecutorService base;
 	private final int max;
+	/**
+	 * Most tasks allowed to wait for a free slot.
+	 */
+	private final int maxQueued;
 
 	/**
 	 * How many tasks the wrapped {@link ExecutorService} is executing right
-	 * now? Touched only in a synchronized block.
+	 * now? A task is only started by whoever raised it below {@link #max}.
+	 */
+	private final AtomicInteger current = new AtomicInteger();
+
+	/**
+	 * Highest value {@link #current} reached.
+	 */
+	private final AtomicInteger peak = new AtomicInteger();
+
+	/**
+	 * Size of {@link #tasks}, which is not constant time to compute, and the
+	 * highest it reached.
+	 */
+	private final AtomicInteger queued = new AtomicInteger();
+	private final AtomicInteger peakQueued = new AtomicInteger();
+
+	/**
+	 * Tasks accepted and tasks run to completion since creation.
+	 */
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	/**
+	 * Time spent by tasks in the queue, in nanoseconds: in total and longest.
+	 */
+	private final AtomicLong waitTime = new AtomicLong();
+	private final AtomicLong maxWaitTime = new AtomicLong();
+
+	private volatile boolean isShutdown = false;
+
+	/**
+	 * A task waiting in the queue.
 	 */
-	private int current;
+	private static final class Task {
+		private final Runnable runnable;
+		private final long queuedAt = System.nanoTime();
+
+		private Task(final Runnable runnable) {
+			this.runnable = runnable;
+		}
+	}
 
-	private boolean isShutdown = false;
+	/**
+	 * Runs a task on a thread of the wrapped {@link ExecutorService}, then the
+	 * queued ones until none is left.
+	 */
+	private final class Worker implements Runnable {
+		private Task task;
+
+		private Worker(final Task task) {
+			this.task = task;
+		}
+
+		public void run() {
+			while (task != null) {
+				try {
+					task.runnable.run();
+				} catch (final Throwable t) {
+					// this thread ends here: the queued tasks go on elsewhere
+					task = null;
+					current.decrementAndGet();
+					final Task next = acquire();
+					if (next != null) {
+						try {
+							start(next);
+						} catch (final RejectedExecutionException e) {
+							// left for the busy threads, or shutdownNow()
+							requeue(next);
+						}
+					}
+					throw t;
+				} finally {
+					completed.incrementAndGet();
+				}
+				task = poll();
+				if (task == null) {
+					current.decrementAndGet();
+					// a task queued while the slot was still taken
+					task = acquire();
+				}
+			}
+		}
+	}
 
 	public BoundedExecutorService(ExecutorService base, int max) {
+		this(base, max, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * @param maxQueued
+	 *            most tasks allowed to wait for a free slot; beyond that
+	 *            {@link #execute(Runnable)} throws
+	 *            {@link RejectedExecutionException}
+	 */
+	public BoundedExecutorService(ExecutorService base, int max, int maxQueued) {
 		this.base = base;
 		this.max = max;
+		this.maxQueued = maxQueued;
 	}
 
-	public synchronized void execute(final Runnable r) {
+	public void execute(final Runnable r) {
 		if (isShutdown)
 			throw new RejectedExecutionException("already shut down");
-		tasks.add(r);
-		if (current < max)
-			scheduleNext();
+		if (tasks.isEmpty() && reserve()) {
+			// a free slot and nobody waiting: skip the queue
+			submitted.incrementAndGet();
+			start(new Task(r));
+			return;
+		}
+		final int waiting = queued.incrementAndGet();
+		if (waiting > maxQueued) {
+			queued.decrementAndGet();
+			rejected.incrementAndGet();
+			throw new RejectedExecutionException("queue full");
+		}
+		tasks.offer(new Task(r));
+		BoundedExecutorService.raise(peakQueued, waiting);
+		submitted.incrementAndGet();
+		final Task task = acquire();
+		if (task != null) {
+			start(task);
+		}
 	}
 
-	private synchronized void scheduleNext() {
-		if (tasks.isEmpty()) {
-			if (isShutdown)
-				base.shutdown();
-			return;
+	/**
+	 * Hands a task to the wrapped {@link ExecutorService}, in a slot already
+	 * taken.
+	 */
+	private void start(final Task task) {
+		try {
+			base.execute(new Worker(task));
+		} catch (RejectedExecutionException e) {
+			current.decrementAndGet();
+			throw e;
 		}
-		final Runnable task = tasks.remove(0);
-		base.execute(new Runnable() {
-			public void run() {
-				try {
-					task.run();
-				} finally {
-					done();
-				}
+	}
+
+	/**
+	 * Takes a free slot.
+	 * 
+	 * @return true if one was free.
+	 */
+	private boolean reserve() {
+		int running;
+		while ((running = current.get()) < max) {
+			if (current.compareAndSet(running, running + 1)) {
+				BoundedExecutorService.raise(peak, running + 1);
+				return true;
 			}
-		});
-		current++;
+		}
+		return false;
+	}
+
+	/**
+	 * Takes a free slot and the task at the head of the queue.
+	 * 
+	 * @return the task, or null if the queue is empty or no slot is free.
+	 */
+	private Task acquire() {
+		while (!tasks.isEmpty() && reserve()) {
+			final Task task = poll();
+			if (task != null) {
+				return task;
+			}
+			// taken by another thread: give the slot back and look again
+			current.decrementAndGet();
+		}
+		return null;
+	}
+
+	/**
+	 * @return the task at the head of the queue, or null.
+	 */
+	private Task poll() {
+		final Task task = tasks.poll();
+		if (task != null) {
+			queued.decrementAndGet();
+			final long wait = System.nanoTime() - task.queuedAt;
+			waitTime.addAndGet(wait);
+			BoundedExecutorService.raise(maxWaitTime, wait);
+		}
+		return task;
+	}
+
+	/**
+	 * Puts back a task taken from the queue, its slot already given back.
+	 */
+	private void requeue(final Task task) {
+		queued.incrementAndGet();
+		tasks.offer(new Task(task.runnable));
 	}
 
-	private synchronized void done() {
-		current--;
-		scheduleNext(); // we already know that current<max
+	private static void raise(final AtomicInteger highest, final int value) {
+		int current;
+		while (value > (current = highest.get()) && !highest.compareAndSet(current, value))
+			;
 	}
 
-	public synchronized void shutdown() {
+	private static void raise(final AtomicLong highest, final long value) {
+		long current;
+		while (value > (current = highest.get()) && !highest.compareAndSet(current, value))
+			;
+	}
+
+	/**
+	 * Stops accepting tasks. Queued tasks are still run, by the threads of the
+	 * wrapped {@link ExecutorService} that are busy.
+	 */
+	public void shutdown() {
 		isShutdown = true;
-		if (tasks.isEmpty())
-			base.shutdown();
+		base.shutdown();
 	}
 
-	public synchronized List<Runnable> shutdownNow() {
+	public List<Runnable> shutdownNow() {
 		isShutdown = true;
 		List<Runnable> r = base.shutdownNow();
-		r.addAll(tasks);
-		tasks.clear();
+		Task task;
+		while ((task = tasks.poll()) != null) {
+			queued.decrementAndGet();
+			r.add(task.runnable);
+		}
 		return r;
 	}
 
+	/**
+	 * @return the maximum number of tasks handed to the wrapped
+	 *         {@link ExecutorService} at once.
+	 */
+	public int getMaximumPoolSize() {
+		return max;
+	}
+
+	/**
+	 * @return the number of tasks the wrapped {@link ExecutorService} is
+	 *         executing right now.
+	 */
+	public int getActiveCount() {
+		return current.get();
+	}
+
+	/**
+	 * @return the highest number of tasks ever executed at once.
+	 */
+	public int getPeakActiveCount() {
+		return peak.get();
+	}
+
+	/**
+	 * @return the number of tasks waiting for a free slot.
+	 */
+	public int getQueueSize() {
+		return queued.get();
+	}
+
+	/**
+	 * @return the highest number of tasks ever waiting for a free slot.
+	 */
+	public int getPeakQueueSize() {
+		return peakQueued.get();
+	}
+
+	/**
+	 * @return the most tasks allowed to wait for a free slot.
+	 */
+	public int getMaximumQueueSize() {
+		return maxQueued;
+	}
+
+	/**
+	 * @return true if the next task would be rejected for lack of room
+	 *         in the queue.
+	 */
+	public boolean isQueueFull() {
+		return current.get() >= max && queued.get() >= maxQueued;
+	}
+
+	/**
+	 * @return the number of tasks turned down because the queue was full.
+	 */
+	public long getRejectedTaskCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return the number of tasks accepted since creation.
+	 */
+	public long getSubmittedTaskCount() {
+		return submitted.get();
+	}
+
+	/**
+	 * @return the number of tasks run to completion since creation.
+	 */
+	public long getCompletedTaskCount() {
+		return completed.get();
+	}
+
+	/**
+	 * @return the time tasks spent waiting for a free slot, in total.
+	 */
+	public long getTotalWaitTime(TimeUnit unit) {
+		return unit.convert(waitTime.get(), TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * @return the longest time a task waited for a free slot.
+	 */
+	public long getMaximumWaitTime(TimeUnit unit) {
+		return unit.convert(maxWaitTime.get(), TimeUnit.NANOSECONDS);
+	}
+
 	public boolean isShutdown() {
 		return isShutdown;
 	}
@@ -117,4 +377,4 @@ public class BoundedExecutorService extends AbstractExecutorService {
 	public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
 		return base.awaitTermination(timeout, unit);
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
@@ -0,0 +1,85 @@
+package net.winstone.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock free pool of byte arrays of a single size. Arrays are created on demand
+ * when the pool is empty, and dropped on release once the pool already holds
+ * its maximum.
+ */
+public class BufferPool {
+
+	private final int bufferSize;
+	private final int maximumPooled;
+	private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<byte[]>();
+	/**
+	 * Size of {@link #buffers}, which is not constant time to compute.
+	 */
+	private final AtomicInteger pooled = new AtomicInteger();
+	private final AtomicLong allocated = new AtomicLong();
+
+	/**
+	 * Build a new instance of BufferPool.
+	 *
+	 * @param bufferSize
+	 *            size of the arrays handed out
+	 * @param maximumPooled
+	 *            maximum number of idle arrays kept
+	 */
+	public BufferPool(final int bufferSize, final int maximumPooled) {
+		super();
+		this.bufferSize = bufferSize;
+		this.maximumPooled = maximumPooled;
+	}
+
+	/**
+	 * @return a pooled array, or a new one if none is available.
+	 */
+	public byte[] acquire() {
+		final byte buffer[] = buffers.poll();
+		if (buffer != null) {
+			pooled.decrementAndGet();
+			return buffer;
+		}
+		allocated.incrementAndGet();
+		return new byte[bufferSize];
+	}
+
+	/**
+	 * Give an array back to the pool. Arrays of another size are ignored.
+	 */
+	public void release(final byte buffer[]) {
+		if (buffer == null || buffer.length != bufferSize) {
+			return;
+		}
+		if (pooled.incrementAndGet() <= maximumPooled) {
+			buffers.offer(buffer);
+		} else {
+			pooled.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return the size of the arrays handed out.
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return the number of idle arrays in the pool.
+	 */
+	public int getPooledCount() {
+		return pooled.get();
+	}
+
+	/**
+	 * @return the number of arrays created since the pool was built.
+	 */
+	public long getAllocatedCount() {
+		return allocated.get();
+	}
+}
@@ -0,0 +1,109 @@
+package net.winstone.util;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the requests a single webapp handles at once, so that a slow webapp
+ * ties up at most its own share of the request handlers. Requests beyond the
+ * limit are turned away, or wait for a short while in a bounded queue - each
+ * on the request handler thread that read it, so the queue is kept short.
+ */
+public class Bulkhead {
+
+	private final int maximumConcurrent;
+	private final int maximumQueued;
+	private final long maximumWait;
+	private final Semaphore permits;
+	private final AtomicInteger waiting = new AtomicInteger();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong timedOut = new AtomicLong();
+
+	/**
+	 * Build a new instance of Bulkhead.
+	 *
+	 * @param maximumConcurrent
+	 *            most requests handled at once
+	 * @param maximumQueued
+	 *            most requests waiting for one of them to finish
+	 * @param maximumWait
+	 *            longest wait, in milliseconds
+	 */
+	public Bulkhead(final int maximumConcurrent, final int maximumQueued, final long maximumWait) {
+		super();
+		this.maximumConcurrent = maximumConcurrent;
+		this.maximumQueued = maximumQueued;
+		this.maximumWait = TimeUnit.MILLISECONDS.toNanos(maximumWait);
+		permits = new Semaphore(maximumConcurrent);
+	}
+
+	/**
+	 * Waits for a free slot. Every successful call must be matched by a call
+	 * to {@link #leave()}.
+	 *
+	 * @return Boolean.FALSE if the request should be turned away.
+	 */
+	public boolean enter() throws InterruptedException {
+		if (permits.tryAcquire()) {
+			return Boolean.TRUE;
+		}
+		if (waiting.incrementAndGet() > maximumQueued) {
+			waiting.decrementAndGet();
+			rejected.incrementAndGet();
+			return Boolean.FALSE;
+		}
+		try {
+			if (permits.tryAcquire(maximumWait, TimeUnit.NANOSECONDS)) {
+				return Boolean.TRUE;
+			}
+			timedOut.incrementAndGet();
+			return Boolean.FALSE;
+		} finally {
+			waiting.decrementAndGet();
+		}
+	}
+
+	/**
+	 * Frees the slot taken by {@link #enter()}.
+	 */
+	public void leave() {
+		permits.release();
+	}
+
+	/**
+	 * @return the most requests handled at once.
+	 */
+	public int getMaximumConcurrent() {
+		return maximumConcurrent;
+	}
+
+	/**
+	 * @return the number of requests being handled.
+	 */
+	public int getActiveCount() {
+		return maximumConcurrent - permits.availablePermits();
+	}
+
+	/**
+	 * @return the number of requests waiting for a slot.
+	 */
+	public int getQueueSize() {
+		return waiting.get();
+	}
+
+	/**
+	 * @return the number of requests turned away because the queue was full.
+	 */
+	public long getRejectedCount() {
+		return rejected.get();
+	}
+
+	/**
+	 * @return the number of requests turned away after waiting too long.
+	 */
+	public long getTimedOutCount() {
+		return timedOut.get();
+	}
+}
@@ -0,0 +1,100 @@
+package net.winstone.util;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock free pool of byte buffers of a single capacity, heap or direct. Like
+ * {@link BufferPool}, buffers are created on demand when the pool is empty,
+ * and dropped on release once the pool already holds its maximum.
+ */
+public class ByteBufferPool {
+
+	private final int bufferSize;
+	private final int maximumPooled;
+	private final boolean direct;
+	private final Queue<ByteBuffer> buffers = new ConcurrentLinkedQueue<ByteBuffer>();
+	/**
+	 * Size of {@link #buffers}, which is not constant time to compute.
+	 */
+	private final AtomicInteger pooled = new AtomicInteger();
+	private final AtomicLong allocated = new AtomicLong();
+
+	/**
+	 * Build a new instance of ByteBufferPool.
+	 *
+	 * @param bufferSize
+	 *            capacity of the buffers handed out
+	 * @param maximumPooled
+	 *            maximum number of idle buffers kept
+	 * @param direct
+	 *            Boolean.TRUE for direct buffers, which channels write
+	 *            without an extra copy
+	 */
+	public ByteBufferPool(final int bufferSize, final int maximumPooled, final boolean direct) {
+		super();
+		this.bufferSize = bufferSize;
+		this.maximumPooled = maximumPooled;
+		this.direct = direct;
+	}
+
+	/**
+	 * @return a cleared pooled buffer, or a new one if none is available.
+	 */
+	public ByteBuffer acquire() {
+		final ByteBuffer buffer = buffers.poll();
+		if (buffer != null) {
+			pooled.decrementAndGet();
+			buffer.clear();
+			return buffer;
+		}
+		allocated.incrementAndGet();
+		return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+	}
+
+	/**
+	 * Give a buffer back to the pool. Buffers of another capacity or kind are
+	 * ignored.
+	 */
+	public void release(final ByteBuffer buffer) {
+		if (buffer == null || buffer.capacity() != bufferSize || buffer.isDirect() != direct) {
+			return;
+		}
+		if (pooled.incrementAndGet() <= maximumPooled) {
+			buffers.offer(buffer);
+		} else {
+			pooled.decrementAndGet();
+		}
+	}
+
+	/**
+	 * @return the capacity of the buffers handed out.
+	 */
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return Boolean.TRUE if the pool hands out direct buffers.
+	 */
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * @return the number of idle buffers in the pool.
+	 */
+	public int getPooledCount() {
+		return pooled.get();
+	}
+
+	/**
+	 * @return the number of buffers created since the pool was built.
+	 */
+	public long getAllocatedCount() {
+		return allocated.get();
+	}
+}
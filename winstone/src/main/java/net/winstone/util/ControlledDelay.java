@@ -0,0 +1,117 @@
+package net.winstone.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Controlled delay (CoDel) admission: decides, as each queued request is
+ * picked up, whether it waited too long to be worth serving. Requests are
+ * dropped only once the wait has stayed above the target for a whole
+ * interval, and then at a rate growing with the square root of the drops, as
+ * long as the wait stays above the target. A short burst goes through; a
+ * standing queue is drained down to the target.
+ */
+public class ControlledDelay {
+
+	private final long target;
+	private final long interval;
+	/**
+	 * Boolean.TRUE while the waits are above the target; read without the
+	 * lock so that a request below the target never takes it.
+	 */
+	private volatile boolean aboveTarget;
+	private volatile boolean dropping;
+	/**
+	 * When the waits will have been above the target for an interval.
+	 */
+	private long firstAboveTime;
+	private long dropNext;
+	private int count;
+	private int lastCount;
+	private final AtomicLong dropped = new AtomicLong();
+
+	/**
+	 * Build a new instance of ControlledDelay.
+	 *
+	 * @param target
+	 *            acceptable wait
+	 * @param interval
+	 *            how long the wait may stay above the target before requests
+	 *            are dropped, about a round trip
+	 */
+	public ControlledDelay(final long target, final long interval, final TimeUnit unit) {
+		super();
+		this.target = unit.toNanos(target);
+		this.interval = unit.toNanos(interval);
+	}
+
+	/**
+	 * @param sojourn
+	 *            time the request waited, in nanoseconds
+	 * @param now
+	 *            System.nanoTime()
+	 * @param backlog
+	 *            Boolean.TRUE if other requests are still waiting
+	 * @return Boolean.TRUE if the request should be dropped.
+	 */
+	public boolean drop(final long sojourn, final long now, final boolean backlog) {
+		if ((sojourn < target || !backlog) && !dropping) {
+			if (aboveTarget) {
+				aboveTarget = Boolean.FALSE;
+			}
+			return Boolean.FALSE;
+		}
+		synchronized (this) {
+			boolean okToDrop = Boolean.FALSE;
+			if (sojourn < target || !backlog) {
+				aboveTarget = Boolean.FALSE;
+			} else if (!aboveTarget) {
+				aboveTarget = Boolean.TRUE;
+				firstAboveTime = now + interval;
+			} else if (now - firstAboveTime >= 0) {
+				okToDrop = Boolean.TRUE;
+			}
+
+			if (dropping) {
+				if (!okToDrop) {
+					dropping = Boolean.FALSE;
+				} else if (now - dropNext >= 0) {
+					count++;
+					dropNext += controlLaw(count);
+					dropped.incrementAndGet();
+					return Boolean.TRUE;
+				}
+				return Boolean.FALSE;
+			}
+			if (okToDrop) {
+				dropping = Boolean.TRUE;
+				// resume near the last drop rate if dropping stopped recently
+				final int delta = count - lastCount;
+				count = (delta > 1 && now - dropNext < 16 * interval) ? delta : 1;
+				lastCount = count;
+				dropNext = now + controlLaw(count);
+				dropped.incrementAndGet();
+				return Boolean.TRUE;
+			}
+			return Boolean.FALSE;
+		}
+	}
+
+	private long controlLaw(final int drops) {
+		return (long) (interval / Math.sqrt(drops));
+	}
+
+	/**
+	 * @return Boolean.TRUE while requests are being dropped.
+	 */
+	public boolean isDropping() {
+		return dropping;
+	}
+
+	/**
+	 * @return the number of requests dropped.
+	 */
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+}
@@ -8,16 +8,33 @@ import java.util.Date;
  * subsequent requests within the same second will be fast. Idea from Jetty
  * Util.
  * 
+ * <p>
+ * Lock free: the cached second and its text are published together, and a
+ * miss formats with the calling thread's own copy of the format, so threads
+ * never wait on each other. Within a second, every caller gets the very same
+ * String.
+ * 
  * @author Jerome Guibert
  */
 public final class DateCache {
 	private final DateFormat dateFormat;
-	private String result = null;
-	private long lastTimeInSeconds = -1;
+	private final ThreadLocal<DateFormat> formats = new ThreadLocal<DateFormat>() {
+		@Override
+		protected DateFormat initialValue() {
+			return (DateFormat) dateFormat.clone();
+		}
+	};
+	private volatile Entry last = new Entry(Long.MIN_VALUE, null);
 
+	/**
+	 * Build a new instance of DateCache.
+	 * 
+	 * @param format
+	 *            the format, which is never used directly
+	 */
 	public DateCache(final DateFormat format) {
 		super();
-		dateFormat = format;
+		dateFormat = (DateFormat) format.clone();
 	}
 
 	public String now() {
@@ -26,14 +43,21 @@ public final class DateCache {
 
 	public String format(final long time) {
 		final long seconds = time / 1000;
-		if ((lastTimeInSeconds < 0) || (lastTimeInSeconds != seconds)) {
-			lastTimeInSeconds = time / 1000;
-			final Date d = new Date(time);
-			synchronized (dateFormat) {
-				result = dateFormat.format(d);
-			}
+		Entry entry = last;
+		if (entry.seconds != seconds) {
+			entry = new Entry(seconds, formats.get().format(new Date(time)));
+			last = entry;
 		}
-		return result;
+		return entry.text;
 	}
 
+	private static final class Entry {
+		private final long seconds;
+		private final String text;
+
+		Entry(final long seconds, final String text) {
+			this.seconds = seconds;
+			this.text = text;
+		}
+	}
 }
@@ -0,0 +1,190 @@
+package net.winstone.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock free pool of objects, split in stripes picked from the current thread
+ * so that threads seldom meet on the same queue. A thread takes from its own
+ * stripe first, then from the others, and creates a new object only when they
+ * are all empty. Objects released to a full stripe are dropped.
+ *
+ * @param <T>
+ *            type of the pooled objects
+ */
+public abstract class StripedPool<T> {
+
+	/**
+	 * Upper bound on the number of stripes.
+	 */
+	private static final int MAXIMUM_STRIPES = 64;
+
+	private static final class Stripe<T> {
+		private final Queue<T> objects = new ConcurrentLinkedQueue<T>();
+		/**
+		 * Size of {@link #objects}, which is not constant time to compute.
+		 */
+		private final AtomicInteger pooled = new AtomicInteger();
+		private final AtomicLong hits = new AtomicLong();
+		private final AtomicLong misses = new AtomicLong();
+		private final AtomicLong allocated = new AtomicLong();
+		private final AtomicLong dropped = new AtomicLong();
+	}
+
+	private final Stripe<T>[] stripes;
+	private final int mask;
+	private final int maximumPerStripe;
+
+	/**
+	 * Build a new instance of StripedPool.
+	 *
+	 * @param maximumPooled
+	 *            maximum number of idle objects kept, spread over the stripes
+	 */
+	public StripedPool(final int maximumPooled) {
+		super();
+		int count = 1;
+		while (count < Math.min(2 * Runtime.getRuntime().availableProcessors(), StripedPool.MAXIMUM_STRIPES)) {
+			count <<= 1;
+		}
+		@SuppressWarnings("unchecked")
+		final Stripe<T>[] array = (Stripe<T>[]) new Stripe<?>[count];
+		stripes = array;
+		for (int n = 0; n < count; n++) {
+			stripes[n] = new Stripe<T>();
+		}
+		mask = count - 1;
+		maximumPerStripe = Math.max(1, (maximumPooled + count - 1) / count);
+	}
+
+	/**
+	 * @return a new object, when the pool has none left.
+	 */
+	protected abstract T create();
+
+	/**
+	 * Puts new objects in the pool ahead of use.
+	 *
+	 * @param count
+	 *            number of objects created
+	 */
+	public void fill(final int count) {
+		for (int n = 0; n < count; n++) {
+			final Stripe<T> stripe = stripes[n & mask];
+			stripe.allocated.incrementAndGet();
+			release(stripe, create());
+		}
+	}
+
+	/**
+	 * @return a pooled object, or a new one if none is available.
+	 */
+	public T acquire() {
+		final int index = index();
+		for (int n = 0; n <= mask; n++) {
+			final Stripe<T> stripe = stripes[(index + n) & mask];
+			final T object = stripe.objects.poll();
+			if (object != null) {
+				stripe.pooled.decrementAndGet();
+				stripes[index].hits.incrementAndGet();
+				return object;
+			}
+		}
+		final Stripe<T> stripe = stripes[index];
+		stripe.misses.incrementAndGet();
+		stripe.allocated.incrementAndGet();
+		return create();
+	}
+
+	/**
+	 * Give an object back to the pool of the current thread.
+	 */
+	public void release(final T object) {
+		if (object != null) {
+			release(stripes[index()], object);
+		}
+	}
+
+	private void release(final Stripe<T> stripe, final T object) {
+		if (stripe.pooled.incrementAndGet() <= maximumPerStripe) {
+			stripe.objects.offer(object);
+		} else {
+			stripe.pooled.decrementAndGet();
+			stripe.dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * @return the stripe of the current thread.
+	 */
+	private int index() {
+		// spread consecutive thread ids over the stripes
+		final long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+		return (int) (id >>> 32) & mask;
+	}
+
+	/**
+	 * @return the number of stripes.
+	 */
+	public int getStripeCount() {
+		return stripes.length;
+	}
+
+	/**
+	 * @return the number of idle objects in the pool.
+	 */
+	public int getPooledCount() {
+		int count = 0;
+		for (final Stripe<T> stripe : stripes) {
+			count += stripe.pooled.get();
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of objects handed out from the pool.
+	 */
+	public long getHitCount() {
+		long count = 0;
+		for (final Stripe<T> stripe : stripes) {
+			count += stripe.hits.get();
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of objects created because the pool was empty.
+	 */
+	public long getMissCount() {
+		long count = 0;
+		for (final Stripe<T> stripe : stripes) {
+			count += stripe.misses.get();
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of objects created since the pool was built.
+	 */
+	public long getAllocatedCount() {
+		long count = 0;
+		for (final Stripe<T> stripe : stripes) {
+			count += stripe.allocated.get();
+		}
+		return count;
+	}
+
+	/**
+	 * @return the number of objects released to a full pool and left to the
+	 *         garbage collector.
+	 */
+	public long getDroppedCount() {
+		long count = 0;
+		for (final Stripe<T> stripe : stripes) {
+			count += stripe.dropped.get();
+		}
+		return count;
+	}
+}
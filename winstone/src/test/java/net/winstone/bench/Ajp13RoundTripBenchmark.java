@@ -0,0 +1,162 @@
+package net.winstone.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.Charset;
+
+import net.winstone.core.WinstoneConstant;
+import net.winstone.core.WinstoneOutputStream;
+import net.winstone.core.WinstoneRequest;
+import net.winstone.core.WinstoneResponse;
+import net.winstone.core.listener.Ajp13IncomingPacket;
+import net.winstone.core.listener.Ajp13OutputStream;
+import net.winstone.util.ByteBufferPool;
+
+/**
+ * Round trips through the AJP13 codec, in memory: a forward request read and
+ * decoded, then a response with a 4 KB body encoded into its SEND_HEADERS,
+ * SEND_BODY_CHUNK and END_RESPONSE packets. The codec kept for the connection,
+ * as the listener runs it, is compared with one built anew for each request,
+ * by time and by bytes allocated per round trip. Run it as a plain java
+ * application, with an optional round trip count.
+ */
+public class Ajp13RoundTripBenchmark {
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	private static final byte[] FORWARD_REQUEST = Ajp13RoundTripBenchmark.forwardRequest();
+	private static final byte[] BODY = new byte[4096];
+
+	public static void main(final String[] args) throws Exception {
+		final int roundTrips = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+		// warm up both paths first
+		Ajp13RoundTripBenchmark.run(Boolean.FALSE, roundTrips / 10);
+		Ajp13RoundTripBenchmark.run(Boolean.TRUE, roundTrips / 10);
+		Ajp13RoundTripBenchmark.report("codec per request", Ajp13RoundTripBenchmark.run(Boolean.FALSE, roundTrips), roundTrips);
+		Ajp13RoundTripBenchmark.report("codec per connection", Ajp13RoundTripBenchmark.run(Boolean.TRUE, roundTrips), roundTrips);
+	}
+
+	private static void report(final String name, final long[] result, final int roundTrips) {
+		System.out.println(name + ": " + (result[0] / roundTrips) + " ns/round trip, " + (result[1] < 0 ? "?" : Long.toString(result[1] / roundTrips)) + " bytes allocated/round trip");
+	}
+
+	/**
+	 * @return the elapsed nanoseconds and the bytes allocated, or -1 if the
+	 *         JVM does not count them.
+	 */
+	private static long[] run(final boolean reused, final int roundTrips) throws Exception {
+		final ByteArrayInputStream in = new ByteArrayInputStream(Ajp13RoundTripBenchmark.FORWARD_REQUEST);
+		final CountingOutputStream out = new CountingOutputStream();
+		final ByteBufferPool pool = new ByteBufferPool(WinstoneOutputStream.HEAD_ROOM + 8192 + WinstoneOutputStream.TAIL_ROOM, 1, Boolean.FALSE);
+		final Ajp13IncomingPacket connectionPacket = new Ajp13IncomingPacket();
+		final WinstoneRequest request = new WinstoneRequest(WinstoneConstant.DEFAULT_MAXIMUM_PARAMETER_ALLOWED);
+		final WinstoneResponse response = new WinstoneResponse();
+		final long allocated = Ajp13RoundTripBenchmark.allocatedBytes();
+		final long start = System.nanoTime();
+		for (int n = 0; n < roundTrips; n++) {
+			in.reset();
+			final Ajp13IncomingPacket packet = reused ? connectionPacket : new Ajp13IncomingPacket();
+			packet.read(in);
+			packet.parsePacket(Ajp13RoundTripBenchmark.ISO_8859_1);
+			request.cleanUp();
+			request.setMethod(packet.getMethod());
+			request.setProtocol(packet.getProtocol());
+
+			response.cleanUp();
+			response.setRequest(request);
+			response.setProtocol(packet.getProtocol());
+			final Ajp13OutputStream body = new Ajp13OutputStream(out, reused ? pool : null);
+			body.setResponse(response);
+			response.setOutputStream(body);
+			response.setHeader("Content-Type", "text/html;charset=UTF-8");
+			response.setContentLength(Ajp13RoundTripBenchmark.BODY.length);
+			body.write(Ajp13RoundTripBenchmark.BODY);
+			body.finishResponse();
+		}
+		final long elapsed = System.nanoTime() - start;
+		final long allocatedAfter = Ajp13RoundTripBenchmark.allocatedBytes();
+		if (out.count == 0) {
+			throw new IllegalStateException("Nothing written");
+		}
+		return new long[] { elapsed, allocated < 0 ? -1 : allocatedAfter - allocated };
+	}
+
+	private static long allocatedBytes() {
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if (threads instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/**
+	 * A forward request as mod_jk sends it for a browser GET.
+	 */
+	private static byte[] forwardRequest() {
+		final ByteArrayOutputStream packet = new ByteArrayOutputStream();
+		packet.write(0x02); // forward request
+		packet.write(0x02); // GET
+		Ajp13RoundTripBenchmark.putString(packet, "HTTP/1.1");
+		Ajp13RoundTripBenchmark.putString(packet, "/examples/index.html");
+		Ajp13RoundTripBenchmark.putString(packet, "192.168.1.10");
+		Ajp13RoundTripBenchmark.putString(packet, "192.168.1.10");
+		Ajp13RoundTripBenchmark.putString(packet, "www.example.com");
+		Ajp13RoundTripBenchmark.putInt(packet, 80);
+		packet.write(0x00); // not SSL
+		Ajp13RoundTripBenchmark.putInt(packet, 8);
+		Ajp13RoundTripBenchmark.putHeader(packet, 0xA00B, "www.example.com");
+		Ajp13RoundTripBenchmark.putHeader(packet, 0xA00E, "Mozilla/5.0 (X11; Linux x86_64; rv:115.0) Gecko/20100101 Firefox/115.0");
+		Ajp13RoundTripBenchmark.putHeader(packet, 0xA001, "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8");
+		Ajp13RoundTripBenchmark.putHeader(packet, 0xA004, "en-US,en;q=0.5");
+		Ajp13RoundTripBenchmark.putHeader(packet, 0xA003, "gzip, deflate");
+		Ajp13RoundTripBenchmark.putHeader(packet, 0xA009, "JSESSIONID=1A2B3C4D5E6F7A8B9C0D");
+		Ajp13RoundTripBenchmark.putHeader(packet, 0xA006, "keep-alive");
+		Ajp13RoundTripBenchmark.putString(packet, "X-Forwarded-For");
+		Ajp13RoundTripBenchmark.putString(packet, "10.0.0.1");
+		packet.write(0x05); // query_string
+		Ajp13RoundTripBenchmark.putString(packet, "page=1");
+		packet.write(0x06); // jvm_route
+		Ajp13RoundTripBenchmark.putString(packet, "node1");
+		packet.write(0xFF);
+		final byte content[] = packet.toByteArray();
+		final byte whole[] = new byte[content.length + 4];
+		whole[0] = 0x12;
+		whole[1] = 0x34;
+		Ajp13OutputStream.setIntBlock(content.length, whole, 2);
+		System.arraycopy(content, 0, whole, 4, content.length);
+		return whole;
+	}
+
+	private static void putHeader(final ByteArrayOutputStream packet, final int code, final String value) {
+		Ajp13RoundTripBenchmark.putInt(packet, code);
+		Ajp13RoundTripBenchmark.putString(packet, value);
+	}
+
+	private static void putInt(final ByteArrayOutputStream packet, final int value) {
+		packet.write(value >> 8);
+		packet.write(value);
+	}
+
+	private static void putString(final ByteArrayOutputStream packet, final String value) {
+		final byte bytes[] = value.getBytes(Ajp13RoundTripBenchmark.ISO_8859_1);
+		Ajp13RoundTripBenchmark.putInt(packet, bytes.length);
+		packet.write(bytes, 0, bytes.length);
+		packet.write(0x00);
+	}
+
+	private static final class CountingOutputStream extends OutputStream {
+		private long count;
+
+		@Override
+		public void write(final int b) {
+			count++;
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) {
+			count += len;
+		}
+	}
+}
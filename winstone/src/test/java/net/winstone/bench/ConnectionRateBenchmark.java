@@ -0,0 +1,103 @@
+package net.winstone.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.winstone.core.ObjectPool;
+import net.winstone.core.listener.HttpListener;
+import net.winstone.core.listener.Listener;
+
+/**
+ * Measures the rate at which an {@link HttpListener} accepts new connections
+ * from clients that never keep them alive, with one acceptor, several sharing
+ * a socket, and several with their own SO_REUSEPORT socket. Each connection is
+ * answered with a canned response so that accepting is what gets measured.
+ * Run it as a plain java application, with optional acceptor, client and
+ * seconds counts.
+ */
+public class ConnectionRateBenchmark {
+
+	private static final byte[] REQUEST = "GET / HTTP/1.0\r\n\r\n".getBytes();
+	private static final byte[] RESPONSE = "HTTP/1.0 204 No Content\r\n\r\n".getBytes();
+
+	public static void main(final String[] args) throws Exception {
+		final int acceptors = args.length > 0 ? Integer.parseInt(args[0]) : Runtime.getRuntime().availableProcessors();
+		final int clients = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+		final int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		// warm up first
+		ConnectionRateBenchmark.run(1, Boolean.FALSE, clients, 1);
+		ConnectionRateBenchmark.report("1 acceptor", ConnectionRateBenchmark.run(1, Boolean.FALSE, clients, seconds), seconds);
+		ConnectionRateBenchmark.report(acceptors + " acceptors", ConnectionRateBenchmark.run(acceptors, Boolean.FALSE, clients, seconds), seconds);
+		ConnectionRateBenchmark.report(acceptors + " acceptors, SO_REUSEPORT", ConnectionRateBenchmark.run(acceptors, Boolean.TRUE, clients, seconds), seconds);
+	}
+
+	private static void report(final String name, final long connections, final int seconds) {
+		System.out.println(name + ": " + (connections / seconds) + " connections/s");
+	}
+
+	/**
+	 * @return the number of connections completed.
+	 */
+	private static long run(final int acceptors, final boolean reusePort, final int clients, final int seconds) throws Exception {
+		final ServerSocket probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		final int port = probe.getLocalPort();
+		probe.close();
+
+		final Map<String, String> args = new HashMap<String, String>();
+		args.put("httpPort", Integer.toString(port));
+		args.put("httpListenAddress", InetAddress.getLoopbackAddress().getHostAddress());
+		args.put("httpAcceptors", Integer.toString(acceptors));
+		args.put("httpReusePort", Boolean.toString(reusePort));
+		final ObjectPool objectPool = new ObjectPool(args) {
+
+			@Override
+			public void handleRequest(final Socket socket, final Listener listener) throws IOException {
+				listener.rejectConnection(socket, ConnectionRateBenchmark.RESPONSE);
+			}
+		};
+		final HttpListener listener = new HttpListener(args, objectPool, null);
+		listener.start();
+
+		final AtomicLong connections = new AtomicLong();
+		final long end = System.nanoTime() + seconds * 1000000000L;
+		final Thread threads[] = new Thread[clients];
+		for (int n = 0; n < clients; n++) {
+			threads[n] = new Thread() {
+
+				@Override
+				public void run() {
+					final byte response[] = new byte[64];
+					try {
+						while (System.nanoTime() < end) {
+							final Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+							// reset rather than leave the port in TIME_WAIT
+							socket.setSoLinger(Boolean.TRUE, 0);
+							socket.getOutputStream().write(ConnectionRateBenchmark.REQUEST);
+							final InputStream in = socket.getInputStream();
+							while (in.read(response) != -1) {
+								// discard the response
+							}
+							socket.close();
+							connections.incrementAndGet();
+						}
+					} catch (final IOException e) {
+						e.printStackTrace();
+					}
+				}
+			};
+			threads[n].start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		listener.destroy();
+		objectPool.destroy();
+		return connections.get();
+	}
+}
@@ -0,0 +1,115 @@
+package net.winstone.bench;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import net.winstone.core.SocketInputBuffer;
+import net.winstone.core.WinstoneInputStream;
+import net.winstone.core.listener.HttpRequestParser;
+import net.winstone.util.BufferPool;
+
+/**
+ * Counts the reads issued on a loopback socket - one system call each - to
+ * parse keep-alive requests, with and without {@link SocketInputBuffer}.
+ * Run it as a plain java application, with an optional request count.
+ */
+public class SocketReadBenchmark {
+
+	private static final byte[] GET = ("GET /examples/index.html?page=1 HTTP/1.1\r\nHost: localhost:8080\r\nUser-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:115.0) Gecko/20100101 Firefox/115.0\r\n"
+			+ "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\nAccept-Language: en-US,en;q=0.5\r\nAccept-Encoding: gzip, deflate\r\n"
+			+ "Cookie: JSESSIONID=1A2B3C4D5E6F7A8B9C0D\r\nConnection: keep-alive\r\n\r\n").getBytes();
+	private static final byte[] POST = ("POST /examples/form HTTP/1.1\r\nHost: localhost:8080\r\nContent-Type: application/x-www-form-urlencoded\r\nContent-Length: 64\r\n"
+			+ "Connection: keep-alive\r\n\r\nname=winstone&description=a+small+servlet+container&version=1.0.5").getBytes();
+
+	public static void main(final String[] args) throws Exception {
+		final int requests = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+		// warm up both paths first
+		SocketReadBenchmark.run(Boolean.FALSE, requests / 10);
+		SocketReadBenchmark.run(Boolean.TRUE, requests / 10);
+		SocketReadBenchmark.report("unbuffered", SocketReadBenchmark.run(Boolean.FALSE, requests), requests);
+		SocketReadBenchmark.report("buffered", SocketReadBenchmark.run(Boolean.TRUE, requests), requests);
+	}
+
+	private static void report(final String name, final long[] result, final int requests) {
+		System.out.println(name + ": " + ((double) result[0] / requests) + " reads/request, " + (result[1] / 1000 / requests) + " us/request");
+	}
+
+	/**
+	 * @return the number of socket reads and the elapsed nanoseconds.
+	 */
+	private static long[] run(final boolean buffered, final int requests) throws Exception {
+		final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		final Thread client = new Thread(new Runnable() {
+			public void run() {
+				try {
+					final Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+					socket.setTcpNoDelay(Boolean.TRUE);
+					final OutputStream out = socket.getOutputStream();
+					final InputStream in = socket.getInputStream();
+					for (int n = 0; n < requests; n++) {
+						out.write(n % 4 == 3 ? SocketReadBenchmark.POST : SocketReadBenchmark.GET);
+						out.flush();
+						// wait for the "response" like a non pipelining client
+						in.read();
+					}
+					socket.close();
+				} catch (final IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		client.start();
+		final Socket socket = server.accept();
+		socket.setTcpNoDelay(Boolean.TRUE);
+		final CountingInputStream counter = new CountingInputStream(socket.getInputStream());
+		final InputStream connection = buffered ? new SocketInputBuffer(counter, new BufferPool(8192, 1)) : counter;
+		final OutputStream out = socket.getOutputStream();
+		final HttpRequestParser parser = new HttpRequestParser();
+		final byte body[] = new byte[1024];
+		final long start = System.nanoTime();
+		for (int n = 0; n < requests; n++) {
+			final WinstoneInputStream request = new WinstoneInputStream(connection);
+			parser.parseRequestLine(request);
+			parser.parseHeaders(request);
+			for (int h = 0; h < parser.getHeaderCount(); h++) {
+				if ("Content-Length".equals(parser.getHeaderNames()[h])) {
+					request.setContentLength(Integer.parseInt(parser.getHeaderValues()[h]));
+					while (request.read(body, 0, body.length) != -1) {
+						// discard the body
+					}
+				}
+			}
+			out.write('.');
+		}
+		final long elapsed = System.nanoTime() - start;
+		client.join();
+		socket.close();
+		server.close();
+		return new long[] { counter.reads, elapsed };
+	}
+
+	private static final class CountingInputStream extends FilterInputStream {
+		private long reads;
+
+		CountingInputStream(final InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			reads++;
+			return super.read();
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+			reads++;
+			return super.read(b, off, len);
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package net.winstone.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+
+import net.winstone.core.ObjectPool;
+import net.winstone.core.listener.HttpsListener;
+import net.winstone.core.listener.Listener;
+import net.winstone.core.listener.NioHttpsListener;
+
+/**
+ * Measures full TLS handshakes per second, and their latency percentiles, on
+ * the {@link HttpsListener}, which handshakes on the request handler threads,
+ * and on the {@link NioHttpsListener}, which handshakes on its selector and
+ * handshake threads. Each client connects, sends a request, reads the canned
+ * response and disconnects, without resuming its session. Each run is repeated
+ * with stalled clients, which connect and never start their handshake, as slow
+ * clients would.
+ * <p>
+ * Run it as a plain java application with a JKS key store and its password,
+ * and optional client, request handler, stalled client and seconds counts.
+ */
+public class TlsHandshakeBenchmark {
+
+	private static final byte[] REQUEST = "GET / HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes();
+	private static final byte[] RESPONSE = "HTTP/1.1 204 No Content\r\nConnection: close\r\n\r\n".getBytes();
+
+	public static void main(final String[] args) throws Exception {
+		if (args.length < 2) {
+			System.err.println("Usage: TlsHandshakeBenchmark keystore password [clients] [handlers] [stalled] [seconds]");
+			return;
+		}
+		final int clients = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+		final int handlers = args.length > 3 ? Integer.parseInt(args[3]) : 8;
+		final int stalled = args.length > 4 ? Integer.parseInt(args[4]) : handlers - 1;
+		final int seconds = args.length > 5 ? Integer.parseInt(args[5]) : 5;
+		final Map<String, String> keys = new HashMap<String, String>();
+		keys.put("httpsKeyStore", args[0]);
+		keys.put("httpsKeyStorePassword", args[1]);
+
+		// warm up first
+		TlsHandshakeBenchmark.run("https", keys, clients, handlers, 0, 1);
+		TlsHandshakeBenchmark.run("httpsNio", keys, clients, handlers, 0, 1);
+		for (final String connector : new String[] { "https", "httpsNio" }) {
+			TlsHandshakeBenchmark.report(connector, 0, TlsHandshakeBenchmark.run(connector, keys, clients, handlers, 0, seconds), seconds);
+			TlsHandshakeBenchmark.report(connector, stalled, TlsHandshakeBenchmark.run(connector, keys, clients, handlers, stalled, seconds), seconds);
+		}
+	}
+
+	private static void report(final String connector, final int stalled, final long latencies[], final int seconds) {
+		Arrays.sort(latencies);
+		final long p50 = latencies.length == 0 ? 0 : latencies[latencies.length / 2];
+		final long p99 = latencies.length == 0 ? 0 : latencies[(int) (latencies.length * 0.99)];
+		System.out.println(connector + ", " + stalled + " stalled clients: " + (latencies.length / seconds) + " handshakes/s, p50 " + (p50 / 1000) + "us, p99 " + (p99 / 1000) + "us");
+	}
+
+	/**
+	 * @return the latency of each connection completed, in nanoseconds.
+	 */
+	private static long[] run(final String connector, final Map<String, String> keys, final int clients, final int handlers, final int stalled, final int seconds) throws Exception {
+		final ServerSocket probe = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		final int port = probe.getLocalPort();
+		probe.close();
+
+		final Map<String, String> args = new HashMap<String, String>(keys);
+		args.put(connector + "Port", Integer.toString(port));
+		args.put(connector + "ListenAddress", InetAddress.getLoopbackAddress().getHostAddress());
+		final ExecutorService handlerPool = Executors.newFixedThreadPool(handlers);
+		final ObjectPool objectPool = new ObjectPool(args) {
+
+			@Override
+			public void handleRequest(final Socket socket, final Listener listener) throws IOException {
+				handlerPool.execute(new Runnable() {
+
+					@Override
+					public void run() {
+						TlsHandshakeBenchmark.handle(socket, listener);
+					}
+				});
+			}
+		};
+		final HttpsListener listener = connector.equals("https") ? new HttpsListener(args, objectPool, null) : new NioHttpsListener(args, objectPool, null);
+		listener.start();
+
+		final List<Socket> stalledSockets = new ArrayList<Socket>();
+		for (int n = 0; n < stalled; n++) {
+			stalledSockets.add(new Socket(InetAddress.getLoopbackAddress(), port));
+		}
+		final SSLContext context = TlsHandshakeBenchmark.clientContext();
+		final long end = System.nanoTime() + seconds * 1000000000L;
+		final List<long[]> results = new ArrayList<long[]>();
+		final Thread threads[] = new Thread[clients];
+		for (int n = 0; n < clients; n++) {
+			final long latencies[] = new long[1 << 18];
+			final int count[] = new int[1];
+			threads[n] = new Thread() {
+
+				@Override
+				public void run() {
+					final byte response[] = new byte[256];
+					try {
+						while (System.nanoTime() < end && count[0] < latencies.length) {
+							final long start = System.nanoTime();
+							final SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(InetAddress.getLoopbackAddress(), port);
+							socket.getOutputStream().write(TlsHandshakeBenchmark.REQUEST);
+							socket.getOutputStream().flush();
+							final InputStream in = socket.getInputStream();
+							while (in.read(response) != -1) {
+								// discard the response
+							}
+							// no resumption: every connection does a full handshake
+							socket.getSession().invalidate();
+							socket.close();
+							latencies[count[0]++] = System.nanoTime() - start;
+						}
+					} catch (final IOException e) {
+						e.printStackTrace();
+					}
+					synchronized (results) {
+						results.add(Arrays.copyOf(latencies, count[0]));
+					}
+				}
+			};
+			threads[n].start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		for (final Socket socket : stalledSockets) {
+			socket.close();
+		}
+		listener.destroy();
+		handlerPool.shutdownNow();
+		objectPool.destroy();
+
+		int total = 0;
+		for (final long latencies[] : results) {
+			total += latencies.length;
+		}
+		final long all[] = new long[total];
+		int position = 0;
+		for (final long latencies[] : results) {
+			System.arraycopy(latencies, 0, all, position, latencies.length);
+			position += latencies.length;
+		}
+		return all;
+	}
+
+	/**
+	 * What a request handler does with a connection: read the request head,
+	 * handshaking first on the blocking listener, and answer it.
+	 */
+	private static void handle(final Socket socket, final Listener listener) {
+		InputStream in = null;
+		OutputStream out = null;
+		try {
+			socket.setSoTimeout(60000);
+			in = listener.getSocketInputStream(socket);
+			int matched = 0;
+			int b = 0;
+			while (matched < 4 && (b = in.read()) != -1) {
+				matched = (b == (matched % 2 == 0 ? '\r' : '\n')) ? matched + 1 : 0;
+			}
+			out = socket.getOutputStream();
+			out.write(TlsHandshakeBenchmark.RESPONSE);
+			out.flush();
+		} catch (final IOException e) {
+			// stalled client dropped at the end of the run
+		} finally {
+			try {
+				if (in != null && out != null) {
+					listener.releaseSocket(socket, in, out);
+				} else {
+					socket.close();
+				}
+			} catch (final IOException e) {
+			}
+		}
+	}
+
+	private static SSLContext clientContext() throws Exception {
+		final SSLContext context = SSLContext.getInstance("TLS");
+		context.init(null, new TrustManager[] { new X509TrustManager() {
+
+			@Override
+			public void checkClientTrusted(final X509Certificate[] chain, final String authType) {
+			}
+
+			@Override
+			public void checkServerTrusted(final X509Certificate[] chain, final String authType) {
+			}
+
+			@Override
+			public X509Certificate[] getAcceptedIssuers() {
+				return new X509Certificate[0];
+			}
+		} }, null);
+		return context;
+	}
+}
@@ -0,0 +1,23 @@
+package net.winstone.core;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Socket stand-in counting the writes it gets.
+ */
+public class CountingOutputStream extends ByteArrayOutputStream {
+	private int writes;
+
+	@Override
+	public synchronized void write(final byte[] b, final int off, final int len) {
+		writes++;
+		super.write(b, off, len);
+	}
+
+	/**
+	 * @return how many times bytes were written.
+	 */
+	public synchronized int getWrites() {
+		return writes;
+	}
+}
@@ -0,0 +1,70 @@
+package net.winstone.core;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class HeaderTableTest extends TestCase {
+
+	public void testCaseInsensitiveNames() {
+		final HeaderTable table = new HeaderTable();
+		table.add("Content-Type", "text/html");
+		table.add("X-A", "1");
+		Assert.assertEquals("text/html", table.get("content-type"));
+		Assert.assertTrue(table.contains("CONTENT-TYPE"));
+		Assert.assertFalse(table.contains("Content"));
+		table.set("content-type", "text/plain");
+		Assert.assertEquals(2, table.size());
+		Assert.assertEquals("Content-Type", table.getName(0));
+		Assert.assertEquals("text/plain", table.getValue(0));
+	}
+
+	public void testRepeatedNames() {
+		final HeaderTable table = new HeaderTable();
+		table.add("Vary", "Accept");
+		table.add("Cache-Control", "no-cache");
+		table.add("Vary", "Cookie");
+		Assert.assertEquals("Accept", table.get("Vary"));
+		table.set("VARY", "Accept-Encoding");
+		Assert.assertEquals(2, table.size());
+		Assert.assertEquals("Vary", table.getName(0));
+		Assert.assertEquals("Accept-Encoding", table.get("vary"));
+		Assert.assertEquals("no-cache", table.get("Cache-Control"));
+		table.set("Vary", null);
+		Assert.assertEquals(1, table.size());
+		Assert.assertNull(table.get("Vary"));
+		Assert.assertEquals("no-cache", table.get("cache-control"));
+	}
+
+	public void testGrowAndClear() {
+		final HeaderTable table = new HeaderTable();
+		for (int n = 0; n < 100; n++) {
+			table.add("X-Header-" + n, Integer.toString(n));
+		}
+		Assert.assertEquals(100, table.size());
+		for (int n = 0; n < 100; n++) {
+			Assert.assertEquals(Integer.toString(n), table.get("x-header-" + n));
+		}
+		table.remove("X-Header-50");
+		Assert.assertNull(table.get("X-Header-50"));
+		Assert.assertEquals("51", table.get("X-Header-51"));
+		Assert.assertEquals("X-Header-51", table.getName(50));
+		table.clear();
+		Assert.assertEquals(0, table.size());
+		Assert.assertNull(table.get("X-Header-1"));
+	}
+
+	public void testLines() {
+		final String server = new String("Test Server");
+		HeaderTable.registerConstant("Server", server);
+		final HeaderTable table = new HeaderTable();
+		table.add("Server", server);
+		table.add("X-Text", "a\r\nb");
+		Assert.assertSame(table.getLine(0), new HeaderTable() {
+			{
+				add("server", server);
+			}
+		}.getLine(0));
+		Assert.assertEquals("Server: Test Server\r\n", new String(table.getLine(0)));
+		Assert.assertEquals("X-Text: a  b\r\n", new String(table.getLine(1)));
+	}
+}
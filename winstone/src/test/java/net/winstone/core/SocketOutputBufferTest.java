@@ -0,0 +1,123 @@
+package net.winstone.core;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+import net.winstone.util.BufferPool;
+
+public class SocketOutputBufferTest extends TestCase {
+
+	public void testHeldResponsesLeaveTogether() throws IOException {
+		final CountingOutputStream socket = new CountingOutputStream();
+		final SocketOutputBuffer out = new SocketOutputBuffer(socket, new BufferPool(1024, 1), TimeUnit.SECONDS.toNanos(10));
+		out.hold();
+		out.write("first ".getBytes("ISO-8859-1"));
+		out.flush();
+		out.write(ByteBuffer.wrap("second ".getBytes("ISO-8859-1")));
+		out.flush();
+		Assert.assertEquals(0, socket.getWrites());
+		out.flushHeld();
+		Assert.assertEquals(1, socket.getWrites());
+		Assert.assertEquals("first second ", socket.toString("ISO-8859-1"));
+		// no longer holding
+		out.write('!');
+		out.flush();
+		Assert.assertEquals("first second !", socket.toString("ISO-8859-1"));
+	}
+
+	public void testDirectBuffer() throws IOException {
+		final CountingOutputStream socket = new CountingOutputStream();
+		final SocketOutputBuffer out = new SocketOutputBuffer(socket, new BufferPool(4, 1), TimeUnit.SECONDS.toNanos(10));
+		out.hold();
+		final ByteBuffer direct = ByteBuffer.allocateDirect(10);
+		direct.put("0123456789".getBytes("ISO-8859-1"));
+		direct.flip();
+		out.write(direct);
+		out.flushHeld();
+		Assert.assertEquals("0123456789", socket.toString("ISO-8859-1"));
+	}
+
+	public void testFullBufferWrittenThrough() throws IOException {
+		final CountingOutputStream socket = new CountingOutputStream();
+		final SocketOutputBuffer out = new SocketOutputBuffer(socket, new BufferPool(8, 1), TimeUnit.SECONDS.toNanos(10));
+		out.hold();
+		out.write("abcde".getBytes("ISO-8859-1"));
+		// does not fit: what is held goes first, then this one straight out
+		out.write("0123456789".getBytes("ISO-8859-1"));
+		Assert.assertEquals("abcde0123456789", socket.toString("ISO-8859-1"));
+		Assert.assertEquals(2, socket.getWrites());
+	}
+
+	public void testBoundedDelay() throws IOException, InterruptedException {
+		final CountingOutputStream socket = new CountingOutputStream();
+		final SocketOutputBuffer out = new SocketOutputBuffer(socket, new BufferPool(1024, 1), TimeUnit.MILLISECONDS.toNanos(1));
+		out.hold();
+		out.write("late".getBytes("ISO-8859-1"));
+		Thread.sleep(5);
+		out.flush();
+		Assert.assertEquals("late", socket.toString("ISO-8859-1"));
+		Assert.assertTrue(out.isHeld());
+	}
+
+	/**
+	 * Held bytes go out on time even if nothing writes or flushes after
+	 * them, as while the next pipelined request is still being served.
+	 */
+	public void testDelayEnforcedWithoutFlush() throws IOException, InterruptedException {
+		final CountingOutputStream socket = new CountingOutputStream();
+		final SocketOutputBuffer out = new SocketOutputBuffer(socket, new BufferPool(1024, 1), TimeUnit.MILLISECONDS.toNanos(5));
+		out.hold();
+		out.write("first".getBytes("ISO-8859-1"));
+		out.flush();
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (socket.size() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		Assert.assertEquals("first", socket.toString("ISO-8859-1"));
+		Assert.assertEquals(1, socket.getWrites());
+		Assert.assertTrue(out.isHeld());
+	}
+
+	/**
+	 * A client that does not read holds up the late flush of its own
+	 * connection only.
+	 */
+	public void testStuckConnectionDoesNotDelayOthers() throws IOException, InterruptedException {
+		final CountDownLatch unblock = new CountDownLatch(1);
+		final OutputStream stuck = new OutputStream() {
+			@Override
+			public void write(final int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(final byte[] b, final int off, final int len) throws IOException {
+				try {
+					unblock.await();
+				} catch (final InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+		};
+		final SocketOutputBuffer blocked = new SocketOutputBuffer(stuck, new BufferPool(1024, 1), TimeUnit.MILLISECONDS.toNanos(1));
+		blocked.hold();
+		blocked.write("never read".getBytes("ISO-8859-1"));
+		Thread.sleep(20);
+		final CountingOutputStream socket = new CountingOutputStream();
+		final SocketOutputBuffer out = new SocketOutputBuffer(socket, new BufferPool(1024, 1), TimeUnit.MILLISECONDS.toNanos(5));
+		out.hold();
+		out.write("first".getBytes("ISO-8859-1"));
+		final long deadline = System.currentTimeMillis() + 5000;
+		while (socket.size() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		unblock.countDown();
+		Assert.assertEquals("first", socket.toString("ISO-8859-1"));
+	}
+}
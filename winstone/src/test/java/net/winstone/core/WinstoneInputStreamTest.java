@@ -0,0 +1,86 @@
+package net.winstone.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class WinstoneInputStreamTest extends TestCase {
+
+	private static String readAll(final InputStream in) throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final byte buffer[] = new byte[3];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		return out.toString("ISO-8859-1");
+	}
+
+	public void testChunkedBody() throws IOException {
+		final InputStream raw = new ByteArrayInputStream("5\r\nHello\r\nA;name=value\r\n, chunked!\r\n0\r\nX-Checksum: abc\r\n\r\nGET / HTTP/1.1".getBytes("ISO-8859-1"));
+		final WinstoneInputStream in = new WinstoneInputStream(raw);
+		in.setChunked();
+		Assert.assertEquals('H', in.read());
+		Assert.assertEquals("ello, chunked!", WinstoneInputStreamTest.readAll(in));
+		Assert.assertEquals(-1, in.read());
+		// the next request is left untouched
+		Assert.assertEquals("GET / HTTP/1.1", WinstoneInputStreamTest.readAll(raw));
+	}
+
+	public void testTruncatedChunk() throws IOException {
+		final WinstoneInputStream in = new WinstoneInputStream("10\r\nshort".getBytes("ISO-8859-1"));
+		in.setChunked();
+		try {
+			WinstoneInputStreamTest.readAll(in);
+			Assert.fail("truncated body accepted");
+		} catch (final EOFException e) {
+		}
+		Assert.assertTrue(in.isBroken());
+		final WinstoneInputStream bad = new WinstoneInputStream("zz\r\n".getBytes("ISO-8859-1"));
+		bad.setChunked();
+		try {
+			bad.read();
+			Assert.fail("invalid chunk size accepted");
+		} catch (final IOException e) {
+		}
+		Assert.assertTrue(bad.isBroken());
+	}
+
+	public void testMalformedChunkedBodyNotDiscarded() throws IOException {
+		final InputStream raw = new ByteArrayInputStream("zz\r\nGET /t?smuggled HTTP/1.1\r\nHost: x\r\n\r\n".getBytes("ISO-8859-1"));
+		final WinstoneInputStream in = new WinstoneInputStream(raw);
+		in.setChunked();
+		try {
+			in.discard();
+			Assert.fail("malformed body discarded");
+		} catch (final IOException e) {
+		}
+		// later reads fail too, instead of reading on into what follows
+		try {
+			in.read(new byte[16]);
+			Assert.fail("read after a malformed chunk");
+		} catch (final IOException e) {
+		}
+		Assert.assertTrue(in.isBroken());
+		in.setChunked();
+		Assert.assertFalse(in.isBroken());
+	}
+
+	public void testContinueOnFirstRead() throws IOException {
+		final ByteArrayOutputStream socket = new ByteArrayOutputStream();
+		final WinstoneOutputStream out = new WinstoneOutputStream(socket, Boolean.FALSE);
+		final WinstoneInputStream in = new WinstoneInputStream("body".getBytes("ISO-8859-1"));
+		in.setContentLength(4);
+		in.setContinueStream(out);
+		Assert.assertTrue(in.isContinuePending());
+		Assert.assertEquals(0, socket.size());
+		Assert.assertEquals("body", WinstoneInputStreamTest.readAll(in));
+		Assert.assertFalse(in.isContinuePending());
+		Assert.assertEquals("HTTP/1.1 100 Continue\r\n\r\n", socket.toString("ISO-8859-1"));
+	}
+}
@@ -0,0 +1,87 @@
+package net.winstone.core;
+
+import java.io.IOException;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+import net.winstone.util.ByteBufferPool;
+
+public class WinstoneOutputStreamTest extends TestCase {
+
+	private static WinstoneResponse newResponse(final CountingOutputStream socket, final ByteBufferPool pool) throws IOException {
+		final WinstoneOutputStream out = new WinstoneOutputStream(socket, null, pool);
+		final WinstoneResponse response = new WinstoneResponse();
+		response.setRequest(new WinstoneRequest(WinstoneConstant.DEFAULT_MAXIMUM_PARAMETER_ALLOWED));
+		response.setProtocol("HTTP/1.1");
+		response.setOutputStream(out);
+		out.setResponse(response);
+		return response;
+	}
+
+	public void testSmallResponseInOneWrite() throws IOException {
+		final CountingOutputStream socket = new CountingOutputStream();
+		final ByteBufferPool pool = new ByteBufferPool(WinstoneOutputStream.HEAD_ROOM + 1024 + WinstoneOutputStream.TAIL_ROOM, 1, Boolean.FALSE);
+		final WinstoneResponse response = WinstoneOutputStreamTest.newResponse(socket, pool);
+		response.setContentLength(5);
+		response.getOutputStream().write("Hello".getBytes("ISO-8859-1"));
+		Assert.assertEquals(1, socket.getWrites());
+		final String text = socket.toString("ISO-8859-1");
+		Assert.assertTrue(text, text.startsWith("HTTP/1.1 200 OK\r\n"));
+		Assert.assertTrue(text, text.contains("\r\nContent-Length: 5\r\n"));
+		Assert.assertTrue(text, text.endsWith("\r\n\r\nHello"));
+		response.getWinstoneOutputStream().finishResponse();
+		Assert.assertEquals(1, pool.getPooledCount());
+	}
+
+	public void testStatusLines() throws IOException {
+		Assert.assertSame(HttpProtocole.getStatusLine("HTTP/1.1", 404), HttpProtocole.getStatusLine("HTTP/1.1", 404));
+		Assert.assertEquals("HTTP/1.0 404 Not Found\r\n", new String(HttpProtocole.getStatusLine("HTTP/1.0", 404), "ISO-8859-1"));
+		final CountingOutputStream socket = new CountingOutputStream();
+		final WinstoneResponse response = WinstoneOutputStreamTest.newResponse(socket, null);
+		response.setStatus(429);
+		response.flushBuffer();
+		Assert.assertTrue(socket.toString("ISO-8859-1").startsWith("HTTP/1.1 429 No reason\r\n"));
+	}
+
+	public void testChunksFramedInPlace() throws IOException {
+		final CountingOutputStream socket = new CountingOutputStream();
+		final ByteBufferPool pool = new ByteBufferPool(WinstoneOutputStream.HEAD_ROOM + 16 + WinstoneOutputStream.TAIL_ROOM, 1, Boolean.FALSE);
+		final WinstoneResponse response = WinstoneOutputStreamTest.newResponse(socket, pool);
+		response.getOutputStream().write("0123456789abcdefXYZ".getBytes("ISO-8859-1"));
+		Assert.assertEquals(1, socket.getWrites());
+		response.getWinstoneOutputStream().finishResponse();
+		Assert.assertEquals(2, socket.getWrites());
+		final String text = socket.toString("ISO-8859-1");
+		Assert.assertTrue(text, text.contains("\r\nTransfer-Encoding: chunked\r\n"));
+		Assert.assertTrue(text, text.endsWith("\r\n\r\n10\r\n0123456789abcdef\r\n3\r\nXYZ\r\n0\r\n\r\n"));
+	}
+
+	public void testTrailersWrittenFromBuffer() throws IOException {
+		final CountingOutputStream socket = new CountingOutputStream();
+		final ByteBufferPool pool = new ByteBufferPool(WinstoneOutputStream.HEAD_ROOM + 16 + WinstoneOutputStream.TAIL_ROOM, 1, Boolean.FALSE);
+		final WinstoneResponse response = WinstoneOutputStreamTest.newResponse(socket, pool);
+		response.setTrailer("X-Checksum", "1");
+		response.getOutputStream().write("abc".getBytes("ISO-8859-1"));
+		response.flushBuffer();
+		response.getWinstoneOutputStream().finishResponse();
+		Assert.assertEquals(2, socket.getWrites());
+		Assert.assertEquals(1, pool.getPooledCount());
+		final String text = socket.toString("ISO-8859-1");
+		Assert.assertTrue(text, text.endsWith("\r\n\r\n3\r\nabc\r\n0\r\nX-Checksum: 1\r\n\r\n"));
+	}
+
+	public void testHeadLargerThanHeadRoom() throws IOException {
+		final CountingOutputStream socket = new CountingOutputStream();
+		final WinstoneResponse response = WinstoneOutputStreamTest.newResponse(socket, null);
+		final StringBuilder value = new StringBuilder();
+		while (value.length() < WinstoneOutputStream.HEAD_ROOM) {
+			value.append("0123456789");
+		}
+		response.setHeader("X-Large", value.toString());
+		response.setContentLength(2);
+		response.getOutputStream().write("ok".getBytes("ISO-8859-1"));
+		final String text = socket.toString("ISO-8859-1");
+		Assert.assertTrue(text, text.contains("\r\nX-Large: " + value + "\r\n"));
+		Assert.assertTrue(text, text.endsWith("\r\n\r\nok"));
+	}
+}
@@ -0,0 +1,70 @@
+package net.winstone.core;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class WinstoneResponseWriterTest extends TestCase {
+
+	private static final String TEXT = "plain, caf\u00e9 \u20ac \u4e2d\u6587 \ud83d\ude00 lone \ud800 high \udc00 low";
+
+	private static byte[] write(final String encoding, final String text, final int split) throws IOException {
+		final ByteArrayOutputStream socket = new ByteArrayOutputStream();
+		final WinstoneOutputStream out = new WinstoneOutputStream(socket, Boolean.TRUE);
+		final WinstoneResponse response = new WinstoneResponse();
+		response.setRequest(new WinstoneRequest(WinstoneConstant.DEFAULT_MAXIMUM_PARAMETER_ALLOWED));
+		response.setProtocol("HTTP/1.1");
+		response.setOutputStream(out);
+		out.setResponse(response);
+		response.setBufferSize(16);
+		response.setCharacterEncoding(encoding);
+		final PrintWriter writer = response.getWriter();
+		writer.write(text.substring(0, split));
+		writer.write(text.toCharArray(), split, text.length() - split);
+		writer.write('!');
+		writer.close();
+		return socket.toByteArray();
+	}
+
+	private static byte[] expected(final String encoding, final String text) throws IOException {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final OutputStreamWriter writer = new OutputStreamWriter(bytes, encoding);
+		writer.write(text + "!");
+		writer.close();
+		return bytes.toByteArray();
+	}
+
+	public void testSameBytesAsOutputStreamWriter() throws IOException {
+		final int pair = WinstoneResponseWriterTest.TEXT.indexOf('\ud83d') + 1;
+		for (final String encoding : new String[] { "US-ASCII", "ISO-8859-1", "UTF-8", "UTF-16", "Shift_JIS" }) {
+			final byte[] expected = WinstoneResponseWriterTest.expected(encoding, WinstoneResponseWriterTest.TEXT);
+			// the surrogate pair is split between two writes the second time
+			for (final int split : new int[] { 3, pair }) {
+				final byte[] actual = WinstoneResponseWriterTest.write(encoding, WinstoneResponseWriterTest.TEXT, split);
+				Assert.assertTrue(encoding + " split at " + split, Arrays.equals(expected, actual));
+			}
+		}
+	}
+
+	public void testLengthFromEncodedBytes() throws IOException {
+		final ByteArrayOutputStream socket = new ByteArrayOutputStream();
+		final WinstoneOutputStream out = new WinstoneOutputStream(socket, Boolean.TRUE);
+		final WinstoneResponse response = new WinstoneResponse();
+		response.setRequest(new WinstoneRequest(WinstoneConstant.DEFAULT_MAXIMUM_PARAMETER_ALLOWED));
+		response.setOutputStream(out);
+		out.setResponse(response);
+		response.setCharacterEncoding("UTF-8");
+		response.setContentLength(5);
+		final PrintWriter writer = response.getWriter();
+		writer.print("\u00e9\u00e9\u00e9");
+		// the last character does not fit in the content length
+		Assert.assertEquals(4, out.getOutputStreamLength());
+		writer.flush();
+		Assert.assertEquals("\u00e9\u00e9", socket.toString("UTF-8"));
+	}
+}
@@ -0,0 +1,174 @@
+package net.winstone.core.listener;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+import net.winstone.WinstoneException;
+import net.winstone.core.CountingOutputStream;
+import net.winstone.core.WinstoneConstant;
+import net.winstone.core.WinstoneOutputStream;
+import net.winstone.core.WinstoneRequest;
+import net.winstone.core.WinstoneResponse;
+import net.winstone.util.ByteBufferPool;
+
+public class Ajp13CodecTest extends TestCase {
+
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+	public void testDecodeForwardRequests() throws IOException {
+		final Ajp13IncomingPacket packet = new Ajp13IncomingPacket();
+		final ByteArrayOutputStream get = Ajp13CodecTest.forwardRequest(0x02, "/index.html", 2);
+		Ajp13CodecTest.putHeader(get, 0xA00B, "localhost");
+		Ajp13CodecTest.putString(get, "X-Custom");
+		Ajp13CodecTest.putString(get, "one");
+		get.write(0x05);
+		Ajp13CodecTest.putString(get, "a=b");
+		packet.read(Ajp13CodecTest.packet(get));
+		Assert.assertEquals(Ajp13IncomingPacket.SERVER_FORWARD_REQUEST, packet.parsePacket(Ajp13CodecTest.ISO_8859_1));
+		Assert.assertSame("GET", packet.getMethod());
+		Assert.assertSame("HTTP/1.1", packet.getProtocol());
+		Assert.assertEquals("/index.html", packet.getURI());
+		Assert.assertEquals(8009, packet.getServerPort());
+		Assert.assertEquals(2, packet.getHeaderCount());
+		Assert.assertSame("Host", packet.getHeaderNames()[0]);
+		Assert.assertEquals("localhost", packet.getHeaderValues()[0]);
+		Assert.assertEquals("X-Custom", packet.getHeaderNames()[1]);
+		Assert.assertEquals("one", packet.getHeaderValues()[1]);
+		Assert.assertEquals(1, packet.getAttributeCount());
+		Assert.assertEquals("query_string", packet.getAttributeName(0));
+		Assert.assertEquals("a=b", packet.getAttributeValue(0));
+
+		// the same instance decodes the next request of the connection
+		final ByteArrayOutputStream post = Ajp13CodecTest.forwardRequest(0x04, "/form", 1);
+		Ajp13CodecTest.putHeader(post, 0xA008, "12");
+		packet.read(Ajp13CodecTest.packet(post));
+		packet.parsePacket(Ajp13CodecTest.ISO_8859_1);
+		Assert.assertSame("POST", packet.getMethod());
+		Assert.assertEquals("/form", packet.getURI());
+		Assert.assertEquals(1, packet.getHeaderCount());
+		Assert.assertSame("Content-Length", packet.getHeaderNames()[0]);
+		Assert.assertEquals(0, packet.getAttributeCount());
+	}
+
+	public void testTruncatedPacket() throws IOException {
+		final ByteArrayOutputStream get = Ajp13CodecTest.forwardRequest(0x02, "/", 3);
+		Ajp13CodecTest.putHeader(get, 0xA00B, "localhost");
+		final Ajp13IncomingPacket packet = new Ajp13IncomingPacket();
+		packet.read(Ajp13CodecTest.packet(get));
+		try {
+			packet.parsePacket(Ajp13CodecTest.ISO_8859_1);
+			Assert.fail("Truncated packet accepted");
+		} catch (final WinstoneException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * The headers leave with the first body chunk, and each chunk is framed
+	 * in the response buffer.
+	 */
+	public void testResponseFramedInPlace() throws IOException {
+		final CountingOutputStream socket = new CountingOutputStream();
+		final ByteBufferPool pool = new ByteBufferPool(WinstoneOutputStream.HEAD_ROOM + 20000 + WinstoneOutputStream.TAIL_ROOM, 1, Boolean.FALSE);
+		final Ajp13OutputStream out = new Ajp13OutputStream(socket, pool);
+		final WinstoneResponse response = new WinstoneResponse();
+		response.setRequest(new WinstoneRequest(WinstoneConstant.DEFAULT_MAXIMUM_PARAMETER_ALLOWED));
+		response.setProtocol("HTTP/1.1");
+		response.setOutputStream(out);
+		out.setResponse(response);
+		response.setContentLength(20000);
+		response.setHeader("X-Custom", "v");
+		final byte body[] = new byte[20000];
+		for (int n = 0; n < body.length; n++) {
+			body[n] = (byte) n;
+		}
+		out.write(body);
+		Assert.assertEquals(3, socket.getWrites());
+		out.finishResponse();
+		Assert.assertEquals(1, pool.getPooledCount());
+
+		final byte written[] = socket.toByteArray();
+		int position = 0;
+		// SEND_HEADERS
+		Assert.assertEquals(0x41, written[position]);
+		Assert.assertEquals(0x42, written[position + 1]);
+		int length = Ajp13CodecTest.getInt(written, position + 2);
+		Assert.assertEquals(Ajp13OutputStream.CONTAINER_SEND_HEADERS, written[position + 4]);
+		Assert.assertEquals(200, Ajp13CodecTest.getInt(written, position + 5));
+		final String headers = new String(written, position + 4, length, "ISO-8859-1");
+		Assert.assertTrue(headers, headers.contains("X-Custom\u0000\u0000\u0001v\u0000"));
+		Assert.assertTrue(headers, headers.contains(" \u0003\u0000\u000520000\u0000"));
+		position += 4 + length;
+		// SEND_BODY_CHUNK packets
+		final ByteArrayOutputStream received = new ByteArrayOutputStream();
+		while (written[position + 4] == Ajp13OutputStream.CONTAINER_SEND_BODY_CHUNK) {
+			length = Ajp13CodecTest.getInt(written, position + 2);
+			final int chunkLength = Ajp13CodecTest.getInt(written, position + 5);
+			Assert.assertTrue(chunkLength <= Ajp13OutputStream.MAX_SEND_BODY_CHUNK);
+			Assert.assertEquals(chunkLength + 4, length);
+			Assert.assertEquals(0, written[position + 7 + chunkLength]);
+			received.write(written, position + 7, chunkLength);
+			position += 4 + length;
+		}
+		Assert.assertTrue(Arrays.equals(body, received.toByteArray()));
+		// END_RESPONSE, reusing the connection
+		Assert.assertEquals(Ajp13OutputStream.CONTAINER_END_RESPONSE, written[position + 4]);
+		Assert.assertEquals(1, written[position + 5]);
+		Assert.assertEquals(written.length, position + 6);
+	}
+
+	private static int getInt(final byte packet[], final int offset) {
+		return ((packet[offset] & 0xFF) << 8) + (packet[offset + 1] & 0xFF);
+	}
+
+	private static ByteArrayOutputStream forwardRequest(final int method, final String uri, final int headerCount) {
+		final ByteArrayOutputStream packet = new ByteArrayOutputStream();
+		packet.write(Ajp13IncomingPacket.SERVER_FORWARD_REQUEST);
+		packet.write(method);
+		Ajp13CodecTest.putString(packet, "HTTP/1.1");
+		Ajp13CodecTest.putString(packet, uri);
+		Ajp13CodecTest.putString(packet, "127.0.0.1");
+		Ajp13CodecTest.putString(packet, "");
+		Ajp13CodecTest.putString(packet, "localhost");
+		Ajp13CodecTest.putInt(packet, 8009);
+		packet.write(0x00);
+		Ajp13CodecTest.putInt(packet, headerCount);
+		return packet;
+	}
+
+	/**
+	 * @return the stream of the packet, attributes terminated.
+	 */
+	private static ByteArrayInputStream packet(final ByteArrayOutputStream packet) {
+		packet.write(0xFF);
+		final byte content[] = packet.toByteArray();
+		final byte whole[] = new byte[content.length + 4];
+		whole[0] = 0x12;
+		whole[1] = 0x34;
+		Ajp13OutputStream.setIntBlock(content.length, whole, 2);
+		System.arraycopy(content, 0, whole, 4, content.length);
+		return new ByteArrayInputStream(whole);
+	}
+
+	private static void putHeader(final ByteArrayOutputStream packet, final int code, final String value) {
+		Ajp13CodecTest.putInt(packet, code);
+		Ajp13CodecTest.putString(packet, value);
+	}
+
+	private static void putInt(final ByteArrayOutputStream packet, final int value) {
+		packet.write(value >> 8);
+		packet.write(value);
+	}
+
+	private static void putString(final ByteArrayOutputStream packet, final String value) {
+		final byte bytes[] = value.getBytes(Ajp13CodecTest.ISO_8859_1);
+		Ajp13CodecTest.putInt(packet, bytes.length);
+		packet.write(bytes, 0, bytes.length);
+		packet.write(0x00);
+	}
+}
@@ -0,0 +1,80 @@
+package net.winstone.core.listener;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+import net.winstone.util.BufferPool;
+
+public class Ajp13InputStreamTest extends TestCase {
+
+	public void testKnownLength() throws IOException {
+		final Ajp13ConnectionBuffer in = Ajp13InputStreamTest.packets(Ajp13InputStreamTest.body("hello "), Ajp13InputStreamTest.body("world"));
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final Ajp13InputStream body = new Ajp13InputStream(in, out, 11);
+		final byte buffer[] = new byte[64];
+		// the first packet comes unasked
+		Assert.assertEquals(6, body.read(buffer, 0, buffer.length));
+		Assert.assertEquals(0, out.size());
+		Assert.assertEquals(5, body.read(buffer, 6, buffer.length - 6));
+		Assert.assertEquals("hello world", new String(buffer, 0, 11, "ISO-8859-1"));
+		// the remaining 5 bytes were requested
+		Assert.assertEquals("[65, 66, 0, 3, 6, 0, 5]", Arrays.toString(out.toByteArray()));
+		Assert.assertEquals(-1, body.read());
+		Assert.assertEquals(0, in.available());
+	}
+
+	public void testChunked() throws IOException {
+		final Ajp13ConnectionBuffer in = Ajp13InputStreamTest.packets(Ajp13InputStreamTest.body("abc"), Ajp13InputStreamTest.body(""));
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final Ajp13InputStream body = new Ajp13InputStream(in, out, -1);
+		Assert.assertEquals(0, out.size());
+		Assert.assertEquals('a', body.read());
+		Assert.assertEquals(7, out.size());
+		Assert.assertEquals('b', body.read());
+		Assert.assertEquals('c', body.read());
+		Assert.assertEquals(-1, body.read());
+		Assert.assertEquals(14, out.size());
+	}
+
+	public void testDiscard() throws IOException {
+		final Ajp13ConnectionBuffer in = Ajp13InputStreamTest.packets(Ajp13InputStreamTest.body("first"), new byte[] { 0x12, 0x34, 0x00, 0x00 });
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final Ajp13InputStream body = new Ajp13InputStream(in, out, 100000);
+		body.discard();
+		// only the packet sent unasked is read, nothing more is requested
+		Assert.assertEquals(0, out.size());
+		Assert.assertEquals(4, in.available());
+		Assert.assertEquals(-1, body.read());
+	}
+
+	public void testNoBody() throws IOException {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		final Ajp13InputStream body = new Ajp13InputStream(Ajp13InputStreamTest.packets(), out, 0);
+		Assert.assertEquals(-1, body.read());
+		body.finishRequest();
+		Assert.assertEquals(0, out.size());
+	}
+
+	private static byte[] body(final String data) throws IOException {
+		final byte bytes[] = data.getBytes("ISO-8859-1");
+		final byte packet[] = new byte[bytes.length + 6];
+		packet[0] = 0x12;
+		packet[1] = 0x34;
+		Ajp13OutputStream.setIntBlock(bytes.length + 2, packet, 2);
+		Ajp13OutputStream.setIntBlock(bytes.length, packet, 4);
+		System.arraycopy(bytes, 0, packet, 6, bytes.length);
+		return packet;
+	}
+
+	private static Ajp13ConnectionBuffer packets(final byte[]... packets) {
+		final ByteArrayOutputStream all = new ByteArrayOutputStream();
+		for (final byte packet[] : packets) {
+			all.write(packet, 0, packet.length);
+		}
+		return new Ajp13ConnectionBuffer(new ByteArrayInputStream(all.toByteArray()), new BufferPool(8192, 1));
+	}
+}
@@ -0,0 +1,91 @@
+package net.winstone.core.listener;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class HpackTest extends TestCase {
+
+	/**
+	 * The requests of RFC 7541 C.4, Huffman coded, on a single connection.
+	 */
+	public void testDecodeRequests() throws Http2Exception {
+		final HpackDecoder decoder = new HpackDecoder(4096, 65536);
+		assertBlock(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff", ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+		assertBlock(decoder, "828684be5886a8eb10649cbf", ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com", "cache-control", "no-cache");
+		assertBlock(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf", ":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority", "www.example.com", "custom-key", "custom-value");
+	}
+
+	/**
+	 * The first request of RFC 7541 C.3, without Huffman coding.
+	 */
+	public void testDecodeLiterals() throws Http2Exception {
+		final HpackDecoder decoder = new HpackDecoder(4096, 65536);
+		assertBlock(decoder, "828684410f7777772e6578616d706c652e636f6d", ":method", "GET", ":scheme", "http", ":path", "/", ":authority", "www.example.com");
+	}
+
+	public void testHeaderListTooLarge() {
+		final HpackDecoder decoder = new HpackDecoder(4096, 64);
+		try {
+			decoder.decode(HpackTest.bytes("828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf"), 24, new ArrayList<String>(), new ArrayList<String>());
+			Assert.fail("Header list accepted");
+		} catch (final Http2Exception e) {
+			// expected
+		}
+	}
+
+	public void testRoundTrip() throws Http2Exception {
+		final HpackEncoder encoder = new HpackEncoder();
+		final HpackDecoder decoder = new HpackDecoder(4096, 65536);
+		final String fields[] = { ":status", "200", "server", "Winstone Servlet Engine", "content-type", "text/html;charset=UTF-8", "content-length", "1234", "set-cookie", "JSESSIONID=abcdef; Path=/" };
+		final byte first[] = HpackTest.encode(encoder, fields);
+		assertBlock(decoder, first, fields);
+		// repeated, the indexed fields take a byte each
+		final byte second[] = HpackTest.encode(encoder, fields);
+		assertBlock(decoder, second, fields);
+		Assert.assertTrue(second.length < first.length / 2);
+		// the table is emptied, then grows back
+		encoder.setMaxTableSize(0);
+		encoder.setMaxTableSize(4096);
+		final byte third[] = HpackTest.encode(encoder, fields);
+		assertBlock(decoder, third, fields);
+		Assert.assertTrue(third.length > second.length);
+	}
+
+	private static byte[] encode(final HpackEncoder encoder, final String fields[]) {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		encoder.beginBlock(out);
+		for (int n = 0; n < fields.length; n += 2) {
+			encoder.encode(fields[n], fields[n + 1], out);
+		}
+		return out.toByteArray();
+	}
+
+	private static void assertBlock(final HpackDecoder decoder, final String hex, final String... fields) throws Http2Exception {
+		HpackTest.assertBlock(decoder, HpackTest.bytes(hex), fields);
+	}
+
+	private static void assertBlock(final HpackDecoder decoder, final byte block[], final String... fields) throws Http2Exception {
+		final List<String> names = new ArrayList<String>();
+		final List<String> values = new ArrayList<String>();
+		decoder.decode(block, block.length, names, values);
+		final List<String> decoded = new ArrayList<String>();
+		for (int n = 0; n < names.size(); n++) {
+			decoded.add(names.get(n));
+			decoded.add(values.get(n));
+		}
+		Assert.assertEquals(Arrays.asList(fields), decoded);
+	}
+
+	private static byte[] bytes(final String hex) {
+		final byte data[] = new byte[hex.length() / 2];
+		for (int n = 0; n < data.length; n++) {
+			data[n] = (byte) Integer.parseInt(hex.substring(n * 2, n * 2 + 2), 16);
+		}
+		return data;
+	}
+}
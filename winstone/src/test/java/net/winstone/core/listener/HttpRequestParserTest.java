@@ -0,0 +1,97 @@
+package net.winstone.core.listener;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+import net.winstone.WinstoneException;
+
+public class HttpRequestParserTest extends TestCase {
+
+	public void testRequestHead() throws IOException {
+		final InputStream in = stream("GET /index.html?a=b HTTP/1.1\r\nHost: localhost:8080\r\nAccept:*/* \r\nX-Custom:  one  two\r\n\r\nbody");
+		final HttpRequestParser parser = new HttpRequestParser();
+		Assert.assertTrue(parser.parseRequestLine(in));
+		Assert.assertSame("GET", parser.getMethod());
+		Assert.assertEquals("/index.html?a=b", parser.getURI());
+		Assert.assertSame("HTTP/1.1", parser.getProtocol());
+		parser.parseHeaders(in);
+		Assert.assertEquals(3, parser.getHeaderCount());
+		Assert.assertSame("Host", parser.getHeaderNames()[0]);
+		Assert.assertEquals("localhost:8080", parser.getHeaderValues()[0]);
+		Assert.assertSame("Accept", parser.getHeaderNames()[1]);
+		Assert.assertEquals("*/*", parser.getHeaderValues()[1]);
+		Assert.assertEquals("X-Custom", parser.getHeaderNames()[2]);
+		Assert.assertEquals("one  two", parser.getHeaderValues()[2]);
+		// the body is left in the stream
+		Assert.assertEquals('b', in.read());
+	}
+
+	public void testKeepAliveReuse() throws IOException {
+		final InputStream in = stream("\r\npost /a HTTP/1.0\nContent-Length: 0\n\nHEAD /b\n");
+		final HttpRequestParser parser = new HttpRequestParser();
+		Assert.assertTrue(parser.parseRequestLine(in));
+		Assert.assertSame("POST", parser.getMethod());
+		Assert.assertSame("HTTP/1.0", parser.getProtocol());
+		parser.parseHeaders(in);
+		Assert.assertEquals(1, parser.getHeaderCount());
+		Assert.assertTrue(parser.parseRequestLine(in));
+		Assert.assertSame("HEAD", parser.getMethod());
+		Assert.assertEquals("/b", parser.getURI());
+		Assert.assertEquals("HTTP/0.9", parser.getProtocol());
+		Assert.assertEquals(0, parser.getHeaderCount());
+		Assert.assertFalse(parser.parseRequestLine(in));
+	}
+
+	public void testMalformedLines() throws IOException {
+		final InputStream in = stream("GET / FOO\r\nno colon here\r\n: empty name\r\nX-Folded: a\r\n  b\r\nAccept :x\r\n\r\n");
+		final HttpRequestParser parser = new HttpRequestParser();
+		Assert.assertTrue(parser.parseRequestLine(in));
+		Assert.assertEquals("HTTP/1.0", parser.getProtocol());
+		parser.parseHeaders(in);
+		Assert.assertEquals(2, parser.getHeaderCount());
+		Assert.assertEquals("X-Folded", parser.getHeaderNames()[0]);
+		Assert.assertEquals("a b", parser.getHeaderValues()[0]);
+		Assert.assertSame("Accept", parser.getHeaderNames()[1]);
+		Assert.assertEquals("x", parser.getHeaderValues()[1]);
+		try {
+			parser.parseRequestLine(stream("GARBAGE\r\n"));
+			Assert.fail("request line without URI accepted");
+		} catch (final WinstoneException e) {
+			// expected
+		}
+	}
+
+	public void testHeaderNamesIgnoreCase() throws IOException {
+		final InputStream in = stream("content-length: 3\r\nHOST: a\r\nx-custom: b\r\n\r\n");
+		final HttpRequestParser parser = new HttpRequestParser();
+		parser.parseHeaders(in);
+		Assert.assertEquals(3, parser.getHeaderCount());
+		Assert.assertSame("Content-Length", parser.getHeaderNames()[0]);
+		Assert.assertSame("Host", parser.getHeaderNames()[1]);
+		Assert.assertEquals("x-custom", parser.getHeaderNames()[2]);
+	}
+
+	public void testLineTooLong() throws IOException {
+		final StringBuilder header = new StringBuilder("X-Long: ");
+		while (header.length() < 70000) {
+			header.append("0123456789");
+		}
+		final HttpRequestParser parser = new HttpRequestParser();
+		try {
+			parser.parseHeaders(stream(header + "\r\n\r\n"));
+			Assert.fail("header line of " + header.length() + " bytes accepted");
+		} catch (final HttpRequestParser.LineTooLongException e) {
+			// expected
+		}
+		// the parser goes on with the next request
+		Assert.assertTrue(parser.parseRequestLine(stream("GET / HTTP/1.1\r\n")));
+		Assert.assertEquals("/", parser.getURI());
+	}
+
+	private static InputStream stream(final String content) {
+		return new ByteArrayInputStream(content.getBytes());
+	}
+}
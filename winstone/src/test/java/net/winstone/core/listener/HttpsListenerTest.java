@@ -0,0 +1,57 @@
+package net.winstone.core.listener;
+
+import java.io.InputStreamReader;
+import java.io.StringReader;
+import java.security.PrivateKey;
+import java.security.interfaces.ECPrivateKey;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.spec.InvalidKeySpecException;
+import java.util.Arrays;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class HttpsListenerTest extends TestCase {
+
+	private static PrivateKey readKey(final String name) throws Exception {
+		return HttpsListener.readPEMPrivateKey(new InputStreamReader(HttpsListenerTest.class.getResourceAsStream(name), "US-ASCII"));
+	}
+
+	public void testRSAPrivateKey() throws Exception {
+		final PrivateKey key = HttpsListenerTest.readKey("rsa.pem");
+		Assert.assertTrue(key instanceof RSAPrivateKey);
+		Assert.assertEquals(2048, ((RSAPrivateKey) key).getModulus().bitLength());
+	}
+
+	/**
+	 * openssl writes an EC PARAMETERS block before the key itself.
+	 */
+	public void testECPrivateKey() throws Exception {
+		final PrivateKey key = HttpsListenerTest.readKey("ec.pem");
+		Assert.assertTrue(key instanceof ECPrivateKey);
+		Assert.assertEquals(256, ((ECPrivateKey) key).getParams().getCurve().getField().getFieldSize());
+	}
+
+	public void testPKCS8PrivateKey() throws Exception {
+		final PrivateKey key = HttpsListenerTest.readKey("pkcs8.pem");
+		Assert.assertTrue(key instanceof ECPrivateKey);
+	}
+
+	public void testNoPrivateKey() throws Exception {
+		try {
+			HttpsListener.readPEMPrivateKey(new StringReader("-----BEGIN CERTIFICATE-----\nAAAA\n-----END CERTIFICATE-----\n"));
+			Assert.fail("no key to read");
+		} catch (final InvalidKeySpecException e) {
+		}
+	}
+
+	public void testPreferredCipherSuites() {
+		final String[] enabled = { "TLS_RSA_WITH_AES_128_CBC_SHA", "SSL_RSA_WITH_RC4_128_MD5", "TLS_ECDHE_RSA_WITH_AES_256_CBC_SHA384", "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384", "TLS_DHE_RSA_WITH_AES_128_GCM_SHA256", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256", "TLS_AES_256_GCM_SHA384", "TLS_ECDH_anon_WITH_AES_128_CBC_SHA", "SSL_RSA_WITH_3DES_EDE_CBC_SHA", "TLS_AES_128_GCM_SHA256" };
+		Assert.assertEquals(Arrays.asList("TLS_AES_128_GCM_SHA256", "TLS_AES_256_GCM_SHA384", "TLS_ECDHE_RSA_WITH_AES_128_GCM_SHA256", "TLS_ECDHE_RSA_WITH_AES_256_GCM_SHA384", "TLS_DHE_RSA_WITH_AES_128_GCM_SHA256", "TLS_ECDHE_RSA_WITH_AES_256_CBC_SHA384", "TLS_RSA_WITH_AES_128_CBC_SHA"), Arrays.asList(HttpsListener.preferredCipherSuites(enabled)));
+	}
+
+	public void testPreferredProtocols() {
+		Assert.assertEquals(Arrays.asList("TLSv1.3", "TLSv1.2"), Arrays.asList(HttpsListener.preferredProtocols(new String[] { "TLSv1.3", "TLSv1.2", "TLSv1.1", "TLSv1" })));
+		Assert.assertEquals(Arrays.asList("TLSv1"), Arrays.asList(HttpsListener.preferredProtocols(new String[] { "TLSv1" })));
+	}
+}
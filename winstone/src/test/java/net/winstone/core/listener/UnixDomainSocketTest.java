@@ -0,0 +1,68 @@
+package net.winstone.core.listener;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class UnixDomainSocketTest extends TestCase {
+
+	private SocketChannel client;
+	private UnixDomainSocket socket;
+
+	/**
+	 * The adaptor only needs a connected channel: a loopback TCP pair stands
+	 * in for a Unix domain one, so the test runs on any Java version.
+	 */
+	@Override
+	protected void setUp() throws Exception {
+		final ServerSocketChannel server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		client = SocketChannel.open(server.socket().getLocalSocketAddress());
+		socket = new UnixDomainSocket(server.accept());
+		server.close();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		socket.close();
+		client.close();
+	}
+
+	public void testReadWrite() throws IOException {
+		client.write(ByteBuffer.wrap("ping".getBytes("ISO-8859-1")));
+		final byte b[] = new byte[16];
+		final int read = socket.getInputStream().read(b, 0, b.length);
+		Assert.assertEquals("ping", new String(b, 0, read, "ISO-8859-1"));
+
+		socket.getOutputStream().write("pong".getBytes("ISO-8859-1"));
+		final ByteBuffer reply = ByteBuffer.allocate(16);
+		client.read(reply);
+		Assert.assertEquals("pong", new String(reply.array(), 0, reply.position(), "ISO-8859-1"));
+	}
+
+	public void testReadTimeout() throws IOException {
+		socket.setSoTimeout(50);
+		final InputStream in = socket.getInputStream();
+		try {
+			in.read();
+			Assert.fail("read should time out");
+		} catch (final SocketTimeoutException e) {
+		}
+		// still usable afterwards
+		client.write(ByteBuffer.wrap(new byte[] { 42 }));
+		Assert.assertEquals(42, in.read());
+	}
+
+	public void testEndOfStream() throws IOException {
+		client.close();
+		Assert.assertEquals(-1, socket.getInputStream().read());
+	}
+}
@@ -1,11 +1,16 @@
 package net.winstone.util;
 
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import junit.framework.Assert;
 import junit.framework.TestCase;
 
 /**
@@ -17,6 +22,184 @@ public class BoundedExecutorServiceTest extends TestCase {
 		// nothing to do now
 	}
 
+	public void testMetrics() throws Exception {
+		final BoundedExecutorService bes = new BoundedExecutorService(Executors.newCachedThreadPool(), 2);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch started = new CountDownLatch(2);
+		for (int i = 0; i < 5; i++) {
+			bes.execute(new Runnable() {
+				public void run() {
+					started.countDown();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+		}
+		started.await();
+		Assert.assertEquals(2, bes.getMaximumPoolSize());
+		Assert.assertEquals(2, bes.getActiveCount());
+		Assert.assertEquals(3, bes.getQueueSize());
+		Assert.assertEquals(5, bes.getSubmittedTaskCount());
+		release.countDown();
+		bes.shutdown();
+		Assert.assertTrue(bes.awaitTermination(10, TimeUnit.SECONDS));
+		Assert.assertEquals(0, bes.getActiveCount());
+		Assert.assertEquals(0, bes.getQueueSize());
+		Assert.assertEquals(2, bes.getPeakActiveCount());
+		Assert.assertEquals(5, bes.getCompletedTaskCount());
+	}
+
+	public void testQueueLimit() throws Exception {
+		final BoundedExecutorService bes = new BoundedExecutorService(Executors.newCachedThreadPool(), 1, 1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final Runnable task = new Runnable() {
+			public void run() {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		};
+		bes.execute(task);
+		bes.execute(task);
+		Assert.assertTrue(bes.isQueueFull());
+		try {
+			bes.execute(task);
+			Assert.fail("task queued beyond the limit");
+		} catch (RejectedExecutionException e) {
+		}
+		Assert.assertEquals(1, bes.getRejectedTaskCount());
+		Assert.assertEquals(2, bes.getSubmittedTaskCount());
+		release.countDown();
+		bes.shutdown();
+		Assert.assertTrue(bes.awaitTermination(10, TimeUnit.SECONDS));
+		Assert.assertEquals(2, bes.getCompletedTaskCount());
+		Assert.assertFalse(bes.isQueueFull());
+	}
+
+	public void testThrowingTaskFreesItsSlot() throws Exception {
+		final BoundedExecutorService bes = new BoundedExecutorService(BoundedExecutorServiceTest.quietPool(), 1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch ran = new CountDownLatch(1);
+		bes.execute(BoundedExecutorServiceTest.failingTask(release));
+		bes.execute(new Runnable() {
+			public void run() {
+				ran.countDown();
+			}
+		});
+		Assert.assertEquals(1, bes.getQueueSize());
+		release.countDown();
+		Assert.assertTrue(ran.await(10, TimeUnit.SECONDS));
+		bes.shutdown();
+		Assert.assertTrue(bes.awaitTermination(10, TimeUnit.SECONDS));
+		Assert.assertEquals(0, bes.getActiveCount());
+		Assert.assertEquals(0, bes.getQueueSize());
+		Assert.assertEquals(2, bes.getCompletedTaskCount());
+	}
+
+	public void testThrowingTaskKeepsQueuedTaskAfterShutdown() throws Exception {
+		final ExecutorService es = BoundedExecutorServiceTest.quietPool();
+		final BoundedExecutorService bes = new BoundedExecutorService(es, 1);
+		final CountDownLatch release = new CountDownLatch(1);
+		bes.execute(BoundedExecutorServiceTest.failingTask(release));
+		final Runnable queued = new Runnable() {
+			public void run() {
+				// never run
+			}
+		};
+		bes.execute(queued);
+		// the next task cannot be handed to the wrapped executor any more
+		es.shutdown();
+		release.countDown();
+		Assert.assertTrue(es.awaitTermination(10, TimeUnit.SECONDS));
+		Assert.assertEquals(0, bes.getActiveCount());
+		Assert.assertEquals(1, bes.getQueueSize());
+		final List<Runnable> left = bes.shutdownNow();
+		Assert.assertEquals(1, left.size());
+		Assert.assertSame(queued, left.get(0));
+	}
+
+	/**
+	 * @return a pool whose threads end silently on an uncaught exception.
+	 */
+	private static ExecutorService quietPool() {
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r);
+				thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+					public void uncaughtException(final Thread t, final Throwable e) {
+						// expected
+					}
+				});
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * @return a task throwing once released.
+	 */
+	private static Runnable failingTask(final CountDownLatch release) {
+		return new Runnable() {
+			public void run() {
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				throw new IllegalStateException("task failed");
+			}
+		};
+	}
+
+	/**
+	 * Contention benchmark: several threads submit short tasks while as many
+	 * slots as processors run them.
+	 */
+	public void testContention() throws Exception {
+		final int producers = 8;
+		final int tasksPerProducer = 25000;
+		final BoundedExecutorService bes = new BoundedExecutorService(Executors.newCachedThreadPool(), Runtime.getRuntime().availableProcessors());
+		final CountDownLatch done = new CountDownLatch(producers * tasksPerProducer);
+		final Runnable task = new Runnable() {
+			public void run() {
+				done.countDown();
+			}
+		};
+		final CountDownLatch start = new CountDownLatch(1);
+		for (int i = 0; i < producers; i++) {
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int n = 0; n < tasksPerProducer; n++) {
+						bes.execute(task);
+					}
+				}
+			}.start();
+		}
+		final long begin = System.nanoTime();
+		start.countDown();
+		Assert.assertTrue(done.await(60, TimeUnit.SECONDS));
+		final long elapsed = System.nanoTime() - begin;
+		bes.shutdown();
+		Assert.assertTrue(bes.awaitTermination(10, TimeUnit.SECONDS));
+		System.out.println("BoundedExecutorService: " + (producers * tasksPerProducer * 1000000000L / Math.max(elapsed, 1)) + " tasks/s from " + producers + " threads, peak queue " + bes.getPeakQueueSize() + ", longest wait "
+				+ bes.getMaximumWaitTime(TimeUnit.MICROSECONDS) + "us");
+		Assert.assertEquals(producers * tasksPerProducer, bes.getCompletedTaskCount());
+		Assert.assertEquals(0, bes.getQueueSize());
+		Assert.assertEquals(0, bes.getActiveCount());
+		Assert.assertTrue(bes.getPeakActiveCount() <= bes.getMaximumPoolSize());
+	}
+
 	public void bounded() throws Exception {
 		ExecutorService es = new ThreadPoolExecutor(2, Integer.MAX_VALUE, 5L, TimeUnit.SECONDS, // idle
 																								// thread
@@ -57,4 +240,4 @@ public class BoundedExecutorServiceTest extends TestCase {
 
 		Thread.sleep(100000);
 	}
-}
\ No newline at end of file
+}
\ No newline at end of file
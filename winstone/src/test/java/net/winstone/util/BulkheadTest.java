@@ -0,0 +1,47 @@
+package net.winstone.util;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class BulkheadTest extends TestCase {
+
+	public void testLimit() throws InterruptedException {
+		final Bulkhead bulkhead = new Bulkhead(1, 0, 1000);
+		Assert.assertTrue(bulkhead.enter());
+		Assert.assertEquals(1, bulkhead.getActiveCount());
+		Assert.assertFalse(bulkhead.enter());
+		Assert.assertEquals(1, bulkhead.getRejectedCount());
+		bulkhead.leave();
+		Assert.assertTrue(bulkhead.enter());
+		bulkhead.leave();
+		Assert.assertEquals(0, bulkhead.getActiveCount());
+	}
+
+	public void testTimeout() throws InterruptedException {
+		final Bulkhead bulkhead = new Bulkhead(1, 1, 10);
+		Assert.assertTrue(bulkhead.enter());
+		Assert.assertFalse(bulkhead.enter());
+		Assert.assertEquals(1, bulkhead.getTimedOutCount());
+		Assert.assertEquals(0, bulkhead.getQueueSize());
+	}
+
+	public void testWait() throws InterruptedException {
+		final Bulkhead bulkhead = new Bulkhead(1, 1, 10000);
+		Assert.assertTrue(bulkhead.enter());
+		final Thread leaving = new Thread() {
+
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(20);
+				} catch (final InterruptedException e) {
+				}
+				bulkhead.leave();
+			}
+		};
+		leaving.start();
+		Assert.assertTrue(bulkhead.enter());
+		leaving.join();
+		Assert.assertEquals(0, bulkhead.getTimedOutCount());
+	}
+}
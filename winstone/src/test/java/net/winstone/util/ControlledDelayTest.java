@@ -0,0 +1,43 @@
+package net.winstone.util;
+
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class ControlledDelayTest extends TestCase {
+
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	public void testBurstGoesThrough() {
+		final ControlledDelay codel = new ControlledDelay(10, 100, TimeUnit.MILLISECONDS);
+		// above the target, but for less than an interval
+		for (long now = 0; now < 100 * ControlledDelayTest.MS; now += 10 * ControlledDelayTest.MS) {
+			Assert.assertFalse(codel.drop(50 * ControlledDelayTest.MS, now, Boolean.TRUE));
+		}
+		Assert.assertFalse(codel.drop(5 * ControlledDelayTest.MS, 100 * ControlledDelayTest.MS, Boolean.TRUE));
+		Assert.assertFalse(codel.drop(50 * ControlledDelayTest.MS, 150 * ControlledDelayTest.MS, Boolean.TRUE));
+		// the last one waiting is never dropped
+		Assert.assertFalse(codel.drop(50 * ControlledDelayTest.MS, 300 * ControlledDelayTest.MS, Boolean.FALSE));
+		Assert.assertEquals(0, codel.getDroppedCount());
+	}
+
+	public void testStandingQueueDrained() {
+		final ControlledDelay codel = new ControlledDelay(10, 100, TimeUnit.MILLISECONDS);
+		Assert.assertFalse(codel.drop(50 * ControlledDelayTest.MS, 0, Boolean.TRUE));
+		Assert.assertFalse(codel.drop(50 * ControlledDelayTest.MS, 90 * ControlledDelayTest.MS, Boolean.TRUE));
+		// above the target for a whole interval
+		Assert.assertTrue(codel.drop(50 * ControlledDelayTest.MS, 100 * ControlledDelayTest.MS, Boolean.TRUE));
+		Assert.assertTrue(codel.isDropping());
+		// next drop an interval later, then interval / sqrt(2) later
+		Assert.assertFalse(codel.drop(50 * ControlledDelayTest.MS, 150 * ControlledDelayTest.MS, Boolean.TRUE));
+		Assert.assertTrue(codel.drop(50 * ControlledDelayTest.MS, 200 * ControlledDelayTest.MS, Boolean.TRUE));
+		Assert.assertFalse(codel.drop(50 * ControlledDelayTest.MS, 260 * ControlledDelayTest.MS, Boolean.TRUE));
+		Assert.assertTrue(codel.drop(50 * ControlledDelayTest.MS, 271 * ControlledDelayTest.MS, Boolean.TRUE));
+		Assert.assertEquals(3, codel.getDroppedCount());
+		// back under the target
+		Assert.assertFalse(codel.drop(5 * ControlledDelayTest.MS, 400 * ControlledDelayTest.MS, Boolean.TRUE));
+		Assert.assertFalse(codel.isDropping());
+		Assert.assertFalse(codel.drop(50 * ControlledDelayTest.MS, 410 * ControlledDelayTest.MS, Boolean.TRUE));
+	}
+}
@@ -2,6 +2,7 @@ package net.winstone.util;
 
 import java.text.SimpleDateFormat;
 import java.util.Locale;
+import java.util.TimeZone;
 
 import junit.framework.Assert;
 import junit.framework.TestCase;
@@ -22,4 +23,17 @@ public class DateCacheTest extends TestCase {
 		// Assert.assertEquals("Mon, 19 Jul 2010 12:08:26", cache.format(time));
 
 	}
+
+	public void testSameSecond() {
+		final SimpleDateFormat format = new SimpleDateFormat("EEE, d MMM yyyy HH:mm:ss", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		final DateCache cache = new DateCache(format);
+		final String date = cache.format(1279534106123L);
+		Assert.assertEquals("Mon, 19 Jul 2010 10:08:26", date);
+		Assert.assertSame(date, cache.format(1279534106999L));
+		Assert.assertEquals("Mon, 19 Jul 2010 10:08:27", cache.format(1279534107000L));
+		// the format given is not shared
+		format.setTimeZone(TimeZone.getTimeZone("GMT+02:00"));
+		Assert.assertEquals("Mon, 19 Jul 2010 10:08:28", cache.format(1279534108000L));
+	}
 }
@@ -0,0 +1,73 @@
+package net.winstone.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.Assert;
+import junit.framework.TestCase;
+
+public class StripedPoolTest extends TestCase {
+
+	private static StripedPool<Object> newPool(final int maximumPooled) {
+		return new StripedPool<Object>(maximumPooled) {
+
+			@Override
+			protected Object create() {
+				return new Object();
+			}
+		};
+	}
+
+	public void testCounters() {
+		final StripedPool<Object> pool = StripedPoolTest.newPool(1000);
+		pool.fill(2);
+		Assert.assertEquals(2, pool.getPooledCount());
+		Assert.assertEquals(2, pool.getAllocatedCount());
+		final Object first = pool.acquire();
+		final Object second = pool.acquire();
+		final Object third = pool.acquire();
+		Assert.assertNotSame(first, second);
+		Assert.assertEquals(2, pool.getHitCount());
+		Assert.assertEquals(1, pool.getMissCount());
+		Assert.assertEquals(3, pool.getAllocatedCount());
+		pool.release(third);
+		Assert.assertSame(third, pool.acquire());
+	}
+
+	public void testBoundedCapacity() {
+		final StripedPool<Object> pool = StripedPoolTest.newPool(1);
+		final List<Object> objects = new ArrayList<Object>();
+		for (int n = 0; n < 3; n++) {
+			objects.add(pool.acquire());
+		}
+		for (final Object object : objects) {
+			pool.release(object);
+		}
+		// one per stripe at most, and the current thread uses a single stripe
+		Assert.assertEquals(1, pool.getPooledCount());
+		Assert.assertEquals(2, pool.getDroppedCount());
+	}
+
+	public void testAcrossThreads() throws InterruptedException {
+		final StripedPool<Object> pool = StripedPoolTest.newPool(1000);
+		final Thread threads[] = new Thread[8];
+		for (int n = 0; n < threads.length; n++) {
+			threads[n] = new Thread() {
+
+				@Override
+				public void run() {
+					for (int i = 0; i < 10000; i++) {
+						pool.release(pool.acquire());
+					}
+				}
+			};
+			threads[n].start();
+		}
+		for (final Thread thread : threads) {
+			thread.join();
+		}
+		Assert.assertEquals(80000, pool.getHitCount() + pool.getMissCount());
+		Assert.assertEquals(pool.getMissCount(), pool.getAllocatedCount());
+		Assert.assertEquals(pool.getAllocatedCount(), pool.getPooledCount() + pool.getDroppedCount());
+	}
+}